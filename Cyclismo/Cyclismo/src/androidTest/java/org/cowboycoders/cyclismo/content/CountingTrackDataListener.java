@@ -0,0 +1,91 @@
+/*
+*    Copyright (c) 2013, Will Szumski
+*    Copyright (c) 2013, Doug Szumski
+*
+*    This file is part of Cyclismo.
+*
+*    Cyclismo is free software: you can redistribute it and/or modify
+*    it under the terms of the GNU General Public License as published by
+*    the Free Software Foundation, either version 3 of the License, or
+*    (at your option) any later version.
+*
+*    Cyclismo is distributed in the hope that it will be useful,
+*    but WITHOUT ANY WARRANTY; without even the implied warranty of
+*    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*    GNU General Public License for more details.
+*
+*    You should have received a copy of the GNU General Public License
+*    along with Cyclismo.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package org.cowboycoders.cyclismo.content;
+
+import android.location.Location;
+
+/**
+ * A {@link TrackDataListener} counting the track points handed to it.
+ */
+class CountingTrackDataListener implements TrackDataListener {
+
+  long numPoints;
+  int numClears;
+
+  @Override
+  public void onLocationStateChanged(LocationState locationState) {}
+
+  @Override
+  public void onLocationChanged(Location location) {}
+
+  @Override
+  public void onHeadingChanged(double heading) {}
+
+  @Override
+  public void onSelectedTrackChanged(Track track) {}
+
+  @Override
+  public void onTrackUpdated(Track track) {}
+
+  @Override
+  public void clearTrackPoints() {
+    numClears++;
+  }
+
+  @Override
+  public void onSampledInTrackPoint(Location location) {
+    numPoints++;
+  }
+
+  @Override
+  public void onSampledOutTrackPoint(Location location) {
+    numPoints++;
+  }
+
+  @Override
+  public void onSegmentSplit(Location location) {}
+
+  @Override
+  public void onNewTrackPointsDone() {}
+
+  @Override
+  public void clearWaypoints() {}
+
+  @Override
+  public void onNewWaypoint(Waypoint waypoint) {}
+
+  @Override
+  public void onNewWaypointsDone() {}
+
+  @Override
+  public boolean onMetricUnitsChanged(boolean metricUnits) {
+    return false;
+  }
+
+  @Override
+  public boolean onReportSpeedChanged(boolean reportSpeed) {
+    return false;
+  }
+
+  @Override
+  public boolean onMinRecordingDistanceChanged(int minRecordingDistance) {
+    return false;
+  }
+}
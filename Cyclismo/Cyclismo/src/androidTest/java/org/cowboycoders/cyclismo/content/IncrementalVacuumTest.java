@@ -0,0 +1,280 @@
+/*
+*    Copyright (c) 2013, Will Szumski
+*    Copyright (c) 2013, Doug Szumski
+*
+*    This file is part of Cyclismo.
+*
+*    Cyclismo is free software: you can redistribute it and/or modify
+*    it under the terms of the GNU General Public License as published by
+*    the Free Software Foundation, either version 3 of the License, or
+*    (at your option) any later version.
+*
+*    Cyclismo is distributed in the hope that it will be useful,
+*    but WITHOUT ANY WARRANTY; without even the implied warranty of
+*    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*    GNU General Public License for more details.
+*
+*    You should have received a copy of the GNU General Public License
+*    along with Cyclismo.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package org.cowboycoders.cyclismo.content;
+
+import android.content.Context;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.net.Uri;
+import android.test.AndroidTestCase;
+import android.test.RenamingDelegatingContext;
+import android.test.mock.MockContentResolver;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import org.cowboycoders.cyclismo.content.MyTracksProvider.DatabaseHelper;
+
+import java.io.File;
+import java.util.Locale;
+
+/**
+ * Tests deleting tracks and reclaiming their space with
+ * {@link IncrementalVacuum}.
+ */
+public class IncrementalVacuumTest extends AndroidTestCase {
+
+  private static final String TAG = IncrementalVacuumTest.class.getSimpleName();
+  private static final int SMALL_TRACK_POINTS = 2000;
+  private static final int LARGE_TRACKS = 8;
+  private static final long LARGE_DATABASE_SIZE = 2L * 1024 * 1024 * 1024;
+  private static final int BLOB_SIZE = 1024;
+  private static final long RECLAIM_TIMEOUT_MS = 10 * 60 * 1000;
+  private static final String OTHER_DATABASE_NAME = "incremental_vacuum.db";
+
+  private Context context;
+  private MyTracksProviderUtils providerUtils;
+  private SQLiteDatabase db;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    MockContentResolver mockContentResolver = new MockContentResolver();
+    context = new RenamingDelegatingContext(getContext(), getContext(), "test.");
+    MyTracksProvider myTracksProvider = new MyTracksProvider();
+    myTracksProvider.attachInfo(context, null);
+    mockContentResolver.addProvider(MyTracksProviderUtils.AUTHORITY, myTracksProvider);
+    providerUtils = new MyTracksProviderUtilsImpl(mockContentResolver);
+    providerUtils.deleteAllTracks();
+    // A connection of our own to the provider's database
+    db = new DatabaseHelper(context, MyTracksProvider.DATABASE_NAME).getWritableDatabase();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    providerUtils.deleteAllTracks();
+    db.close();
+    super.tearDown();
+  }
+
+  /**
+   * Tests the database is in incremental mode.
+   */
+  public void testAutoVacuum() {
+    assertEquals(2, DatabaseUtils.longForQuery(db, "PRAGMA auto_vacuum", null));
+  }
+
+  /**
+   * Tests a database in another mode is converted to incremental mode, and
+   * only once.
+   */
+  public void testConvert() {
+    SQLiteDatabase other = openOtherDatabase();
+    try {
+      assertEquals(0, DatabaseUtils.longForQuery(other, "PRAGMA auto_vacuum", null));
+      IncrementalVacuum incrementalVacuum = new IncrementalVacuum(other);
+      assertTrue(incrementalVacuum.convert());
+      assertEquals(2, DatabaseUtils.longForQuery(other, "PRAGMA auto_vacuum", null));
+      assertFalse(incrementalVacuum.convert());
+      incrementalVacuum.shutdown();
+    } finally {
+      other.close();
+      context.deleteDatabase(OTHER_DATABASE_NAME);
+    }
+  }
+
+  /**
+   * Tests a failed conversion leaves the database usable in its old mode.
+   */
+  public void testConvert_failure() {
+    SQLiteDatabase other = openOtherDatabase();
+    try {
+      IncrementalVacuum incrementalVacuum = new IncrementalVacuum(other);
+      // VACUUM fails within a transaction
+      other.beginTransaction();
+      try {
+        assertFalse(incrementalVacuum.convert());
+      } finally {
+        other.endTransaction();
+      }
+      incrementalVacuum.shutdown();
+      assertEquals(0, DatabaseUtils.longForQuery(other, "PRAGMA auto_vacuum", null));
+      other.execSQL("INSERT INTO test VALUES (2)");
+      assertEquals(2, DatabaseUtils.longForQuery(other, "SELECT COUNT(*) FROM test", null));
+    } finally {
+      other.close();
+      context.deleteDatabase(OTHER_DATABASE_NAME);
+    }
+  }
+
+  /**
+   * Opens a database with a row in it, in the default auto_vacuum mode.
+   */
+  private SQLiteDatabase openOtherDatabase() {
+    context.deleteDatabase(OTHER_DATABASE_NAME);
+    SQLiteDatabase other = context.openOrCreateDatabase(
+        OTHER_DATABASE_NAME, Context.MODE_PRIVATE, null);
+    other.execSQL("CREATE TABLE test (value INTEGER)");
+    other.execSQL("INSERT INTO test VALUES (1)");
+    return other;
+  }
+
+  /**
+   * Tests deleting several tracks removes them along with their points, and
+   * leaves the rest.
+   */
+  public void testDeleteTracks() {
+    long first = insertTrack(SMALL_TRACK_POINTS);
+    long second = insertTrack(SMALL_TRACK_POINTS);
+    long third = insertTrack(SMALL_TRACK_POINTS);
+
+    providerUtils.deleteTracks(new long[] { first, third });
+    assertNull(providerUtils.getTrack(first));
+    assertNotNull(providerUtils.getTrack(second));
+    assertNull(providerUtils.getTrack(third));
+    assertEquals(0, countTrackPoints(first));
+    assertEquals(SMALL_TRACK_POINTS, countTrackPoints(second));
+    assertEquals(0, countTrackPoints(third));
+  }
+
+  /**
+   * Tests stepping frees the pages of a deleted track a step at a time.
+   */
+  public void testStep() {
+    long trackId = insertTrack(SMALL_TRACK_POINTS);
+    providerUtils.deleteTrack(trackId);
+
+    IncrementalVacuum incrementalVacuum = new IncrementalVacuum(db);
+    long freePages = incrementalVacuum.getFreePages();
+    assertTrue(freePages > IncrementalVacuum.PAGES_PER_STEP);
+    int steps = 1;
+    while (incrementalVacuum.step()) {
+      steps++;
+    }
+    incrementalVacuum.shutdown();
+    assertEquals(0, incrementalVacuum.getFreePages());
+    assertTrue(steps > 1);
+  }
+
+  /**
+   * Compares the latency of deleting a track from a multi-gigabyte database
+   * against deleting one followed by a full VACUUM, as deletes used to.
+   */
+  @LargeTest
+  public void testDelete_largeDatabase() throws Exception {
+    File databaseFile = new File(db.getPath());
+    if (databaseFile.getParentFile().getUsableSpace() < 3 * LARGE_DATABASE_SIZE) {
+      Log.w(TAG, "Not enough space for a large database, skipping.");
+      return;
+    }
+    long[] trackIds = new long[LARGE_TRACKS];
+    for (int i = 0; i < LARGE_TRACKS; i++) {
+      trackIds[i] = insertTrack(0);
+    }
+    fillDatabase(trackIds, LARGE_DATABASE_SIZE);
+    long size = databaseFile.length();
+
+    long start = System.nanoTime();
+    String[] args = new String[] { Long.toString(trackIds[0]) };
+    db.delete(TrackPointsColumns.TABLE_NAME, TrackPointsColumns.TRACKID + "=?", args);
+    db.delete(TracksColumns.TABLE_NAME, TracksColumns._ID + "=?", args);
+    db.execSQL("VACUUM");
+    long vacuum = System.nanoTime() - start;
+
+    start = System.nanoTime();
+    providerUtils.deleteTrack(trackIds[1]);
+    long incremental = System.nanoTime() - start;
+
+    start = System.nanoTime();
+    providerUtils.deleteTracks(new long[] { trackIds[2], trackIds[3], trackIds[4] });
+    long batch = System.nanoTime() - start;
+
+    start = System.nanoTime();
+    while (DatabaseUtils.longForQuery(db, "PRAGMA freelist_count", null) > 0
+        && System.nanoTime() - start < RECLAIM_TIMEOUT_MS * 1000000) {
+      Thread.sleep(100);
+    }
+    long reclaim = System.nanoTime() - start;
+
+    Log.i(TAG, String.format(Locale.US, "%d MB database: delete and VACUUM %dms, "
+        + "delete %dms, delete 3 in a batch %dms, reclaimed in the background in %dms "
+        + "to %d MB", size >> 20, vacuum / 1000000, incremental / 1000000, batch / 1000000,
+        reclaim / 1000000, databaseFile.length() >> 20));
+    assertEquals(0, DatabaseUtils.longForQuery(db, "PRAGMA freelist_count", null));
+    assertTrue(incremental < vacuum);
+  }
+
+  private long insertTrack(int numberOfPoints) {
+    Track track = new Track();
+    track.setName("Vacuum");
+    Uri uri = providerUtils.insertTrack(track);
+    long trackId = Long.parseLong(uri.getLastPathSegment());
+    SQLiteStatement insert = db.compileStatement("INSERT INTO " + TrackPointsColumns.TABLE_NAME
+        + " (" + TrackPointsColumns.TRACKID + ", " + TrackPointsColumns.LONGITUDE + ", "
+        + TrackPointsColumns.LATITUDE + ", " + TrackPointsColumns.TIME + ", "
+        + TrackPointsColumns.SENSOR + ") VALUES (?, 0, 0, 0, randomblob(" + BLOB_SIZE + "))");
+    try {
+      db.beginTransaction();
+      insert.bindLong(1, trackId);
+      for (int i = 0; i < numberOfPoints; i++) {
+        insert.executeInsert();
+      }
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+      insert.close();
+    }
+    return trackId;
+  }
+
+  /**
+   * Fills the database with points spread over the tracks, doubling the
+   * points until the database is the given size.
+   */
+  private void fillDatabase(long[] trackIds, long size) {
+    for (long trackId : trackIds) {
+      db.delete(TrackPointsColumns.TABLE_NAME, TrackPointsColumns.TRACKID + "=?",
+          new String[] { Long.toString(trackId) });
+    }
+    for (int i = 0; i < 64; i++) {
+      long trackId = trackIds[i % trackIds.length];
+      db.execSQL("INSERT INTO " + TrackPointsColumns.TABLE_NAME + " ("
+          + TrackPointsColumns.TRACKID + ", " + TrackPointsColumns.LONGITUDE + ", "
+          + TrackPointsColumns.LATITUDE + ", " + TrackPointsColumns.TIME + ", "
+          + TrackPointsColumns.SENSOR + ") VALUES (" + trackId + ", 0, 0, 0, randomblob("
+          + BLOB_SIZE + "))");
+    }
+    File databaseFile = new File(db.getPath());
+    while (databaseFile.length() < size) {
+      db.execSQL("INSERT INTO " + TrackPointsColumns.TABLE_NAME + " ("
+          + TrackPointsColumns.TRACKID + ", " + TrackPointsColumns.LONGITUDE + ", "
+          + TrackPointsColumns.LATITUDE + ", " + TrackPointsColumns.TIME + ", "
+          + TrackPointsColumns.SENSOR + ") SELECT " + TrackPointsColumns.TRACKID + ", "
+          + TrackPointsColumns.LONGITUDE + ", " + TrackPointsColumns.LATITUDE + ", "
+          + TrackPointsColumns.TIME + ", randomblob(" + BLOB_SIZE + ") FROM "
+          + TrackPointsColumns.TABLE_NAME);
+    }
+  }
+
+  private long countTrackPoints(long trackId) {
+    return DatabaseUtils.longForQuery(db, "SELECT COUNT(*) FROM " + TrackPointsColumns.TABLE_NAME
+        + " WHERE " + TrackPointsColumns.TRACKID + "=?", new String[] { Long.toString(trackId) });
+  }
+}
@@ -0,0 +1,197 @@
+/*
+*    Copyright (c) 2013, Will Szumski
+*    Copyright (c) 2013, Doug Szumski
+*
+*    This file is part of Cyclismo.
+*
+*    Cyclismo is free software: you can redistribute it and/or modify
+*    it under the terms of the GNU General Public License as published by
+*    the Free Software Foundation, either version 3 of the License, or
+*    (at your option) any later version.
+*
+*    Cyclismo is distributed in the hope that it will be useful,
+*    but WITHOUT ANY WARRANTY; without even the implied warranty of
+*    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*    GNU General Public License for more details.
+*
+*    You should have received a copy of the GNU General Public License
+*    along with Cyclismo.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package org.cowboycoders.cyclismo.content;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import org.cowboycoders.cyclismo.content.MyTracksProvider.DatabaseHelper;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Checks the track scoped queries in {@link MyTracksProviderUtilsImpl} are served by an index,
+ * using EXPLAIN QUERY PLAN against a database filled with synthetic track points.
+ */
+public class MyTracksProviderQueryPlanTest extends AndroidTestCase {
+
+  private static final String TAG = MyTracksProviderQueryPlanTest.class.getSimpleName();
+  private static final String DATABASE_NAME = "queryplantest.db";
+  private static final int TRACKS = 100;
+  private static final int POINTS_PER_TRACK = 20000;
+  private static final long TRACK_ID = TRACKS / 2;
+
+  private DatabaseHelper databaseHelper;
+  private SQLiteDatabase db;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    getContext().deleteDatabase(DATABASE_NAME);
+    databaseHelper = new DatabaseHelper(getContext(), DATABASE_NAME);
+    db = databaseHelper.getWritableDatabase();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    databaseHelper.close();
+    getContext().deleteDatabase(DATABASE_NAME);
+    super.tearDown();
+  }
+
+  /**
+   * Tests the indexes are created by
+   * {@link MyTracksProvider.DatabaseHelper#onUpgrade(SQLiteDatabase, int, int)} when the version
+   * is 25.
+   */
+  public void testDatabaseHelper_onUpgrade_Version25() {
+    List<String> indexes = getIndexNames();
+    assertEquals(6, indexes.size());
+    for (String index : indexes) {
+      db.execSQL("DROP INDEX " + index);
+    }
+    assertTrue(getIndexNames().isEmpty());
+
+    databaseHelper.onUpgrade(db, 25, 26);
+    assertEquals(indexes, getIndexNames());
+  }
+
+  /**
+   * Loads a couple of million track points, interleaved between tracks as they would be if
+   * recorded over a long history, then checks none of the track scoped queries fall back to a
+   * full table scan.
+   */
+  @LargeTest
+  public void testTrackPointQueries_useIndexes() {
+    long start = System.currentTimeMillis();
+    loadTrackPoints(TrackPointsColumns.TABLE_NAME);
+    db.execSQL("ANALYZE");
+    Log.i(TAG, "Loaded " + TRACKS * POINTS_PER_TRACK + " points in "
+        + (System.currentTimeMillis() - start) + "ms");
+
+    String table = TrackPointsColumns.TABLE_NAME;
+    String trackId = Long.toString(TRACK_ID);
+    String[] queries = {
+        // getTrackPointCursor
+        "SELECT * FROM " + table + " WHERE trackid=? ORDER BY _id",
+        "SELECT * FROM " + table + " WHERE trackid=? AND _id>=? ORDER BY _id LIMIT 1024",
+        "SELECT * FROM " + table + " WHERE trackid=? AND _id<=? ORDER BY _id DESC LIMIT 1024",
+        // getFirstTrackPointId, getLastTrackPointId
+        "SELECT _id FROM " + table + " WHERE _id=(select min(_id) from " + table
+            + " WHERE trackid=?)",
+        "SELECT _id FROM " + table + " WHERE _id=(select max(_id) from " + table
+            + " WHERE trackid=?)",
+        // getFirstValidTrackPoint, getLastValidTrackPoint
+        "SELECT * FROM " + table + " WHERE _id=(select min(_id) from " + table
+            + " WHERE trackid=? AND latitude<=90000000)",
+        // time ranges
+        "SELECT * FROM " + table + " WHERE trackid=? AND time>=? AND time<=? ORDER BY time",
+        // deleteTrack
+        "DELETE FROM " + table + " WHERE trackid=?",
+    };
+    String[][] args = {
+        {trackId},
+        {trackId, "1000"},
+        {trackId, "1000"},
+        {trackId},
+        {trackId},
+        {trackId},
+        {trackId, "1000", "2000"},
+        {trackId},
+    };
+
+    for (int i = 0; i < queries.length; i++) {
+      List<String> plan = explain(queries[i], args[i]);
+      Log.i(TAG, queries[i] + " -> " + plan);
+      for (String step : plan) {
+        assertFalse(queries[i] + " scans " + step, isFullScan(step, table));
+      }
+    }
+    assertTrue(explain(queries[0], args[0]).toString().contains(table + "_trackid__id_index"));
+    assertTrue(explain(queries[6], args[6]).toString().contains(table + "_trackid_time_index"));
+  }
+
+  private void loadTrackPoints(String table) {
+    SQLiteStatement insert = db.compileStatement("INSERT INTO " + table + " ("
+        + TrackPointsColumns.TRACKID + ", " + TrackPointsColumns.LONGITUDE + ", "
+        + TrackPointsColumns.LATITUDE + ", " + TrackPointsColumns.TIME + ", "
+        + TrackPointsColumns.ALTITUDE + ", " + TrackPointsColumns.SPEED
+        + ") VALUES (?, ?, ?, ?, ?, ?)");
+    db.beginTransaction();
+    try {
+      for (int i = 0; i < POINTS_PER_TRACK; i++) {
+        for (int track = 0; track < TRACKS; track++) {
+          insert.bindLong(1, track);
+          insert.bindLong(2, (long) (-1.5E6 + i));
+          insert.bindLong(3, (long) (51.5E6 + i));
+          insert.bindLong(4, 1000L * i);
+          insert.bindDouble(5, 100 + i % 50);
+          insert.bindDouble(6, 8.5);
+          insert.executeInsert();
+        }
+      }
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+      insert.close();
+    }
+  }
+
+  private List<String> explain(String query, String[] args) {
+    List<String> plan = new ArrayList<String>();
+    Cursor cursor = db.rawQuery("EXPLAIN QUERY PLAN " + query, args);
+    try {
+      int detail = cursor.getColumnIndexOrThrow("detail");
+      while (cursor.moveToNext()) {
+        plan.add(cursor.getString(detail));
+      }
+    } finally {
+      cursor.close();
+    }
+    return plan;
+  }
+
+  /**
+   * Matches both the old ("SCAN TABLE trackpoints") and new ("SCAN trackpoints") formats. A scan
+   * of a covering index is fine.
+   */
+  private static boolean isFullScan(String step, String table) {
+    return step.startsWith("SCAN") && step.contains(table) && !step.contains("INDEX");
+  }
+
+  private List<String> getIndexNames() {
+    List<String> names = new ArrayList<String>();
+    Cursor cursor = db.rawQuery("SELECT name FROM sqlite_master WHERE type='index' AND "
+        + "name LIKE '%_index' ORDER BY name", null);
+    try {
+      while (cursor.moveToNext()) {
+        names.add(cursor.getString(0));
+      }
+    } finally {
+      cursor.close();
+    }
+    return names;
+  }
+}
@@ -35,11 +35,15 @@
 package org.cowboycoders.cyclismo.content;
 
 
+import android.content.ContentValues;
+import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.net.Uri;
 import android.test.AndroidTestCase;
 
+import org.cowboycoders.cyclismo.R;
 import org.cowboycoders.cyclismo.content.MyTracksProvider.DatabaseHelper;
+import org.cowboycoders.cyclismo.util.PreferencesUtils;
 
 /**
  * A unit test for {@link MyTracksProvider}.
@@ -73,9 +77,130 @@ public class MyTracksProviderTest extends AndroidTestCase {
     assertTrue(checkTable(CourseTrackPointsColumns.TABLE_NAME));
     assertTrue(checkTable(CourseTracksColumns.TABLE_NAME));
     assertTrue(checkTable(CourseWaypointsColumns.TABLE_NAME));
+    assertTrue(checkTable(TracksColumns.SEARCH_TABLE_NAME));
+    assertTrue(checkTable(WaypointsColumns.SEARCH_TABLE_NAME));
     //assertTrue(checkTable)
   }
 
+  /**
+   * Tests the search index is built from the existing tracks and waypoints by
+   * {@link MyTracksProvider.DatabaseHelper#onUpgrade(SQLiteDatabase, int, int)}
+   * when the version is 27.
+   */
+  public void testDatabaseHelper_onUpgrade_Version27() {
+    db.execSQL("DROP TABLE " + TracksColumns.SEARCH_TABLE_NAME);
+    db.execSQL("DROP TABLE " + WaypointsColumns.SEARCH_TABLE_NAME);
+    db.execSQL("DROP TRIGGER " + TracksColumns.TABLE_NAME + "_insert_search");
+    db.execSQL("DROP TRIGGER " + WaypointsColumns.TABLE_NAME + "_insert_search");
+    ContentValues values = new ContentValues();
+    values.put(TracksColumns.NAME, "Morning ride");
+    db.insert(TracksColumns.TABLE_NAME, null, values);
+    db.insert(WaypointsColumns.TABLE_NAME, null, values);
+
+    new DatabaseHelper(getContext(), DATABASE_NAME).onUpgrade(db, 27, 28);
+    assertEquals(1, countMatches(TracksColumns.SEARCH_TABLE_NAME, "mor*"));
+    assertEquals(1, countMatches(WaypointsColumns.SEARCH_TABLE_NAME, "rid*"));
+
+    // Kept in sync from now on
+    values.put(TracksColumns.NAME, "Evening ride");
+    db.update(TracksColumns.TABLE_NAME, values, null, null);
+    assertEquals(0, countMatches(TracksColumns.SEARCH_TABLE_NAME, "mor*"));
+    assertEquals(1, countMatches(TracksColumns.SEARCH_TABLE_NAME, "eve*"));
+    db.delete(TracksColumns.TABLE_NAME, null, null);
+    assertEquals(0, countMatches(TracksColumns.SEARCH_TABLE_NAME, "eve*"));
+  }
+
+  /**
+   * Tests the decoded sensor columns are added by
+   * {@link MyTracksProvider.DatabaseHelper#onUpgrade(SQLiteDatabase, int, int)}
+   * when the version is 28, and filled from the sensor blobs a chunk at a time
+   * by {@link SensorColumnsBackfill}.
+   */
+  public void testDatabaseHelper_onUpgrade_Version28() {
+    dropTable(TrackPointsColumns.TABLE_NAME);
+    db.execSQL("CREATE TABLE " + TrackPointsColumns.TABLE_NAME + " ("
+        + TrackPointsColumns._ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
+        + TrackPointsColumns.TRACKID + " INTEGER, "
+        + TrackPointsColumns.SENSOR + " BLOB)");
+    // Enough points to take more than one step
+    int numPoints = 2500;
+    ContentValues values = new ContentValues();
+    values.put(TrackPointsColumns.TRACKID, 1L);
+    for (int i = 0; i < numPoints; i++) {
+      Sensor.SensorDataSet.Builder builder = Sensor.SensorDataSet.newBuilder()
+          .setPower(newSensorData(Sensor.SensorState.SENDING, i))
+          .setCadence(newSensorData(Sensor.SensorState.DISCONNECTED, 90));
+      values.put(TrackPointsColumns.SENSOR, builder.build().toByteArray());
+      db.insert(TrackPointsColumns.TABLE_NAME, null, values);
+    }
+    values.remove(TrackPointsColumns.SENSOR);
+    db.insert(TrackPointsColumns.TABLE_NAME, null, values);
+
+    new DatabaseHelper(getContext(), DATABASE_NAME).onUpgrade(db, 28, 29);
+    Cursor cursor = db.query(TrackPointsColumns.TABLE_NAME, null,
+        TrackPointsColumns.POWER + " IS NOT NULL", null, null, null, null);
+    try {
+      assertEquals(0, cursor.getCount());
+    } finally {
+      cursor.close();
+    }
+
+    PreferencesUtils.setLong(getContext(), R.string.sensor_columns_backfill_id_key, -1L);
+    try {
+      SensorColumnsBackfill sensorColumnsBackfill = new SensorColumnsBackfill(getContext(), db);
+      assertTrue(sensorColumnsBackfill.step());
+      assertEquals((long) SensorColumnsBackfill.POINTS_PER_STEP,
+          PreferencesUtils.getLong(getContext(), R.string.sensor_columns_backfill_id_key));
+      // Carries on from the stored id
+      sensorColumnsBackfill.shutdown();
+      sensorColumnsBackfill = new SensorColumnsBackfill(getContext(), db);
+      int steps = 2;
+      while (sensorColumnsBackfill.step()) {
+        steps++;
+      }
+      sensorColumnsBackfill.shutdown();
+      assertEquals(numPoints / SensorColumnsBackfill.POINTS_PER_STEP + 1, steps);
+      assertEquals(SensorColumnsBackfill.DONE,
+          PreferencesUtils.getLong(getContext(), R.string.sensor_columns_backfill_id_key));
+      // Not run again once done
+      assertFalse(new SensorColumnsBackfill(getContext(), db).step());
+    } finally {
+      PreferencesUtils.setLong(getContext(), R.string.sensor_columns_backfill_id_key, -1L);
+    }
+    cursor = db.query(TrackPointsColumns.TABLE_NAME, new String[] {
+        TrackPointsColumns.POWER, TrackPointsColumns.CADENCE, TrackPointsColumns.HEART_RATE },
+        null, null, null, null, TrackPointsColumns._ID);
+    try {
+      assertEquals(numPoints + 1, cursor.getCount());
+      for (int i = 0; i < numPoints; i++) {
+        assertTrue(cursor.moveToNext());
+        assertEquals((float) i, cursor.getFloat(0));
+        assertTrue(cursor.isNull(1));
+        assertTrue(cursor.isNull(2));
+      }
+      assertTrue(cursor.moveToNext());
+      assertTrue(cursor.isNull(0));
+    } finally {
+      cursor.close();
+    }
+  }
+
+  private static Sensor.SensorData newSensorData(Sensor.SensorState state, float value) {
+    return Sensor.SensorData.newBuilder().setState(state).setValue(value).build();
+  }
+
+  private int countMatches(String searchTable, String match) {
+    Cursor cursor = db.rawQuery(
+        "SELECT COUNT(*) FROM " + searchTable + " WHERE " + searchTable + " MATCH ?",
+        new String[] { match });
+    try {
+      cursor.moveToFirst();
+      return cursor.getInt(0);
+    } finally {
+      cursor.close();
+    }
+  }
+
 //  /**
 //   * Tests the method
 //   * {@link MyTracksProvider.DatabaseHelper#onUpgrade(SQLiteDatabase, int, int)}
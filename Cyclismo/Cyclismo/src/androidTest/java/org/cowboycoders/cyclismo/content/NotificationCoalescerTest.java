@@ -0,0 +1,305 @@
+/*
+*    Copyright (c) 2013, Will Szumski
+*    Copyright (c) 2013, Doug Szumski
+*
+*    This file is part of Cyclismo.
+*
+*    Cyclismo is free software: you can redistribute it and/or modify
+*    it under the terms of the GNU General Public License as published by
+*    the Free Software Foundation, either version 3 of the License, or
+*    (at your option) any later version.
+*
+*    Cyclismo is distributed in the hope that it will be useful,
+*    but WITHOUT ANY WARRANTY; without even the implied warranty of
+*    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*    GNU General Public License for more details.
+*
+*    You should have received a copy of the GNU General Public License
+*    along with Cyclismo.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package org.cowboycoders.cyclismo.content;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.location.Location;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.test.AndroidTestCase;
+import android.test.RenamingDelegatingContext;
+import android.test.mock.MockContentResolver;
+import android.util.Log;
+
+import org.cowboycoders.cyclismo.Constants;
+import org.cowboycoders.cyclismo.R;
+import org.cowboycoders.cyclismo.util.PreferencesUtils;
+
+import java.util.EnumSet;
+import java.util.Locale;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests for {@link NotificationCoalescer}.
+ */
+public class NotificationCoalescerTest extends AndroidTestCase {
+
+  private static final String TAG = NotificationCoalescerTest.class.getSimpleName();
+  private static final Uri TEST_URI = Uri.parse("content://org.cowboycoders.cyclismo.test/points");
+  private static final long LONG_WINDOW_MS = 60 * 1000;
+  private static final long TIMEOUT_MS = 5000;
+  private static final int RECORDED_POINTS = 600;
+  private static final int NUMBER_OF_HUBS = 3;
+
+  private Context context;
+  private HandlerThread handlerThread;
+  private BlockingQueue<Uri> notifications;
+  private ContentObserver contentObserver;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    context = new RenamingDelegatingContext(getContext(), getContext(), "test.");
+    handlerThread = new HandlerThread(TAG);
+    handlerThread.start();
+    notifications = new LinkedBlockingQueue<Uri>();
+    contentObserver = new ContentObserver(new Handler(handlerThread.getLooper())) {
+        @Override
+      public void onChange(boolean selfChange, Uri uri) {
+        notifications.add(uri);
+      }
+    };
+    context.getContentResolver().registerContentObserver(TEST_URI, false, contentObserver);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    context.getContentResolver().unregisterContentObserver(contentObserver);
+    handlerThread.quit();
+    PreferencesUtils.setLong(context, R.string.recording_track_id_key,
+        PreferencesUtils.RECORDING_TRACK_ID_DEFAULT);
+    super.tearDown();
+  }
+
+  /**
+   * Tests inserts within a window are sent as one notification, carrying the
+   * range of inserted ids.
+   */
+  public void testNotifyInserted() throws Exception {
+    NotificationCoalescer coalescer = new NotificationCoalescer(
+        context.getContentResolver(), LONG_WINDOW_MS);
+    coalescer.notifyInserted(TEST_URI, 5L);
+    coalescer.notifyInserted(TEST_URI, 7L);
+    coalescer.notifyInserted(TEST_URI, 6L);
+    coalescer.flush();
+
+    Uri uri = notifications.poll(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+    assertNotNull(uri);
+    assertEquals(5L, NotificationCoalescer.getFirstInsertedId(uri));
+    assertEquals(7L, NotificationCoalescer.getLastInsertedId(uri));
+    assertNull(notifications.poll(100, TimeUnit.MILLISECONDS));
+  }
+
+  /**
+   * Tests a window with updates or deletes as well as inserts is sent without
+   * a range.
+   */
+  public void testNotifyChange() throws Exception {
+    NotificationCoalescer coalescer = new NotificationCoalescer(
+        context.getContentResolver(), LONG_WINDOW_MS);
+    coalescer.notifyInserted(TEST_URI, 5L);
+    coalescer.notifyChange(TEST_URI);
+    coalescer.flush();
+
+    Uri uri = notifications.poll(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+    assertEquals(TEST_URI, uri);
+    assertEquals(-1L, NotificationCoalescer.getFirstInsertedId(uri));
+    assertEquals(-1L, NotificationCoalescer.getLastInsertedId(uri));
+  }
+
+  /**
+   * Tests the changes are sent once the window is over.
+   */
+  public void testWindow() throws Exception {
+    NotificationCoalescer coalescer = new NotificationCoalescer(context.getContentResolver(), 50);
+    for (long id = 1; id <= 10; id++) {
+      coalescer.notifyInserted(TEST_URI, id);
+    }
+    Uri uri = notifications.poll(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+    assertEquals(10L, NotificationCoalescer.getLastInsertedId(uri));
+
+    coalescer.setWindow(0);
+    coalescer.notifyInserted(TEST_URI, 11L);
+    uri = notifications.poll(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+    assertEquals(11L, NotificationCoalescer.getFirstInsertedId(uri));
+  }
+
+  /**
+   * Tests held changes are only sent once released, whatever the window.
+   */
+  public void testHold() throws Exception {
+    NotificationCoalescer coalescer = new NotificationCoalescer(context.getContentResolver(), 0);
+    coalescer.hold();
+    coalescer.notifyInserted(TEST_URI, 1L);
+    coalescer.flush();
+    coalescer.notifyChange(TEST_URI);
+    assertNull(notifications.poll(100, TimeUnit.MILLISECONDS));
+
+    coalescer.release();
+    assertEquals(TEST_URI, notifications.poll(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+    assertNull(notifications.poll(100, TimeUnit.MILLISECONDS));
+  }
+
+  /**
+   * Tests the ids of a bulk insert that rolls back are never notified, as
+   * they're handed out again, and those of one that commits are notified
+   * after it does.
+   */
+  public void testBulkInsert_rolledBack() throws Exception {
+    MockContentResolver mockContentResolver = new MockContentResolver();
+    MyTracksProvider provider = new MyTracksProvider();
+    provider.attachInfo(context, null);
+    provider.getNotificationCoalescer().setWindow(0);
+    mockContentResolver.addProvider(MyTracksProviderUtils.AUTHORITY, provider);
+    MyTracksProviderUtils providerUtils = new MyTracksProviderUtilsImpl(mockContentResolver);
+    providerUtils.deleteAllTracks();
+    context.getContentResolver().registerContentObserver(
+        TrackPointsColumns.CONTENT_URI, true, contentObserver);
+
+    try {
+      ContentValues[] valuesBulk = { createTrackPoint(1), createTrackPoint(2) };
+      // No latitude, so the insert throws and the bulk rolls back
+      valuesBulk[1].remove(TrackPointsColumns.LATITUDE);
+      try {
+        provider.bulkInsert(TrackPointsColumns.CONTENT_URI, valuesBulk);
+        fail("Expected the bulk insert to fail");
+      } catch (IllegalArgumentException e) {
+        // Expected
+      }
+      assertNull(notifications.poll(100, TimeUnit.MILLISECONDS));
+
+      valuesBulk[1] = createTrackPoint(2);
+      assertEquals(2, provider.bulkInsert(TrackPointsColumns.CONTENT_URI, valuesBulk));
+      Uri uri = notifications.poll(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+      assertNotNull(uri);
+      long firstId = NotificationCoalescer.getFirstInsertedId(uri);
+      assertEquals(firstId + 1, NotificationCoalescer.getLastInsertedId(uri));
+      Cursor cursor = providerUtils.getTrackPointCursor(1L, firstId, 10, false);
+      try {
+        assertEquals(2, cursor.getCount());
+      } finally {
+        cursor.close();
+      }
+    } finally {
+      providerUtils.deleteAllTracks();
+    }
+  }
+
+  private ContentValues createTrackPoint(int i) {
+    ContentValues values = new ContentValues();
+    values.put(TrackPointsColumns.TRACKID, 1L);
+    values.put(TrackPointsColumns.LATITUDE, (int) ((45.0 + i / 1E5) * 1E6));
+    values.put(TrackPointsColumns.LONGITUDE, (int) (35.0 * 1E6));
+    values.put(TrackPointsColumns.TIME, 1000000000000L + i * 1000L);
+    return values;
+  }
+
+  /**
+   * Counts the queries per recorded point for several hubs showing the
+   * recording, when told of the inserted points against when told only that
+   * the track points changed.
+   */
+  public void testQueriesPerRecordedPoint() {
+    MockContentResolver mockContentResolver = new MockContentResolver();
+    CountingMyTracksProvider provider = new CountingMyTracksProvider();
+    provider.attachInfo(context, null);
+    mockContentResolver.addProvider(MyTracksProviderUtils.AUTHORITY, provider);
+    MyTracksProviderUtils providerUtils = new MyTracksProviderUtilsImpl(mockContentResolver);
+    providerUtils.deleteAllTracks();
+
+    try {
+      double changed = recordTrack(providerUtils, provider, false);
+      double inserted = recordTrack(providerUtils, provider, true);
+      Log.i(TAG, String.format(Locale.US, "%d hubs: %.2f queries per point when the track "
+          + "points changed, %.2f when told of the inserted points", NUMBER_OF_HUBS,
+          changed, inserted));
+      assertTrue(changed >= NUMBER_OF_HUBS);
+      assertTrue(inserted <= 1.01);
+    } finally {
+      providerUtils.deleteAllTracks();
+    }
+  }
+
+  /**
+   * Records a track shown by several hubs, and returns the queries issued
+   * per point.
+   *
+   * @param providerUtils the provider utils
+   * @param provider the provider
+   * @param notifyInserted true to tell the hubs which points were inserted
+   */
+  private double recordTrack(MyTracksProviderUtils providerUtils,
+      CountingMyTracksProvider provider, boolean notifyInserted) {
+    Track track = new Track();
+    track.setName("Notifications");
+    long trackId = Long.parseLong(providerUtils.insertTrack(track).getLastPathSegment());
+    PreferencesUtils.setLong(context, R.string.selected_track_id_key, trackId);
+    PreferencesUtils.setLong(context, R.string.recording_track_id_key, trackId);
+
+    TrackDataHub[] hubs = new TrackDataHub[NUMBER_OF_HUBS];
+    for (int i = 0; i < NUMBER_OF_HUBS; i++) {
+      hubs[i] = new TrackDataHub(context, new TrackDataManager(), providerUtils,
+          Constants.TARGET_DISPLAYED_TRACK_POINTS) {
+          @Override
+        protected void runInHanderThread(Runnable runnable) {
+          // Run everything in the same thread
+          runnable.run();
+        }
+      };
+      hubs[i].start();
+      hubs[i].registerTrackDataListener(new CountingTrackDataListener(),
+          EnumSet.of(TrackDataType.SAMPLED_IN_TRACK_POINTS_TABLE));
+    }
+
+    provider.numQueries = 0;
+    for (int i = 0; i < RECORDED_POINTS; i++) {
+      Location location = new Location("gps");
+      location.setLatitude(45.0 + i / 1E5);
+      location.setLongitude(35.0);
+      location.setTime(1000000000000L + i * 1000L);
+      long id = Long.parseLong(
+          providerUtils.insertTrackPoint(location, trackId).getLastPathSegment());
+      for (TrackDataHub hub : hubs) {
+        if (notifyInserted) {
+          hub.notifyTrackPointsInserted(id, id);
+        } else {
+          hub.notifyTrackPointsTableUpdated();
+        }
+      }
+    }
+    double queriesPerPoint = (double) provider.numQueries / RECORDED_POINTS;
+
+    for (TrackDataHub hub : hubs) {
+      hub.stop();
+    }
+    return queriesPerPoint;
+  }
+
+  /**
+   * A provider counting its queries.
+   */
+  private static class CountingMyTracksProvider extends MyTracksProvider {
+
+    private int numQueries;
+
+    @Override
+    public Cursor query(
+        Uri url, String[] projection, String selection, String[] selectionArgs, String sort) {
+      numQueries++;
+      return super.query(url, projection, selection, selectionArgs, sort);
+    }
+  }
+}
@@ -35,12 +35,17 @@
 
 package org.cowboycoders.cyclismo.content;
 
+import android.content.ContentResolver;
 import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
 import android.location.Location;
 import android.net.Uri;
 import android.test.AndroidTestCase;
 import android.test.RenamingDelegatingContext;
 import android.test.mock.MockContentResolver;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
 
 import org.cowboycoders.cyclismo.content.SearchEngine.ScoredResult;
 import org.cowboycoders.cyclismo.content.SearchEngine.SearchQuery;
@@ -50,6 +55,7 @@ import org.cowboycoders.cyclismo.stats.TripStatistics;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Random;
 
 /**
  * Tests for {@link SearchEngine}.
@@ -61,6 +67,8 @@ import java.util.List;
  */
 public class SearchEngineTest extends AndroidTestCase {
 
+  private static final String TAG = SearchEngineTest.class.getSimpleName();
+  private static final int SEARCH_LATENCY_ROWS = 100000;
   private static final Location HERE = new Location("gps");
   private static final long NOW = 1234567890000L;  // After OLDEST_ALLOWED_TIMESTAMP
   private MyTracksProviderUtils providerUtils;
@@ -174,9 +182,9 @@ public class SearchEngineTest extends AndroidTestCase {
     long descriptionMatchId = insertTrack("bb", "aa", "cc");
     long categoryMatchId = insertTrack("bb", "cc", "aa");
     long titleMatchId = insertTrack("aa", "bb", "cc");
-    long titleCategoryMatchId = insertTrack("aa", "bb", "ca");
-    long titleDescriptionMatchId = insertTrack("aa", "ba", "cc");
-    long allMatchId = insertTrack("aa", "ba", "ca");
+    long titleCategoryMatchId = insertTrack("aa", "bb", "ac");
+    long titleDescriptionMatchId = insertTrack("aa", "ab", "cc");
+    long allMatchId = insertTrack("aa", "ab", "ac");
 
     SearchQuery query = new SearchQuery("a", null, -1, NOW);
     ArrayList<ScoredResult> results = new ArrayList<ScoredResult>(engine.search(query));
@@ -200,9 +208,9 @@ public class SearchEngineTest extends AndroidTestCase {
     long descriptionMatchId = insertWaypoint("bb", "aa", "cc");
     long categoryMatchId = insertWaypoint("bb", "cc", "aa");
     long titleMatchId = insertWaypoint("aa", "bb", "cc");
-    long titleCategoryMatchId = insertWaypoint("aa", "bb", "ca");
-    long titleDescriptionMatchId = insertWaypoint("aa", "ba", "cc");
-    long allMatchId = insertWaypoint("aa", "ba", "ca");
+    long titleCategoryMatchId = insertWaypoint("aa", "bb", "ac");
+    long titleDescriptionMatchId = insertWaypoint("aa", "ab", "cc");
+    long allMatchId = insertWaypoint("aa", "ab", "ac");
 
     SearchQuery query = new SearchQuery("a", null, -1, NOW);
     ArrayList<ScoredResult> results = new ArrayList<ScoredResult>(engine.search(query));
@@ -312,6 +320,131 @@ public class SearchEngineTest extends AndroidTestCase {
     assertWaypointResults(results, currentId, otherId);
   }
 
+  public void testSearchWordPrefix() {
+    long morningId = insertTrack("Morning ride", "", "");
+    long eveningId = insertTrack("Evening ride", "", "");
+    insertTrack("Commute", "", "");
+
+    // Each word of the query must start a word of the result, in any order.
+    assertEquals(2, engine.search(new SearchQuery("ri", null, -1, NOW)).size());
+    assertTrackResults(new ArrayList<ScoredResult>(
+        engine.search(new SearchQuery("ride morn", null, -1, NOW))), morningId);
+    assertTrackResults(new ArrayList<ScoredResult>(
+        engine.search(new SearchQuery("EVENING, RIDE", null, -1, NOW))), eveningId);
+    assertTrue(engine.search(new SearchQuery("orning", null, -1, NOW)).isEmpty());
+    assertTrue(engine.search(new SearchQuery(" - ", null, -1, NOW)).isEmpty());
+  }
+
+  public void testSearchIndexUpdated() {
+    long trackId = insertTrack("Morning ride", "", "");
+    Track track = providerUtils.getTrack(trackId);
+    track.setName("Evening ride");
+    providerUtils.updateTrack(track);
+
+    assertTrue(engine.search(new SearchQuery("morning", null, -1, NOW)).isEmpty());
+    assertTrackResults(new ArrayList<ScoredResult>(
+        engine.search(new SearchQuery("evening", null, -1, NOW))), trackId);
+
+    providerUtils.deleteTrack(trackId);
+    assertTrue(engine.search(new SearchQuery("evening", null, -1, NOW)).isEmpty());
+  }
+
+  /**
+   * Loads 100k tracks and waypoints, then logs the latency of queries of
+   * different selectivity, compared with the LIKE scans search used before.
+   */
+  @LargeTest
+  public void testSearchLatency() {
+    String[] words = { "morning", "evening", "ride", "commute", "hill", "repeats", "river", "loop",
+        "sprint", "intervals", "recovery", "lake", "forest", "climb", "tempo", "gravel" };
+    String[] categories = { "road", "mtb", "turbo" };
+    Random random = new Random(0);
+    ContentResolver contentResolver = getContext().getContentResolver();
+    int batch = 1000;
+    long start = System.currentTimeMillis();
+    for (int i = 0; i < SEARCH_LATENCY_ROWS; i += batch) {
+      ContentValues[] tracks = new ContentValues[batch];
+      ContentValues[] waypoints = new ContentValues[batch];
+      for (int j = 0; j < batch; j++) {
+        String name = words[random.nextInt(words.length)] + " " + words[random.nextInt(
+            words.length)] + " r" + (i + j);
+        String description = "A " + words[random.nextInt(words.length)] + " ride";
+        String category = categories[random.nextInt(categories.length)];
+        long time = NOW - random.nextInt(5 * 365 * 24) * 60L * 60L * 1000L;
+        int latitude = (int) ((HERE.getLatitude() + random.nextDouble()) * 1E6);
+        int longitude = (int) ((HERE.getLongitude() + random.nextDouble()) * 1E6);
+
+        tracks[j] = new ContentValues();
+        tracks[j].put(TracksColumns.NAME, name);
+        tracks[j].put(TracksColumns.DESCRIPTION, description);
+        tracks[j].put(TracksColumns.CATEGORY, category);
+        tracks[j].put(TracksColumns.STARTTIME, time - 60L * 60L * 1000L);
+        tracks[j].put(TracksColumns.STOPTIME, time);
+        tracks[j].put(TracksColumns.MINLAT, latitude);
+        tracks[j].put(TracksColumns.MAXLAT, latitude + 1000);
+        tracks[j].put(TracksColumns.MINLON, longitude);
+        tracks[j].put(TracksColumns.MAXLON, longitude + 1000);
+        tracks[j].put(TracksColumns.OWNER, 1L);
+
+        waypoints[j] = new ContentValues();
+        waypoints[j].put(WaypointsColumns.NAME, name);
+        waypoints[j].put(WaypointsColumns.DESCRIPTION, description);
+        waypoints[j].put(WaypointsColumns.CATEGORY, category);
+        waypoints[j].put(WaypointsColumns.TRACKID, i + j);
+        waypoints[j].put(WaypointsColumns.LATITUDE, latitude);
+        waypoints[j].put(WaypointsColumns.LONGITUDE, longitude);
+        waypoints[j].put(WaypointsColumns.TIME, time);
+      }
+      contentResolver.bulkInsert(TracksColumns.CONTENT_URI, tracks);
+      contentResolver.bulkInsert(WaypointsColumns.CONTENT_URI, waypoints);
+    }
+    Log.i(TAG, "Loaded " + SEARCH_LATENCY_ROWS + " tracks and waypoints in "
+        + (System.currentTimeMillis() - start) + "ms");
+
+    String rare = "r" + SEARCH_LATENCY_ROWS / 2;
+    String[] queries = { "m", "mo", "morn", "morning", "morning ri", "gravel", rare, "zzz" };
+    for (String text : queries) {
+      SearchQuery query = new SearchQuery(text, HERE, -1, NOW);
+      int repeats = 5;
+      int results = 0;
+      start = System.nanoTime();
+      for (int i = 0; i < repeats; i++) {
+        results = engine.search(query).size();
+      }
+      double searchMs = (System.nanoTime() - start) / 1E6 / repeats;
+      double likeMs = getLikeScanMs(text, repeats);
+      Log.i(TAG, String.format("Search \"%s\": %.1fms, %d results (LIKE scan %.1fms)", text,
+          searchMs, results, likeMs));
+      if (text.equals(rare)) {
+        assertTrue(results > 0);
+        assertTrue(searchMs < likeMs);
+      }
+    }
+  }
+
+  /**
+   * Gets the average time in milliseconds to read the tracks and waypoints
+   * matched the way search used to, by a LIKE scan of the text columns.
+   */
+  private double getLikeScanMs(String text, int repeats) {
+    String like = "%" + text + "%";
+    String[] args = { like, like, like };
+    long start = System.nanoTime();
+    for (int i = 0; i < repeats; i++) {
+      Cursor cursor = providerUtils.getTrackCursor(TracksColumns.NAME + " LIKE ? OR "
+          + TracksColumns.DESCRIPTION + " LIKE ? OR " + TracksColumns.CATEGORY + " LIKE ?", args,
+          TracksColumns._ID + " DESC LIMIT 1000");
+      cursor.getCount();
+      cursor.close();
+      cursor = providerUtils.getWaypointCursor(WaypointsColumns.NAME + " LIKE ? OR "
+          + WaypointsColumns.DESCRIPTION + " LIKE ? OR " + WaypointsColumns.CATEGORY + " LIKE ?",
+          args, WaypointsColumns._ID + " DESC", 100);
+      cursor.getCount();
+      cursor.close();
+    }
+    return (System.nanoTime() - start) / 1E6 / repeats;
+  }
+
   private void assertTrackResult(long trackId, ScoredResult result) {
     assertNotNull("Not a track", result.track);
     assertNull("Ambiguous result", result.waypoint);
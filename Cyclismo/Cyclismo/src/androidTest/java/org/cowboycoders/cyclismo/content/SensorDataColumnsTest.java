@@ -0,0 +1,223 @@
+/*
+*    Copyright (c) 2013, Will Szumski
+*    Copyright (c) 2013, Doug Szumski
+*
+*    This file is part of Cyclismo.
+*
+*    Cyclismo is free software: you can redistribute it and/or modify
+*    it under the terms of the GNU General Public License as published by
+*    the Free Software Foundation, either version 3 of the License, or
+*    (at your option) any later version.
+*
+*    Cyclismo is distributed in the hope that it will be useful,
+*    but WITHOUT ANY WARRANTY; without even the implied warranty of
+*    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*    GNU General Public License for more details.
+*
+*    You should have received a copy of the GNU General Public License
+*    along with Cyclismo.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package org.cowboycoders.cyclismo.content;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.location.Location;
+import android.net.Uri;
+import android.test.AndroidTestCase;
+import android.test.RenamingDelegatingContext;
+import android.test.mock.MockContentResolver;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import org.cowboycoders.cyclismo.content.MyTracksProviderUtils.LocationIterator;
+import org.cowboycoders.cyclismo.content.Sensor.SensorData;
+import org.cowboycoders.cyclismo.content.Sensor.SensorDataSet;
+import org.cowboycoders.cyclismo.content.Sensor.SensorState;
+
+import java.util.Locale;
+
+/**
+ * Tests the decoded sensor columns of {@link TrackPointsColumns}, see
+ * {@link SensorDataColumns}.
+ */
+public class SensorDataColumnsTest extends AndroidTestCase {
+
+  private static final String TAG = SensorDataColumnsTest.class.getSimpleName();
+  private static final int SMALL_TRACK_POINTS = 100;
+  private static final int LARGE_TRACK_POINTS = 1000000;
+  private static final int INSERT_BATCH_SIZE = 1000;
+
+  private MockContentResolver mockContentResolver;
+  private MyTracksProviderUtils providerUtils;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    mockContentResolver = new MockContentResolver();
+    Context context = new RenamingDelegatingContext(getContext(), getContext(), "test.");
+    MyTracksProvider myTracksProvider = new MyTracksProvider();
+    myTracksProvider.attachInfo(context, null);
+    mockContentResolver.addProvider(MyTracksProviderUtils.AUTHORITY, myTracksProvider);
+    providerUtils = new MyTracksProviderUtilsImpl(mockContentResolver);
+    providerUtils.deleteAllTracks();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    providerUtils.deleteAllTracks();
+    super.tearDown();
+  }
+
+  /**
+   * Tests reading the decoded columns gets the same readings as parsing the
+   * sensor data sets.
+   */
+  public void testLocationIterator_decodedSensorData() {
+    long trackId = insertTrack(SMALL_TRACK_POINTS);
+    LocationIterator parsed = providerUtils.getTrackPointLocationIterator(
+        trackId, -1L, false, MyTracksProviderUtils.DEFAULT_LOCATION_FACTORY, false);
+    LocationIterator decoded = providerUtils.getTrackPointLocationIterator(
+        trackId, -1L, false, MyTracksProviderUtils.DEFAULT_LOCATION_FACTORY, true);
+    try {
+      int count = 0;
+      while (parsed.hasNext()) {
+        assertTrue(decoded.hasNext());
+        SensorDataSet expected = ((MyTracksLocation) parsed.next()).getSensorDataSet();
+        SensorDataSet actual = ((MyTracksLocation) decoded.next()).getSensorDataSet();
+        assertEquals(parsed.getLocationId(), decoded.getLocationId());
+        assertReading(expected.getPower(), actual.hasPower(), actual.getPower());
+        assertReading(expected.getCadence(), actual.hasCadence(), actual.getCadence());
+        assertReading(expected.getHeartRate(), actual.hasHeartRate(), actual.getHeartRate());
+        assertFalse(actual.hasSpeed());
+        count++;
+      }
+      assertFalse(decoded.hasNext());
+      assertEquals(SMALL_TRACK_POINTS, count);
+    } finally {
+      parsed.close();
+      decoded.close();
+    }
+  }
+
+  /**
+   * Tests the provider decodes the columns of points inserted with only the
+   * sensor data set, as restored from an old backup.
+   */
+  public void testInsert_sensorOnly() {
+    long trackId = insertTrack(0);
+    ContentValues values = new ContentValues();
+    values.put(TrackPointsColumns.TRACKID, trackId);
+    values.put(TrackPointsColumns.LATITUDE, 45000000);
+    values.put(TrackPointsColumns.LONGITUDE, 35000000);
+    values.put(TrackPointsColumns.TIME, 1000000000000L);
+    values.put(TrackPointsColumns.SENSOR, createSensorDataSet(1).toByteArray());
+    mockContentResolver.insert(TrackPointsColumns.CONTENT_URI, values);
+
+    LocationIterator iterator = providerUtils.getTrackPointLocationIterator(
+        trackId, -1L, false, MyTracksProviderUtils.DEFAULT_LOCATION_FACTORY, true);
+    try {
+      SensorDataSet sensorDataSet = ((MyTracksLocation) iterator.next()).getSensorDataSet();
+      assertEquals(201f, sensorDataSet.getPower().getValue());
+      assertEquals(141f, sensorDataSet.getHeartRate().getValue());
+      assertFalse(sensorDataSet.hasCadence());
+    } finally {
+      iterator.close();
+    }
+  }
+
+  /**
+   * Compares iterating over a large track building the sensor data from the
+   * decoded columns against parsing the sensor data sets.
+   */
+  @LargeTest
+  public void testLocationIterator_largeTrack() {
+    long trackId = insertTrack(LARGE_TRACK_POINTS);
+
+    long start = System.nanoTime();
+    iterate(trackId, false);
+    long parsed = System.nanoTime() - start;
+
+    start = System.nanoTime();
+    iterate(trackId, true);
+    long decoded = System.nanoTime() - start;
+
+    Log.i(TAG, String.format(Locale.US, "%d points: parsing sensor data %dms (%.0f points/s), "
+        + "decoded columns %dms (%.0f points/s)", LARGE_TRACK_POINTS,
+        parsed / 1000000, LARGE_TRACK_POINTS * 1E9 / parsed,
+        decoded / 1000000, LARGE_TRACK_POINTS * 1E9 / decoded));
+    assertTrue(decoded < parsed);
+  }
+
+  private void iterate(long trackId, boolean decodedSensorData) {
+    LocationIterator iterator = providerUtils.getTrackPointLocationIterator(trackId, -1L, false,
+        MyTracksProviderUtils.DEFAULT_LOCATION_FACTORY, decodedSensorData);
+    try {
+      int count = 0;
+      while (iterator.hasNext()) {
+        iterator.next();
+        count++;
+      }
+      assertEquals(LARGE_TRACK_POINTS, count);
+    } finally {
+      iterator.close();
+    }
+  }
+
+  private static void assertReading(SensorData expected, boolean hasActual, SensorData actual) {
+    if (expected.getState() != SensorState.SENDING) {
+      assertFalse(hasActual);
+      return;
+    }
+    assertTrue(hasActual);
+    assertEquals(SensorState.SENDING, actual.getState());
+    assertEquals(expected.getValue(), actual.getValue());
+  }
+
+  private long insertTrack(int numberOfPoints) {
+    Track track = new Track();
+    track.setName("Sensors");
+    Uri uri = providerUtils.insertTrack(track);
+    long trackId = Long.parseLong(uri.getLastPathSegment());
+
+    Location[] locations = new Location[INSERT_BATCH_SIZE];
+    for (int i = 0; i < numberOfPoints; i += INSERT_BATCH_SIZE) {
+      int count = Math.min(INSERT_BATCH_SIZE, numberOfPoints - i);
+      for (int j = 0; j < count; j++) {
+        locations[j] = createLocation(i + j);
+      }
+      providerUtils.bulkInsertTrackPoint(locations, count, trackId);
+    }
+    return trackId;
+  }
+
+  private static Location createLocation(int i) {
+    MyTracksLocation location = new MyTracksLocation("gps");
+    location.setLatitude(45.0 + i / 1E5);
+    location.setLongitude(35.0 + i / 1E5);
+    location.setAltitude(100 + i % 50);
+    location.setAccuracy(5);
+    location.setSpeed(10);
+    location.setTime(1000000000000L + i * 1000L);
+    location.setSensorDataSet(createSensorDataSet(i));
+    return location;
+  }
+
+  /**
+   * Creates a sensor data set with power and heart rate sending, and cadence
+   * dropping out every other point.
+   */
+  private static SensorDataSet createSensorDataSet(int i) {
+    return SensorDataSet.newBuilder()
+        .setCreationTime(1000000000000L + i * 1000L)
+        .setPower(newSensorData(SensorState.SENDING, 200 + i % 100))
+        .setHeartRate(newSensorData(SensorState.SENDING, 140 + i % 40))
+        .setCadence(newSensorData(
+            i % 2 == 0 ? SensorState.SENDING : SensorState.DISCONNECTED, 90))
+        .setBatteryLevel(newSensorData(SensorState.SENDING, 80))
+        .build();
+  }
+
+  private static SensorData newSensorData(SensorState state, float value) {
+    return SensorData.newBuilder().setState(state).setValue(value).build();
+  }
+}
@@ -0,0 +1,241 @@
+/*
+*    Copyright (c) 2013, Will Szumski
+*    Copyright (c) 2013, Doug Szumski
+*
+*    This file is part of Cyclismo.
+*
+*    Cyclismo is free software: you can redistribute it and/or modify
+*    it under the terms of the GNU General Public License as published by
+*    the Free Software Foundation, either version 3 of the License, or
+*    (at your option) any later version.
+*
+*    Cyclismo is distributed in the hope that it will be useful,
+*    but WITHOUT ANY WARRANTY; without even the implied warranty of
+*    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*    GNU General Public License for more details.
+*
+*    You should have received a copy of the GNU General Public License
+*    along with Cyclismo.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package org.cowboycoders.cyclismo.content;
+
+import android.content.Context;
+import android.location.Location;
+import android.net.Uri;
+import android.test.AndroidTestCase;
+import android.test.RenamingDelegatingContext;
+import android.test.mock.MockContentResolver;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import org.cowboycoders.cyclismo.Constants;
+import org.cowboycoders.cyclismo.R;
+import org.cowboycoders.cyclismo.content.Sensor.SensorData;
+import org.cowboycoders.cyclismo.content.Sensor.SensorDataSet;
+import org.cowboycoders.cyclismo.content.Sensor.SensorState;
+import org.cowboycoders.cyclismo.util.PreferencesUtils;
+
+import java.util.EnumSet;
+import java.util.Locale;
+
+/**
+ * Tests for {@link TrackPointCache}.
+ */
+public class TrackPointCacheTest extends AndroidTestCase {
+
+  private static final String TAG = TrackPointCacheTest.class.getSimpleName();
+  private static final int SMALL_TRACK_POINTS = 100;
+  // Six hours at a point a second
+  private static final int RECORDING_POINTS = 6 * 60 * 60;
+  private static final int POINTS_PER_UPDATE = 10;
+  private static final int NUMBER_OF_HUBS = 3;
+
+  private Context context;
+  private MyTracksProviderUtils providerUtils;
+  private long nextTime = 1000000000000L;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    MockContentResolver mockContentResolver = new MockContentResolver();
+    context = new RenamingDelegatingContext(getContext(), getContext(), "test.");
+    MyTracksProvider myTracksProvider = new MyTracksProvider();
+    myTracksProvider.attachInfo(context, null);
+    mockContentResolver.addProvider(MyTracksProviderUtils.AUTHORITY, myTracksProvider);
+    providerUtils = new MyTracksProviderUtilsImpl(mockContentResolver);
+    providerUtils.deleteAllTracks();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    providerUtils.deleteAllTracks();
+    PreferencesUtils.setLong(context, R.string.recording_track_id_key,
+        PreferencesUtils.RECORDING_TRACK_ID_DEFAULT);
+    super.tearDown();
+  }
+
+  /**
+   * Tests updating only reads the points added since the last update, and
+   * the points read back match the track.
+   */
+  public void testUpdate() {
+    long trackId = insertTrack();
+    insertTrackPoints(trackId, SMALL_TRACK_POINTS);
+    TrackPointCache cache = TrackPointCache.acquire(providerUtils, trackId);
+    try {
+      assertEquals(SMALL_TRACK_POINTS,
+          cache.update(providerUtils, providerUtils.getLastTrackPointId(trackId)));
+      assertEquals(SMALL_TRACK_POINTS,
+          cache.update(providerUtils, providerUtils.getLastTrackPointId(trackId)));
+      assertEquals(SMALL_TRACK_POINTS, cache.getNumPointsRead());
+
+      insertTrackPoints(trackId, SMALL_TRACK_POINTS);
+      assertEquals(2 * SMALL_TRACK_POINTS,
+          cache.update(providerUtils, providerUtils.getLastTrackPointId(trackId)));
+      assertEquals(2 * SMALL_TRACK_POINTS, cache.getNumPointsRead());
+
+      assertEquals(0, cache.indexAfter(-1L));
+      assertEquals(SMALL_TRACK_POINTS, cache.indexAfter(cache.getId(SMALL_TRACK_POINTS - 1)));
+      int index = 2 * SMALL_TRACK_POINTS - 1;
+      Location expected = providerUtils.getLastValidTrackPoint(trackId);
+      MyTracksLocation actual = (MyTracksLocation) cache.getLocation(index);
+      assertTrue(cache.isValidLocation(index));
+      assertEquals(expected.getTime(), actual.getTime());
+      assertEquals(expected.getLatitude(), actual.getLatitude());
+      assertEquals(expected.getLongitude(), actual.getLongitude());
+      assertEquals(expected.getAltitude(), actual.getAltitude());
+      assertEquals(expected.getSpeed(), actual.getSpeed());
+      assertFalse(actual.hasBearing());
+      SensorDataSet sensorDataSet = actual.getSensorDataSet();
+      assertEquals(300f, sensorDataSet.getPower().getValue());
+      assertFalse(sensorDataSet.hasCadence());
+    } finally {
+      cache.release();
+    }
+  }
+
+  /**
+   * Tests hubs showing the same track share its cache, until the last one
+   * releases it.
+   */
+  public void testAcquire_shared() {
+    long trackId = insertTrack();
+    TrackPointCache first = TrackPointCache.acquire(providerUtils, trackId);
+    TrackPointCache second = TrackPointCache.acquire(providerUtils, trackId);
+    assertSame(first, second);
+    first.release();
+    TrackPointCache third = TrackPointCache.acquire(providerUtils, trackId);
+    assertSame(second, third);
+    second.release();
+    third.release();
+    TrackPointCache fourth = TrackPointCache.acquire(providerUtils, trackId);
+    assertNotSame(first, fourth);
+    fourth.release();
+  }
+
+  /**
+   * Tests the cache starts over once the points of its track are deleted.
+   */
+  public void testUpdate_pointsDeleted() {
+    long trackId = insertTrack();
+    insertTrackPoints(trackId, SMALL_TRACK_POINTS);
+    TrackPointCache cache = TrackPointCache.acquire(providerUtils, trackId);
+    try {
+      cache.update(providerUtils, providerUtils.getLastTrackPointId(trackId));
+      providerUtils.deleteTrack(trackId);
+      assertEquals(0, cache.update(providerUtils, providerUtils.getLastTrackPointId(trackId)));
+    } finally {
+      cache.release();
+    }
+  }
+
+  /**
+   * Measures the database reads and time taken to show a live six hour
+   * recording in three hubs. Without the cache each hub read every point
+   * handed to its listeners, and reread the whole track on resampling.
+   */
+  @LargeTest
+  public void testTrackDataHub_liveRecording() {
+    long trackId = insertTrack();
+    PreferencesUtils.setLong(context, R.string.selected_track_id_key, trackId);
+    PreferencesUtils.setLong(context, R.string.recording_track_id_key, trackId);
+
+    TrackDataHub[] hubs = new TrackDataHub[NUMBER_OF_HUBS];
+    CountingTrackDataListener[] listeners = new CountingTrackDataListener[NUMBER_OF_HUBS];
+    for (int i = 0; i < NUMBER_OF_HUBS; i++) {
+      hubs[i] = newTrackDataHub();
+      hubs[i].start();
+      listeners[i] = new CountingTrackDataListener();
+      hubs[i].registerTrackDataListener(listeners[i], EnumSet.of(
+          TrackDataType.SAMPLED_IN_TRACK_POINTS_TABLE,
+          TrackDataType.SAMPLED_OUT_TRACK_POINTS_TABLE));
+    }
+    TrackPointCache cache = TrackPointCache.acquire(providerUtils, trackId);
+
+    long start = System.nanoTime();
+    for (int i = 0; i < RECORDING_POINTS; i += POINTS_PER_UPDATE) {
+      insertTrackPoints(trackId, POINTS_PER_UPDATE);
+      for (TrackDataHub hub : hubs) {
+        hub.notifyTrackPointsTableUpdated();
+      }
+    }
+    long elapsed = System.nanoTime() - start;
+
+    long pointsRead = cache.getNumPointsRead();
+    long pointsDelivered = 0;
+    int resamples = 0;
+    for (int i = 0; i < NUMBER_OF_HUBS; i++) {
+      hubs[i].stop();
+      pointsDelivered += listeners[i].numPoints;
+      resamples += listeners[i].numClears - 1;
+    }
+    cache.release();
+
+    Log.i(TAG, String.format(Locale.US, "%d points in %d hubs: %dms, %d points read, "
+        + "%d points handed to listeners over %d resamples (%.1f reads saved per point)",
+        RECORDING_POINTS, NUMBER_OF_HUBS, elapsed / 1000000, pointsRead, pointsDelivered,
+        resamples, (double) (pointsDelivered - pointsRead) / RECORDING_POINTS));
+    assertEquals(RECORDING_POINTS, pointsRead);
+    assertTrue(resamples > 0);
+    assertTrue(pointsDelivered > NUMBER_OF_HUBS * RECORDING_POINTS);
+  }
+
+  private TrackDataHub newTrackDataHub() {
+    return new TrackDataHub(context, new TrackDataManager(), providerUtils,
+        Constants.TARGET_DISPLAYED_TRACK_POINTS) {
+        @Override
+      protected void runInHanderThread(Runnable runnable) {
+        // Run everything in the same thread
+        runnable.run();
+      }
+    };
+  }
+
+  private long insertTrack() {
+    Track track = new Track();
+    track.setName("Cache");
+    Uri uri = providerUtils.insertTrack(track);
+    return Long.parseLong(uri.getLastPathSegment());
+  }
+
+  private void insertTrackPoints(long trackId, int numberOfPoints) {
+    Location[] locations = new Location[numberOfPoints];
+    for (int i = 0; i < numberOfPoints; i++) {
+      MyTracksLocation location = new MyTracksLocation("gps");
+      location.setLatitude(45.0 + i / 1E5);
+      location.setLongitude(35.0 + i / 1E5);
+      location.setAltitude(100 + i % 50);
+      location.setAccuracy(5);
+      location.setSpeed(10);
+      location.setTime(nextTime);
+      location.setSensorDataSet(SensorDataSet.newBuilder()
+          .setCreationTime(nextTime)
+          .setPower(SensorData.newBuilder().setState(SensorState.SENDING).setValue(300))
+          .setCadence(SensorData.newBuilder().setState(SensorState.NONE).setValue(90))
+          .build());
+      nextTime += 1000L;
+      locations[i] = location;
+    }
+    providerUtils.bulkInsertTrackPoint(locations, numberOfPoints, trackId);
+  }
+}
@@ -0,0 +1,239 @@
+/*
+*    Copyright (c) 2013, Will Szumski
+*    Copyright (c) 2013, Doug Szumski
+*
+*    This file is part of Cyclismo.
+*
+*    Cyclismo is free software: you can redistribute it and/or modify
+*    it under the terms of the GNU General Public License as published by
+*    the Free Software Foundation, either version 3 of the License, or
+*    (at your option) any later version.
+*
+*    Cyclismo is distributed in the hope that it will be useful,
+*    but WITHOUT ANY WARRANTY; without even the implied warranty of
+*    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*    GNU General Public License for more details.
+*
+*    You should have received a copy of the GNU General Public License
+*    along with Cyclismo.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package org.cowboycoders.cyclismo.content;
+
+import android.content.Context;
+import android.test.AndroidTestCase;
+import android.test.RenamingDelegatingContext;
+import android.test.mock.MockContentResolver;
+
+import org.cowboycoders.cyclismo.stats.TripStatistics;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Tests the materialized track statistics against {@link TrackStatsChecker}.
+ */
+public class TrackStatsCheckerTest extends AndroidTestCase {
+
+  // Monday 1 July 2013 00:00 UTC
+  private static final long MONDAY = 1372636800000L;
+  private static final long ONE_DAY = 24L * 60 * 60 * 1000;
+
+  private MyTracksProviderUtils providerUtils;
+  private MyTracksProviderUtils courseProviderUtils;
+  private TrackStatsChecker checker;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    MockContentResolver mockContentResolver = new MockContentResolver();
+    Context context = new RenamingDelegatingContext(getContext(), getContext(), "test.");
+    MyTracksProvider myTracksProvider = new MyTracksProvider();
+    myTracksProvider.attachInfo(context, null);
+    mockContentResolver.addProvider(MyTracksProviderUtils.AUTHORITY, myTracksProvider);
+    providerUtils = new MyTracksProviderUtilsImpl(mockContentResolver);
+    providerUtils.deleteAllTracks();
+    courseProviderUtils = new MyTracksCourseProviderUtils(mockContentResolver);
+    courseProviderUtils.deleteAllTracks();
+    checker = new TrackStatsChecker(providerUtils);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    providerUtils.deleteAllTracks();
+    courseProviderUtils.deleteAllTracks();
+    super.tearDown();
+  }
+
+  /**
+   * Tests there are no statistics without tracks.
+   */
+  public void testNoTracks() {
+    assertNull(providerUtils.getAggregatedTripStatistics());
+    assertTrue(providerUtils.getTripStatisticsRollup(TrackStatsColumns.BUCKET_WEEK).isEmpty());
+    assertTrue(checker.check().isEmpty());
+  }
+
+  /**
+   * Tests the aggregate is the same as merging every track.
+   */
+  public void testAggregate() {
+    insertTrack(MONDAY, 1000, 10, 1);
+    insertTrack(MONDAY + ONE_DAY, 2000, 12, 1);
+    insertTrack(MONDAY + 8 * ONE_DAY, 500, 15, 2);
+
+    TripStatistics aggregate = providerUtils.getAggregatedTripStatistics();
+    assertEquals(3500.0, aggregate.getTotalDistance(), 0.01);
+    assertEquals(15.0, aggregate.getMaxSpeed(), 0.01);
+    assertEquals(MONDAY, aggregate.getStartTime());
+    assertTrue(checker.check().isEmpty());
+  }
+
+  /**
+   * Tests tracks are bucketed by week, month and owner.
+   */
+  public void testRollups() {
+    insertTrack(MONDAY, 1000, 10, 1);
+    insertTrack(MONDAY + 6 * ONE_DAY, 2000, 12, 1);
+    insertTrack(MONDAY + 7 * ONE_DAY, 500, 15, 2);
+    insertTrack(MONDAY + 31 * ONE_DAY, 100, 5, 2);
+
+    Map<Long, TripStatistics> weeks =
+        providerUtils.getTripStatisticsRollup(TrackStatsColumns.BUCKET_WEEK);
+    assertEquals(3, weeks.size());
+    assertEquals(3000.0, weeks.get(MONDAY).getTotalDistance(), 0.01);
+    assertEquals(500.0, weeks.get(MONDAY + 7 * ONE_DAY).getTotalDistance(), 0.01);
+
+    Map<Long, TripStatistics> months =
+        providerUtils.getTripStatisticsRollup(TrackStatsColumns.BUCKET_MONTH);
+    assertEquals(2, months.size());
+    assertEquals(3500.0, months.get(201307L).getTotalDistance(), 0.01);
+    assertEquals(100.0, months.get(201308L).getTotalDistance(), 0.01);
+
+    Map<Long, TripStatistics> owners =
+        providerUtils.getTripStatisticsRollup(TrackStatsColumns.BUCKET_OWNER);
+    assertEquals(2, owners.size());
+    assertEquals(12.0, owners.get(1L).getMaxSpeed(), 0.01);
+    assertEquals(15.0, owners.get(2L).getMaxSpeed(), 0.01);
+    assertTrue(checker.check().isEmpty());
+  }
+
+  /**
+   * Tests courses, which have no materialized statistics, are rolled up from
+   * the course tracks.
+   */
+  public void testCourses() {
+    TrackStatsChecker courseChecker = new TrackStatsChecker(courseProviderUtils);
+    assertTrue(courseProviderUtils.getTripStatisticsRollup(
+        TrackStatsColumns.BUCKET_WEEK).isEmpty());
+    assertTrue(courseChecker.check().isEmpty());
+
+    courseProviderUtils.insertTrack(newTrack(MONDAY, 1000, 10, 1));
+    courseProviderUtils.insertTrack(newTrack(MONDAY + 7 * ONE_DAY, 500, 15, 1));
+    Map<Long, TripStatistics> weeks =
+        courseProviderUtils.getTripStatisticsRollup(TrackStatsColumns.BUCKET_WEEK);
+    assertEquals(2, weeks.size());
+    assertEquals(1000.0, weeks.get(MONDAY).getTotalDistance(), 0.01);
+    assertEquals(1500.0, courseProviderUtils.getTripStatisticsRollup(
+        TrackStatsColumns.BUCKET_ALL).get(0L).getTotalDistance(), 0.01);
+    assertTrue(courseChecker.check().isEmpty());
+  }
+
+  /**
+   * Tests the statistics follow a track while it is recorded, then moved to
+   * another owner.
+   */
+  public void testUpdate() {
+    insertTrack(MONDAY, 1000, 10, 1);
+    Track track = insertTrack(MONDAY + ONE_DAY, 0, 0, 1);
+    for (int i = 1; i <= 20; i++) {
+      TripStatistics tripStatistics = track.getTripStatistics();
+      tripStatistics.setTotalDistance(i * 100);
+      tripStatistics.setStopTime(MONDAY + ONE_DAY + i * 1000);
+      tripStatistics.setMaxSpeed(i);
+      providerUtils.updateTrack(track);
+    }
+    assertEquals(3000.0, providerUtils.getAggregatedTripStatistics().getTotalDistance(), 0.01);
+    assertEquals(20.0, providerUtils.getAggregatedTripStatistics().getMaxSpeed(), 0.01);
+    assertTrue(checker.check().isEmpty());
+
+    // Lower the max speed held by this track
+    track.getTripStatistics().setMaxSpeed(5);
+    track.setOwner(2);
+    providerUtils.updateTrack(track);
+    assertEquals(10.0, providerUtils.getAggregatedTripStatistics().getMaxSpeed(), 0.01);
+    assertEquals(5.0, providerUtils.getTripStatisticsRollup(
+        TrackStatsColumns.BUCKET_OWNER).get(2L).getMaxSpeed(), 0.01);
+    assertTrue(checker.check().isEmpty());
+  }
+
+  /**
+   * Tests a bucket is removed with its last track, and extremes are recomputed
+   * when the track holding them is deleted.
+   */
+  public void testDelete() {
+    Track fastest = insertTrack(MONDAY, 1000, 20, 1);
+    insertTrack(MONDAY + ONE_DAY, 1000, 10, 1);
+    Track other = insertTrack(MONDAY + 40 * ONE_DAY, 1000, 5, 2);
+
+    providerUtils.deleteTrack(fastest.getId());
+    assertEquals(10.0, providerUtils.getAggregatedTripStatistics().getMaxSpeed(), 0.01);
+    assertEquals(MONDAY + ONE_DAY, providerUtils.getAggregatedTripStatistics().getStartTime());
+    assertTrue(checker.check().isEmpty());
+
+    providerUtils.deleteTrack(other.getId());
+    assertEquals(1, providerUtils.getTripStatisticsRollup(TrackStatsColumns.BUCKET_OWNER).size());
+    assertEquals(1, providerUtils.getTripStatisticsRollup(TrackStatsColumns.BUCKET_MONTH).size());
+    assertTrue(checker.check().isEmpty());
+  }
+
+  /**
+   * Inserts, updates and deletes random tracks, checking the statistics stay
+   * consistent.
+   */
+  public void testRandomChanges() {
+    Random random = new Random(0);
+    List<Track> tracks = new ArrayList<Track>();
+    for (int i = 0; i < 200; i++) {
+      int action = random.nextInt(3);
+      if (action == 0 || tracks.isEmpty()) {
+        tracks.add(insertTrack(MONDAY + random.nextInt(90) * ONE_DAY, random.nextInt(50000),
+            random.nextInt(20), 1 + random.nextInt(3)));
+      } else if (action == 1) {
+        Track track = tracks.get(random.nextInt(tracks.size()));
+        track.getTripStatistics().setTotalDistance(random.nextInt(50000));
+        track.getTripStatistics().setMaxSpeed(random.nextInt(20));
+        track.setOwner(1 + random.nextInt(3));
+        providerUtils.updateTrack(track);
+      } else {
+        providerUtils.deleteTrack(tracks.remove(random.nextInt(tracks.size())).getId());
+      }
+    }
+    List<String> differences = checker.check();
+    assertTrue(differences.toString(), differences.isEmpty());
+  }
+
+  private Track insertTrack(long startTime, double distance, double maxSpeed, long owner) {
+    Track track = newTrack(startTime, distance, maxSpeed, owner);
+    track.setId(Long.parseLong(providerUtils.insertTrack(track).getLastPathSegment()));
+    return track;
+  }
+
+  private Track newTrack(long startTime, double distance, double maxSpeed, long owner) {
+    Track track = new Track();
+    track.setOwner(owner);
+    TripStatistics tripStatistics = track.getTripStatistics();
+    tripStatistics.setStartTime(startTime);
+    tripStatistics.setStopTime(startTime + 3600000);
+    tripStatistics.setTotalTime(3600000);
+    tripStatistics.setMovingTime(3000000);
+    tripStatistics.setTotalDistance(distance);
+    tripStatistics.setMaxSpeed(maxSpeed);
+    tripStatistics.setBounds(-1000000, 51000000, 1000000, 50000000);
+    tripStatistics.setMinElevation(10);
+    tripStatistics.setMaxElevation(100 + maxSpeed);
+    tripStatistics.setTotalElevationGain(distance / 100);
+    return track;
+  }
+}
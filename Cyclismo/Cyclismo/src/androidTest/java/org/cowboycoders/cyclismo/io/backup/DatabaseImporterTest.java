@@ -35,11 +35,16 @@
 package org.cowboycoders.cyclismo.io.backup;
 
 import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
 import android.net.Uri;
 
 import junit.framework.TestCase;
 
 import org.cowboycoders.cyclismo.content.ContentTypeIds;
+import org.cowboycoders.cyclismo.content.SensorDataColumns;
+import org.cowboycoders.cyclismo.content.TrackPointsColumns;
+import org.cowboycoders.cyclismo.io.backup.BackupManifest.Chunk;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
@@ -47,6 +52,8 @@ import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
 
 /**
  * Tests for {@link DatabaseImporter}.
@@ -56,8 +63,10 @@ import java.util.ArrayList;
 public class DatabaseImporterTest extends TestCase {
 
   private static final Uri DESTINATION_URI = Uri.parse("http://www.google.com/");
+  private static final Uri DIRECT_URI = Uri.parse("content://test/test");
   private static final int TEST_BULK_SIZE = 10;
   private ArrayList<ContentValues> insertedValues;
+  private ArrayList<ContentValues> updatedValues;
 
   private class TestableDatabaseImporter extends DatabaseImporter {
     public TestableDatabaseImporter(boolean readNullFields) {
@@ -73,6 +82,12 @@ public class DatabaseImporterTest extends TestCase {
         insertedValues.add(new ContentValues(contentValues));
       }
     }
+
+    @Override
+    protected void doUpdate(long id, ContentValues values) {
+      assertEquals(id, values.getAsLong("_id").longValue());
+      updatedValues.add(new ContentValues(values));
+    }
   }
 
   @Override
@@ -80,6 +95,7 @@ public class DatabaseImporterTest extends TestCase {
     super.setUp();
 
     insertedValues = new ArrayList<ContentValues>();
+    updatedValues = new ArrayList<ContentValues>();
   }
 
   public void testImportAllRows() throws Exception {
@@ -91,6 +107,211 @@ public class DatabaseImporterTest extends TestCase {
   }
 
   private void testImportAllRows(boolean readNullFields) throws Exception {
+    // Do the importing
+    DatabaseImporter importer = new TestableDatabaseImporter(readNullFields);
+    byte[] dataBytes = writeAllRows(readNullFields);
+    importer.importAllRows(new DataInputStream(new ByteArrayInputStream(dataBytes)));
+
+    assertEquals(2, insertedValues.size());
+
+    // Verify the first row
+    ContentValues value = insertedValues.get(0);
+    assertEquals(value.toString(), 7, value.size());
+
+    assertValue(42, "col1", value);
+    assertValue(true, "col2", value);
+    assertValue("lolcat", "col3", value);
+    assertValue(3.1415f, "col4", value);
+    assertValue(2.72, "col5", value);
+    assertValue(123456789L, "col6", value);
+    assertBlobValue("blob", "col7", value);
+
+    // Verify the second row
+    value = insertedValues.get(1);
+    assertEquals(value.toString(), 3, value.size());
+
+    assertValue(42, "col1", value);
+    assertValue("lolcat", "col3", value);
+    assertValue(2.72, "col5", value);
+  }
+
+  public void testImportAllRows_direct() throws Exception {
+    testImportAllRowsDirect(false);
+  }
+
+  public void testImportAllRows_directReadNullFields() throws Exception {
+    testImportAllRowsDirect(true);
+  }
+
+  private void testImportAllRowsDirect(boolean readNullFields) throws Exception {
+    SQLiteDatabase db = SQLiteDatabase.create(null);
+    try {
+      db.execSQL("CREATE TABLE test (col1 INTEGER, col2 INTEGER, col3 STRING, col4 FLOAT, "
+          + "col5 FLOAT, col6 INTEGER, col7 BLOB)");
+      DatabaseImporter importer = new DatabaseImporter(DIRECT_URI, null, db, readNullFields);
+      byte[] dataBytes = writeAllRows(readNullFields);
+      importer.importAllRows(new DataInputStream(new ByteArrayInputStream(dataBytes)));
+
+      Cursor cursor = db.rawQuery("SELECT * FROM test ORDER BY rowid", null);
+      try {
+        assertEquals(2, cursor.getCount());
+
+        // Verify the first row
+        assertTrue(cursor.moveToNext());
+        assertEquals(42, cursor.getInt(0));
+        assertEquals(1, cursor.getInt(1));
+        assertEquals("lolcat", cursor.getString(2));
+        assertEquals(3.1415f, cursor.getFloat(3));
+        assertEquals(2.72, cursor.getDouble(4));
+        assertEquals(123456789L, cursor.getLong(5));
+        assertEquals("blob", new String(cursor.getBlob(6)));
+
+        // Verify the second row
+        assertTrue(cursor.moveToNext());
+        assertEquals(42, cursor.getInt(0));
+        assertTrue(cursor.isNull(1));
+        assertEquals("lolcat", cursor.getString(2));
+        assertTrue(cursor.isNull(3));
+        assertEquals(2.72, cursor.getDouble(4));
+        assertTrue(cursor.isNull(5));
+        assertTrue(cursor.isNull(6));
+      } finally {
+        cursor.close();
+      }
+    } finally {
+      db.close();
+    }
+  }
+
+  /**
+   * Tests track points restored straight into the database from a backup
+   * made before the sensor columns existed get them decoded from the blob.
+   */
+  public void testImportAllRows_directDecodesSensor() throws Exception {
+    ByteArrayOutputStream outputStream = new ByteArrayOutputStream(1024);
+    DataOutputStream writer = new DataOutputStream(outputStream);
+    writeTrackPointHeader(writer, true);
+    writer.writeInt(2);
+
+    byte[] sensor = SensorDataColumns.build(300.0f, Float.NaN, 150.0f, Float.NaN).toByteArray();
+    writer.writeLong(0x3F);
+    writeTrackPoint(writer, 1L);
+    writer.writeInt(sensor.length);
+    writer.write(sensor);
+
+    // No sensor data
+    writer.writeLong(0x1F);
+    writeTrackPoint(writer, 2L);
+    writer.flush();
+
+    SQLiteDatabase db = SQLiteDatabase.create(null);
+    try {
+      db.execSQL(TrackPointsColumns.CREATE_TABLE);
+      DatabaseImporter importer =
+          new DatabaseImporter(TrackPointsColumns.CONTENT_URI, null, db, false);
+      importer.importAllRows(new DataInputStream(
+          new ByteArrayInputStream(outputStream.toByteArray())));
+
+      Cursor cursor = db.query(TrackPointsColumns.TABLE_NAME, new String[] {
+          TrackPointsColumns.POWER, TrackPointsColumns.CADENCE, TrackPointsColumns.HEART_RATE,
+          TrackPointsColumns.SENSOR_SPEED }, null, null, null, null, TrackPointsColumns._ID);
+      try {
+        assertTrue(cursor.moveToNext());
+        assertEquals(300.0f, cursor.getFloat(0));
+        assertTrue(cursor.isNull(1));
+        assertEquals(150.0f, cursor.getFloat(2));
+        assertTrue(cursor.isNull(3));
+
+        assertTrue(cursor.moveToNext());
+        for (int i = 0; i < 4; i++) {
+          assertTrue(cursor.isNull(i));
+        }
+      } finally {
+        cursor.close();
+      }
+    } finally {
+      db.close();
+    }
+  }
+
+  /**
+   * Tests rows restored straight into the database are held to the columns
+   * the provider requires of an insert.
+   */
+  public void testImportAllRows_directRequiredColumns() throws Exception {
+    ByteArrayOutputStream outputStream = new ByteArrayOutputStream(1024);
+    DataOutputStream writer = new DataOutputStream(outputStream);
+    writeTrackPointHeader(writer, false);
+    writer.writeInt(2);
+    writer.writeLong(0x1F);
+    writeTrackPoint(writer, 1L);
+
+    // No latitude
+    writer.writeLong(0x1B);
+    writer.writeLong(2L);
+    writer.writeLong(5L);
+    writer.writeInt(35000000);
+    writer.writeLong(1000000000000L);
+    writer.flush();
+
+    SQLiteDatabase db = SQLiteDatabase.create(null);
+    try {
+      db.execSQL(TrackPointsColumns.CREATE_TABLE);
+      DatabaseImporter importer =
+          new DatabaseImporter(TrackPointsColumns.CONTENT_URI, null, db, false);
+      try {
+        importer.importAllRows(new DataInputStream(
+            new ByteArrayInputStream(outputStream.toByteArray())));
+        fail("Expected the import to fail");
+      } catch (IllegalArgumentException e) {
+        assertEquals("Latitude, longitude, and time values are required.", e.getMessage());
+      }
+    } finally {
+      db.close();
+    }
+  }
+
+  /**
+   * Writes the header of track points with the required columns.
+   *
+   * @param sensor true to add the sensor column
+   */
+  private void writeTrackPointHeader(DataOutputStream writer, boolean sensor)
+      throws IOException {
+    writer.writeInt(sensor ? 6 : 5);
+    writer.writeUTF(TrackPointsColumns._ID);
+    writer.writeByte(ContentTypeIds.LONG_TYPE_ID);
+    writer.writeUTF(TrackPointsColumns.TRACKID);
+    writer.writeByte(ContentTypeIds.LONG_TYPE_ID);
+    writer.writeUTF(TrackPointsColumns.LATITUDE);
+    writer.writeByte(ContentTypeIds.INT_TYPE_ID);
+    writer.writeUTF(TrackPointsColumns.LONGITUDE);
+    writer.writeByte(ContentTypeIds.INT_TYPE_ID);
+    writer.writeUTF(TrackPointsColumns.TIME);
+    writer.writeByte(ContentTypeIds.LONG_TYPE_ID);
+    if (sensor) {
+      writer.writeUTF(TrackPointsColumns.SENSOR);
+      writer.writeByte(ContentTypeIds.BLOB_TYPE_ID);
+    }
+  }
+
+  /**
+   * Writes the required columns of a track point.
+   */
+  private void writeTrackPoint(DataOutputStream writer, long id) throws IOException {
+    writer.writeLong(id);
+    writer.writeLong(5L);
+    writer.writeInt(45000000);
+    writer.writeInt(35000000);
+    writer.writeLong(1000000000000L + id * 1000L);
+  }
+
+  /**
+   * Writes a row with all fields present and one with some missing.
+   *
+   * @param readNullFields true to write the missing fields too
+   */
+  private byte[] writeAllRows(boolean readNullFields) throws IOException {
     // Create a fake data stream to be read
     ByteArrayOutputStream outputStream = new ByteArrayOutputStream(1024);
     DataOutputStream writer = new DataOutputStream(outputStream);
@@ -122,33 +343,7 @@ public class DatabaseImporterTest extends TestCase {
     if (readNullFields) writer.writeInt(0);  // empty blob
 
     writer.flush();
-
-    // Do the importing
-    DatabaseImporter importer = new TestableDatabaseImporter(readNullFields);
-    byte[] dataBytes = outputStream.toByteArray();
-    importer.importAllRows(new DataInputStream(new ByteArrayInputStream(dataBytes)));
-
-    assertEquals(2, insertedValues.size());
-
-    // Verify the first row
-    ContentValues value = insertedValues.get(0);
-    assertEquals(value.toString(), 7, value.size());
-
-    assertValue(42, "col1", value);
-    assertValue(true, "col2", value);
-    assertValue("lolcat", "col3", value);
-    assertValue(3.1415f, "col4", value);
-    assertValue(2.72, "col5", value);
-    assertValue(123456789L, "col6", value);
-    assertBlobValue("blob", "col7", value);
-
-    // Verify the second row
-    value = insertedValues.get(1);
-    assertEquals(value.toString(), 3, value.size());
-
-    assertValue(42, "col1", value);
-    assertValue("lolcat", "col3", value);
-    assertValue(2.72, "col5", value);
+    return outputStream.toByteArray();
   }
 
   public void testImportAllRows_noRows() throws Exception {
@@ -279,6 +474,95 @@ public class DatabaseImporterTest extends TestCase {
     }
   }
 
+  public void testImportChunk() throws Exception {
+    byte[] data = writeIdRows(3);
+    DatabaseImporter importer = new TestableDatabaseImporter(false);
+    importer.importChunk(newChunk(data, false), deflate(data));
+
+    assertEquals(3, insertedValues.size());
+    assertTrue(updatedValues.isEmpty());
+    for (int i = 0; i < 3; i++) {
+      assertValue((long) i, "_id", insertedValues.get(i));
+      assertValue(Integer.toString(i), "col2", insertedValues.get(i));
+    }
+  }
+
+  public void testImportChunk_update() throws Exception {
+    byte[] data = writeIdRows(2);
+    DatabaseImporter importer = new TestableDatabaseImporter(false);
+    importer.importChunk(newChunk(data, true), deflate(data));
+
+    assertTrue(insertedValues.isEmpty());
+    assertEquals(2, updatedValues.size());
+    assertValue(1L, "_id", updatedValues.get(1));
+    assertValue("1", "col2", updatedValues.get(1));
+  }
+
+  public void testImportChunk_checksumMismatch() throws Exception {
+    byte[] data = writeIdRows(3);
+    Chunk chunk = newChunk(data, false);
+    // Corrupt a row after the checksum was taken
+    data[data.length - 1] = (byte) '9';
+    DatabaseImporter importer = new TestableDatabaseImporter(false);
+    try {
+      importer.importChunk(chunk, deflate(data));
+      fail("Expected a checksum mismatch");
+    } catch (IOException e) {
+      // Expected
+    }
+    assertTrue(insertedValues.isEmpty());
+  }
+
+  public void testImportChunk_corrupt() throws Exception {
+    byte[] data = writeIdRows(3);
+    byte[] compressed = deflate(data);
+    compressed[compressed.length / 2] ^= 0xFF;
+    DatabaseImporter importer = new TestableDatabaseImporter(false);
+    try {
+      importer.importChunk(newChunk(data, false), compressed);
+      fail("Expected a corrupt chunk");
+    } catch (IOException e) {
+      // Expected
+    }
+    assertTrue(insertedValues.isEmpty());
+  }
+
+  private byte[] writeIdRows(int numRows) throws IOException {
+    ByteArrayOutputStream outputStream = new ByteArrayOutputStream(1024);
+    DataOutputStream writer = new DataOutputStream(outputStream);
+    writer.writeInt(2);
+    writer.writeUTF("_id");
+    writer.writeByte(ContentTypeIds.LONG_TYPE_ID);
+    writer.writeUTF("col2");
+    writer.writeByte(ContentTypeIds.STRING_TYPE_ID);
+    writer.writeInt(numRows);
+    for (int i = 0; i < numRows; i++) {
+      writer.writeLong(3);
+      writer.writeLong(i);
+      writer.writeUTF(Integer.toString(i));
+    }
+    writer.flush();
+    return outputStream.toByteArray();
+  }
+
+  private Chunk newChunk(byte[] data, boolean update) {
+    CRC32 crc = new CRC32();
+    crc.update(data);
+    return new Chunk("test.0", "test", update, 0, data.length, crc.getValue());
+  }
+
+  private byte[] deflate(byte[] data) {
+    Deflater deflater = new Deflater();
+    deflater.setInput(data);
+    deflater.finish();
+    byte[] buffer = new byte[data.length * 2 + 64];
+    int length = deflater.deflate(buffer);
+    deflater.end();
+    byte[] compressed = new byte[length];
+    System.arraycopy(buffer, 0, compressed, 0, length);
+    return compressed;
+  }
+
   private void writeFullHeader(DataOutputStream writer) throws IOException {
     // Add the header
     writer.writeInt(7);
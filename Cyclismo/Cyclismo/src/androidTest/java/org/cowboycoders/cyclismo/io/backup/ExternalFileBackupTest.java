@@ -0,0 +1,346 @@
+/*
+*    Copyright (c) 2013, Will Szumski
+*    Copyright (c) 2013, Doug Szumski
+*
+*    This file is part of Cyclismo.
+*
+*    Cyclismo is free software: you can redistribute it and/or modify
+*    it under the terms of the GNU General Public License as published by
+*    the Free Software Foundation, either version 3 of the License, or
+*    (at your option) any later version.
+*
+*    Cyclismo is distributed in the hope that it will be useful,
+*    but WITHOUT ANY WARRANTY; without even the implied warranty of
+*    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*    GNU General Public License for more details.
+*
+*    You should have received a copy of the GNU General Public License
+*    along with Cyclismo.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package org.cowboycoders.cyclismo.io.backup;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.location.Location;
+import android.net.Uri;
+import android.os.Debug;
+import android.test.AndroidTestCase;
+import android.test.RenamingDelegatingContext;
+import android.test.mock.MockContentResolver;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import org.cowboycoders.cyclismo.content.MyTracksProvider;
+import org.cowboycoders.cyclismo.content.MyTracksProviderUtils;
+import org.cowboycoders.cyclismo.content.MyTracksProviderUtilsImpl;
+import org.cowboycoders.cyclismo.content.Track;
+import org.cowboycoders.cyclismo.services.TrackRecordingServiceTest.MockContext;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Tests for {@link ExternalFileBackup}.
+ */
+public class ExternalFileBackupTest extends AndroidTestCase {
+
+  private static final String TAG = ExternalFileBackupTest.class.getSimpleName();
+  private static final String[] FILE_NAMES = {
+      "backup-2013-01-01_00-00-00.zip",
+      "backup-2013-01-02_00-00-00.zip",
+      "backup-2013-01-03_00-00-00.zip" };
+  private static final int LARGE_TRACKS = 50;
+  private static final int LARGE_TRACK_POINTS = 4000;
+  private static final int INSERT_BATCH_SIZE = 1000;
+  private static final int BENCHMARK_TRACKS = 20;
+  private static final int BENCHMARK_TRACK_POINTS = 100000;
+  private static final long SAMPLE_INTERVAL_MS = 10;
+
+  /**
+   * Samples the memory in use until stopped, keeping the peak above where it
+   * was when created.
+   */
+  private static class MemorySampler extends Thread {
+    private final long startHeap = getUsedHeap();
+    private final long startNativeHeap = Debug.getNativeHeapAllocatedSize();
+    private volatile boolean sampling = true;
+    private long peakHeap;
+    private long peakNativeHeap;
+
+    @Override
+    public void run() {
+      while (sampling) {
+        peakHeap = Math.max(peakHeap, getUsedHeap() - startHeap);
+        peakNativeHeap = Math.max(
+            peakNativeHeap, Debug.getNativeHeapAllocatedSize() - startNativeHeap);
+        try {
+          Thread.sleep(SAMPLE_INTERVAL_MS);
+        } catch (InterruptedException e) {
+          return;
+        }
+      }
+    }
+
+    void stopSampling() throws InterruptedException {
+      sampling = false;
+      join();
+    }
+
+    private static long getUsedHeap() {
+      Runtime runtime = Runtime.getRuntime();
+      return runtime.totalMemory() - runtime.freeMemory();
+    }
+  }
+
+  private MyTracksProviderUtils providerUtils;
+  private ExternalFileBackup externalFileBackup;
+  private File backupsDirectory;
+  private long nextTime = 1000000000000L;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    MockContentResolver mockContentResolver = new MockContentResolver();
+    RenamingDelegatingContext targetContext = new RenamingDelegatingContext(
+        getContext(), getContext(), "test.");
+    Context context = new MockContext(mockContentResolver, targetContext);
+    MyTracksProvider provider = new MyTracksProvider();
+    provider.attachInfo(context, null);
+    mockContentResolver.addProvider(MyTracksProviderUtils.AUTHORITY, provider);
+    providerUtils = new MyTracksProviderUtilsImpl(mockContentResolver);
+    providerUtils.deleteAllTracks();
+
+    externalFileBackup = new ExternalFileBackup(context);
+    backupsDirectory = new File(context.getCacheDir(), "backuptest");
+    deleteBackups();
+    assertTrue(backupsDirectory.mkdirs());
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    providerUtils.deleteAllTracks();
+    deleteBackups();
+    super.tearDown();
+  }
+
+  /**
+   * Tests restoring a chain of incremental backups gets back tracks added,
+   * changed and deleted since the full backup.
+   */
+  public void testRestore_incremental() throws Exception {
+    Track renamed = insertTrack("Renamed", 100);
+    Track deleted = insertTrack("Deleted", 100);
+    Track extended = insertTrack("Extended", 100);
+    externalFileBackup.writeToFile(getBackupFile(0), true);
+
+    renamed.setName("Was renamed");
+    providerUtils.updateTrack(renamed);
+    providerUtils.deleteTrack(deleted.getId());
+    insertTrackPoints(extended, 50);
+    externalFileBackup.writeToFile(getBackupFile(1), true);
+
+    Track added = insertTrack("Added", 20);
+    externalFileBackup.writeToFile(getBackupFile(2), true);
+
+    providerUtils.deleteAllTracks();
+    externalFileBackup.restoreFromFile(getBackupFile(2));
+
+    List<Track> tracks = providerUtils.getAllTracks();
+    assertEquals(3, tracks.size());
+    assertEquals("Was renamed", providerUtils.getTrack(renamed.getId()).getName());
+    assertNull(providerUtils.getTrack(deleted.getId()));
+    assertEquals(0, countTrackPoints(deleted.getId()));
+    assertEquals(150, countTrackPoints(extended.getId()));
+    assertEquals(100, countTrackPoints(renamed.getId()));
+    assertEquals(20, countTrackPoints(added.getId()));
+  }
+
+  /**
+   * Tests restoring through the content resolver, as when the provider isn't
+   * in this process.
+   */
+  public void testRestore_throughResolver() throws Exception {
+    Track track = insertTrack("Track", 100);
+    externalFileBackup.writeToFile(getBackupFile(0), true);
+
+    providerUtils.deleteAllTracks();
+    externalFileBackup.setDirectRestore(false);
+    externalFileBackup.restoreFromFile(getBackupFile(0));
+
+    assertEquals("Track", providerUtils.getTrack(track.getId()).getName());
+    assertEquals(100, countTrackPoints(track.getId()));
+  }
+
+  /**
+   * Tests restoring an incremental backup fails, leaving the database as it
+   * was, when a backup it follows on from is missing.
+   */
+  public void testRestore_missingParent() throws Exception {
+    insertTrack("First", 10);
+    externalFileBackup.writeToFile(getBackupFile(0), true);
+    insertTrack("Second", 10);
+    externalFileBackup.writeToFile(getBackupFile(1), true);
+    assertTrue(getBackupFile(0).delete());
+
+    try {
+      externalFileBackup.restoreFromFile(getBackupFile(1));
+      fail("Expected the missing backup to be reported");
+    } catch (IOException e) {
+      // Expected
+    }
+    assertEquals(2, providerUtils.getAllTracks().size());
+  }
+
+  /**
+   * Tests the points recorded after restoring an older backup are in the next
+   * backup, though the latest backup has a higher high-water mark.
+   */
+  public void testBackup_afterRestore() throws Exception {
+    Track first = insertTrack("First", 100);
+    externalFileBackup.writeToFile(getBackupFile(0), true);
+    insertTrack("Second", 100);
+    externalFileBackup.writeToFile(getBackupFile(1), true);
+
+    externalFileBackup.restoreFromFile(getBackupFile(0));
+    insertTrackPoints(first, 50);
+    Track third = insertTrack("Third", 20);
+    externalFileBackup.writeToFile(getBackupFile(2), true);
+
+    // A full backup, so it doesn't need the others
+    assertTrue(getBackupFile(0).delete());
+    assertTrue(getBackupFile(1).delete());
+    providerUtils.deleteAllTracks();
+    externalFileBackup.restoreFromFile(getBackupFile(2));
+
+    assertEquals(2, providerUtils.getAllTracks().size());
+    assertEquals(150, countTrackPoints(first.getId()));
+    assertEquals(20, countTrackPoints(third.getId()));
+  }
+
+  /**
+   * Benchmarks a full and an incremental backup of a large database, and
+   * restoring them.
+   */
+  @LargeTest
+  public void testBackup_largeDatabase() throws Exception {
+    for (int i = 0; i < LARGE_TRACKS; i++) {
+      insertTrack("Track " + i, LARGE_TRACK_POINTS);
+    }
+
+    long start = System.nanoTime();
+    externalFileBackup.writeToFile(getBackupFile(0), false);
+    long full = System.nanoTime() - start;
+
+    insertTrack("Latest", LARGE_TRACK_POINTS);
+    start = System.nanoTime();
+    externalFileBackup.writeToFile(getBackupFile(1), true);
+    long incremental = System.nanoTime() - start;
+
+    providerUtils.deleteAllTracks();
+    start = System.nanoTime();
+    externalFileBackup.restoreFromFile(getBackupFile(1));
+    long restore = System.nanoTime() - start;
+
+    int points = (LARGE_TRACKS + 1) * LARGE_TRACK_POINTS;
+    Log.i(TAG, String.format(Locale.US, "%d points: full backup %dms (%d bytes), "
+        + "incremental backup %dms (%d bytes), restore %dms",
+        points, full / 1000000, getBackupFile(0).length(),
+        incremental / 1000000, getBackupFile(1).length(), restore / 1000000));
+    assertEquals(LARGE_TRACKS + 1, providerUtils.getAllTracks().size());
+    assertTrue(getBackupFile(1).length() * 10 < getBackupFile(0).length());
+    assertTrue(incremental < full);
+  }
+
+  /**
+   * Benchmarks restoring a backup of millions of points straight into the
+   * database and through the content resolver, and the peak memory of each.
+   */
+  @LargeTest
+  public void testRestore_benchmark() throws Exception {
+    for (int i = 0; i < BENCHMARK_TRACKS; i++) {
+      insertTrack("Track " + i, BENCHMARK_TRACK_POINTS);
+    }
+    externalFileBackup.writeToFile(getBackupFile(0), false);
+
+    for (boolean direct : new boolean[] { false, true }) {
+      providerUtils.deleteAllTracks();
+      System.gc();
+      externalFileBackup.setDirectRestore(direct);
+      MemorySampler sampler = new MemorySampler();
+      sampler.start();
+      long start = System.nanoTime();
+      externalFileBackup.restoreFromFile(getBackupFile(0));
+      long elapsed = System.nanoTime() - start;
+      sampler.stopSampling();
+
+      Log.i(TAG, String.format(Locale.US, "Restore %s of %d points: %dms, "
+          + "peak heap %dKB, peak native heap %dKB", direct ? "direct" : "through resolver",
+          BENCHMARK_TRACKS * BENCHMARK_TRACK_POINTS, elapsed / 1000000,
+          sampler.peakHeap / 1024, sampler.peakNativeHeap / 1024));
+      List<Track> tracks = providerUtils.getAllTracks();
+      assertEquals(BENCHMARK_TRACKS, tracks.size());
+      assertEquals(BENCHMARK_TRACK_POINTS, countTrackPoints(tracks.get(0).getId()));
+    }
+  }
+
+  private File getBackupFile(int index) {
+    return new File(backupsDirectory, FILE_NAMES[index]);
+  }
+
+  private void deleteBackups() {
+    File[] files = backupsDirectory.listFiles();
+    if (files != null) {
+      for (File file : files) {
+        file.delete();
+      }
+    }
+    backupsDirectory.delete();
+  }
+
+  private Track insertTrack(String name, int numberOfPoints) {
+    Track track = new Track();
+    track.setName(name);
+    Uri uri = providerUtils.insertTrack(track);
+    track.setId(Long.parseLong(uri.getLastPathSegment()));
+    insertTrackPoints(track, numberOfPoints);
+    return track;
+  }
+
+  private void insertTrackPoints(Track track, int numberOfPoints) {
+    Location[] locations = new Location[INSERT_BATCH_SIZE];
+    for (int i = 0; i < numberOfPoints; i += INSERT_BATCH_SIZE) {
+      int count = Math.min(INSERT_BATCH_SIZE, numberOfPoints - i);
+      for (int j = 0; j < count; j++) {
+        locations[j] = createLocation(i + j);
+      }
+      providerUtils.bulkInsertTrackPoint(locations, count, track.getId());
+    }
+    track.setStopId(providerUtils.getLastTrackPointId(track.getId()));
+    track.setNumberOfPoints(track.getNumberOfPoints() + numberOfPoints);
+    providerUtils.updateTrack(track);
+  }
+
+  private int countTrackPoints(long trackId) {
+    Cursor cursor = providerUtils.getTrackPointCursor(
+        trackId, -1L, Integer.MAX_VALUE, false);
+    try {
+      return cursor.getCount();
+    } finally {
+      cursor.close();
+    }
+  }
+
+  private Location createLocation(int i) {
+    Location location = new Location("gps");
+    location.setLatitude(45.0 + i / 1E5);
+    location.setLongitude(35.0 + i / 1E5);
+    location.setAltitude(100 + i % 50);
+    location.setAccuracy(5);
+    location.setSpeed(10);
+    location.setTime(nextTime);
+    nextTime += 1000L;
+    return location;
+  }
+}
@@ -0,0 +1,246 @@
+/*
+*    Copyright (c) 2013, Will Szumski
+*    Copyright (c) 2013, Doug Szumski
+*
+*    This file is part of Cyclismo.
+*
+*    Cyclismo is free software: you can redistribute it and/or modify
+*    it under the terms of the GNU General Public License as published by
+*    the Free Software Foundation, either version 3 of the License, or
+*    (at your option) any later version.
+*
+*    Cyclismo is distributed in the hope that it will be useful,
+*    but WITHOUT ANY WARRANTY; without even the implied warranty of
+*    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*    GNU General Public License for more details.
+*
+*    You should have received a copy of the GNU General Public License
+*    along with Cyclismo.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package org.cowboycoders.cyclismo.io.file;
+
+import android.content.Context;
+import android.location.Location;
+import android.net.Uri;
+import android.test.AndroidTestCase;
+import android.test.RenamingDelegatingContext;
+import android.test.mock.MockContentResolver;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import org.cowboycoders.cyclismo.content.MyTracksProvider;
+import org.cowboycoders.cyclismo.content.MyTracksProviderUtils;
+import org.cowboycoders.cyclismo.content.MyTracksProviderUtilsImpl;
+import org.cowboycoders.cyclismo.content.Track;
+import org.cowboycoders.cyclismo.io.file.TrackWriterFactory.TrackFileFormat;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * Tests for {@link FanOutTrackFormatWriter}.
+ */
+public class FanOutTrackFormatWriterTest extends AndroidTestCase {
+
+  private static final String TAG = FanOutTrackFormatWriterTest.class.getSimpleName();
+  private static final TrackFileFormat[] FORMATS = {
+      TrackFileFormat.GPX, TrackFileFormat.KML, TrackFileFormat.CSV, TrackFileFormat.TCX };
+  private static final int SMALL_TRACK_POINTS = 100;
+  private static final int LARGE_TRACK_POINTS = 50000;
+  private static final int INSERT_BATCH_SIZE = 1000;
+
+  private Context context;
+  private MyTracksProviderUtils providerUtils;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    MockContentResolver mockContentResolver = new MockContentResolver();
+    context = new RenamingDelegatingContext(getContext(), getContext(), "test.");
+    MyTracksProvider myTracksProvider = new MyTracksProvider();
+    myTracksProvider.attachInfo(context, null);
+    mockContentResolver.addProvider(MyTracksProviderUtils.AUTHORITY, myTracksProvider);
+    providerUtils = new MyTracksProviderUtilsImpl(mockContentResolver);
+    providerUtils.deleteAllTracks();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    providerUtils.deleteAllTracks();
+    super.tearDown();
+  }
+
+  /**
+   * Tests each stream gets the same output as writing its format on its own.
+   */
+  public void testPrepare_streams() throws Exception {
+    Track track = insertTrack(SMALL_TRACK_POINTS);
+    byte[][] expected = writeEachFormat(track);
+
+    ByteArrayOutputStream[] streams = newStreams();
+    FanOutTrackFormatWriter writer = new FanOutTrackFormatWriter(
+        context, context.getCacheDir(), FORMATS);
+    writer.prepare(track, streams);
+    new TrackWriterImpl(context, providerUtils, track, writer).writeDocument();
+
+    for (int i = 0; i < FORMATS.length; i++) {
+      assertTrue(FORMATS[i].name(), Arrays.equals(expected[i], streams[i].toByteArray()));
+    }
+  }
+
+  /**
+   * Tests the zip has an entry per format with the same output as writing the
+   * format on its own.
+   */
+  public void testPrepare_zip() throws Exception {
+    Track track = insertTrack(SMALL_TRACK_POINTS);
+    byte[][] expected = writeEachFormat(track);
+    assertZip(track, expected, writeZip(track));
+  }
+
+  /**
+   * Tests formats too big to buffer in memory go through a temporary file, and
+   * the file is deleted once the zip is written.
+   */
+  @LargeTest
+  public void testPrepare_zipTemporaryFiles() throws Exception {
+    Track track = insertTrack(LARGE_TRACK_POINTS);
+    assertTrue(TrackFileFormat.KML.getExpectedSize(LARGE_TRACK_POINTS)
+        > FanOutTrackFormatWriter.MAX_MEMORY_BUFFER_SIZE);
+    byte[][] expected = writeEachFormat(track);
+    int tempFiles = context.getCacheDir().list().length;
+
+    assertZip(track, expected, writeZip(track));
+    assertEquals(tempFiles, context.getCacheDir().list().length);
+  }
+
+  /**
+   * Compares writing a large track in every format in one pass against a pass
+   * per format.
+   */
+  @LargeTest
+  public void testThroughput() throws Exception {
+    Track track = insertTrack(LARGE_TRACK_POINTS);
+
+    long start = System.nanoTime();
+    writeEachFormat(track);
+    long perFormat = System.nanoTime() - start;
+
+    start = System.nanoTime();
+    FanOutTrackFormatWriter writer = new FanOutTrackFormatWriter(
+        context, context.getCacheDir(), FORMATS);
+    writer.prepare(track, newStreams());
+    new TrackWriterImpl(context, providerUtils, track, writer).writeDocument();
+    long fanOut = System.nanoTime() - start;
+
+    start = System.nanoTime();
+    writeZip(track);
+    long zip = System.nanoTime() - start;
+
+    Log.i(TAG, String.format(Locale.US, "%d points in %d formats: "
+        + "a pass per format %dms (%.0f points/s), one pass %dms (%.0f points/s), "
+        + "one pass to zip %dms (%.0f points/s)",
+        LARGE_TRACK_POINTS, FORMATS.length,
+        perFormat / 1000000, LARGE_TRACK_POINTS * 1E9 / perFormat,
+        fanOut / 1000000, LARGE_TRACK_POINTS * 1E9 / fanOut,
+        zip / 1000000, LARGE_TRACK_POINTS * 1E9 / zip));
+    assertTrue(fanOut < perFormat);
+  }
+
+  private Track insertTrack(int numberOfPoints) {
+    Track track = new Track();
+    track.setName("FanOut");
+    Uri uri = providerUtils.insertTrack(track);
+    track.setId(Long.parseLong(uri.getLastPathSegment()));
+
+    Location[] locations = new Location[INSERT_BATCH_SIZE];
+    for (int i = 0; i < numberOfPoints; i += INSERT_BATCH_SIZE) {
+      int count = Math.min(INSERT_BATCH_SIZE, numberOfPoints - i);
+      for (int j = 0; j < count; j++) {
+        locations[j] = createLocation(i + j);
+      }
+      providerUtils.bulkInsertTrackPoint(locations, count, track.getId());
+    }
+    track.setStartId(providerUtils.getFirstTrackPointId(track.getId()));
+    track.setStopId(providerUtils.getLastTrackPointId(track.getId()));
+    track.setNumberOfPoints(numberOfPoints);
+    providerUtils.updateTrack(track);
+    return track;
+  }
+
+  /**
+   * Writes the track in each format on its own, a pass per format.
+   */
+  private byte[][] writeEachFormat(Track track) throws InterruptedException {
+    byte[][] output = new byte[FORMATS.length][];
+    for (int i = 0; i < FORMATS.length; i++) {
+      ByteArrayOutputStream stream = new ByteArrayOutputStream();
+      TrackFormatWriter writer = FORMATS[i].newFormatWriter(context);
+      writer.prepare(track, stream);
+      new TrackWriterImpl(context, providerUtils, track, writer).writeDocument();
+      output[i] = stream.toByteArray();
+    }
+    return output;
+  }
+
+  private byte[] writeZip(Track track) throws InterruptedException {
+    ByteArrayOutputStream stream = new ByteArrayOutputStream();
+    TrackFormatWriter writer = TrackFileFormat.ZIP.newFormatWriter(context);
+    assertEquals("zip", writer.getExtension());
+    writer.prepare(track, stream);
+    new TrackWriterImpl(context, providerUtils, track, writer).writeDocument();
+    return stream.toByteArray();
+  }
+
+  private static void assertZip(Track track, byte[][] expected, byte[] zip) throws IOException {
+    ZipInputStream zipInputStream = new ZipInputStream(new ByteArrayInputStream(zip));
+    try {
+      for (int i = 0; i < FORMATS.length; i++) {
+        ZipEntry entry = zipInputStream.getNextEntry();
+        assertNotNull(entry);
+        assertEquals(track.getName() + "." + FORMATS[i].getExtension(), entry.getName());
+        ByteArrayOutputStream entryOutput = new ByteArrayOutputStream();
+        copy(zipInputStream, entryOutput);
+        assertTrue(FORMATS[i].name(), Arrays.equals(expected[i], entryOutput.toByteArray()));
+      }
+      assertNull(zipInputStream.getNextEntry());
+    } finally {
+      zipInputStream.close();
+    }
+  }
+
+  private static void copy(ZipInputStream inputStream, OutputStream outputStream)
+      throws IOException {
+    byte[] buffer = new byte[8192];
+    int read;
+    while ((read = inputStream.read(buffer)) != -1) {
+      outputStream.write(buffer, 0, read);
+    }
+  }
+
+  private static ByteArrayOutputStream[] newStreams() {
+    ByteArrayOutputStream[] streams = new ByteArrayOutputStream[FORMATS.length];
+    for (int i = 0; i < streams.length; i++) {
+      streams[i] = new ByteArrayOutputStream();
+    }
+    return streams;
+  }
+
+  private static Location createLocation(int i) {
+    Location location = new Location("gps");
+    location.setLatitude(45.0 + i / 1E5);
+    location.setLongitude(35.0 + i / 1E5);
+    location.setAltitude(100 + i % 50);
+    location.setAccuracy(5);
+    location.setSpeed(10);
+    location.setBearing(i % 360);
+    location.setTime(1000000000000L + i * 1000L);
+    return location;
+  }
+}
@@ -0,0 +1,303 @@
+/*
+*    Copyright (c) 2013, Will Szumski
+*    Copyright (c) 2013, Doug Szumski
+*
+*    This file is part of Cyclismo.
+*
+*    Cyclismo is free software: you can redistribute it and/or modify
+*    it under the terms of the GNU General Public License as published by
+*    the Free Software Foundation, either version 3 of the License, or
+*    (at your option) any later version.
+*
+*    Cyclismo is distributed in the hope that it will be useful,
+*    but WITHOUT ANY WARRANTY; without even the implied warranty of
+*    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*    GNU General Public License for more details.
+*
+*    You should have received a copy of the GNU General Public License
+*    along with Cyclismo.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package org.cowboycoders.cyclismo.services;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.location.Location;
+import android.net.Uri;
+import android.test.AndroidTestCase;
+import android.test.RenamingDelegatingContext;
+import android.test.mock.MockContentResolver;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import org.cowboycoders.cyclismo.content.MyTracksProvider;
+import org.cowboycoders.cyclismo.content.MyTracksProviderUtils;
+import org.cowboycoders.cyclismo.content.MyTracksProviderUtilsImpl;
+import org.cowboycoders.cyclismo.content.Track;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+
+/**
+ * Tests for {@link TrackPointWriter} and {@link TrackPointJournal}.
+ */
+public class TrackPointWriterTest extends AndroidTestCase {
+
+  private static final String TAG = TrackPointWriterTest.class.getSimpleName();
+  private static final int BATCH_SIZE = 10;
+  private static final long BATCH_DELAY = 5000;
+
+  private MyTracksProviderUtils providerUtils;
+  private File journalFile;
+  private long trackId;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    MockContentResolver mockContentResolver = new MockContentResolver();
+    Context context = new RenamingDelegatingContext(getContext(), getContext(), "test.");
+    MyTracksProvider myTracksProvider = new MyTracksProvider();
+    myTracksProvider.attachInfo(context, null);
+    mockContentResolver.addProvider(MyTracksProviderUtils.AUTHORITY, myTracksProvider);
+    providerUtils = new MyTracksProviderUtilsImpl(mockContentResolver);
+    providerUtils.deleteAllTracks();
+
+    journalFile = new File(context.getCacheDir(), "trackpointwritertest.journal");
+    journalFile.delete();
+
+    Uri uri = providerUtils.insertTrack(new Track());
+    trackId = Long.parseLong(uri.getLastPathSegment());
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    providerUtils.deleteAllTracks();
+    journalFile.delete();
+    super.tearDown();
+  }
+
+  /**
+   * Tests points are committed once a batch is full, and staged until then.
+   */
+  public void testAdd_batchSize() {
+    TrackPointWriter writer = newWriter();
+    for (int i = 0; i < BATCH_SIZE - 1; i++) {
+      assertFalse(writer.add(trackId, createLocation(i)));
+    }
+    assertEquals(0, countTrackPoints());
+    assertEquals(BATCH_SIZE - 1, writer.getStagedCount());
+    assertEquals(createLocation(BATCH_SIZE - 2).getTime(),
+        writer.getLastValidTrackPoint(trackId).getTime());
+
+    assertTrue(writer.add(trackId, createLocation(BATCH_SIZE - 1)));
+    assertEquals(BATCH_SIZE, writer.flush());
+    assertEquals(BATCH_SIZE, countTrackPoints());
+    assertEquals(0, writer.getStagedCount());
+    assertNull(writer.getLastValidTrackPoint(trackId));
+    assertEquals(-1L, writer.getStagedTrackId());
+    writer.close();
+  }
+
+  /**
+   * Tests a flush is due once the oldest point has been staged long enough.
+   */
+  public void testIsFlushDue() {
+    TrackPointWriter writer = newWriter();
+    assertFalse(writer.isFlushDue(System.currentTimeMillis() + BATCH_DELAY));
+    writer.add(trackId, createLocation(0));
+    assertFalse(writer.isFlushDue(System.currentTimeMillis()));
+    assertTrue(writer.isFlushDue(System.currentTimeMillis() + BATCH_DELAY));
+    writer.close();
+    assertEquals(1, countTrackPoints());
+  }
+
+  /**
+   * Tests invalid points, e.g. pause markers, are committed but not counted.
+   */
+  public void testFlush_invalidLocation() {
+    TrackPointWriter writer = newWriter();
+    writer.add(trackId, createLocation(0));
+    Location pause = createLocation(1);
+    pause.setLatitude(TrackRecordingService.PAUSE_LATITUDE);
+    writer.add(trackId, pause);
+    assertEquals(createLocation(0).getTime(), writer.getLastValidTrackPoint(trackId).getTime());
+    assertEquals(1, writer.flush());
+    assertEquals(2, countTrackPoints());
+    writer.close();
+  }
+
+  /**
+   * Simulates the process being killed with points staged, then checks they're
+   * all recovered by the next writer.
+   */
+  public void testRecover_killed() {
+    TrackPointWriter writer = newWriter();
+    int total = 3 * BATCH_SIZE + BATCH_SIZE / 2;
+    for (int i = 0; i < total; i++) {
+      if (writer.add(trackId, createLocation(i))) {
+        writer.flush();
+      }
+    }
+    // Killed, the writer is never flushed or closed
+    assertEquals(total - BATCH_SIZE / 2, countTrackPoints());
+
+    TrackPointWriter restarted = newWriter();
+    assertEquals(BATCH_SIZE / 2, restarted.recover());
+    assertTrackPoints(total);
+    // Nothing left to recover
+    assertEquals(0, newWriter().recover());
+    restarted.close();
+  }
+
+  /**
+   * Simulates the process being killed after a batch was committed but before
+   * the journal was cleared. The batch mustn't be written twice.
+   */
+  public void testRecover_committedBatch() throws Exception {
+    TrackPointJournal journal = new TrackPointJournal(journalFile);
+    Location[] locations = new Location[BATCH_SIZE];
+    for (int i = 0; i < BATCH_SIZE; i++) {
+      locations[i] = createLocation(i);
+      journal.append(trackId, locations[i]);
+    }
+    providerUtils.bulkInsertTrackPoint(locations, locations.length, trackId);
+    journal.close();
+
+    assertEquals(0, newWriter().recover());
+    assertTrackPoints(BATCH_SIZE);
+  }
+
+  /**
+   * Simulates the process being killed part way through appending a point.
+   * The torn record is dropped, the rest are recovered.
+   */
+  public void testRecover_tornRecord() throws Exception {
+    TrackPointWriter writer = newWriter();
+    for (int i = 0; i < BATCH_SIZE / 2; i++) {
+      writer.add(trackId, createLocation(i));
+    }
+    RandomAccessFile file = new RandomAccessFile(journalFile, "rw");
+    try {
+      file.setLength(file.length() - 3);
+    } finally {
+      file.close();
+    }
+
+    assertEquals(BATCH_SIZE / 2 - 1, newWriter().recover());
+    assertTrackPoints(BATCH_SIZE / 2 - 1);
+  }
+
+  /**
+   * Tests the point count and the start and stop ids of every recovered track
+   * are updated, not only those of the recording track.
+   */
+  public void testRecover_updatesTracks() throws Exception {
+    Uri uri = providerUtils.insertTrack(new Track());
+    long otherTrackId = Long.parseLong(uri.getLastPathSegment());
+    TrackPointJournal journal = new TrackPointJournal(journalFile);
+    for (int i = 0; i < BATCH_SIZE / 2; i++) {
+      journal.append(otherTrackId, createLocation(i));
+    }
+    for (int i = 0; i < BATCH_SIZE; i++) {
+      journal.append(trackId, createLocation(i));
+    }
+    journal.close();
+
+    assertEquals(BATCH_SIZE + BATCH_SIZE / 2, newWriter().recover());
+    assertTrack(otherTrackId, BATCH_SIZE / 2);
+    assertTrack(trackId, BATCH_SIZE);
+  }
+
+  /**
+   * Tests points journalled for a deleted track are dropped.
+   */
+  public void testRecover_deletedTrack() {
+    TrackPointWriter writer = newWriter();
+    writer.add(trackId, createLocation(0));
+    providerUtils.deleteTrack(trackId);
+    assertEquals(0, newWriter().recover());
+    assertEquals(0, countTrackPoints());
+  }
+
+  /**
+   * Compares the insert rate of batched inserts with one transaction per point.
+   */
+  @LargeTest
+  public void testInsertRate() {
+    int points = 2000;
+    long start = System.nanoTime();
+    for (int i = 0; i < points; i++) {
+      providerUtils.insertTrackPoint(createLocation(i), trackId);
+    }
+    double single = points * 1E9 / (System.nanoTime() - start);
+
+    TrackPointWriter writer = newWriter();
+    start = System.nanoTime();
+    for (int i = points; i < 2 * points; i++) {
+      if (writer.add(trackId, createLocation(i))) {
+        writer.flush();
+      }
+    }
+    writer.close();
+    double batched = points * 1E9 / (System.nanoTime() - start);
+
+    Log.i(TAG, String.format("Inserts/s: single %.0f, batched (journalled) %.0f", single, batched));
+    assertTrackPoints(2 * points);
+    assertTrue(batched > single);
+  }
+
+  private TrackPointWriter newWriter() {
+    return new TrackPointWriter(providerUtils, new TrackPointJournal(journalFile), BATCH_SIZE,
+        BATCH_DELAY);
+  }
+
+  private static Location createLocation(int i) {
+    Location location = new Location("gps");
+    location.setLatitude(45.0 + i / 1E4);
+    location.setLongitude(35.0 + i / 1E4);
+    location.setAltitude(100);
+    location.setAccuracy(5);
+    location.setSpeed(10);
+    location.setTime(1000000000000L + i * 1000L);
+    return location;
+  }
+
+  private int countTrackPoints() {
+    Cursor cursor = providerUtils.getTrackPointCursor(trackId, -1L, Integer.MAX_VALUE, false);
+    try {
+      return cursor.getCount();
+    } finally {
+      cursor.close();
+    }
+  }
+
+  /**
+   * Asserts the track has exactly the first n points, in order, without gaps or
+   * duplicates.
+   */
+  private void assertTrackPoints(int n) {
+    Cursor cursor = providerUtils.getTrackPointCursor(trackId, -1L, Integer.MAX_VALUE, false);
+    try {
+      assertEquals(n, cursor.getCount());
+      int i = 0;
+      while (cursor.moveToNext()) {
+        Location location = providerUtils.createTrackPoint(cursor);
+        assertEquals(createLocation(i).getTime(), location.getTime());
+        assertEquals(createLocation(i).getLatitude(), location.getLatitude(), 1E-6);
+        i++;
+      }
+    } finally {
+      cursor.close();
+    }
+  }
+
+  /**
+   * Asserts the track row counts n valid points and starts and stops at its
+   * first and last points.
+   */
+  private void assertTrack(long id, int n) {
+    Track track = providerUtils.getTrack(id);
+    assertEquals(n, track.getNumberOfPoints());
+    assertEquals(providerUtils.getFirstTrackPointId(id), track.getStartId());
+    assertEquals(providerUtils.getLastTrackPointId(id), track.getStopId());
+  }
+}
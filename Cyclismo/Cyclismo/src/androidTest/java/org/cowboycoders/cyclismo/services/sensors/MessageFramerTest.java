@@ -0,0 +1,161 @@
+/*
+*    Copyright (c) 2013, Will Szumski
+*    Copyright (c) 2013, Doug Szumski
+*
+*    This file is part of Cyclismo.
+*
+*    Cyclismo is free software: you can redistribute it and/or modify
+*    it under the terms of the GNU General Public License as published by
+*    the Free Software Foundation, either version 3 of the License, or
+*    (at your option) any later version.
+*
+*    Cyclismo is distributed in the hope that it will be useful,
+*    but WITHOUT ANY WARRANTY; without even the implied warranty of
+*    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*    GNU General Public License for more details.
+*
+*    You should have received a copy of the GNU General Public License
+*    along with Cyclismo.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package org.cowboycoders.cyclismo.services.sensors;
+
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Tests for {@link MessageFramer}, replaying recorded and fuzzed byte streams.
+ */
+public class MessageFramerTest extends TestCase {
+
+  private static final String TAG = MessageFramerTest.class.getSimpleName();
+  private static final int NUMBER_OF_PACKETS = 1000;
+  private static final int FUZZED_BYTES = 100000;
+  private static final int BENCHMARK_PACKETS = 50000;
+
+  // Polar packets of 8 and 10 bytes
+  private static final byte[] POLAR_PACKETS = {(byte) 0xFE, 0x08, (byte) 0xF7, 0x06,
+      (byte) 0xF1, 0x48, 0x03, 0x64, (byte) 0xFE, 0x0A, (byte) 0xF5, 0x07, (byte) 0xF1, 0x49,
+      0x03, 0x64, 0x03, 0x70};
+
+  private final Random random = new Random(42);
+
+  /**
+   * Tests Zephyr packets split across reads at random, with garbage between
+   * some of them.
+   */
+  public void testRead_zephyr() throws IOException {
+    ByteArrayOutputStream stream = new ByteArrayOutputStream();
+    int garbage = 0;
+    for (int i = 0; i < NUMBER_OF_PACKETS; i++) {
+      if (i % 10 == 0) {
+        // Part of a packet, as if some bytes were lost
+        int length = 1 + random.nextInt(ZephyrMessageParserTest.VALID_PACKET.length - 1);
+        stream.write(ZephyrMessageParserTest.VALID_PACKET, 0, length);
+        garbage += length;
+      }
+      stream.write(ZephyrMessageParserTest.VALID_PACKET);
+    }
+
+    MessageFramer framer = replay(new ZephyrMessageParser(), stream.toByteArray());
+    assertEquals(NUMBER_OF_PACKETS, framer.getNumFrames());
+    assertEquals(garbage, framer.getNumDroppedBytes());
+  }
+
+  /**
+   * Tests Polar packets of varying length split across reads at random.
+   */
+  public void testRead_polar() throws IOException {
+    ByteArrayOutputStream stream = new ByteArrayOutputStream();
+    for (int i = 0; i < NUMBER_OF_PACKETS; i++) {
+      stream.write(POLAR_PACKETS);
+      stream.write(random.nextInt(0x80));
+    }
+
+    SensorFrame sensorFrame = new SensorFrame();
+    MessageFramer framer = replay(new PolarMessageParser(), sensorFrame, stream.toByteArray());
+    assertEquals(2 * NUMBER_OF_PACKETS, framer.getNumFrames());
+    assertEquals(NUMBER_OF_PACKETS, framer.getNumDroppedBytes());
+    assertEquals(0x49 * 1.0f, sensorFrame.getSensorDataSet().getHeartRate().getValue());
+  }
+
+  /**
+   * Tests random bytes are dropped, without ever holding more than a frame.
+   */
+  public void testRead_fuzzed() throws IOException {
+    byte[] bytes = new byte[FUZZED_BYTES];
+    random.nextBytes(bytes);
+    MessageParser[] parsers = { new ZephyrMessageParser(), new PolarMessageParser() };
+    for (MessageParser parser : parsers) {
+      MessageFramer framer = replay(parser, bytes);
+      assertTrue(framer.getNumDroppedBytes() > FUZZED_BYTES - parser.getFrameSize()
+          * (framer.getNumFrames() + 1));
+    }
+  }
+
+  /**
+   * Measures the bytes framed and parsed a second.
+   */
+  @LargeTest
+  public void testRead_benchmark() throws IOException {
+    byte[] bytes = new byte[BENCHMARK_PACKETS * ZephyrMessageParserTest.VALID_PACKET.length];
+    for (int i = 0; i < BENCHMARK_PACKETS; i++) {
+      System.arraycopy(ZephyrMessageParserTest.VALID_PACKET, 0, bytes,
+          i * ZephyrMessageParserTest.VALID_PACKET.length,
+          ZephyrMessageParserTest.VALID_PACKET.length);
+    }
+
+    long start = System.nanoTime();
+    MessageFramer framer = replay(new ZephyrMessageParser(), bytes);
+    long elapsed = System.nanoTime() - start;
+
+    Log.i(TAG, String.format(Locale.US, "%d bytes in %dms: %.0f bytes/s", bytes.length,
+        elapsed / 1000000, bytes.length * 1E9 / elapsed));
+    assertEquals(BENCHMARK_PACKETS, framer.getNumFrames());
+  }
+
+  private MessageFramer replay(MessageParser parser, byte[] bytes) throws IOException {
+    return replay(parser, new SensorFrame(), bytes);
+  }
+
+  /**
+   * Reads bytes into a new framer until the end of the stream.
+   *
+   * @param parser the message parser
+   * @param sensorFrame the sensor frame to parse into
+   * @param bytes the bytes
+   */
+  private MessageFramer replay(MessageParser parser, SensorFrame sensorFrame, byte[] bytes)
+      throws IOException {
+    MessageFramer framer = new MessageFramer(parser, sensorFrame);
+    InputStream inputStream = new ChunkedInputStream(bytes);
+    while (framer.read(inputStream)) {
+      // Each message is parsed as it is read
+    }
+    return framer;
+  }
+
+  /**
+   * An input stream returning at most a random number of bytes per read, as
+   * a bluetooth socket does.
+   */
+  private class ChunkedInputStream extends ByteArrayInputStream {
+
+    public ChunkedInputStream(byte[] bytes) {
+      super(bytes);
+    }
+
+    @Override
+    public synchronized int read(byte[] buffer, int offset, int length) {
+      return super.read(buffer, offset, Math.min(length, 1 + random.nextInt(32)));
+    }
+  }
+}
@@ -68,7 +68,7 @@ public class PolarMessageParserTest extends TestCase {
     assertEquals(70.0f, sds.getHeartRate().getValue());
   }
 
-  public void testFindNextAlignment_offset() {
+  public void testCheckFrame_offset() {
     // The first 4 bytes are garbage
     buf = new byte[originalBuf.length + 4];
     buf[0] = 4;
@@ -76,13 +76,29 @@ public class PolarMessageParserTest extends TestCase {
     buf[2] = 4;
     buf[3] = 2;
 
-    // Then the valid message.
+    // Then the valid messages.
     System.arraycopy(originalBuf, 0, buf, 4, originalBuf.length);
-    assertEquals(4, parser.findNextAlignment(buf));
+    SensorFrame sensorFrame = new SensorFrame();
+    MessageFramer framer = new MessageFramer(parser, sensorFrame);
+    for (byte b : buf) {
+      framer.push(b);
+    }
+    assertEquals(2, framer.getNumFrames());
+    assertEquals(4, framer.getNumDroppedBytes());
+    assertEquals(0.0f, sensorFrame.getSensorDataSet().getHeartRate().getValue());
   }
 
-  public void testFindNextAlignment_invalid() {
+  public void testCheckFrame_invalid() {
     buf[0] = 0;
-    assertEquals(-1, parser.findNextAlignment(buf));
+    buf[13] = 70;
+    SensorFrame sensorFrame = new SensorFrame();
+    MessageFramer framer = new MessageFramer(parser, sensorFrame);
+    for (byte b : buf) {
+      framer.push(b);
+    }
+    // Only the second message is valid
+    assertEquals(1, framer.getNumFrames());
+    assertEquals(8, framer.getNumDroppedBytes());
+    assertEquals(70.0f, sensorFrame.getSensorDataSet().getHeartRate().getValue());
   }
 }
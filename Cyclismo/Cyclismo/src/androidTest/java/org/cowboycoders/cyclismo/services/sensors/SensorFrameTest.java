@@ -0,0 +1,170 @@
+/*
+*    Copyright (c) 2013, Will Szumski
+*    Copyright (c) 2013, Doug Szumski
+*
+*    This file is part of Cyclismo.
+*
+*    Cyclismo is free software: you can redistribute it and/or modify
+*    it under the terms of the GNU General Public License as published by
+*    the Free Software Foundation, either version 3 of the License, or
+*    (at your option) any later version.
+*
+*    Cyclismo is distributed in the hope that it will be useful,
+*    but WITHOUT ANY WARRANTY; without even the implied warranty of
+*    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*    GNU General Public License for more details.
+*
+*    You should have received a copy of the GNU General Public License
+*    along with Cyclismo.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package org.cowboycoders.cyclismo.services.sensors;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.Debug;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.util.Log;
+
+import org.cowboycoders.cyclismo.content.Sensor.SensorData;
+import org.cowboycoders.cyclismo.content.Sensor.SensorDataSet;
+import org.cowboycoders.cyclismo.content.Sensor.SensorState;
+import org.cowboycoders.cyclismo.services.sensors.SensorFrame.Field;
+
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests for {@link SensorFrame}.
+ */
+public class SensorFrameTest extends AndroidTestCase {
+
+  private static final String TAG = SensorFrameTest.class.getSimpleName();
+  private static final String ACTION = "org.cowboycoders.cyclismo.test.SENSOR_DATA";
+  private static final String EXTRA_VALUE = "value";
+  // Ten minutes of readings, each field reported four times a second
+  private static final int SECONDS = 10 * 60;
+  private static final int READINGS_PER_SECOND = 4;
+  private static final long TIMEOUT_MS = 60 * 1000;
+
+  @SmallTest
+  public void testGetSensorDataSet() {
+    SensorFrame sensorFrame = new SensorFrame();
+    assertNull(sensorFrame.getSensorDataSet());
+
+    sensorFrame.update(Field.POWER, 250.0);
+    sensorFrame.update(Field.CADENCE, 90.0);
+    SensorDataSet sensorDataSet = sensorFrame.getSensorDataSet();
+    assertEquals(250f, sensorDataSet.getPower().getValue());
+    assertEquals(SensorState.SENDING, sensorDataSet.getPower().getState());
+    assertEquals(90f, sensorDataSet.getCadence().getValue());
+    assertFalse(sensorDataSet.hasHeartRate());
+    assertTrue(sensorDataSet.getCreationTime() > 0);
+
+    // Only built again after a change
+    assertSame(sensorDataSet, sensorFrame.getSensorDataSet());
+    sensorFrame.update(Field.POWER, 260.0);
+    SensorDataSet updated = sensorFrame.getSensorDataSet();
+    assertNotSame(sensorDataSet, updated);
+    assertEquals(260f, updated.getPower().getValue());
+
+    sensorFrame.clear();
+    assertNull(sensorFrame.getSensorDataSet());
+  }
+
+  @SmallTest
+  public void testShouldBroadcast() {
+    SensorFrame sensorFrame = new SensorFrame();
+    long now = 1000000000000L;
+    assertTrue(sensorFrame.shouldBroadcast(Field.SPEED, now));
+    assertFalse(sensorFrame.shouldBroadcast(Field.SPEED, now + 250));
+    assertTrue(sensorFrame.shouldBroadcast(Field.POWER, now + 250));
+    assertTrue(sensorFrame.shouldBroadcast(
+        Field.SPEED, now + SensorFrame.BROADCAST_INTERVAL_MS));
+  }
+
+  /**
+   * Measures the allocations and time taken to pass ten minutes of readings
+   * to the recording through the frame, against broadcasting every reading
+   * to a receiver rebuilding the sensor data set, as the turbo sensor
+   * manager did.
+   */
+  @LargeTest
+  public void testFrameAgainstBroadcasts() throws Exception {
+    int numReadings = SECONDS * READINGS_PER_SECOND * Field.values().length;
+
+    SensorFrame sensorFrame = new SensorFrame();
+    Debug.startAllocCounting();
+    long start = System.nanoTime();
+    int numSets = 0;
+    for (int second = 0; second < SECONDS; second++) {
+      for (int i = 0; i < READINGS_PER_SECOND; i++) {
+        for (Field field : Field.values()) {
+          sensorFrame.update(field, second + i);
+        }
+      }
+      if (sensorFrame.getSensorDataSet() != null) {
+        numSets++;
+      }
+    }
+    long frameNanos = System.nanoTime() - start;
+    Debug.stopAllocCounting();
+    int frameAllocations = Debug.getGlobalAllocCount();
+    Debug.resetAllocCount();
+    assertEquals(SECONDS, numSets);
+
+    HandlerThread handlerThread = new HandlerThread(TAG);
+    handlerThread.start();
+    final CountDownLatch latch = new CountDownLatch(numReadings);
+    BroadcastReceiver receiver = new BroadcastReceiver() {
+      private SensorDataSet sensorDataSet = SensorDataSet.getDefaultInstance();
+
+        @Override
+      public void onReceive(Context context, Intent intent) {
+        SensorData sensorData = SensorData.newBuilder()
+            .setValue((float) intent.getDoubleExtra(EXTRA_VALUE, 0))
+            .setState(SensorState.SENDING)
+            .build();
+        sensorDataSet = sensorDataSet.toBuilder()
+            .setPower(sensorData)
+            .setCreationTime(System.currentTimeMillis())
+            .build();
+        latch.countDown();
+      }
+    };
+    getContext().registerReceiver(
+        receiver, new IntentFilter(ACTION), null, new Handler(handlerThread.getLooper()));
+    long broadcastNanos;
+    int broadcastAllocations;
+    try {
+      Debug.startAllocCounting();
+      start = System.nanoTime();
+      for (int i = 0; i < numReadings; i++) {
+        Intent intent = new Intent(ACTION);
+        intent.putExtra(EXTRA_VALUE, (double) i);
+        getContext().sendBroadcast(intent);
+      }
+      assertTrue(latch.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+      broadcastNanos = System.nanoTime() - start;
+      Debug.stopAllocCounting();
+      broadcastAllocations = Debug.getGlobalAllocCount();
+      Debug.resetAllocCount();
+    } finally {
+      getContext().unregisterReceiver(receiver);
+      handlerThread.quit();
+    }
+
+    Log.i(TAG, String.format(Locale.US, "%d readings: frame %.3fms, %.2f allocations per "
+        + "reading; broadcasts %.3fms, %.2f allocations per reading", numReadings,
+        frameNanos / 1E6, (double) frameAllocations / numReadings, broadcastNanos / 1E6,
+        (double) broadcastAllocations / numReadings));
+    assertTrue(frameAllocations < broadcastAllocations);
+    assertTrue(frameNanos < broadcastNanos);
+  }
+}
@@ -25,15 +25,18 @@ import org.cowboycoders.cyclismo.content.Sensor;
 
 public class ZephyrMessageParserTest extends TestCase {
 
+  // A complete and valid Zephyr HxM packet
+  static final byte[] VALID_PACKET = {2, 38, 55, 26, 0, 49, 101, 80, 0, 49, 98, 100, 42, 113,
+      120, -53, -24, -60, -123, -61, 117, -69, 42, -75, 74, -78, 51, -79, 27, -83, 28, -88, 28, -93,
+      29, -98, 25, -103, 26, -108, 26, -113, 59, -118, 0, 0, 0, 0, 0, 0, -22, 3, 125, 1, 48, 0, 96,
+      4, 30, 3};
+
   ZephyrMessageParser parser = new ZephyrMessageParser();
 
   public void testIsValid() {
     byte[] smallBuf = new byte[59];
     assertFalse(parser.isValid(smallBuf));
-    // A complete and valid Zephyr HxM packet
-    byte[] buf = {2, 38, 55, 26, 0, 49, 101, 80, 0, 49, 98, 100, 42, 113, 120, -53, -24, -60,
-        -123, -61, 117, -69, 42, -75, 74, -78, 51, -79, 27, -83, 28, -88, 28, -93, 29, -98, 25,
-        -103, 26, -108, 26, -113, 59, -118, 0, 0, 0, 0, 0, 0, -22, 3, 125, 1, 48, 0, 96, 4, 30, 0};
+    byte[] buf = VALID_PACKET.clone();
     // Make buffer invalid
     buf[0] = buf[58] = buf[59] = 0;
     assertFalse(parser.isValid(buf));
@@ -66,11 +69,27 @@ public class ZephyrMessageParserTest extends TestCase {
     assertEquals(255.0f, sds.getCadence().getValue());
   }
 
-  public void testFindNextAlignment() {
-    byte[] buf = new byte[60];
-    assertEquals(-1, parser.findNextAlignment(buf));
-    buf[10] = 0x03;
-    buf[11] = 0x02;
-    assertEquals(10, parser.findNextAlignment(buf));
+  public void testCheckFrame() {
+    byte[] buf = new byte[70];
+    SensorFrame sensorFrame = new SensorFrame();
+    MessageFramer framer = new MessageFramer(parser, sensorFrame);
+    for (byte b : buf) {
+      framer.push(b);
+    }
+    assertEquals(0, framer.getNumFrames());
+    assertEquals(buf.length, framer.getNumDroppedBytes());
+
+    // A valid message after 10 bytes of garbage
+    System.arraycopy(VALID_PACKET, 0, buf, 10, VALID_PACKET.length);
+    for (byte b : buf) {
+      framer.push(b);
+    }
+    assertEquals(1, framer.getNumFrames());
+    assertEquals(buf.length + 10, framer.getNumDroppedBytes());
+    Sensor.SensorDataSet sds = sensorFrame.getSensorDataSet();
+    assertEquals(42.0f, sds.getHeartRate().getValue());
+    assertEquals(100.0f, sds.getBatteryLevel().getValue());
+    // The firmware has the cadence bug, and one stride reading isn't enough
+    assertFalse(sds.hasCadence());
   }
 }
@@ -0,0 +1,175 @@
+/*
+*    Copyright (c) 2013, Will Szumski
+*    Copyright (c) 2013, Doug Szumski
+*
+*    This file is part of Cyclismo.
+*
+*    Cyclismo is free software: you can redistribute it and/or modify
+*    it under the terms of the GNU General Public License as published by
+*    the Free Software Foundation, either version 3 of the License, or
+*    (at your option) any later version.
+*
+*    Cyclismo is distributed in the hope that it will be useful,
+*    but WITHOUT ANY WARRANTY; without even the implied warranty of
+*    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*    GNU General Public License for more details.
+*
+*    You should have received a copy of the GNU General Public License
+*    along with Cyclismo.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package org.cowboycoders.cyclismo.services.sensors.ant;
+
+import android.os.Debug;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Tests for {@link CadenceCounter}. The expected values were recorded from
+ * the list based counter it replaced, fed the same simulated sensor.
+ */
+public class CadenceCounterTest extends TestCase {
+
+  private static final String TAG = CadenceCounterTest.class.getSimpleName();
+  private static final long START_TIME = 1000000000000L;
+  // ANT+ bike sensors send about four messages a second
+  private static final int MESSAGE_PERIOD_MS = 250;
+  private static final int BENCHMARK_SENSORS = 4;
+  private static final int BENCHMARK_MESSAGES = 250000;
+
+  private static final int[] STEADY = {
+      0, 0, 0, 0, 0, 89, 89, 90, 90, 90, 89, 89, 89, 89, 89, 90, 90, 90, 89, 89, 89, 89, 89,
+      90, 90, 90, 89, 89, 89, 89, 89, 90, 90, 90, 89, 89, 89, 89, 89, 90, 90, 90, 89, 89, 89,
+      89, 89, 90, 90, 90, 89, 89, 89, 89, 89, 90, 90, 90, 89, 89 };
+
+  private static final int[] STOPPED = {
+      0, 0, 0, 0, 0, 89, 89, 90, 90, 90, 89, 89, 89, 89, 89, 90, 90, 90, 89, 89, 89, 75, 72,
+      65, 62, 59, 51, 48, 40, 37, 36, 26, 24, 23, 12, 12, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0,
+      0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0 };
+
+  private static final int[] RAMP = {
+      0, 0, 0, 0, 0, 0, 0, 67, 67, 67, 72, 72, 72, 77, 77, 77, 82, 82, 82, 86, 86, 86, 90, 90,
+      94, 94, 94, 97, 97, 101, 101, 104, 104, 104, 108, 108, 111, 111, 115, 115, 117, 117,
+      119, 119, 115, 115, 112, 112, 109, 109, 106, 106, 106, 102, 102, 99, 99, 99, 95, 95, 91,
+      91, 91, 87, 87, 87, 83, 83, 83, 78, 78, 78, 74, 74, 74, 74, 69, 69, 69, 63 };
+
+  private static final int[] FULL_HISTORY = {
+      0, 0, 3072, 2925, 3072, 2925, 3072, 2925, 3072, 2925, 3072, 2925, 3072, 2925, 3072,
+      2925, 3072, 2925, 3072, 2925, 3072, 2925, 3072, 2925, 3072, 2925, 3072, 3072, 2925,
+      3072, 2925, 3072, 2925, 3072, 2925, 3072, 2925, 3072, 2925, 3072, 2925, 3072, 2925,
+      3072, 2925, 3072, 2925, 3072, 2925, 3072, 2925, 3072, 3072, 2925, 3072, 2925, 3072,
+      2925, 3072, 2925, 3072, 2925, 3072, 2925, 3072, 2925, 3072, 2925, 3072, 2925, 3072,
+      2925, 3072, 2925, 3072, 2925, 3072, 3072, 2925, 3072, 2925, 3072, 2925, 3072, 2925,
+      3072, 2925, 3072, 2925, 3072, 2925, 3072, 2925, 3072, 2925, 3072, 2925, 3072, 2925,
+      3072, 2925, 3072, 3072, 2925, 3072, 2925, 3072, 2925, 3072, 2925 };
+
+  /**
+   * Tests a steady 90 rpm, with the count and event time rolling over.
+   */
+  public void testSteady() {
+    int[] cadences = new int[STEADY.length];
+    Arrays.fill(cadences, 90);
+    assertSimulation(STEADY, cadences, MESSAGE_PERIOD_MS, 65530, 65000);
+  }
+
+  /**
+   * Tests the cadence decays to 0 once the rider stops pedalling.
+   */
+  public void testStopped() {
+    int[] cadences = new int[STOPPED.length];
+    Arrays.fill(cadences, 0, 20, 90);
+    assertSimulation(STOPPED, cadences, MESSAGE_PERIOD_MS, 0, 0);
+  }
+
+  /**
+   * Tests the cadence follows a ramp up to 120 rpm and back down.
+   */
+  public void testRamp() {
+    int[] cadences = new int[RAMP.length];
+    for (int i = 0; i < cadences.length; i++) {
+      cadences[i] = i < 40 ? 60 + i * 3 / 2 : 120 - (i - 40) * 3 / 2;
+    }
+    assertSimulation(RAMP, cadences, MESSAGE_PERIOD_MS, 100, 30000);
+  }
+
+  /**
+   * Tests a revolution every message, so that the history fills up before
+   * any of it is old.
+   */
+  public void testFullHistory() {
+    int[] cadences = new int[FULL_HISTORY.length];
+    Arrays.fill(cadences, 3000);
+    assertSimulation(FULL_HISTORY, cadences, 20, 65500, 60000);
+  }
+
+  /**
+   * Measures the messages processed a second by several counters, and checks
+   * processing them doesn't allocate.
+   */
+  @LargeTest
+  public void testThroughput() {
+    CadenceCounter[] counters = new CadenceCounter[BENCHMARK_SENSORS];
+    for (int i = 0; i < BENCHMARK_SENSORS; i++) {
+      counters[i] = new CadenceCounter();
+    }
+
+    Debug.startAllocCounting();
+    long start = System.nanoTime();
+    long sum = 0;
+    for (int i = 0; i < BENCHMARK_MESSAGES; i++) {
+      long now = START_TIME + (long) i * MESSAGE_PERIOD_MS;
+      // A revolution every other message, stopping for the last 100 of every 1000
+      int revolutions = i / 1000 * 450 + Math.min(i % 1000, 900) / 2;
+      int count = revolutions & 0xFFFF;
+      int eventTime = (revolutions * 512) & 0xFFFF;
+      for (CadenceCounter counter : counters) {
+        sum += counter.getEventsPerMinute(count, eventTime, now);
+      }
+    }
+    long elapsed = System.nanoTime() - start;
+    Debug.stopAllocCounting();
+    int allocations = Debug.getThreadAllocCount();
+    Debug.resetAllocCount();
+
+    int messages = BENCHMARK_SENSORS * BENCHMARK_MESSAGES;
+    Log.i(TAG, String.format(Locale.US, "%d messages in %dms: %.0f messages/s, %d allocations",
+        messages, elapsed / 1000000, messages * 1E9 / elapsed, allocations));
+    assertTrue(sum > 0);
+    assertEquals(0, allocations);
+  }
+
+  /**
+   * Feeds a counter a simulated sensor and checks its output.
+   *
+   * @param expected the expected cadence after each message
+   * @param cadences the rider's cadence during each message period
+   * @param messagePeriodMs the time between messages
+   * @param startCount the count of the first message
+   * @param startEventTime the event time of the first message
+   */
+  private void assertSimulation(int[] expected, int[] cadences, int messagePeriodMs,
+      int startCount, int startEventTime) {
+    CadenceCounter counter = new CadenceCounter();
+    // The revolutions, in 1/60000 of a revolution since the last one
+    long partialRevolution = 0;
+    long revolutions = 0;
+    long lastRevolutionMs = 0;
+    for (int i = 0; i < expected.length; i++) {
+      long time = (long) i * messagePeriodMs;
+      partialRevolution += (long) cadences[i] * messagePeriodMs;
+      if (partialRevolution >= 60000) {
+        revolutions += partialRevolution / 60000;
+        partialRevolution %= 60000;
+        lastRevolutionMs = time - partialRevolution / cadences[i];
+      }
+      int count = (int) ((startCount + revolutions) & 0xFFFF);
+      int eventTime = (int) ((startEventTime + lastRevolutionMs * 1024 / 1000) & 0xFFFF);
+      assertEquals("message " + i, expected[i],
+          counter.getEventsPerMinute(count, eventTime, START_TIME + time));
+    }
+  }
+}
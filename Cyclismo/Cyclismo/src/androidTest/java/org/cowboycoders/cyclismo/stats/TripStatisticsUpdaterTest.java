@@ -23,12 +23,21 @@ package org.cowboycoders.cyclismo.stats;
 
 
 import android.location.Location;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
 
 import junit.framework.TestCase;
 
 import org.cowboycoders.cyclismo.Constants;
+import org.cowboycoders.cyclismo.content.MyTracksLocation;
+import org.cowboycoders.cyclismo.content.Sensor.SensorData;
+import org.cowboycoders.cyclismo.content.Sensor.SensorDataSet;
+import org.cowboycoders.cyclismo.services.TrackRecordingService;
 import org.cowboycoders.cyclismo.util.PreferencesUtils;
 
+import java.util.Locale;
+import java.util.Random;
+
 /**
  * Tests {@link TripStatisticsUpdater}.
  *
@@ -36,8 +45,93 @@ import org.cowboycoders.cyclismo.util.PreferencesUtils;
  */
 public class TripStatisticsUpdaterTest extends TestCase {
 
+  private static final String TAG = TripStatisticsUpdaterTest.class.getSimpleName();
   private static final long ONE_SECOND = 1000;
   private static final long TEN_SECONDS = 10 * ONE_SECOND;
+  private static final int RIDE_POINTS = 5000;
+  private static final int BENCHMARK_POINTS = 1000000;
+
+  /*
+   * The statistics of the rides of testAddLocations and of the track of
+   * testAddLocations_benchmark, recorded from the updater before it had a batch
+   * mode, when it kept the last locations as objects and measured with
+   * Location.distanceTo. The times are the start, stop, total and moving time.
+   * The statistics are the distance, top, bottom, left and right degrees, max
+   * speed, min and max elevation, elevation gain, min and max grade, work done,
+   * heart beats, crank rotations, the final smoothed elevation and speed and,
+   * for the rides, the sum of the smoothed elevation after each location.
+   */
+  private static final long[][] RIDE_TIMES = {
+      { 1001000, 5952000, 4791000, 4807000 },
+      { 1001000, 5952000, 4797000, 4810000 },
+      { 1001000, 5964000, 4803000, 4811000 },
+      { 1001000, 5967000, 4809000, 4813000 },
+      { 1001000, 5955000, 4797000, 4809000 },
+      { 1001000, 5964000, 4803000, 4811000 },
+      { 1001000, 5958000, 4797000, 4810000 },
+      { 1001000, 5958000, 4803000, 4811000 },
+      { 1001000, 5958000, 4800000, 4810000 },
+      { 1001000, 5973000, 4812000, 4814000 }
+  };
+
+  private static final double[][] RIDE_STATISTICS = {
+      { 22207.969619066876, 51.01788276903083, 50.98771839808464, -1.001007478912675,
+          -0.9706040627764868, 12.546480178833008, 69.4568569690991, 130.32678034566382,
+          210.4451076790764, -0.03094775865464126, 0.03393393858703646, 479977.0, 4506.099999999999,
+          2960.5999999999995, 126.71853601618814, 3.4853899478912354, 502673.23417828075 },
+      { 22322.456354981216, 51.01756260683903, 50.987055140904715, -1.0016890357194341,
+          -0.9704233186881762, 12.135168075561523, 69.79696910005701, 130.66949417851959,
+          212.27331438625626, -0.03206052040801601, 0.035355356421985513, 491374.0,
+          4449.966666666667, 2806.8833333333337, 127.02759692595679, 5.974205017089844,
+          502394.119638332 },
+      { 22315.699668037152, 51.01801327245012, 50.98739850866782, -1.0010742437628026,
+          -0.9703340283639217, 12.613385200500488, 68.54521762505009, 130.54619842615855,
+          212.52908081151324, -0.03193838228600622, 0.030270049950750666, 482396.0,
+          4557.366666666666, 2857.0833333333335, 126.88055261829021, 4.937482833862305,
+          502573.071057693 },
+      { 22289.697199970135, 51.016796524487376, 50.985976152412654, -1.00070872414953,
+          -0.9703304085526505, 12.95074462890625, 69.51324121730697, 130.48760264116825,
+          212.17343095009153, -0.042351067884375516, 0.030772950909173515, 484216.0,
+          4477.516666666666, 2878.0666666666657, 126.49203779337702, 5.506424903869629,
+          502728.72084589605 },
+      { 22271.866384420602, 51.017882931624, 50.98750366478638, -1.0021242027840418,
+          -0.9707529977003304, 11.823341369628906, 69.40441934137999, 130.57751130051966,
+          212.59505299130024, -0.03369758550679331, 0.03385042043329103, 491186.0,
+          4452.700000000001, 2860.6, 126.60765770489881, 3.1819512844085693, 502544.8560127561 },
+      { 22274.37470778619, 51.01768181226179, 50.98708427820211, -1.0010875604154394,
+          -0.9705839850248739, 11.880477905273438, 69.20912061031646, 130.7607209727353,
+          212.71839592610849, -0.03174743923716057, 0.04654670383627049, 489662.0,
+          4461.333333333333, 2900.716666666666, 126.8059472201061, 4.221559524536133,
+          502514.3836415828 },
+      { 22261.35554180926, 51.018198495760416, 50.9878133747199, -1.002142457785648,
+          -0.9705486817146812, 11.947699546813965, 69.66509677286177, 130.29049094720196,
+          212.5319584989781, -0.03809043897380469, 0.028842285476804647, 483686.0,
+          4514.766666666667, 2872.2999999999997, 126.44884544884516, 2.978771209716797,
+          502512.91498305806 },
+      { 22373.291637822753, 51.01752929031873, 50.98722273710039, -1.000887062872286,
+          -0.9700273530885754, 11.964276313781738, 69.48123418424723, 130.2582246370335,
+          211.65223001554193, -0.03063678217880026, 0.03348568893652937, 493314.0,
+          4531.933333333334, 2809.0, 126.89201231551262, 1.9069995880126953, 502537.1672113785 },
+      { 22438.814767188, 51.01767966703346, 50.9870972306157, -1.002225303941593,
+          -0.9704339769425514, 11.544614791870117, 69.86127443584012, 130.53139761050028,
+          212.3628436492704, -0.04178511132516922, 0.03202642342273824, 491084.0, 4587.499999999999,
+          2888.3166666666666, 126.47949293669416, 3.9434874057769775, 502425.64305494283 },
+      { 22297.72222627957, 51.018367871067895, 50.98801696983501, -1.000801218796067,
+          -0.9701876883802594, 12.417771339416504, 69.7108934093951, 130.2579300969129,
+          212.0974546040501, -0.030781940681473365, 0.029878517514439457, 489404.0,
+          4395.616666666667, 2974.4666666666676, 126.76563924346428, 4.876573085784912,
+          502583.29136558966 }
+  };
+
+  private static final long[] BENCHMARK_TIMES = { 1000000, 1000999000, 999999000, 999999000 };
+
+  private static final double[] BENCHMARK_STATISTICS = {
+      5540841.480033398, 49.999950000000005, 0.0, 45.0, 45.0, 11.100000381469727,
+      80.05195954180743, 119.94804045834833, 63492.05876075032, -0.036077039220451336,
+      0.03607702968793664, 0.0, 0.0, 0.0, 96.41725738011955, 11.100000381469727 };
+
+  // The values were recorded on a JVM, whose Math.sin can differ by an ulp
+  private static final double TOLERANCE = 1E-6;
 
   private TripStatisticsUpdater tripStatisticsUpdater = null;
 
@@ -242,4 +336,187 @@ public class TripStatisticsUpdaterTest extends TestCase {
   public void testUpdateSensorData() {
     // TODO
   }
+
+  /**
+   * Tests adding the locations of rides one at a time and with
+   * {@link TripStatisticsUpdater#addLocations(LocationColumns, int, double[])}
+   * both give the statistics recorded before the batch mode was added.
+   */
+  public void testAddLocations() {
+    Random random = new Random(42);
+    for (int ride = 0; ride < RIDE_TIMES.length; ride++) {
+      Location[] locations = createRide(RIDE_POINTS, random);
+      long startTime = locations[0].getTime();
+
+      TripStatisticsUpdater single = new TripStatisticsUpdater(startTime);
+      double[] singleElevations = new double[locations.length];
+      for (int i = 0; i < locations.length; i++) {
+        single.addLocation(locations[i], PreferencesUtils.MIN_RECORDING_DISTANCE_DEFAULT);
+        singleElevations[i] = single.getSmoothedElevation();
+      }
+      assertTripStatistics(RIDE_TIMES[ride], RIDE_STATISTICS[ride], single);
+      assertClose(RIDE_STATISTICS[ride][16], sum(singleElevations));
+
+      LocationColumns columns = new LocationColumns(1);
+      for (Location location : locations) {
+        columns.add(location);
+      }
+      assertEquals(locations.length, columns.size());
+      TripStatisticsUpdater batch = new TripStatisticsUpdater(startTime);
+      double[] batchElevations = new double[locations.length];
+      batch.addLocations(
+          columns, PreferencesUtils.MIN_RECORDING_DISTANCE_DEFAULT, batchElevations);
+
+      assertTripStatistics(RIDE_TIMES[ride], RIDE_STATISTICS[ride], batch);
+      for (int i = 0; i < locations.length; i++) {
+        assertEquals(singleElevations[i], batchElevations[i]);
+      }
+    }
+  }
+
+  /**
+   * Measures the points a second of a million point track added one location
+   * at a time, as the track is read from the provider, against added as
+   * columns. Both must give the statistics recorded before the batch mode.
+   */
+  @LargeTest
+  public void testAddLocations_benchmark() {
+    long startTime = 1000000;
+
+    long start = System.nanoTime();
+    TripStatisticsUpdater single = new TripStatisticsUpdater(startTime);
+    for (int i = 0; i < BENCHMARK_POINTS; i++) {
+      Location location = new Location("test");
+      location.setTime(startTime + i * ONE_SECOND);
+      location.setLatitude(i * .00005);
+      location.setLongitude(45.0);
+      location.setAltitude(100 + 20 * Math.sin(i / 100.0));
+      location.setSpeed(11.1f);
+      single.addLocation(location, PreferencesUtils.MIN_RECORDING_DISTANCE_DEFAULT);
+    }
+    long locationNanos = System.nanoTime() - start;
+
+    start = System.nanoTime();
+    LocationColumns columns = new LocationColumns(BENCHMARK_POINTS);
+    for (int i = 0; i < BENCHMARK_POINTS; i++) {
+      columns.add(startTime + i * ONE_SECOND, i * .00005, 45.0, 100 + 20 * Math.sin(i / 100.0),
+          11.1f, Float.NaN, Float.NaN, Float.NaN);
+    }
+    TripStatisticsUpdater batch = new TripStatisticsUpdater(startTime);
+    batch.addLocations(columns, PreferencesUtils.MIN_RECORDING_DISTANCE_DEFAULT, null);
+    long columnNanos = System.nanoTime() - start;
+
+    Log.i(TAG, String.format(Locale.US, "%d points: locations %dms, %.0f points/s; columns %dms, "
+        + "%.0f points/s", BENCHMARK_POINTS, locationNanos / 1000000,
+        BENCHMARK_POINTS * 1E9 / locationNanos, columnNanos / 1000000,
+        BENCHMARK_POINTS * 1E9 / columnNanos));
+    assertTripStatistics(BENCHMARK_TIMES, BENCHMARK_STATISTICS, single);
+    assertTripStatistics(BENCHMARK_TIMES, BENCHMARK_STATISTICS, batch);
+  }
+
+  /**
+   * Creates the locations of a ride, a second apart. Has stops, pauses,
+   * noisy elevations, invalid speeds, time going backwards and sensor readings
+   * on most locations.
+   *
+   * @param numberOfPoints the number of locations
+   * @param random the random number generator
+   */
+  private Location[] createRide(int numberOfPoints, Random random) {
+    Location[] locations = new Location[numberOfPoints];
+    long time = 1000000;
+    double latitude = 51.0;
+    double longitude = -1.0;
+    for (int i = 0; i < numberOfPoints; i++) {
+      time += ONE_SECOND;
+      if (random.nextInt(400) == 0) {
+        time -= 3 * ONE_SECOND;
+      }
+
+      Location location;
+      if (random.nextInt(5) == 0) {
+        location = new Location("test");
+      } else {
+        SensorDataSet.Builder builder = SensorDataSet.newBuilder();
+        if (random.nextBoolean()) {
+          builder.setPower(createSensorData(200 + random.nextInt(100)));
+        }
+        if (random.nextBoolean()) {
+          builder.setCadence(createSensorData(80 + random.nextInt(20)));
+        }
+        if (random.nextBoolean()) {
+          builder.setHeartRate(createSensorData(120 + random.nextInt(40)));
+        }
+        location = new MyTracksLocation(new Location("test"), builder.build());
+      }
+
+      // Stopped for 40 seconds every 10 minutes
+      int phase = i % 600;
+      float speed = phase > 500 && phase < 540
+          ? 0.0f : (float) (6 + 3 * Math.sin(i / 40.0) + random.nextGaussian());
+      if (random.nextInt(97) == 0) {
+        speed = 128.0f;
+      } else if (random.nextInt(131) == 0) {
+        speed = -1.0f;
+      }
+      if (speed > 0 && speed < 100) {
+        latitude += speed * .000009 * Math.cos(i / 300.0);
+        longitude += speed * .000009 * Math.sin(i / 300.0);
+      }
+
+      location.setTime(time);
+      location.setLatitude(latitude + random.nextGaussian() * .000001);
+      location.setLongitude(longitude);
+      location.setAltitude(100 + 30 * Math.sin(i / 250.0) + random.nextGaussian());
+      location.setSpeed(speed);
+      if (phase == 560) {
+        location.setLatitude(TrackRecordingService.PAUSE_LATITUDE);
+      } else if (phase == 580) {
+        location.setLatitude(TrackRecordingService.RESUME_LATITUDE);
+      }
+      locations[i] = location;
+    }
+    return locations;
+  }
+
+  private SensorData createSensorData(float value) {
+    return SensorData.newBuilder().setValue(value).build();
+  }
+
+  private void assertTripStatistics(
+      long[] expectedTimes, double[] expected, TripStatisticsUpdater updater) {
+    TripStatistics actual = updater.getTripStatistics();
+    assertEquals(expectedTimes[0], actual.getStartTime());
+    assertEquals(expectedTimes[1], actual.getStopTime());
+    assertEquals(expectedTimes[2], actual.getTotalTime());
+    assertEquals(expectedTimes[3], actual.getMovingTime());
+    assertClose(expected[0], actual.getTotalDistance());
+    assertClose(expected[1], actual.getTopDegrees());
+    assertClose(expected[2], actual.getBottomDegrees());
+    assertClose(expected[3], actual.getLeftDegrees());
+    assertClose(expected[4], actual.getRightDegrees());
+    assertClose(expected[5], actual.getMaxSpeed());
+    assertClose(expected[6], actual.getMinElevation());
+    assertClose(expected[7], actual.getMaxElevation());
+    assertClose(expected[8], actual.getTotalElevationGain());
+    assertClose(expected[9], actual.getMinGrade());
+    assertClose(expected[10], actual.getMaxGrade());
+    assertClose(expected[11], actual.getTotalWorkDone());
+    assertClose(expected[12], actual.getTotalHeartBeats());
+    assertClose(expected[13], actual.getTotalCrankRotations());
+    assertClose(expected[14], updater.getSmoothedElevation());
+    assertClose(expected[15], updater.getSpeed());
+  }
+
+  private static void assertClose(double expected, double actual) {
+    assertEquals(expected, actual, Math.abs(expected) * TOLERANCE);
+  }
+
+  private static double sum(double[] values) {
+    double sum = 0;
+    for (double value : values) {
+      sum += value;
+    }
+    return sum;
+  }
 }
@@ -0,0 +1,254 @@
+/*
+*    Copyright (c) 2013, Will Szumski
+*    Copyright (c) 2013, Doug Szumski
+*
+*    This file is part of Cyclismo.
+*
+*    Cyclismo is free software: you can redistribute it and/or modify
+*    it under the terms of the GNU General Public License as published by
+*    the Free Software Foundation, either version 3 of the License, or
+*    (at your option) any later version.
+*
+*    Cyclismo is distributed in the hope that it will be useful,
+*    but WITHOUT ANY WARRANTY; without even the implied warranty of
+*    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*    GNU General Public License for more details.
+*
+*    You should have received a copy of the GNU General Public License
+*    along with Cyclismo.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package org.cowboycoders.cyclismo.turbo;
+
+import android.location.Location;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import org.cowboycoders.cyclismo.Constants;
+import org.cowboycoders.cyclismo.content.MyTracksProviderUtils.LocationIterator;
+import org.cowboycoders.cyclismo.services.TrackRecordingService;
+import org.cowboycoders.cyclismo.stats.TripStatisticsUpdater;
+import org.fluxoid.utils.LatLongAlt;
+import org.fluxoid.utils.LocationUtils;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Tests for {@link CompiledCourse}.
+ */
+public class CompiledCourseTest extends AndroidTestCase {
+
+  private static final String TAG = CompiledCourseTest.class.getSimpleName();
+  private static final long COURSE_ID = 7;
+  private static final long FIRST_POINT_ID = 1000;
+  private static final double SPACING = 5.0;
+  // Enough points for the hub to sample them
+  private static final int COURSE_POINTS = 3 * Constants.TARGET_DISPLAYED_TRACK_POINTS + 123;
+  private static final int BENCHMARK_POINTS = 200000;
+  private static final int WARM_LOADS = 10;
+
+  private File file;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    file = new File(new File(getContext().getCacheDir(), "coursetest"), COURSE_ID + ".course");
+    file.delete();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    file.delete();
+    super.tearDown();
+  }
+
+  /**
+   * Tests a compiled course has the points the course track data hub and
+   * listener gave, with the distances and gradients between them.
+   */
+  public void testCompile() throws Exception {
+    List<Location> locations = createCourse(COURSE_POINTS, new Random(42));
+    long lastPointId = FIRST_POINT_ID + locations.size() - 1;
+    CompiledCourse.compile(new ListLocationIterator(locations), COURSE_ID, FIRST_POINT_ID,
+        lastPointId, SPACING, file);
+    CompiledCourse compiledCourse = CompiledCourse.load(
+        file, COURSE_ID, FIRST_POINT_ID, lastPointId, SPACING);
+
+    List<LatLongAlt> expected = loadCourse(locations, lastPointId);
+    assertTrue(expected.size() > 100);
+    assertEquals(expected.size(), compiledCourse.size());
+    List<LatLongAlt> actual = compiledCourse.getLatLongAlts();
+    double distance = 0.0;
+    for (int i = 0; i < expected.size(); i++) {
+      assertEquals(expected.get(i).getLatitude(), actual.get(i).getLatitude());
+      assertEquals(expected.get(i).getLongitude(), actual.get(i).getLongitude());
+      assertEquals(expected.get(i).getAltitude(), actual.get(i).getAltitude());
+      if (i > 0) {
+        distance += LocationUtils.getGradientCorrectedDistance(
+            expected.get(i - 1), expected.get(i));
+        assertEquals(LocationUtils.getLocalisedGradient(expected.get(i - 1), expected.get(i)),
+            compiledCourse.getGradient(i));
+      }
+      assertEquals(distance, compiledCourse.getDistance(i));
+    }
+    assertEquals(0.0, compiledCourse.getGradient(0));
+  }
+
+  /**
+   * Tests a compiled course isn't loaded once the course or the spacing
+   * changes.
+   */
+  public void testLoad_stale() throws Exception {
+    assertNull(CompiledCourse.load(file, COURSE_ID, FIRST_POINT_ID, FIRST_POINT_ID, SPACING));
+
+    List<Location> locations = createCourse(100, new Random(42));
+    long lastPointId = FIRST_POINT_ID + locations.size() - 1;
+    CompiledCourse.compile(new ListLocationIterator(locations), COURSE_ID, FIRST_POINT_ID,
+        lastPointId, SPACING, file);
+    assertNotNull(CompiledCourse.load(file, COURSE_ID, FIRST_POINT_ID, lastPointId, SPACING));
+    assertNull(CompiledCourse.load(file, COURSE_ID + 1, FIRST_POINT_ID, lastPointId, SPACING));
+    assertNull(CompiledCourse.load(file, COURSE_ID, FIRST_POINT_ID, lastPointId + 1, SPACING));
+    assertNull(CompiledCourse.load(file, COURSE_ID, FIRST_POINT_ID + 1, lastPointId, SPACING));
+    assertNull(CompiledCourse.load(file, COURSE_ID, FIRST_POINT_ID, lastPointId, SPACING + 1));
+  }
+
+  /**
+   * Measures the time to get the points of a long course to ride, compiling
+   * it on the first ride against loading the compiled course after.
+   */
+  @LargeTest
+  public void testLoad_benchmark() throws Exception {
+    List<Location> locations = createCourse(BENCHMARK_POINTS, new Random(42));
+    long lastPointId = FIRST_POINT_ID + locations.size() - 1;
+
+    long start = System.nanoTime();
+    CompiledCourse.compile(new ListLocationIterator(locations), COURSE_ID, FIRST_POINT_ID,
+        lastPointId, SPACING, file);
+    List<LatLongAlt> expected = CompiledCourse.load(
+        file, COURSE_ID, FIRST_POINT_ID, lastPointId, SPACING).getLatLongAlts();
+    long coldNanos = System.nanoTime() - start;
+
+    start = System.nanoTime();
+    List<LatLongAlt> actual = null;
+    for (int i = 0; i < WARM_LOADS; i++) {
+      actual = CompiledCourse.load(
+          file, COURSE_ID, FIRST_POINT_ID, lastPointId, SPACING).getLatLongAlts();
+    }
+    long warmNanos = (System.nanoTime() - start) / WARM_LOADS;
+
+    Log.i(TAG, String.format(Locale.US, "%d points, %d spaced: cold %.1fms, warm %.1fms",
+        BENCHMARK_POINTS, actual.size(), coldNanos / 1E6, warmNanos / 1E6));
+    assertEquals(expected.size(), actual.size());
+    assertTrue(warmNanos < coldNanos);
+  }
+
+  /**
+   * Creates the points of a course a few meters apart, with a noisy climb and
+   * descent, a segment split and some points closer than the spacing.
+   *
+   * @param numberOfPoints the number of points
+   * @param random the random number generator
+   */
+  private List<Location> createCourse(int numberOfPoints, Random random) {
+    List<Location> locations = new ArrayList<Location>(numberOfPoints);
+    double latitude = 51.0;
+    double longitude = -1.0;
+    for (int i = 0; i < numberOfPoints; i++) {
+      Location location = new Location("test");
+      if (i == numberOfPoints / 2) {
+        location.setLatitude(TrackRecordingService.PAUSE_LATITUDE);
+        location.setLongitude(0);
+      } else {
+        // Mostly 2 to 8 meters on
+        latitude += (0.2 + random.nextDouble()) * .00006 * Math.cos(i / 500.0);
+        longitude += (0.2 + random.nextDouble()) * .00006 * Math.sin(i / 500.0);
+        location.setLatitude(latitude);
+        location.setLongitude(longitude);
+        location.setAltitude(100 + 50 * Math.sin(i / 2000.0) + random.nextGaussian());
+      }
+      location.setTime(1000000000000L + i * 1000L);
+      locations.add(location);
+    }
+    return locations;
+  }
+
+  /**
+   * Gets the points of a course as the course loader did from the course
+   * track data hub, before courses were compiled.
+   *
+   * @param locations the points of the course
+   * @param lastPointId the id of the last point
+   */
+  private List<LatLongAlt> loadCourse(List<Location> locations, long lastPointId) {
+    int samplingFrequency = 1 + (int) ((lastPointId - FIRST_POINT_ID)
+        / Constants.TARGET_DISPLAYED_TRACK_POINTS);
+    TripStatisticsUpdater tripStatisticsUpdater = new TripStatisticsUpdater(0L);
+    List<LatLongAlt> latLongAlts = new ArrayList<LatLongAlt>();
+    LatLongAlt lastAddedPoint = null;
+    boolean includeNextPoint = false;
+    for (int i = 0; i < locations.size(); i++) {
+      Location location = locations.get(i);
+      if (!org.cowboycoders.cyclismo.util.LocationUtils.isValidLocation(location)) {
+        includeNextPoint = true;
+        continue;
+      }
+      if (!includeNextPoint && i % samplingFrequency != 0 && i != locations.size() - 1) {
+        continue;
+      }
+      includeNextPoint = false;
+
+      tripStatisticsUpdater.addLocation(location, (int) SPACING);
+      LatLongAlt point = new LatLongAlt(location.getLatitude(), location.getLongitude(),
+          tripStatisticsUpdater.getSmoothedElevation());
+      if (lastAddedPoint == null || LocationUtils.getDistance(lastAddedPoint, point) > SPACING) {
+        lastAddedPoint = point;
+        latLongAlts.add(point);
+      }
+    }
+    return latLongAlts;
+  }
+
+  /**
+   * Iterates over the points of a course held in a list, with consecutive ids
+   * from {@link #FIRST_POINT_ID}.
+   */
+  private static class ListLocationIterator implements LocationIterator {
+
+    private final List<Location> locations;
+    private int index = -1;
+
+    ListLocationIterator(List<Location> locations) {
+      this.locations = locations;
+    }
+
+    @Override
+    public boolean hasNext() {
+      return index + 1 < locations.size();
+    }
+
+    @Override
+    public Location next() {
+      index++;
+      return locations.get(index);
+    }
+
+    @Override
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public long getLocationId() {
+      return FIRST_POINT_ID + index;
+    }
+
+    @Override
+    public void close() {
+      // Nothing to close
+    }
+  }
+}
@@ -38,12 +38,9 @@ package org.cowboycoders.cyclismo;
 import android.os.Bundle;
 
 import org.cowboycoders.cyclismo.content.MyTracksProviderUtils;
-import org.cowboycoders.cyclismo.content.Track;
 import org.cowboycoders.cyclismo.stats.TripStatistics;
 import org.cowboycoders.cyclismo.util.StatsUtils;
 
-import java.util.List;
-
 /**
  * An activity to view aggregated stats from all recorded tracks.
  *
@@ -65,17 +62,10 @@ public class AggregatedStatsActivity extends AbstractMyTracksActivity {
 
   /**
    * Gets the aggregated trip statistics for all the recorded tracks or null if
-   * there is no track.
+   * there is no track. These are kept up to date by the database, so this
+   * doesn't depend on the number of tracks.
    */
   private TripStatistics getTripStatistics() {
-    List<Track> tracks = MyTracksProviderUtils.Factory.get(this).getAllTracks();
-    TripStatistics tripStatistics = null;
-    if (!tracks.isEmpty()) {
-      tripStatistics = new TripStatistics(tracks.iterator().next().getTripStatistics());
-      for (int i = 1; i < tracks.size(); i++) {
-        tripStatistics.merge(tracks.get(i).getTripStatistics());
-      }
-    }
-    return tripStatistics;
+    return MyTracksProviderUtils.Factory.get(this).getAggregatedTripStatistics();
   }
 }
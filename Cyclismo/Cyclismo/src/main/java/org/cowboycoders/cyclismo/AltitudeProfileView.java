@@ -60,6 +60,7 @@ import org.cowboycoders.cyclismo.stats.ExtremityMonitor;
 import org.cowboycoders.cyclismo.util.IntentUtils;
 import org.cowboycoders.cyclismo.util.StringUtils;
 import org.cowboycoders.cyclismo.util.UnitConversions;
+import org.fluxoid.utils.MinMaxDownsampler;
 
 import java.text.NumberFormat;
 import java.util.ArrayList;
@@ -87,6 +88,11 @@ public class AltitudeProfileView extends View {
   private static final int MIN_ZOOM_LEVEL = 1;
   private static final int MAX_ZOOM_LEVEL = 10;
 
+  // Bounds the memory and drawing work per series however long the track, at up to 4 path
+  // points per bucket. Zoomed in on a track wider than this many pixels, a bucket spans several
+  // pixels.
+  private static final int MAX_BUCKETS = 2048;
+
   private static final NumberFormat X_NUMBER_FORMAT = NumberFormat.getIntegerInstance();
   private static final NumberFormat X_FRACTION_FORMAT = NumberFormat.getNumberInstance();
   static {
@@ -100,8 +106,12 @@ public class AltitudeProfileView extends View {
 
   private final ChartValueSeries[] series = new ChartValueSeries[NUM_SERIES];
   private final ChartValueSeries[] seriesOverlay = new ChartValueSeries[NUM_SERIES];
-  private final ArrayList<double[]> chartData = new ArrayList<double[]>();
-  private final ArrayList<double[]> chartDataOverlay = new ArrayList<double[]>();
+  private final MinMaxDownsampler chartData = new MinMaxDownsampler(NUM_SERIES, MAX_BUCKETS);
+  private final MinMaxDownsampler chartDataOverlay =
+      new MinMaxDownsampler(NUM_SERIES, MAX_BUCKETS);
+  // Points of the path being updated, guarded by itself
+  private final double[] pathX = new double[4 * MAX_BUCKETS];
+  private final double[] pathY = new double[4 * MAX_BUCKETS];
   private final ArrayList<Waypoint> waypoints = new ArrayList<Waypoint>();
   private final ExtremityMonitor xExtremityMonitor = new ExtremityMonitor();
   private final ExtremityMonitor xExtremityMonitorOverlay = new ExtremityMonitor();
@@ -258,9 +268,9 @@ public class AltitudeProfileView extends View {
    */
   public void addDataPoints(ArrayList<double[]> dataPoints) {
     synchronized (chartData) {
-      chartData.addAll(dataPoints);
       for (int i = 0; i < dataPoints.size(); i++) {
         double[] dataPoint = dataPoints.get(i);
+        chartData.add(dataPoint[0], dataPoint, 1);
         xExtremityMonitor.update(dataPoint[0]);
         Log.d(TAG, "x axis val: " +  dataPoint[0]);
         for (int j = 0; j < series.length; j++) {
@@ -281,10 +291,10 @@ public class AltitudeProfileView extends View {
     synchronized (chartDataOverlay) {
       Log.v(TAG, "adding overlay");
       chartDataOverlay.clear();
-      chartDataOverlay.addAll(dataPoints);
       xExtremityMonitorOverlay.reset();
       for (int i = 0; i < dataPoints.size(); i++) {
         double[] dataPoint = dataPoints.get(i);
+        chartDataOverlay.add(dataPoint[0], dataPoint, 1);
         xExtremityMonitorOverlay.update(dataPoint[0]);
         for (int j = 0; j < seriesOverlay.length; j++) {
           if (!Double.isNaN(dataPoint[j + 1])) {
@@ -801,14 +811,14 @@ public class AltitudeProfileView extends View {
       }
     }
     double currentXValue = xExtremityMonitor.hasData() ? xExtremityMonitor.getMax() : 0.0;
-    if (index != -1 && chartData.size() > 0) {
+    if (index != -1 && !chartData.isEmpty()) {
       int dx = getX(currentXValue) - pointer.getIntrinsicWidth() / 2;
-      int dy = getY(seriesOverlay[index], chartData.get(chartData.size() - 1)[index + 1])
+      int dy = getY(seriesOverlay[index], chartData.getLastValue(index))
           - pointer.getIntrinsicHeight();
-      Log.d(TAG, "y chartDat: " + chartData.get(chartData.size() - 1)[index + 1]);
+      Log.d(TAG, "y chartDat: " + chartData.getLastValue(index));
       Log.d(TAG, "drawing pointer, dx:" + dx);
       Log.d(TAG, "drawing pointer, dy:" + dy);
-      Log.d(TAG, "chartData size: " + chartData.size());
+      Log.d(TAG, "chartData size: " + chartData.getPointCount());
       canvas.translate(dx, dy);
       pointer.draw(canvas);
     }
@@ -816,89 +826,52 @@ public class AltitudeProfileView extends View {
 
   /**
    * Updates paths. The path needs to be updated any time after the data or the
-   * dimensions change.
+   * dimensions change. Only the first, last, minimum and maximum point of each
+   * series in each pixel are drawn, so this doesn't depend on the length of the
+   * course.
    */
-  private void updatePaths(ChartValueSeries[] seriesIn, ArrayList<double[]> chartDataIn) {
+  private void updatePaths(ChartValueSeries[] seriesIn, MinMaxDownsampler chartDataIn) {
     synchronized (chartDataIn) {
-      for (ChartValueSeries chartValueSeries : seriesIn) {
-        chartValueSeries.getPath().reset();
-      }
-      drawPaths(seriesIn, chartDataIn);
-      closePaths(seriesIn,chartDataIn);
-    }
-  }
-
-  /**
-   * Draws all paths.
-   */
-  private void drawPaths(ChartValueSeries [] seriesIn , ArrayList<double[]> chartDataIn) {
-    boolean[] hasMoved = new boolean[seriesIn.length];
-    
-    for (int i = 0; i < chartDataIn.size(); i++) {
-      double[] dataPoint = chartDataIn.get(i);
-      for (int j = 0; j < seriesIn.length; j++) {
-        double value = dataPoint[j + 1];
-        if (Double.isNaN(value)) {
-          continue;
-        }
-        ChartValueSeries chartValueSeries = seriesIn[j];
-        Path path = chartValueSeries.getPath();
-        int x = getX(dataPoint[0]);
-        int y = getY(chartValueSeries, value);
-        //Log.d("TAG", "updatePath x:" + x);
-        //Log.d("TAG", "updatePath y:" + y);
-        if (!hasMoved[j]) {
-          hasMoved[j] = true;
-          path.moveTo(x, y);
-        } else {
-          path.lineTo(x, y);
+      double resolution = effectiveWidth > 0 ? maxX / (effectiveWidth * zoomLevel) : 0;
+      synchronized (pathX) {
+        for (int i = 0; i < seriesIn.length; i++) {
+          Path path = seriesIn[i].getPath();
+          path.reset();
+          int count = chartDataIn.getPoints(i, resolution, pathX, pathY);
+          if (count > 0) {
+            drawPath(seriesIn[i], path, count);
+            closePath(seriesIn[i], path, chartDataIn.getLastX());
+          }
         }
       }
     }
-    
   }
 
   /**
-   * Closes all paths.
+   * Draws a path through the first count points in pathX and pathY.
    */
-  private void closePaths(ChartValueSeries [] seriesIn, ArrayList<double[]> chartDataIn) {
-    closePath(seriesIn,chartDataIn);
-  }
-
-  private void closePath(ChartValueSeries[] seriesIn, ArrayList<double[]> chartDataIN) {
-    for (int i = 0; i < seriesIn.length; i++) {
-      int first = getFirstPopulatedChartDataIndex(i,chartDataIN);
-      if (first != -1) {
-        Log.d(TAG, "closingPaths");
-        int xCorner = getX(chartDataIN.get(first)[0]);
-        int yCorner = topBorder + effectiveHeight;
-        Log.d(TAG, "closePath, x corner:" +  chartDataIN.get(chartDataIN.size() - 1)[0]);
-        ChartValueSeries chartValueSeries = seriesIn[i];
-        Log.d(TAG, "closePath, y corner:" +  getY(chartValueSeries, chartDataIN.get(first)[i + 1]));
-        Path path = chartValueSeries.getPath();
-        // Bottom right corner
-        path.lineTo(getX(chartDataIN.get(chartDataIN.size() - 1)[0]), yCorner);
-        // Bottom left corner
-        path.lineTo(xCorner, yCorner);
-        // Top right corner
-        path.lineTo(xCorner, getY(chartValueSeries, chartDataIN.get(first)[i + 1]));
-      }
+  private void drawPath(ChartValueSeries chartValueSeries, Path path, int count) {
+    path.moveTo(getX(pathX[0]), getY(chartValueSeries, pathY[0]));
+    for (int i = 1; i < count; i++) {
+      path.lineTo(getX(pathX[i]), getY(chartValueSeries, pathY[i]));
     }
   }
 
   /**
-   * Finds the index of the first data point containing data for a series.
-   * Returns -1 if no data point contains data for the series.
-   * 
-   * @param seriesIndex the series's index
-   */
-  private int getFirstPopulatedChartDataIndex(int seriesIndex, ArrayList<double[]> chartDataIn) {
-    for (int i = 0; i < chartDataIn.size(); i++) {
-      if (!Double.isNaN(chartDataIn.get(i)[seriesIndex + 1])) {
-        return i;
-      }
-    }
-    return -1;
+   * Closes a path drawn by {@link #drawPath(ChartValueSeries, Path, int)}.
+   *
+   * @param lastX the x value of the last data point
+   */
+  private void closePath(ChartValueSeries chartValueSeries, Path path, double lastX) {
+    Log.d(TAG, "closingPaths");
+    int xCorner = getX(pathX[0]);
+    int yCorner = topBorder + effectiveHeight;
+    // Bottom right corner
+    path.lineTo(getX(lastX), yCorner);
+    // Bottom left corner
+    path.lineTo(xCorner, yCorner);
+    // Top right corner
+    path.lineTo(xCorner, getY(chartValueSeries, pathY[0]));
   }
 
   /**
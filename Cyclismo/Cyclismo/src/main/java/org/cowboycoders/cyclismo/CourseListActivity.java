@@ -79,7 +79,7 @@ import org.cowboycoders.cyclismo.content.Waypoint;
 import org.cowboycoders.cyclismo.fragments.DeleteAllTrackDialogFragment;
 import org.cowboycoders.cyclismo.fragments.DeleteOneTrackDialogFragment;
 import org.cowboycoders.cyclismo.fragments.DeleteOneTrackDialogFragment.DeleteOneTrackCaller;
-import org.cowboycoders.cyclismo.io.file.GpxImporter;
+import org.cowboycoders.cyclismo.io.file.PipelinedGpxImporter;
 import org.cowboycoders.cyclismo.services.TrackRecordingServiceConnection;
 import org.cowboycoders.cyclismo.util.ApiAdapterFactory;
 import org.cowboycoders.cyclismo.util.IntentUtils;
@@ -87,15 +87,12 @@ import org.cowboycoders.cyclismo.util.ListItemUtils;
 import org.cowboycoders.cyclismo.util.PreferencesUtils;
 import org.cowboycoders.cyclismo.util.StringUtils;
 import org.cowboycoders.cyclismo.util.TrackIconUtils;
-import org.xml.sax.SAXException;
 
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 
-import javax.xml.parsers.ParserConfigurationException;
-
 /**
  * An activity displaying a list of tracks.
  * 
@@ -479,19 +476,8 @@ public class CourseListActivity extends FragmentActivity implements DeleteOneTra
     try {
     CyclismoProviderUtils providerUtils = MyTracksProviderUtils.Factory.getCyclimso(this);
     User currentUser = providerUtils.getUser(PreferencesUtils.getLong(this, R.string.settings_select_user_current_selection_key));
-    GpxImporter.importGPXFile(fileStream,new MyTracksCourseProviderUtils(this.getContentResolver()),
+    PipelinedGpxImporter.importGPXFile(fileStream,new MyTracksCourseProviderUtils(this.getContentResolver()),
             PreferencesUtils.MIN_RECORDING_DISTANCE_DEFAULT, currentUser);
-    } catch (ParserConfigurationException e) {
-      final String msg = "error parsing gpx file";
-      Log.e(TAG,msg);
-      Toast.makeText(CourseListActivity.this, 
-          msg, Toast.LENGTH_LONG).show();
-      
-    } catch (SAXException e) {
-      final String msg = "error parsing gpx file";
-      Log.e(TAG,msg);
-      Toast.makeText(CourseListActivity.this, 
-          msg, Toast.LENGTH_LONG).show();
     } catch (IOException e) {
       final String msg = "IOException whilst parsing gpx file";
       Log.e(TAG,msg);
@@ -42,20 +42,24 @@ import android.util.Log;
 import org.cowboycoders.cyclismo.content.CyclismoProviderUtils;
 import org.cowboycoders.cyclismo.content.MyTracksProviderUtils;
 import org.cowboycoders.cyclismo.content.User;
-import org.cowboycoders.cyclismo.io.file.GpxImporter;
+import org.cowboycoders.cyclismo.io.file.PipelinedGpxImporter;
 import org.cowboycoders.cyclismo.util.FileUtils;
 import org.cowboycoders.cyclismo.util.PreferencesUtils;
 import org.cowboycoders.cyclismo.util.SystemUtils;
-import org.xml.sax.SAXException;
+import org.fluxoid.utils.TrackImportPipeline;
 
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.List;
-
-import javax.xml.parsers.ParserConfigurationException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * AsyncTask to import GPX files from the SD card.
@@ -66,6 +70,9 @@ public class ImportAsyncTask extends AsyncTask<Void, Integer, Boolean> {
 
   private static final String TAG = ImportAsyncTask.class.getSimpleName();
 
+  // The number of files imported at once, sharing the pipeline's batches
+  private static final int PARALLEL_FILES = 2;
+
   private ImportActivity importActivity;
   private final boolean importAll;
   private final String path;
@@ -148,18 +155,48 @@ public class ImportAsyncTask extends AsyncTask<Void, Integer, Boolean> {
         return true;
       }
 
-      for (int i = 0; i < totalCount; i++) {
-        if (isCancelled()) {
-          // If cancelled, return true to show the number of files imported
-          return true;
+      CyclismoProviderUtils providerUtils = MyTracksProviderUtils.Factory.getCyclimso(importActivity);
+      final User currentUser = providerUtils.getUser(PreferencesUtils.getLong(importActivity, R.string.settings_select_user_current_selection_key));
+      final int minRecordingDistance = PreferencesUtils.getInt(importActivity,
+          R.string.min_recording_distance_key, PreferencesUtils.MIN_RECORDING_DISTANCE_DEFAULT);
+      final TrackImportPipeline pipeline = new TrackImportPipeline(
+          PipelinedGpxImporter.BATCH_SIZE, PipelinedGpxImporter.BATCHES);
+      ExecutorService executor = Executors.newFixedThreadPool(PARALLEL_FILES);
+      CompletionService<long[]> completionService = new ExecutorCompletionService<long[]>(
+          executor);
+      try {
+        for (final File file : files) {
+          completionService.submit(new Callable<long[]>() {
+            @Override
+            public long[] call() {
+              if (isCancelled()) {
+                return null;
+              }
+              return importFile(file, currentUser, pipeline, minRecordingDistance);
+            }
+          });
         }
-        CyclismoProviderUtils providerUtils = MyTracksProviderUtils.Factory.getCyclimso(importActivity);
-        User currentUser = providerUtils.getUser(PreferencesUtils.getLong(importActivity, R.string.settings_select_user_current_selection_key));
-        File file = files.get(i);
-        if (importFile(file, currentUser)) {
-          successCount++;
+        for (int i = 0; i < totalCount; i++) {
+          long[] trackIds = null;
+          try {
+            trackIds = completionService.take().get();
+          } catch (ExecutionException e) {
+            Log.e(TAG, "Unable to import", e.getCause());
+          }
+          if (trackIds != null) {
+            successCount++;
+            if (trackIds.length > 0) {
+              trackId = trackIds[trackIds.length - 1];
+            }
+          }
+          publishProgress(i + 1, totalCount);
         }
-        publishProgress(i + 1, totalCount);
+      } catch (InterruptedException e) {
+        // If cancelled, return true to show the number of files imported
+        Log.d(TAG, "Import interrupted", e);
+      } finally {
+        executor.shutdownNow();
+        pipeline.shutdown();
       }
       return true;
     } finally {
@@ -190,30 +227,21 @@ public class ImportAsyncTask extends AsyncTask<Void, Integer, Boolean> {
    * Imports a GPX file.
    *
    * @param file the file
+   * @return the ids of the tracks imported, or null if it failed
    */
-  private boolean importFile(final File file, User user) {
+  private long[] importFile(final File file, User user, TrackImportPipeline pipeline,
+      int minRecordingDistance) {
     try {
-      int minRecordingDistance = PreferencesUtils.getInt(importActivity,
-          R.string.min_recording_distance_key, PreferencesUtils.MIN_RECORDING_DISTANCE_DEFAULT);
-      long trackIds[] = GpxImporter.importGPXFile(
-          new FileInputStream(file), myTracksProviderUtils, minRecordingDistance, user);
-      int length = trackIds.length;
-      if (length > 0) {
-        trackId = trackIds[length - 1];
+      InputStream inputStream = new FileInputStream(file);
+      try {
+        return PipelinedGpxImporter.importGPXFile(
+            pipeline, inputStream, myTracksProviderUtils, minRecordingDistance, user);
+      } finally {
+        inputStream.close();
       }
-      return true;
-    } catch (FileNotFoundException e) {
-      Log.d(TAG, "file: " + file.getAbsolutePath(), e);
-      return false;
-    } catch (ParserConfigurationException e) {
-      Log.d(TAG, "file: " + file.getAbsolutePath(), e);
-      return false;
-    } catch (SAXException e) {
-      Log.d(TAG, "file: " + file.getAbsolutePath(), e);
-      return false;
     } catch (IOException e) {
       Log.d(TAG, "file: " + file.getAbsolutePath(), e);
-      return false;
+      return null;
     }
   }
 
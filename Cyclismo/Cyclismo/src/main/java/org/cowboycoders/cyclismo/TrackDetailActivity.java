@@ -425,6 +425,8 @@ public class TrackDetailActivity extends AbstractMyTracksActivity implements Del
         getString(R.string.menu_save_format, fileTypes[2]));
     menu.findItem(R.id.track_detail_save_tcx).setTitle(
         getString(R.string.menu_save_format, fileTypes[3]));
+    menu.findItem(R.id.track_detail_save_zip).setTitle(
+        getString(R.string.menu_save_format, fileTypes[4]));
 
     insertMarkerMenuItem = menu.findItem(R.id.track_detail_insert_marker);
     playMenuItem = menu.findItem(R.id.track_detail_play);
@@ -503,6 +505,9 @@ public class TrackDetailActivity extends AbstractMyTracksActivity implements Del
       case R.id.track_detail_save_tcx:
         startSaveActivity(TrackFileFormat.TCX);
         return true;
+      case R.id.track_detail_save_zip:
+        startSaveActivity(TrackFileFormat.ZIP);
+        return true;
       case R.id.track_detail_edit:
         intent = IntentUtils.newIntent(this, TrackEditActivity.class)
             .putExtra(TrackEditActivity.EXTRA_TRACK_ID, trackId)
@@ -595,6 +595,8 @@ public class TrackListActivity extends FragmentActivity implements DeleteOneTrac
         getString(R.string.menu_save_format, fileTypes[2]));
     menu.findItem(R.id.track_list_save_all_tcx).setTitle(
         getString(R.string.menu_save_format, fileTypes[3]));
+    menu.findItem(R.id.track_list_save_all_zip).setTitle(
+        getString(R.string.menu_save_format, fileTypes[4]));
 
     searchMenuItem = menu.findItem(R.id.track_list_search);
     startGpsMenuItem = menu.findItem(R.id.track_list_start_gps);
@@ -648,6 +650,9 @@ public class TrackListActivity extends FragmentActivity implements DeleteOneTrac
       case R.id.track_list_save_all_tcx:
         startSaveActivity(TrackFileFormat.TCX);
         return true;
+      case R.id.track_list_save_all_zip:
+        startSaveActivity(TrackFileFormat.ZIP);
+        return true;
       case R.id.track_list_delete_all:
         new DeleteAllTrackDialogFragment().show(getSupportFragmentManager(),
             DeleteAllTrackDialogFragment.DELETE_ALL_TRACK_DIALOG_TAG);
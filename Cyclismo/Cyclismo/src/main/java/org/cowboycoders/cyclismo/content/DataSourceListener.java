@@ -59,6 +59,16 @@ public interface DataSourceListener {
    */
   public void notifyTrackPointsTableUpdated();
 
+  /**
+   * Notifies when track points are inserted, and nothing else changed in the
+   * track points table.
+   *
+   * @param firstId the id of the first inserted point
+   * @param lastId the id of the last inserted point, points of other tracks
+   *          can be in between
+   */
+  public void notifyTrackPointsInserted(long firstId, long lastId);
+
   /**
    * Notifies when the current location changes.
    * 
@@ -45,6 +45,7 @@ import android.location.Location;
 import android.location.LocationListener;
 import android.location.LocationManager;
 import android.location.LocationProvider;
+import android.net.Uri;
 import android.os.Bundle;
 import android.os.Handler;
 import android.util.Log;
@@ -114,6 +115,18 @@ public class DataSourceManager {
     public void onChange(boolean selfChange) {
       dataSourceListener.notifyTrackPointsTableUpdated();
     }
+
+    @Override
+    public void onChange(boolean selfChange, Uri uri) {
+      // Only called with the uri from Jelly Bean on
+      long firstId = NotificationCoalescer.getFirstInsertedId(uri);
+      long lastId = NotificationCoalescer.getLastInsertedId(uri);
+      if (firstId == -1L || lastId == -1L) {
+        onChange(selfChange);
+        return;
+      }
+      dataSourceListener.notifyTrackPointsInserted(firstId, lastId);
+    }
   }
 
   /**
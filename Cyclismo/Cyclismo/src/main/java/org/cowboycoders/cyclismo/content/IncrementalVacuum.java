@@ -0,0 +1,180 @@
+/*
+*    Copyright (c) 2013, Will Szumski
+*    Copyright (c) 2013, Doug Szumski
+*
+*    This file is part of Cyclismo.
+*
+*    Cyclismo is free software: you can redistribute it and/or modify
+*    it under the terms of the GNU General Public License as published by
+*    the Free Software Foundation, either version 3 of the License, or
+*    (at your option) any later version.
+*
+*    Cyclismo is distributed in the hope that it will be useful,
+*    but WITHOUT ANY WARRANTY; without even the implied warranty of
+*    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*    GNU General Public License for more details.
+*
+*    You should have received a copy of the GNU General Public License
+*    along with Cyclismo.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package org.cowboycoders.cyclismo.content;
+
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.util.Log;
+
+import com.google.common.annotations.VisibleForTesting;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reclaims the free pages of a database in auto_vacuum=INCREMENTAL mode on a
+ * background thread, a bounded number of pages per step. Unlike a full VACUUM,
+ * which rewrites the whole file while holding the database, each step only
+ * holds it for as long as freeing its pages takes, so recording and the UI
+ * get in between steps.
+ *
+ * Deleting several tracks in a row schedules a single run, started once the
+ * deletes have settled. A database created before incremental mode is
+ * converted once, by a full VACUUM on the same thread.
+ */
+class IncrementalVacuum {
+
+  private static final String TAG = IncrementalVacuum.class.getSimpleName();
+
+  // The value of PRAGMA auto_vacuum in incremental mode
+  static final int AUTO_VACUUM_INCREMENTAL = 2;
+
+  // The most pages freed by a step, 1MB with the default page size
+  @VisibleForTesting
+  static final int PAGES_PER_STEP = 256;
+
+  // How long after the last delete to start, and to wait between steps
+  private static final long START_DELAY_MS = 2000;
+  private static final long STEP_DELAY_MS = 50;
+
+  private final SQLiteDatabase db;
+  private final ScheduledExecutorService executor;
+  private final Runnable convertRunnable = new Runnable() {
+    @Override
+    public void run() {
+      convert();
+    }
+  };
+  private final Runnable stepRunnable = new Runnable() {
+    @Override
+    public void run() {
+      if (step()) {
+        scheduleStep(STEP_DELAY_MS);
+      }
+    }
+  };
+
+  // Guarded by this
+  private ScheduledFuture<?> pendingStep;
+
+  IncrementalVacuum(SQLiteDatabase db) {
+    this.db = db;
+    this.executor = Executors.newSingleThreadScheduledExecutor();
+  }
+
+  /**
+   * Schedules reclaiming the free pages, after any more deletes that follow
+   * shortly.
+   */
+  void schedule() {
+    scheduleStep(START_DELAY_MS);
+  }
+
+  /**
+   * Converts the database to incremental mode in the background, if it isn't
+   * already.
+   */
+  void scheduleConversion() {
+    executor.execute(convertRunnable);
+  }
+
+  /**
+   * Stops reclaiming, leaving any free pages for the next run.
+   */
+  synchronized void shutdown() {
+    executor.shutdownNow();
+  }
+
+  /**
+   * Frees up to {@link #PAGES_PER_STEP} pages. Returns true if some were freed
+   * and there are more to free.
+   */
+  @VisibleForTesting
+  boolean step() {
+    try {
+      if (!db.isOpen()) {
+        return false;
+      }
+      long freePages = getFreePages();
+      if (freePages == 0) {
+        return false;
+      }
+      // The pragma frees a page each time it's stepped, so it's run as a query and read through
+      Cursor cursor = db.rawQuery("PRAGMA incremental_vacuum(" + PAGES_PER_STEP + ")", null);
+      try {
+        cursor.getCount();
+      } finally {
+        cursor.close();
+      }
+      long remaining = getFreePages();
+      Log.d(TAG, "Freed " + (freePages - remaining) + " pages, " + remaining + " remaining.");
+      // Nothing freed when the database isn't in incremental mode
+      return remaining > 0 && remaining < freePages;
+    } catch (SQLiteException e) {
+      Log.w(TAG, "Unable to vacuum the database.", e);
+      return false;
+    }
+  }
+
+  /**
+   * Switches the database to auto_vacuum=INCREMENTAL if it's in another mode.
+   * This takes a full VACUUM, so it's only done once. If it fails the database
+   * stays in its old mode, where reclaiming has no effect, and the conversion is
+   * tried again the next time. Returns true if the database was converted.
+   */
+  @VisibleForTesting
+  boolean convert() {
+    try {
+      if (!db.isOpen() || db.isReadOnly() || DatabaseUtils.longForQuery(
+          db, "PRAGMA auto_vacuum", null) == AUTO_VACUUM_INCREMENTAL) {
+        return false;
+      }
+      Log.w(TAG, "Converting the database to incremental vacuum.");
+      db.execSQL("PRAGMA auto_vacuum = " + AUTO_VACUUM_INCREMENTAL);
+      db.execSQL("VACUUM");
+      return true;
+    } catch (SQLiteException e) {
+      Log.w(TAG, "Unable to convert the database to incremental vacuum.", e);
+      return false;
+    }
+  }
+
+  /**
+   * Gets the number of unused pages in the database file.
+   */
+  @VisibleForTesting
+  long getFreePages() {
+    return DatabaseUtils.longForQuery(db, "PRAGMA freelist_count", null);
+  }
+
+  private synchronized void scheduleStep(long delayMs) {
+    if (executor.isShutdown()) {
+      return;
+    }
+    if (pendingStep != null) {
+      pendingStep.cancel(false);
+    }
+    pendingStep = executor.schedule(stepRunnable, delayMs, TimeUnit.MILLISECONDS);
+  }
+}
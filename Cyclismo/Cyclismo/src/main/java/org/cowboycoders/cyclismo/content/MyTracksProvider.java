@@ -36,9 +36,12 @@
 package org.cowboycoders.cyclismo.content;
 
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.database.Cursor;
 import android.database.SQLException;
@@ -49,14 +52,25 @@ import android.database.sqlite.SQLiteQueryBuilder;
 import android.net.Uri;
 import android.os.Binder;
 import android.os.Process;
+import android.provider.BaseColumns;
 import android.text.TextUtils;
 import android.util.Log;
 
 import com.google.common.annotations.VisibleForTesting;
+import com.google.protobuf.InvalidProtocolBufferException;
 
 import org.cowboycoders.cyclismo.R;
+import org.cowboycoders.cyclismo.content.Sensor.SensorDataSet;
 import org.cowboycoders.cyclismo.util.PreferencesUtils;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
 /**
  * A {@link ContentProvider} that handles access to track points, tracks, and
  * waypoints tables.
@@ -67,10 +81,25 @@ public class MyTracksProvider extends ContentProvider {
 
   private enum TrackType {COURSE, TRACK}
 
+  /**
+   * Restores rows straight into the database, see {@link #restore}.
+   */
+  public interface DatabaseRestore {
+
+    /**
+     * Restores the rows, in the transaction of the restore.
+     *
+     * @param db the database
+     */
+    void restore(SQLiteDatabase db) throws IOException;
+  }
+
   private static final String TAG = MyTracksProvider.class.getSimpleName();
   @VisibleForTesting
   static final String DATABASE_NAME = "cyclismo.db";
-  private static final int DATABASE_VERSION = 25;
+  private static final int DATABASE_VERSION = 30;
+  // How long to batch change notifications for, shorter than between recorded points
+  private static final long NOTIFICATION_WINDOW_MS = 250;
 
   /**
    * Database helper for creating and upgrading the database.
@@ -89,6 +118,8 @@ public class MyTracksProvider extends ContentProvider {
 
     @Override
     public void onCreate(SQLiteDatabase db) {
+      // Only takes effect before the first table is created
+      db.execSQL("PRAGMA auto_vacuum = " + IncrementalVacuum.AUTO_VACUUM_INCREMENTAL);
       db.execSQL(UserInfoColumns.CREATE_TABLE);
       db.execSQL(TrackPointsColumns.CREATE_TABLE);
       db.execSQL(TracksColumns.CREATE_TABLE);
@@ -97,6 +128,249 @@ public class MyTracksProvider extends ContentProvider {
       db.execSQL(CourseTrackPointsColumns.CREATE_TABLE);
       db.execSQL(CourseTracksColumns.CREATE_TABLE);
       db.execSQL(CourseWaypointsColumns.CREATE_TABLE);
+      createIndexes(db);
+      createTrackStats(db);
+      createSearchIndex(db);
+    }
+
+    /**
+     * Indexes for the track scoped queries in {@link MyTracksProviderUtilsImpl}. Without these
+     * every query for a single track scans the whole table.
+     */
+    private static void createIndexes(SQLiteDatabase db) {
+      db.execSQL(TrackPointsColumns.CREATE_TRACKID_ID_INDEX);
+      db.execSQL(TrackPointsColumns.CREATE_TRACKID_TIME_INDEX);
+      db.execSQL(CourseTrackPointsColumns.CREATE_TRACKID_ID_INDEX);
+      db.execSQL(CourseTrackPointsColumns.CREATE_TRACKID_TIME_INDEX);
+      db.execSQL(WaypointsColumns.CREATE_TRACKID_ID_INDEX);
+      db.execSQL(CourseWaypointsColumns.CREATE_TRACKID_ID_INDEX);
+    }
+
+    /**
+     * Adds the decoded sensor columns to the track points table, if it doesn't have them.
+     */
+    private static void addSensorColumns(SQLiteDatabase db) {
+      String[] columns = {TrackPointsColumns.POWER, TrackPointsColumns.CADENCE,
+          TrackPointsColumns.HEART_RATE, TrackPointsColumns.SENSOR_SPEED};
+      Cursor cursor = db.query(TrackPointsColumns.TABLE_NAME, null, null, null, null, null, null,
+          "0");
+      try {
+        for (String column : columns) {
+          if (cursor.getColumnIndex(column) == -1) {
+            db.execSQL(
+                "ALTER TABLE " + TrackPointsColumns.TABLE_NAME + " ADD " + column + " FLOAT");
+          }
+        }
+      } finally {
+        cursor.close();
+      }
+    }
+
+    /*
+     * The key of the bucket a tracks row falls in, indexed by the bucket types in
+     * TrackStatsColumns. %1$s is the row prefix, e.g. "NEW.". A null key leaves the
+     * track out of that type of bucket.
+     */
+    private static final String[] BUCKET_KEYS = {
+        "0",
+        "CASE WHEN %1$s" + TracksColumns.STARTTIME + " >= 0 THEN ((%1$s" + TracksColumns.STARTTIME
+            + " / 86400000 + 3) / 7 * 7 - 3) * 86400000 END",
+        "CASE WHEN %1$s" + TracksColumns.STARTTIME + " >= 0 THEN CAST(strftime('%%Y%%m', %1$s"
+            + TracksColumns.STARTTIME + " / 1000, 'unixepoch') AS INTEGER) END",
+        "%1$s" + TracksColumns.OWNER,
+    };
+
+    /**
+     * (Re)creates the track statistics table from the tracks table, along with the triggers that
+     * keep it up to date. Sums are updated incrementally. A min or max is only recomputed from the
+     * tracks in its bucket when the track holding it is deleted or updated to a less extreme value,
+     * which doesn't happen while recording.
+     */
+    @VisibleForTesting
+    static void createTrackStats(SQLiteDatabase db) {
+      db.execSQL("DROP TRIGGER IF EXISTS " + TracksColumns.TABLE_NAME + "_insert_stats");
+      db.execSQL("DROP TRIGGER IF EXISTS " + TracksColumns.TABLE_NAME + "_update_stats");
+      db.execSQL("DROP TRIGGER IF EXISTS " + TracksColumns.TABLE_NAME + "_delete_stats");
+      db.execSQL("DROP TABLE IF EXISTS " + TrackStatsColumns.TABLE_NAME);
+      db.execSQL(TrackStatsColumns.CREATE_TABLE);
+
+      for (int bucketType = 0; bucketType < BUCKET_KEYS.length; bucketType++) {
+        db.execSQL(rebuildBucketsSql(bucketType));
+      }
+
+      StringBuilder insert = new StringBuilder();
+      StringBuilder update = new StringBuilder();
+      StringBuilder delete = new StringBuilder();
+      for (int bucketType = 0; bucketType < BUCKET_KEYS.length; bucketType++) {
+        addToBucketSql(insert, bucketType);
+        removeFromBucketSql(update, bucketType, true);
+        addToBucketSql(update, bucketType);
+        removeFromBucketSql(delete, bucketType, false);
+      }
+      db.execSQL("CREATE TRIGGER " + TracksColumns.TABLE_NAME + "_insert_stats AFTER INSERT ON "
+          + TracksColumns.TABLE_NAME + " BEGIN " + insert + "END;");
+      db.execSQL("CREATE TRIGGER " + TracksColumns.TABLE_NAME + "_update_stats AFTER UPDATE ON "
+          + TracksColumns.TABLE_NAME + " BEGIN " + update + "END;");
+      db.execSQL("CREATE TRIGGER " + TracksColumns.TABLE_NAME + "_delete_stats AFTER DELETE ON "
+          + TracksColumns.TABLE_NAME + " BEGIN " + delete + "END;");
+    }
+
+    private static String bucketKey(int bucketType, String prefix) {
+      return String.format(BUCKET_KEYS[bucketType], prefix);
+    }
+
+    private static String rebuildBucketsSql(int bucketType) {
+      String key = bucketKey(bucketType, "");
+      StringBuilder columns = new StringBuilder(TrackStatsColumns.BUCKETTYPE + ", "
+          + TrackStatsColumns.BUCKETKEY + ", " + TrackStatsColumns.NUMTRACKS);
+      StringBuilder values = new StringBuilder(
+          bucketType + ", " + key + ", COUNT(*) AS " + TrackStatsColumns.NUMTRACKS);
+      for (String column : TrackStatsColumns.SUM_COLUMNS) {
+        columns.append(", ").append(column);
+        values.append(", COALESCE(SUM(").append(column).append("), 0)");
+      }
+      for (String column : TrackStatsColumns.MIN_COLUMNS) {
+        columns.append(", ").append(column);
+        values.append(", MIN(").append(column).append(")");
+      }
+      for (String column : TrackStatsColumns.MAX_COLUMNS) {
+        columns.append(", ").append(column);
+        values.append(", MAX(").append(column).append(")");
+      }
+      // A constant key can't be grouped by, and without a GROUP BY there is always a row
+      String groupBy = bucketType == TrackStatsColumns.BUCKET_ALL ? "" : " GROUP BY " + key;
+      return "INSERT INTO " + TrackStatsColumns.TABLE_NAME + " (" + columns + ") SELECT * FROM "
+          + "(SELECT " + values + " FROM " + TracksColumns.TABLE_NAME + " WHERE " + key
+          + " IS NOT NULL" + groupBy + ") WHERE " + TrackStatsColumns.NUMTRACKS + " > 0";
+    }
+
+    private static void addToBucketSql(StringBuilder sql, int bucketType) {
+      String key = bucketKey(bucketType, "NEW.");
+      sql.append("INSERT OR IGNORE INTO ").append(TrackStatsColumns.TABLE_NAME).append(" (")
+          .append(TrackStatsColumns.BUCKETTYPE).append(", ").append(TrackStatsColumns.BUCKETKEY)
+          .append(") SELECT ").append(bucketType).append(", ").append(key)
+          .append(" WHERE ").append(key).append(" IS NOT NULL; ");
+      sql.append("UPDATE ").append(TrackStatsColumns.TABLE_NAME).append(" SET ")
+          .append(TrackStatsColumns.NUMTRACKS).append(" = ")
+          .append(TrackStatsColumns.NUMTRACKS).append(" + 1");
+      for (String column : TrackStatsColumns.SUM_COLUMNS) {
+        sql.append(", ").append(column).append(" = ").append(column)
+            .append(" + COALESCE(NEW.").append(column).append(", 0)");
+      }
+      // The multi-argument MIN and MAX are null if any argument is
+      for (String column : TrackStatsColumns.MIN_COLUMNS) {
+        sql.append(", ").append(column).append(" = COALESCE(MIN(").append(column)
+            .append(", NEW.").append(column).append("), ").append(column)
+            .append(", NEW.").append(column).append(")");
+      }
+      for (String column : TrackStatsColumns.MAX_COLUMNS) {
+        sql.append(", ").append(column).append(" = COALESCE(MAX(").append(column)
+            .append(", NEW.").append(column).append("), ").append(column)
+            .append(", NEW.").append(column).append(")");
+      }
+      sql.append(" WHERE ").append(bucketMatch(bucketType, key)).append("; ");
+    }
+
+    /**
+     * @param isUpdate true if NEW is added back afterwards, so an extreme only needs recomputing
+     *          if NEW is in another bucket or is less extreme than OLD
+     */
+    private static void removeFromBucketSql(StringBuilder sql, int bucketType, boolean isUpdate) {
+      String key = bucketKey(bucketType, "OLD.");
+      String others = " FROM " + TracksColumns.TABLE_NAME + " WHERE " + bucketKey(bucketType, "")
+          + " = " + key + " AND " + TracksColumns._ID + " != OLD." + TracksColumns._ID + ")";
+      String sameBucket = bucketKey(bucketType, "NEW.") + " IS " + key;
+      sql.append("UPDATE ").append(TrackStatsColumns.TABLE_NAME).append(" SET ")
+          .append(TrackStatsColumns.NUMTRACKS).append(" = ")
+          .append(TrackStatsColumns.NUMTRACKS).append(" - 1");
+      for (String column : TrackStatsColumns.SUM_COLUMNS) {
+        sql.append(", ").append(column).append(" = ").append(column)
+            .append(" - COALESCE(OLD.").append(column).append(", 0)");
+      }
+      for (String column : TrackStatsColumns.MIN_COLUMNS) {
+        sql.append(", ").append(column).append(" = CASE WHEN OLD.").append(column)
+            .append(" IS NULL OR OLD.").append(column).append(" > ").append(column);
+        if (isUpdate) {
+          sql.append(" OR (").append(sameBucket).append(" AND NEW.").append(column)
+              .append(" <= OLD.").append(column).append(")");
+        }
+        sql.append(" THEN ").append(column).append(" ELSE (SELECT MIN(").append(column)
+            .append(")").append(others).append(" END");
+      }
+      for (String column : TrackStatsColumns.MAX_COLUMNS) {
+        sql.append(", ").append(column).append(" = CASE WHEN OLD.").append(column)
+            .append(" IS NULL OR OLD.").append(column).append(" < ").append(column);
+        if (isUpdate) {
+          sql.append(" OR (").append(sameBucket).append(" AND NEW.").append(column)
+              .append(" >= OLD.").append(column).append(")");
+        }
+        sql.append(" THEN ").append(column).append(" ELSE (SELECT MAX(").append(column)
+            .append(")").append(others).append(" END");
+      }
+      sql.append(" WHERE ").append(bucketMatch(bucketType, key)).append("; ");
+      sql.append("DELETE FROM ").append(TrackStatsColumns.TABLE_NAME).append(" WHERE ")
+          .append(bucketMatch(bucketType, key)).append(" AND ")
+          .append(TrackStatsColumns.NUMTRACKS).append(" <= 0; ");
+    }
+
+    private static String bucketMatch(int bucketType, String key) {
+      return TrackStatsColumns.BUCKETTYPE + " = " + bucketType + " AND "
+          + TrackStatsColumns.BUCKETKEY + " = " + key;
+    }
+
+    // The columns searched by the SearchEngine, the same in tracks and waypoints
+    private static final String[] SEARCH_COLUMNS = {
+        TracksColumns.NAME,
+        TracksColumns.DESCRIPTION,
+        TracksColumns.CATEGORY,
+    };
+
+    /**
+     * (Re)creates the full text search tables from the tracks and waypoints tables, along with
+     * the triggers that keep them in sync.
+     */
+    @VisibleForTesting
+    static void createSearchIndex(SQLiteDatabase db) {
+      createSearchIndex(db, TracksColumns.TABLE_NAME, TracksColumns.SEARCH_TABLE_NAME);
+      createSearchIndex(db, WaypointsColumns.TABLE_NAME, WaypointsColumns.SEARCH_TABLE_NAME);
+    }
+
+    private static void createSearchIndex(SQLiteDatabase db, String table, String searchTable) {
+      db.execSQL("DROP TRIGGER IF EXISTS " + table + "_insert_search");
+      db.execSQL("DROP TRIGGER IF EXISTS " + table + "_update_search");
+      db.execSQL("DROP TRIGGER IF EXISTS " + table + "_delete_search");
+      db.execSQL("DROP TABLE IF EXISTS " + searchTable);
+
+      String columns = TextUtils.join(", ", SEARCH_COLUMNS);
+      try {
+        // Folds case and accents of all scripts, with prefix indexes for search as you type
+        db.execSQL("CREATE VIRTUAL TABLE " + searchTable + " USING fts4(" + columns
+            + ", tokenize=unicode61, prefix=\"1,2,3\")");
+      } catch (SQLiteException e) {
+        // Before SQLite 3.7.13, prefix queries still work but only ASCII case is folded
+        Log.w(TAG, "Creating " + searchTable + " without unicode61 and prefix indexes.", e);
+        db.execSQL("CREATE VIRTUAL TABLE " + searchTable + " USING fts4(" + columns + ")");
+      }
+      db.execSQL("INSERT INTO " + searchTable + " (docid, " + columns + ") SELECT "
+          + BaseColumns._ID + ", " + columns + " FROM " + table);
+      db.execSQL("INSERT INTO " + searchTable + " (" + searchTable + ") VALUES ('optimize')");
+
+      String insert = "INSERT INTO " + searchTable + " (docid, " + columns + ") VALUES (NEW."
+          + BaseColumns._ID + ", NEW." + TextUtils.join(", NEW.", SEARCH_COLUMNS) + "); ";
+      String delete = "DELETE FROM " + searchTable + " WHERE docid = OLD." + BaseColumns._ID
+          + "; ";
+      // Recording a track updates it every few seconds, without changing the text
+      StringBuilder changed = new StringBuilder("NEW." + BaseColumns._ID + " IS NOT OLD."
+          + BaseColumns._ID);
+      for (String column : SEARCH_COLUMNS) {
+        changed.append(" OR NEW.").append(column).append(" IS NOT OLD.").append(column);
+      }
+      db.execSQL("CREATE TRIGGER " + table + "_insert_search AFTER INSERT ON " + table
+          + " BEGIN " + insert + "END;");
+      db.execSQL("CREATE TRIGGER " + table + "_update_search AFTER UPDATE ON " + table
+          + " WHEN " + changed + " BEGIN " + delete + insert + "END;");
+      db.execSQL("CREATE TRIGGER " + table + "_delete_search AFTER DELETE ON " + table
+          + " BEGIN " + delete + "END;");
     }
 
     @Override
@@ -112,6 +386,9 @@ public class MyTracksProvider extends ContentProvider {
         db.execSQL("DROP TABLE IF EXISTS " + CourseTrackPointsColumns.TABLE_NAME);
         db.execSQL("DROP TABLE IF EXISTS " + CourseTracksColumns.TABLE_NAME);
         db.execSQL("DROP TABLE IF EXISTS " + CourseWaypointsColumns.TABLE_NAME);
+        db.execSQL("DROP TABLE IF EXISTS " + TrackStatsColumns.TABLE_NAME);
+        db.execSQL("DROP TABLE IF EXISTS " + TracksColumns.SEARCH_TABLE_NAME);
+        db.execSQL("DROP TABLE IF EXISTS " + WaypointsColumns.SEARCH_TABLE_NAME);
         onCreate(db);
       } else {
         // Incremental upgrades. One if statement per DB version.
@@ -134,7 +411,30 @@ public class MyTracksProvider extends ContentProvider {
 //          db.execSQL(
 //              "ALTER TABLE " + TracksColumns.TABLE_NAME + " ADD " + TracksColumns.ICON + " STRING");
 //        }
-        onCreate(db);
+        // Add track scoped indexes
+        if (oldVersion <= 25) {
+          Log.w(TAG, "Upgrade DB: Adding track indexes.");
+          createIndexes(db);
+        }
+        // Add materialized track statistics
+        if (oldVersion <= 26) {
+          Log.w(TAG, "Upgrade DB: Adding track statistics.");
+          createTrackStats(db);
+        }
+        // Add full text search index
+        if (oldVersion <= 27) {
+          Log.w(TAG, "Upgrade DB: Adding search index.");
+          createSearchIndex(db);
+        }
+        // Add decoded sensor columns, filled in the background by SensorColumnsBackfill
+        if (oldVersion <= 28) {
+          Log.w(TAG, "Upgrade DB: Adding decoded sensor columns.");
+          addSensorColumns(db);
+        }
+        // Switch to incremental vacuum, see IncrementalVacuum#convert
+        if (oldVersion <= 29) {
+          Log.w(TAG, "Upgrade DB: Converting to incremental vacuum in the background.");
+        }
       }
     }
   }
@@ -154,10 +454,43 @@ public class MyTracksProvider extends ContentProvider {
     COURSE_TRACKPOINTS, COURSE_TRACKPOINTS_ID,
     COURSE_TRACKS, COURSE_TRACKS_ID,
     COURSE_WAYPOINTS, COURSE_WAYPOINTS_ID,
+    TRACK_STATS,
+  }
+
+  /**
+   * The transaction of a thread, and the notifications of the changes made
+   * in it. The notifications are passed on once the outermost transaction
+   * commits, and dropped if it rolls back, as the ids inserted are then
+   * handed out again.
+   */
+  private static class Transaction {
+    int depth;
+    // Whether the innermost transaction was marked successful
+    boolean successful;
+    // Whether a nested transaction failed, which rolls back the outermost
+    boolean failed;
+    // The first and last ids inserted, by url
+    final Map<Uri, long[]> inserted = new LinkedHashMap<Uri, long[]>();
+    final Set<Uri> changed = new LinkedHashSet<Uri>();
+
+    void clear() {
+      failed = false;
+      inserted.clear();
+      changed.clear();
+    }
   }
 
   private final UriMatcher uriMatcher;
+  private final ThreadLocal<Transaction> transactions = new ThreadLocal<Transaction>() {
+    @Override
+    protected Transaction initialValue() {
+      return new Transaction();
+    }
+  };
   private SQLiteDatabase db;
+  private IncrementalVacuum incrementalVacuum;
+  private SensorColumnsBackfill sensorColumnsBackfill;
+  private NotificationCoalescer notificationCoalescer;
 
   public MyTracksProvider() {
     uriMatcher = new UriMatcher(UriMatcher.NO_MATCH);
@@ -225,6 +558,11 @@ public class MyTracksProvider extends ContentProvider {
     uriMatcher.addURI(MyTracksProviderUtils.AUTHORITY,
         CourseWaypointsColumns.TABLE_NAME + "/#",
         UrlType.COURSE_WAYPOINTS_ID.ordinal());
+
+    // Track statistics
+    uriMatcher.addURI(MyTracksProviderUtils.AUTHORITY,
+        TrackStatsColumns.TABLE_NAME,
+        UrlType.TRACK_STATS.ordinal());
   }
 
   @Override
@@ -249,9 +587,25 @@ public class MyTracksProvider extends ContentProvider {
     } catch (SQLiteException e) {
       Log.e(TAG, "Unable to open database for writing.", e);
     }
+    if (db != null) {
+      incrementalVacuum = new IncrementalVacuum(db);
+      incrementalVacuum.scheduleConversion();
+      sensorColumnsBackfill = new SensorColumnsBackfill(context, db);
+      sensorColumnsBackfill.start();
+    }
+    notificationCoalescer = new NotificationCoalescer(
+        context.getContentResolver(), NOTIFICATION_WINDOW_MS);
     return db != null;
   }
 
+  /**
+   * Gets the batcher of the change notifications.
+   */
+  @VisibleForTesting
+  NotificationCoalescer getNotificationCoalescer() {
+    return notificationCoalescer;
+  }
+
   @Override
   public int delete(Uri url, String where, String[] selectionArgs) {
     if (!canAccess()) {
@@ -292,23 +646,111 @@ public class MyTracksProvider extends ContentProvider {
 
     Log.w(MyTracksProvider.TAG, "Deleting table " + table);
     int count;
+    beginTransaction();
     try {
-      db.beginTransaction();
       count = db.delete(table, where, selectionArgs);
-      db.setTransactionSuccessful();
+      setTransactionSuccessful();
     } finally {
-      db.endTransaction();
+      endTransaction();
     }
-    getContext().getContentResolver().notifyChange(url, null, true);
+    notifyChange(url);
 
-    if (shouldVacuum) {
-      // If a potentially large amount of data was deleted, reclaim its space.
-      Log.i(TAG, "Vacuuming the database.");
-      db.execSQL("VACUUM");
+    if (shouldVacuum && count > 0) {
+      // If a potentially large amount of data was deleted, reclaim its space in the background.
+      incrementalVacuum.schedule();
     }
     return count;
   }
 
+  /**
+   * Applies the operations in a single transaction, so that, for example, several tracks are
+   * deleted along with their points and waypoints all at once, or not at all.
+   */
+  @Override
+  public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+      throws OperationApplicationException {
+    if (!canAccess()) {
+      return new ContentProviderResult[0];
+    }
+    beginTransaction();
+    try {
+      ContentProviderResult[] results = super.applyBatch(operations);
+      setTransactionSuccessful();
+      return results;
+    } finally {
+      endTransaction();
+    }
+  }
+
+  /**
+   * Runs a restore straight against the database, for restoring a large
+   * backup. The restore runs in one exclusive transaction, so nothing sees
+   * the tables half restored and a failed restore leaves them as they were.
+   * The indexes of the tables are dropped for the restore and built again
+   * once the rows are in, and the change notifications, including those of
+   * calls made through the provider by the restore, are held until it
+   * commits.
+   *
+   * @param urls the content urls of the tables restored
+   * @param restore the restore
+   */
+  public void restore(Uri[] urls, DatabaseRestore restore) throws IOException {
+    if (!canAccess()) {
+      return;
+    }
+    notificationCoalescer.hold();
+    try {
+      // An exclusive transaction
+      beginTransaction();
+      try {
+        List<String> indexes = new ArrayList<String>();
+        for (Uri url : urls) {
+          indexes.addAll(dropIndexes(url.getLastPathSegment()));
+        }
+        restore.restore(db);
+        for (String index : indexes) {
+          db.execSQL(index);
+        }
+        setTransactionSuccessful();
+      } finally {
+        endTransaction();
+      }
+      for (Uri url : urls) {
+        notificationCoalescer.notifyChange(url);
+      }
+    } finally {
+      notificationCoalescer.release();
+    }
+    // The restore deleted whatever was there before
+    incrementalVacuum.schedule();
+  }
+
+  /**
+   * Drops the indexes of a table, returning the statements to create them
+   * again.
+   *
+   * @param table the table
+   */
+  private List<String> dropIndexes(String table) {
+    List<String> indexes = new ArrayList<String>();
+    List<String> names = new ArrayList<String>();
+    // Indexes SQLite makes itself have no statement, and can't be dropped
+    Cursor cursor = db.rawQuery("SELECT name, sql FROM sqlite_master WHERE type = 'index'"
+        + " AND tbl_name = ? AND sql IS NOT NULL", new String[] {table});
+    try {
+      while (cursor.moveToNext()) {
+        names.add(cursor.getString(0));
+        indexes.add(cursor.getString(1));
+      }
+    } finally {
+      cursor.close();
+    }
+    for (String name : names) {
+      db.execSQL("DROP INDEX " + name);
+    }
+    return indexes;
+  }
+
   @Override
   public String getType(Uri url) {
     if (!canAccess()) {
@@ -347,6 +789,8 @@ public class MyTracksProvider extends ContentProvider {
         return CourseWaypointsColumns.CONTENT_TYPE;
       case COURSE_WAYPOINTS_ID:
         return CourseWaypointsColumns.CONTENT_ITEMTYPE;
+      case TRACK_STATS:
+        return TrackStatsColumns.CONTENT_TYPE;
       default:
         throw new IllegalArgumentException("Unknown URL " + url);
     }
@@ -361,12 +805,12 @@ public class MyTracksProvider extends ContentProvider {
       initialValues = new ContentValues();
     }
     Uri result = null;
+    beginTransaction();
     try {
-      db.beginTransaction();
       result = insertContentValues(url, getUrlType(url), initialValues);
-      db.setTransactionSuccessful();
+      setTransactionSuccessful();
     } finally {
-      db.endTransaction();
+      endTransaction();
     }
     return result;
   }
@@ -377,10 +821,9 @@ public class MyTracksProvider extends ContentProvider {
       return 0;
     }
     int numInserted = 0;
+    // Use a transaction in order to make the insertions run as a single batch
+    beginTransaction();
     try {
-      // Use a transaction in order to make the insertions run as a single batch
-      db.beginTransaction();
-
       UrlType urlType = getUrlType(url);
       for (numInserted = 0; numInserted < valuesBulk.length; numInserted++) {
         ContentValues contentValues = valuesBulk[numInserted];
@@ -389,9 +832,9 @@ public class MyTracksProvider extends ContentProvider {
         }
         insertContentValues(url, urlType, contentValues);
       }
-      db.setTransactionSuccessful();
+      setTransactionSuccessful();
     } finally {
-      db.endTransaction();
+      endTransaction();
     }
     return numInserted;
   }
@@ -404,6 +847,7 @@ public class MyTracksProvider extends ContentProvider {
     }
     SQLiteQueryBuilder queryBuilder = new SQLiteQueryBuilder();
     String sortOrder = null;
+    Uri notificationUri = url;
     switch (getUrlType(url)) {
       case TRACKPOINTS:
         queryBuilder.setTables(TrackPointsColumns.TABLE_NAME);
@@ -469,12 +913,18 @@ public class MyTracksProvider extends ContentProvider {
         queryBuilder.setTables(CourseWaypointsColumns.TABLE_NAME);
         queryBuilder.appendWhere("_id=" + url.getPathSegments().get(1));
         break;
+      case TRACK_STATS:
+        queryBuilder.setTables(TrackStatsColumns.TABLE_NAME);
+        sortOrder = sort != null ? sort : TrackStatsColumns.DEFAULT_SORT_ORDER;
+        // Only changes when the tracks do
+        notificationUri = TracksColumns.CONTENT_URI;
+        break;
       default:
         throw new IllegalArgumentException("Unknown url " + url);
     }
     Cursor cursor = queryBuilder.query(
         db, projection, selection, selectionArgs, null, null, sortOrder);
-    cursor.setNotificationUri(getContext().getContentResolver(), url);
+    cursor.setNotificationUri(getContext().getContentResolver(), notificationUri);
     return cursor;
   }
 
@@ -489,6 +939,7 @@ public class MyTracksProvider extends ContentProvider {
       case TRACKPOINTS:
         table = TrackPointsColumns.TABLE_NAME;
         whereClause = where;
+        decodeSensorColumns(values);
         break;
       case TRACKPOINTS_ID:
         table = TrackPointsColumns.TABLE_NAME;
@@ -496,6 +947,7 @@ public class MyTracksProvider extends ContentProvider {
         if (!TextUtils.isEmpty(where)) {
           whereClause += " AND (" + where + ")";
         }
+        decodeSensorColumns(values);
         break;
       case TRACKS:
         table = TracksColumns.TABLE_NAME;
@@ -578,17 +1030,98 @@ public class MyTracksProvider extends ContentProvider {
         throw new IllegalArgumentException("Unknown url " + url);
     }
     int count;
+    beginTransaction();
     try {
-      db.beginTransaction();
       count = db.update(table, values, whereClause, selectionArgs);
-      db.setTransactionSuccessful();
+      setTransactionSuccessful();
     } finally {
-      db.endTransaction();
+      endTransaction();
     }
-    getContext().getContentResolver().notifyChange(url, null, true);
+    notifyChange(url);
     return count;
   }
 
+  /**
+   * Begins an exclusive transaction, nested in any this thread is in.
+   */
+  private void beginTransaction() {
+    db.beginTransaction();
+    transactions.get().depth++;
+  }
+
+  /**
+   * Marks the innermost transaction successful, see
+   * {@link SQLiteDatabase#setTransactionSuccessful}.
+   */
+  private void setTransactionSuccessful() {
+    db.setTransactionSuccessful();
+    transactions.get().successful = true;
+  }
+
+  /**
+   * Ends the innermost transaction. Once the outermost ends, the
+   * notifications of its changes are passed on if it committed, and dropped
+   * if it rolled back.
+   */
+  private void endTransaction() {
+    Transaction transaction = transactions.get();
+    if (!transaction.successful) {
+      transaction.failed = true;
+    }
+    // The enclosing transaction is marked successful once this one has ended
+    transaction.successful = false;
+    try {
+      db.endTransaction();
+    } finally {
+      if (--transaction.depth == 0) {
+        if (!transaction.failed) {
+          for (Map.Entry<Uri, long[]> entry : transaction.inserted.entrySet()) {
+            notificationCoalescer.notifyInserted(entry.getKey(), entry.getValue()[0]);
+            notificationCoalescer.notifyInserted(entry.getKey(), entry.getValue()[1]);
+          }
+          for (Uri url : transaction.changed) {
+            notificationCoalescer.notifyChange(url);
+          }
+        }
+        transaction.clear();
+      }
+    }
+  }
+
+  /**
+   * Notifies a row was inserted, once the transaction commits.
+   *
+   * @param url the url inserted into
+   * @param id the id of the row
+   */
+  private void notifyInserted(Uri url, long id) {
+    Transaction transaction = transactions.get();
+    if (transaction.depth == 0) {
+      notificationCoalescer.notifyInserted(url, id);
+      return;
+    }
+    long[] range = transaction.inserted.get(url);
+    if (range == null) {
+      transaction.inserted.put(url, new long[] {id, id});
+    } else {
+      range[0] = Math.min(range[0], id);
+      range[1] = Math.max(range[1], id);
+    }
+  }
+
+  /**
+   * Notifies rows of a url were updated or deleted, once the transaction
+   * commits.
+   */
+  private void notifyChange(Uri url) {
+    Transaction transaction = transactions.get();
+    if (transaction.depth == 0) {
+      notificationCoalescer.notifyChange(url);
+    } else {
+      transaction.changed.add(url);
+    }
+  }
+
   /**
    * Returns true if the caller can access the content provider.
    */
@@ -654,7 +1187,7 @@ public class MyTracksProvider extends ContentProvider {
     long rowId = db.insert(BikeInfoColumns.TABLE_NAME, BikeInfoColumns._ID, values);
     if (rowId >= 0) {
       Uri uri = ContentUris.appendId(BikeInfoColumns.CONTENT_URI.buildUpon(), rowId).build();
-      getContext().getContentResolver().notifyChange(url, null, true);
+      notifyInserted(url, rowId);
       return uri;
     }
     throw new SQLiteException("Failed to insert a bike " + url);
@@ -674,7 +1207,7 @@ public class MyTracksProvider extends ContentProvider {
     long rowId = db.insert(UserInfoColumns.TABLE_NAME, UserInfoColumns._ID, values);
     if (rowId >= 0) {
       Uri uri = ContentUris.appendId(UserInfoColumns.CONTENT_URI.buildUpon(), rowId).build();
-      getContext().getContentResolver().notifyChange(url, null, true);
+      notifyInserted(url, rowId);
       return uri;
     }
     throw new SQLiteException("Failed to insert a user " + url);
@@ -722,15 +1255,41 @@ public class MyTracksProvider extends ContentProvider {
     if (!hasLatitude || !hasLongitude || !hasTime) {
       throw new IllegalArgumentException("Latitude, longitude, and time values are required.");
     }
+    if (trackType == TrackType.TRACK) {
+      decodeSensorColumns(values);
+    }
     long rowId = db.insert(tableName, columnId, values);
     if (rowId >= 0) {
       Uri uri = ContentUris.appendId(contentUri.buildUpon(), rowId).build();
-      getContext().getContentResolver().notifyChange(url, null, true);
+      notifyInserted(url, rowId);
       return uri;
     }
     throw new SQLiteException("Failed to insert a track point " + url);
   }
 
+  /**
+   * Decodes the sensor columns of a track point from its sensor blob, if the blob is set without
+   * them. {@link MyTracksProviderUtilsImpl} sets them itself, but rows restored from a backup
+   * made before the columns existed only have the blob.
+   *
+   * @param values the content values
+   */
+  private void decodeSensorColumns(ContentValues values) {
+    if (!values.containsKey(TrackPointsColumns.SENSOR) || SensorDataColumns.hasAny(values)) {
+      return;
+    }
+    byte[] blob = values.getAsByteArray(TrackPointsColumns.SENSOR);
+    SensorDataSet sensorDataSet = null;
+    if (blob != null) {
+      try {
+        sensorDataSet = SensorDataSet.parseFrom(blob);
+      } catch (InvalidProtocolBufferException e) {
+        Log.w(TAG, "Failed to parse sensor data.", e);
+      }
+    }
+    SensorDataColumns.put(values, sensorDataSet);
+  }
+
   /**
    * Inserts a track into the database.
    *
@@ -772,7 +1331,7 @@ public class MyTracksProvider extends ContentProvider {
     long rowId = db.insert(tableName, columnId, contentValues);
     if (rowId >= 0) {
       Uri uri = ContentUris.appendId(contentUri.buildUpon(), rowId).build();
-      getContext().getContentResolver().notifyChange(url, null, true);
+      notifyInserted(url, rowId);
       return uri;
     }
     throw new SQLException("Failed to insert a track " + url);
@@ -808,7 +1367,7 @@ public class MyTracksProvider extends ContentProvider {
     long rowId = db.insert(tableName, columnId, contentValues);
     if (rowId >= 0) {
       Uri uri = ContentUris.appendId(contentUri.buildUpon(), rowId).build();
-      getContext().getContentResolver().notifyChange(url, null, true);
+      notifyInserted(url, rowId);
       return uri;
     }
     throw new SQLException("Failed to insert a waypoint " + url);
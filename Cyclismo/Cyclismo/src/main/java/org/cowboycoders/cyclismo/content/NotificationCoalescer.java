@@ -0,0 +1,233 @@
+/*
+*    Copyright (c) 2013, Will Szumski
+*    Copyright (c) 2013, Doug Szumski
+*
+*    This file is part of Cyclismo.
+*
+*    Cyclismo is free software: you can redistribute it and/or modify
+*    it under the terms of the GNU General Public License as published by
+*    the Free Software Foundation, either version 3 of the License, or
+*    (at your option) any later version.
+*
+*    Cyclismo is distributed in the hope that it will be useful,
+*    but WITHOUT ANY WARRANTY; without even the implied warranty of
+*    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*    GNU General Public License for more details.
+*
+*    You should have received a copy of the GNU General Public License
+*    along with Cyclismo.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package org.cowboycoders.cyclismo.content;
+
+import android.content.ContentResolver;
+import android.net.Uri;
+
+import com.google.common.annotations.VisibleForTesting;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Batches the change notifications of {@link MyTracksProvider}. Changes to a
+ * url within a window are sent as one notification, at the end of the window.
+ *
+ * When the only changes to a url are inserts, the notification carries the
+ * range of inserted ids as query parameters, see {@link #getFirstInsertedId}
+ * and {@link #getLastInsertedId}, so that observers can read just the new
+ * rows. The range covers every row inserted into the table in the window,
+ * whichever track it belongs to.
+ *
+ * Notifications can also be held while a long change is made, see
+ * {@link #hold}, so that observers don't query a half made change.
+ */
+class NotificationCoalescer {
+
+  @VisibleForTesting
+  static final String FIRST_INSERTED_ID = "firstinsertedid";
+  @VisibleForTesting
+  static final String LAST_INSERTED_ID = "lastinsertedid";
+
+  /**
+   * The pending changes to a url.
+   */
+  private static class Change {
+    long firstInsertedId = Long.MAX_VALUE;
+    long lastInsertedId = -1L;
+    // True if rows were updated or deleted, as well as inserted
+    boolean changed;
+  }
+
+  private final ContentResolver contentResolver;
+  private final ScheduledExecutorService executor;
+  private final Runnable flushRunnable = new Runnable() {
+    @Override
+    public void run() {
+      flush();
+    }
+  };
+
+  // Guarded by this
+  private long windowMs;
+  private final Map<Uri, Change> changes = new LinkedHashMap<Uri, Change>();
+  private ScheduledFuture<?> pendingFlush;
+  private int holds;
+
+  /**
+   * Constructor.
+   *
+   * @param contentResolver the content resolver to notify
+   * @param windowMs how long to batch changes for, 0 to notify straight away
+   */
+  NotificationCoalescer(ContentResolver contentResolver, long windowMs) {
+    this.contentResolver = contentResolver;
+    this.windowMs = windowMs;
+    this.executor = Executors.newSingleThreadScheduledExecutor();
+  }
+
+  /**
+   * Sets how long to batch changes for, 0 to notify straight away.
+   */
+  synchronized void setWindow(long windowMs) {
+    this.windowMs = windowMs;
+  }
+
+  /**
+   * Holds the notifications, whatever the window, until {@link #release} is
+   * called as many times as this.
+   */
+  synchronized void hold() {
+    holds++;
+  }
+
+  /**
+   * Releases the notifications held by {@link #hold}, sending them straight
+   * away once there are no more holds.
+   */
+  void release() {
+    synchronized (this) {
+      if (--holds > 0) {
+        return;
+      }
+    }
+    flush();
+  }
+
+  /**
+   * Notifies rows of a url were updated or deleted.
+   */
+  void notifyChange(Uri url) {
+    synchronized (this) {
+      getChange(url).changed = true;
+    }
+    schedule();
+  }
+
+  /**
+   * Notifies a row was inserted.
+   *
+   * @param url the url inserted into
+   * @param id the id of the row
+   */
+  void notifyInserted(Uri url, long id) {
+    synchronized (this) {
+      Change change = getChange(url);
+      change.firstInsertedId = Math.min(change.firstInsertedId, id);
+      change.lastInsertedId = Math.max(change.lastInsertedId, id);
+    }
+    schedule();
+  }
+
+  /**
+   * Sends the pending notifications.
+   */
+  void flush() {
+    Map<Uri, Change> flushed;
+    synchronized (this) {
+      if (holds > 0) {
+        // Flushed on release
+        pendingFlush = null;
+        return;
+      }
+      if (changes.isEmpty()) {
+        return;
+      }
+      flushed = new LinkedHashMap<Uri, Change>(changes);
+      changes.clear();
+      pendingFlush = null;
+    }
+    for (Map.Entry<Uri, Change> entry : flushed.entrySet()) {
+      Uri url = entry.getKey();
+      Change change = entry.getValue();
+      if (!change.changed) {
+        url = url.buildUpon()
+            .appendQueryParameter(FIRST_INSERTED_ID, Long.toString(change.firstInsertedId))
+            .appendQueryParameter(LAST_INSERTED_ID, Long.toString(change.lastInsertedId))
+            .build();
+      }
+      contentResolver.notifyChange(url, null, true);
+    }
+  }
+
+  /**
+   * Gets the id of the first row inserted, or -1 if the notification doesn't
+   * carry a range of inserted ids.
+   *
+   * @param url the url of the notification, can be null
+   */
+  static long getFirstInsertedId(Uri url) {
+    return getId(url, FIRST_INSERTED_ID);
+  }
+
+  /**
+   * Gets the id of the last row inserted, or -1 if the notification doesn't
+   * carry a range of inserted ids.
+   *
+   * @param url the url of the notification, can be null
+   */
+  static long getLastInsertedId(Uri url) {
+    return getId(url, LAST_INSERTED_ID);
+  }
+
+  private static long getId(Uri url, String parameter) {
+    if (url == null || url.isOpaque()) {
+      return -1L;
+    }
+    String id = url.getQueryParameter(parameter);
+    if (id == null) {
+      return -1L;
+    }
+    try {
+      return Long.parseLong(id);
+    } catch (NumberFormatException e) {
+      return -1L;
+    }
+  }
+
+  private Change getChange(Uri url) {
+    Change change = changes.get(url);
+    if (change == null) {
+      change = new Change();
+      changes.put(url, change);
+    }
+    return change;
+  }
+
+  private void schedule() {
+    synchronized (this) {
+      if (holds > 0) {
+        return;
+      }
+      if (windowMs > 0) {
+        if (pendingFlush == null) {
+          pendingFlush = executor.schedule(flushRunnable, windowMs, TimeUnit.MILLISECONDS);
+        }
+        return;
+      }
+    }
+    flush();
+  }
+}
@@ -35,42 +35,30 @@
 package org.cowboycoders.cyclismo.content;
 
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.location.Location;
 
-import org.cowboycoders.cyclismo.stats.TripStatistics;
-import org.cowboycoders.cyclismo.util.LocationUtils;
-import org.cowboycoders.cyclismo.util.UnitConversions;
-
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Comparator;
+import java.util.List;
 import java.util.SortedSet;
 import java.util.TreeSet;
 
 /**
  * Engine for searching for tracks and waypoints by text.
+ * <p>
+ * Tracks and waypoints are matched by the full text search tables maintained
+ * by {@link MyTracksProvider}, each word of the query matching the prefix of a
+ * word in the name, description or category. The most recent matches are
+ * scored and ranked by the same query, so only the best results are read.
  *
  * @author Rodrigo Damazio
  */
 public class SearchEngine {
 
-  /** WHERE query to get tracks by name. */
-  private static final String TRACK_SELECTION_QUERY =
-      TracksColumns.NAME + " LIKE ? OR " +
-      TracksColumns.DESCRIPTION + " LIKE ? OR " +
-      TracksColumns.CATEGORY + " LIKE ?";
-
-  /** WHERE query to get waypoints by name. */
-  private static final String WAYPOINT_SELECTION_QUERY =
-      WaypointsColumns.NAME + " LIKE ? OR " +
-      WaypointsColumns.DESCRIPTION + " LIKE ? OR " +
-      WaypointsColumns.CATEGORY + " LIKE ?";
-
-  /** Order of track results. */
-  private static final String TRACK_SELECTION_ORDER = TracksColumns._ID + " DESC LIMIT 1000";
-
-  /** Order of waypoint results. */
-  private static final String WAYPOINT_SELECTION_ORDER = WaypointsColumns._ID + " DESC";
+  /** Name of the computed score column. */
+  private static final String SCORE_COLUMN = "search_score";
 
   /** How much we promote a match in the track category. */
   private static final double TRACK_CATEGORY_PROMOTION = 2.0;
@@ -87,12 +75,32 @@ public class SearchEngine {
   /** How much we promote a track result if it's the currently-selected track. */
   private static final double CURRENT_TRACK_DEMOTION = 0.5;
 
-  /** Maximum number of waypoints which will be retrieved and scored. */
+  /** Maximum number of the most recent matching tracks which will be scored. */
+  private static final int MAX_SCORED_TRACKS = 1000;
+
+  /** Maximum number of the most recent matching waypoints which will be retrieved and scored. */
   private static final int MAX_SCORED_WAYPOINTS = 100;
 
   /** Oldest timestamp for which we rank based on time (2000-01-01 00:00:00.000) */
   private static final long OLDEST_ALLOWED_TIMESTAMP = 946692000000L;
 
+  /** Kilometers per microdegree of latitude. */
+  private static final double KM_PER_E6_DEGREE = 6371.009 * Math.PI / 180.0 / 1E6;
+
+  /**
+   * Coefficients approximating the hypotenuse as alpha * max(x, y) + beta * min(x, y), to within
+   * 4%, as there's no square root in SQLite.
+   */
+  private static final double HYPOT_ALPHA = 0.96043387;
+  private static final double HYPOT_BETA = 0.39782473;
+
+  /** Octaves of the log approximation for distances, in km, and times, in hours. */
+  private static final int DISTANCE_OCTAVES = 15;
+  private static final int TIME_OCTAVES = 21;
+
+  /** SQLite reads a literal this large as infinity. */
+  private static final String INFINITY = "1e999";
+
   /**
    * Description of a search query, along with all contextual data needed to execute it.
    */
@@ -179,40 +187,94 @@ public class SearchEngine {
    * @return a set of results, sorted according to their score
    */
   public SortedSet<ScoredResult> search(SearchQuery query) {
-    ArrayList<Track> tracks = new ArrayList<Track>();
-    ArrayList<Waypoint> waypoints = new ArrayList<Waypoint>();
     TreeSet<ScoredResult> scoredResults = new TreeSet<ScoredResult>(SCORED_RESULT_COMPARATOR);
 
-    retrieveTracks(query, tracks);
-    retrieveWaypoints(query, waypoints);
+    List<String> terms = getTerms(query.textQuery);
+    if (terms.isEmpty()) {
+      return scoredResults;
+    }
 
-    scoreTrackResults(tracks, query, scoredResults);
-    scoreWaypointResults(waypoints, query, scoredResults);
+    retrieveTracks(query, terms, scoredResults);
+    retrieveWaypoints(query, terms, scoredResults);
 
     return scoredResults;
   }
 
   /**
-   * Retrieves tracks matching the given query from the database.
+   * Splits a query into words the way the full text search tokenizer does.
+   *
+   * @param textQuery the query
+   * @return the words of the query
+   */
+  private static List<String> getTerms(String textQuery) {
+    List<String> terms = new ArrayList<String>();
+    StringBuilder term = new StringBuilder();
+    for (int i = 0; i <= textQuery.length(); i++) {
+      if (i < textQuery.length() && Character.isLetterOrDigit(textQuery.charAt(i))) {
+        term.append(textQuery.charAt(i));
+      } else if (term.length() > 0) {
+        terms.add(term.toString());
+        term.setLength(0);
+      }
+    }
+    return terms;
+  }
+
+  /**
+   * Gets a full text search expression matching rows with a word starting
+   * with each term.
+   *
+   * @param column the column to match in, or null for any column
+   * @param terms the terms
+   */
+  private static String getMatch(String column, List<String> terms) {
+    StringBuilder match = new StringBuilder();
+    for (String term : terms) {
+      if (match.length() > 0) {
+        match.append(' ');
+      }
+      if (column != null) {
+        match.append(column).append(':');
+      }
+      match.append(term).append('*');
+    }
+    return match.toString();
+  }
+
+  /**
+   * Gets the selection of the most recent rows matched by a full text search
+   * table. The search expression is the selection argument.
+   *
+   * @param searchTable the full text search table
+   * @param limit the maximum number of rows
+   */
+  private static String getMatchSelection(String searchTable, int limit) {
+    return "_id IN (SELECT docid FROM " + searchTable + " WHERE " + searchTable
+        + " MATCH ? ORDER BY docid DESC LIMIT " + limit + ")";
+  }
+
+  /**
+   * Retrieves and scores the tracks matching the given query from the database.
    *
    * @param query the query to retrieve for
-   * @param tracks list to fill with the resulting tracks
+   * @param terms the terms of the query
+   * @param output the collection to fill with scored results
    */
-  private void retrieveTracks(SearchQuery query, ArrayList<Track> tracks) {
-    String queryLikeSelection = "%" + query.textQuery + "%";
-    String[] trackSelectionArgs = new String[] {
-        queryLikeSelection,
-        queryLikeSelection,
-        queryLikeSelection };
-
-    Cursor tracksCursor = providerUtils.getTrackCursor(
-        TRACK_SELECTION_QUERY, trackSelectionArgs, TRACK_SELECTION_ORDER);
+  private void retrieveTracks(
+      SearchQuery query, List<String> terms, Collection<ScoredResult> output) {
+    String[] projection = new String[] { "*", getTrackScore(query, terms) + " AS " + SCORE_COLUMN };
+    String[] selectionArgs = new String[] { getMatch(null, terms) };
+    String sortOrder = SCORE_COLUMN + " DESC, " + TracksColumns._ID + " DESC";
+
+    String selection = getMatchSelection(TracksColumns.SEARCH_TABLE_NAME, MAX_SCORED_TRACKS);
+    Cursor tracksCursor =
+        providerUtils.getTrackCursor(projection, selection, selectionArgs, sortOrder);
     if (tracksCursor != null) {
       try {
-        tracks.ensureCapacity(tracksCursor.getCount());
-
+        int scoreIndex = tracksCursor.getColumnIndexOrThrow(SCORE_COLUMN);
         while (tracksCursor.moveToNext()) {
-          tracks.add(providerUtils.createTrack(tracksCursor));
+          output.add(new ScoredResult(
+              providerUtils.createTrack(tracksCursor), tracksCursor.getDouble(scoreIndex)));
         }
       } finally {
         tracksCursor.close();
@@ -221,29 +283,33 @@ public class SearchEngine {
   }
 
   /**
-   * Retrieves waypoints matching the given query from the database.
+   * Retrieves and scores the waypoints matching the given query from the
+   * database.
    *
    * @param query the query to retrieve for
-   * @param waypoints list to fill with the resulting waypoints
+   * @param terms the terms of the query
+   * @param output the collection to fill with scored results
    */
-  private void retrieveWaypoints(SearchQuery query, ArrayList<Waypoint> waypoints) {
-    String queryLikeSelection2 = "%" + query.textQuery + "%";
-    String[] waypointSelectionArgs = new String[] {
-        queryLikeSelection2,
-        queryLikeSelection2,
-        queryLikeSelection2 };
+  private void retrieveWaypoints(
+      SearchQuery query, List<String> terms, Collection<ScoredResult> output) {
+    String[] projection = new String[] {
+        "*", getWaypointScore(query, terms) + " AS " + SCORE_COLUMN };
+    // Only waypoints with a valid location, see LocationUtils.isValidLocation
+    String selection =
+        getMatchSelection(WaypointsColumns.SEARCH_TABLE_NAME, MAX_SCORED_WAYPOINTS)
+        + " AND ABS(COALESCE(" + WaypointsColumns.LATITUDE + ", 0)) <= 90000000"
+        + " AND ABS(COALESCE(" + WaypointsColumns.LONGITUDE + ", 0)) <= 180000000";
+    String[] selectionArgs = new String[] { getMatch(null, terms) };
+    String sortOrder = SCORE_COLUMN + " DESC, " + WaypointsColumns._ID + " DESC";
+
     Cursor waypointCursor = providerUtils.getWaypointCursor(
-        WAYPOINT_SELECTION_QUERY, waypointSelectionArgs, WAYPOINT_SELECTION_ORDER,
-        MAX_SCORED_WAYPOINTS);
+        projection, selection, selectionArgs, sortOrder, MAX_SCORED_WAYPOINTS);
     if (waypointCursor != null) {
       try {
-        waypoints.ensureCapacity(waypointCursor.getCount());
-
+        int scoreIndex = waypointCursor.getColumnIndexOrThrow(SCORE_COLUMN);
         while (waypointCursor.moveToNext()) {
-          Waypoint waypoint = providerUtils.createWaypoint(waypointCursor);
-          if (LocationUtils.isValidLocation(waypoint.getLocation())) {
-            waypoints.add(waypoint);
-          }
+          output.add(new ScoredResult(
+              providerUtils.createWaypoint(waypointCursor), waypointCursor.getDouble(scoreIndex)));
         }
       } finally {
         waypointCursor.close();
@@ -252,173 +318,169 @@ public class SearchEngine {
   }
 
   /**
-   * Scores a collection of track results.
-   *
-   * @param tracks the results to score
-   * @param query the query to score for
-   * @param output the collection to fill with scored results
-   */
-  private void scoreTrackResults(Collection<Track> tracks, SearchQuery query, Collection<ScoredResult> output) {
-    for (Track track : tracks) {
-      // Calculate the score.
-      double score = scoreTrackResult(query, track);
-
-      // Add to the output.
-      output.add(new ScoredResult(track, score));
-    }
-  }
-
-  /**
-   * Scores a single track result.
+   * Gets the SQL scoring a track result.
    *
    * @param query the query to score for
-   * @param track the results to score
-   * @return the score for the track
+   * @param terms the terms of the query
+   * @return the score expression
    */
-  private double scoreTrackResult(SearchQuery query, Track track) {
-    double score = 1.0;
+  private static String getTrackScore(SearchQuery query, List<String> terms) {
+    StringBuilder score = new StringBuilder();
 
-    score *= getTitleBoost(query, track.getName(), track.getDescription(), track.getCategory());
+    score.append(getTitleBoost(TracksColumns.SEARCH_TABLE_NAME, terms));
 
-    TripStatistics statistics = track.getTripStatistics();
     // TODO: Also boost for proximity to the currently-centered position on the map.
-    score *= getDistanceBoost(query, statistics.getMeanLatitude(), statistics.getMeanLongitude());
+    score.append(" * ").append(getDistanceBoost(query,
+        "(COALESCE(" + TracksColumns.MINLAT + ", 0) + COALESCE(" + TracksColumns.MAXLAT
+            + ", 0)) / 2.0",
+        "(COALESCE(" + TracksColumns.MINLON + ", 0) + COALESCE(" + TracksColumns.MAXLON
+            + ", 0)) / 2.0"));
 
-    long meanTimestamp = (statistics.getStartTime() + statistics.getStopTime()) / 2L;
-    score *= getTimeBoost(query, meanTimestamp);
+    score.append(" * ").append(getTimeBoost(query,
+        "(COALESCE(" + TracksColumns.STARTTIME + ", -1) + COALESCE(" + TracksColumns.STOPTIME
+            + ", -1)) / 2"));
 
     // Score the currently-selected track lower (user is already there, wouldn't be searching for it).
-    if (track.getId() == query.currentTrackId) {
-      score *= CURRENT_TRACK_DEMOTION;
-    }
+    score.append(" * (CASE WHEN ").append(TracksColumns._ID).append(" = ")
+        .append(query.currentTrackId).append(" THEN ").append(CURRENT_TRACK_DEMOTION)
+        .append(" ELSE 1.0 END)");
 
-    return score;
+    return score.toString();
   }
 
   /**
-   * Scores a collection of waypoint results.
+   * Gets the SQL scoring a waypoint result.
    *
-   * @param waypoints the results to score
    * @param query the query to score for
-   * @param output the collection to fill with scored results
+   * @param terms the terms of the query
+   * @return the score expression
    */
-  private void scoreWaypointResults(Collection<Waypoint> waypoints, SearchQuery query, Collection<ScoredResult> output) {
-    for (Waypoint waypoint : waypoints) {
-      // Calculate the score.
-      double score = scoreWaypointResult(query, waypoint);
-
-      // Add to the output.
-      output.add(new ScoredResult(waypoint, score));
-    }
-  }
+  private static String getWaypointScore(SearchQuery query, List<String> terms) {
+    StringBuilder score = new StringBuilder();
 
-  /**
-   * Scores a single waypoint result.
-   *
-   * @param query the query to score for
-   * @param waypoint the results to score
-   * @return the score for the waypoint
-   */
-  private double scoreWaypointResult(SearchQuery query, Waypoint waypoint) {
-    double score = 1.0;
-
-    Location location = waypoint.getLocation();
-    score *= getTitleBoost(query, waypoint.getName(), waypoint.getDescription(), waypoint.getCategory());
+    score.append(getTitleBoost(WaypointsColumns.SEARCH_TABLE_NAME, terms));
     // TODO: Also boost for proximity to the currently-centered position on the map.
-    score *= getDistanceBoost(query, location.getLatitude(), location.getLongitude());
-    score *= getTimeBoost(query, location.getTime());
+    score.append(" * ").append(getDistanceBoost(query,
+        "COALESCE(" + WaypointsColumns.LATITUDE + ", 0)",
+        "COALESCE(" + WaypointsColumns.LONGITUDE + ", 0)"));
+    score.append(" * ").append(getTimeBoost(query,
+        "COALESCE(" + WaypointsColumns.TIME + ", 0)"));
 
     // Score waypoints in the currently-selected track higher (searching inside the current track).
-    if (query.currentTrackId != -1 && waypoint.getTrackId() == query.currentTrackId) {
-      score *= CURRENT_TRACK_WAYPOINT_PROMOTION;
+    if (query.currentTrackId != -1) {
+      score.append(" * (CASE WHEN ").append(WaypointsColumns.TRACKID).append(" = ")
+          .append(query.currentTrackId).append(" THEN ").append(CURRENT_TRACK_WAYPOINT_PROMOTION)
+          .append(" ELSE 1.0 END)");
     }
 
-    return score;
+    return score.toString();
   }
 
   /**
-   * Calculates the boosting of the score due to the field(s) in which the match occured.
+   * Gets the SQL boosting the score due to the field(s) in which the match
+   * occured. Each field is matched through the full text search table, so
+   * this doesn't read the text of the result.
    *
-   * @param query the query to boost for
-   * @param name the name of the track or waypoint
-   * @param description the description of the track or waypoint
-   * @param category the category of the track or waypoint
+   * @param searchTable the full text search table
+   * @param terms the terms of the query
    * @return the total boost to be applied to the result
    */
-  private double getTitleBoost(SearchQuery query,
-      String name, String description, String category) {
+  private static String getTitleBoost(String searchTable, List<String> terms) {
     // Title boost: track name > description > category.
-    double boost = 1.0;
-    if (name.toLowerCase().contains(query.textQuery)) {
-      boost *= TRACK_NAME_PROMOTION;
-    }
-    if (description.toLowerCase().contains(query.textQuery)) {
-      boost *= TRACK_DESCRIPTION_PROMOTION;
-    }
-    if (category.toLowerCase().contains(query.textQuery)) {
-      boost *= TRACK_CATEGORY_PROMOTION;
-    }
-    return boost;
+    return getColumnBoost(searchTable, TracksColumns.NAME, terms, TRACK_NAME_PROMOTION)
+        + " * " + getColumnBoost(searchTable, TracksColumns.DESCRIPTION, terms,
+            TRACK_DESCRIPTION_PROMOTION)
+        + " * " + getColumnBoost(searchTable, TracksColumns.CATEGORY, terms,
+            TRACK_CATEGORY_PROMOTION);
+  }
+
+  private static String getColumnBoost(
+      String searchTable, String column, List<String> terms, double promotion) {
+    return "(CASE WHEN _id IN (SELECT docid FROM " + searchTable + " WHERE " + searchTable
+        + " MATCH " + DatabaseUtils.sqlEscapeString(getMatch(column, terms)) + ") THEN "
+        + promotion + " ELSE 1.0 END)";
   }
 
   /**
-   * Calculates the boosting of the score due to the recency of the matched entity.
+   * Gets the SQL boosting the score due to the recency of the matched entity.
    *
    * @param query the query to boost for
-   * @param timestamp the timestamp to calculate the boost for
+   * @param timestamp the SQL of the timestamp to calculate the boost for
    * @return the total boost to be applied to the result
    */
-  private double getTimeBoost(SearchQuery query, long timestamp) {
-    if (timestamp < OLDEST_ALLOWED_TIMESTAMP) {
-      // Safety: if timestamp is too old or invalid, don't rank based on time.
-      return 1.0;
-    }
-
+  private static String getTimeBoost(SearchQuery query, String timestamp) {
     // Score recent tracks higher.
-    long timeAgoHours = (query.currentTimestamp - timestamp) / (60L * 60L * 1000L);
-    if (timeAgoHours > 0L) {
-      return squash(timeAgoHours);
-    } else {
-      // Should rarely happen (track recorded in the last hour).
-      return Double.POSITIVE_INFINITY;
-    }
+    String timeAgoHours = "((" + query.currentTimestamp + " - " + timestamp + ") / 3600000)";
+    // Safety: if timestamp is too old or invalid, don't rank based on time.
+    // Should rarely be infinite (track recorded in the last hour).
+    return "(CASE WHEN " + timestamp + " < " + OLDEST_ALLOWED_TIMESTAMP + " THEN 1.0"
+        + " WHEN " + timeAgoHours + " > 0 THEN " + squash(timeAgoHours, TIME_OCTAVES)
+        + " ELSE " + INFINITY + " END)";
   }
 
   /**
-   * Calculates the boosting of the score due to proximity to a location.
+   * Gets the SQL boosting the score due to proximity to a location.
    *
    * @param query the query to boost for
-   * @param latitude the latitude to calculate the boost for
-   * @param longitude the longitude to calculate the boost for
+   * @param latitudeE6 the SQL of the latitude to calculate the boost for, in microdegrees
+   * @param longitudeE6 the SQL of the longitude to calculate the boost for, in microdegrees
    * @return the total boost to be applied to the result
    */
-  private double getDistanceBoost(SearchQuery query, double latitude, double longitude) {
+  private static String getDistanceBoost(
+      SearchQuery query, String latitudeE6, String longitudeE6) {
     if (query.currentLocation == null) {
-      return 1.0;
+      return "1.0";
     }
 
-    float[] distanceResults = new float[1];
-
-    Location.distanceBetween(
-        latitude, longitude,
-        query.currentLocation.getLatitude(), query.currentLocation.getLongitude(),
-        distanceResults);
+    // Equirectangular distance, good enough at the scale scores change
+    Location location = query.currentLocation;
+    double kmPerE6Longitude = KM_PER_E6_DEGREE * Math.cos(Math.toRadians(location.getLatitude()));
+    String dy = "ABS(" + latitudeE6 + " - " + location.getLatitude() * 1E6 + ") * "
+        + KM_PER_E6_DEGREE;
+    String dx = "ABS(" + longitudeE6 + " - " + location.getLongitude() * 1E6 + ") * "
+        + kmPerE6Longitude;
+    String distanceKm = "(" + HYPOT_ALPHA + " * MAX(" + dx + ", " + dy + ") + " + HYPOT_BETA
+        + " * MIN(" + dx + ", " + dy + "))";
 
     // Score tracks close to the current location higher.
-    double distanceKm = distanceResults[0] * UnitConversions.M_TO_KM;
-    if (distanceKm > 0.0) {
-      // Use the inverse of the amortized distance.
-      return squash(distanceKm);
-    } else {
-      // Should rarely happen (distance is exactly 0).
-      return Double.POSITIVE_INFINITY;
-    }
+    // Should rarely be infinite (distance is exactly 0).
+    return "(CASE WHEN " + distanceKm + " > 0 THEN " + squash(distanceKm, DISTANCE_OCTAVES)
+        + " ELSE " + INFINITY + " END)";
   }
 
   /**
-   * Squashes a number by calculating 1 / log (1 + x).
+   * Gets the SQL squashing a positive number by calculating 1 / log (1 + x).
+   * SQLite has no log function, so log2 is interpolated linearly within each
+   * octave, which keeps it continuous and increasing.
+   *
+   * @param x the SQL of the number
+   * @param octaves the number of octaves to interpolate, the last is
+   *          extrapolated for larger x
    */
-  private static double squash(double x) {
-    return 1.0 / Math.log1p(x);
+  private static String squash(String x, int octaves) {
+    StringBuilder log = new StringBuilder();
+    appendLog(log, "(1.0 + " + x + ")", 0, octaves);
+    return "1.0 / " + log;
+  }
+
+  /**
+   * Appends the SQL of log(y) for y in [2^from, 2^to), choosing the octave by
+   * binary search.
+   */
+  private static void appendLog(StringBuilder log, String y, int from, int to) {
+    if (to - from == 1) {
+      // log(y) = log(2) * (k + y / 2^k - 1) within [2^k, 2^(k + 1))
+      double lower = 1L << from;
+      log.append("(").append((from - 1) * Math.log(2)).append(" + ").append(y).append(" * ")
+          .append(Math.log(2) / lower).append(")");
+      return;
+    }
+    int middle = (from + to) / 2;
+    log.append("(CASE WHEN ").append(y).append(" < ").append((double) (1L << middle))
+        .append(" THEN ");
+    appendLog(log, y, from, middle);
+    log.append(" ELSE ");
+    appendLog(log, y, middle, to);
+    log.append(" END)");
   }
 }
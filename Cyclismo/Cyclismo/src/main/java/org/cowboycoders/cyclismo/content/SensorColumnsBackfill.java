@@ -0,0 +1,166 @@
+/*
+*    Copyright (c) 2013, Will Szumski
+*    Copyright (c) 2013, Doug Szumski
+*
+*    This file is part of Cyclismo.
+*
+*    Cyclismo is free software: you can redistribute it and/or modify
+*    it under the terms of the GNU General Public License as published by
+*    the Free Software Foundation, either version 3 of the License, or
+*    (at your option) any later version.
+*
+*    Cyclismo is distributed in the hope that it will be useful,
+*    but WITHOUT ANY WARRANTY; without even the implied warranty of
+*    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*    GNU General Public License for more details.
+*
+*    You should have received a copy of the GNU General Public License
+*    along with Cyclismo.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package org.cowboycoders.cyclismo.content;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.util.Log;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.protobuf.InvalidProtocolBufferException;
+
+import org.cowboycoders.cyclismo.R;
+import org.cowboycoders.cyclismo.content.Sensor.SensorDataSet;
+import org.cowboycoders.cyclismo.util.PreferencesUtils;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Fills the decoded sensor columns of the track points recorded before they
+ * were added, from their sensor blobs, on a background thread. Each chunk of
+ * points is committed on its own, so the database is only held for a chunk at
+ * a time. The id of the last point looked at is kept in the preferences, so a
+ * backfill cut short carries on from there the next time the provider starts,
+ * and one that reached the end isn't started again. Points inserted since the
+ * columns were added are decoded by the provider as they're inserted.
+ */
+class SensorColumnsBackfill {
+
+  private static final String TAG = SensorColumnsBackfill.class.getSimpleName();
+
+  // The most track points decoded by a step
+  @VisibleForTesting
+  static final int POINTS_PER_STEP = 1000;
+
+  // Points not decoded yet. Points without any readings stay in the selection, so the stored
+  // id keeps the backfill from going over them again.
+  private static final String SELECTION = TrackPointsColumns.POWER + " IS NULL AND "
+      + TrackPointsColumns.CADENCE + " IS NULL AND " + TrackPointsColumns.HEART_RATE
+      + " IS NULL AND " + TrackPointsColumns.SENSOR_SPEED + " IS NULL AND "
+      + TrackPointsColumns.SENSOR + " IS NOT NULL AND " + TrackPointsColumns._ID + ">?";
+  private static final String[] COLUMNS = {TrackPointsColumns._ID, TrackPointsColumns.SENSOR};
+
+  // The stored id once every point has been looked at
+  @VisibleForTesting
+  static final long DONE = Long.MAX_VALUE;
+
+  private final Context context;
+  private final SQLiteDatabase db;
+  private final ExecutorService executor;
+  private final Runnable runnable = new Runnable() {
+    @Override
+    public void run() {
+      while (!Thread.currentThread().isInterrupted() && step()) {
+        // Keep going
+      }
+    }
+  };
+
+  // The id of the last point looked at, only used by the thread stepping
+  private long lastId;
+
+  SensorColumnsBackfill(Context context, SQLiteDatabase db) {
+    this.context = context;
+    this.db = db;
+    this.executor = Executors.newSingleThreadExecutor();
+    lastId = PreferencesUtils.getLong(context, R.string.sensor_columns_backfill_id_key);
+  }
+
+  /**
+   * Starts filling the decoded sensor columns, unless they've been filled.
+   */
+  void start() {
+    if (lastId != DONE) {
+      executor.execute(runnable);
+    }
+  }
+
+  /**
+   * Stops filling, leaving the rest for the next start.
+   */
+  void shutdown() {
+    executor.shutdownNow();
+  }
+
+  /**
+   * Decodes up to {@link #POINTS_PER_STEP} track points in a transaction of
+   * their own, and stores how far it got once they're committed. Returns true
+   * if there may be more to decode.
+   */
+  @VisibleForTesting
+  boolean step() {
+    try {
+      if (lastId == DONE || !db.isOpen()) {
+        return false;
+      }
+      int numRows;
+      db.beginTransaction();
+      try {
+        numRows = decodeChunk();
+        db.setTransactionSuccessful();
+      } finally {
+        db.endTransaction();
+      }
+      if (numRows > 0) {
+        Log.d(TAG, "Decoded the sensor data of " + numRows + " track points.");
+      }
+      boolean more = numRows == POINTS_PER_STEP;
+      if (!more) {
+        lastId = DONE;
+      }
+      PreferencesUtils.setLong(context, R.string.sensor_columns_backfill_id_key, lastId);
+      return more;
+    } catch (SQLiteException e) {
+      Log.w(TAG, "Unable to decode the sensor data of the track points.", e);
+      return false;
+    }
+  }
+
+  private int decodeChunk() {
+    Cursor cursor = db.query(TrackPointsColumns.TABLE_NAME, COLUMNS, SELECTION,
+        new String[] {Long.toString(lastId)}, null, null, TrackPointsColumns._ID,
+        Integer.toString(POINTS_PER_STEP));
+    try {
+      String[] idArgs = new String[1];
+      ContentValues values = new ContentValues();
+      while (cursor.moveToNext()) {
+        lastId = cursor.getLong(0);
+        SensorDataSet sensorDataSet;
+        try {
+          sensorDataSet = SensorDataSet.parseFrom(cursor.getBlob(1));
+        } catch (InvalidProtocolBufferException e) {
+          Log.w(TAG, "Failed to parse sensor data of track point " + lastId, e);
+          continue;
+        }
+        values.clear();
+        SensorDataColumns.put(values, sensorDataSet);
+        idArgs[0] = Long.toString(lastId);
+        db.update(TrackPointsColumns.TABLE_NAME, values, TrackPointsColumns._ID + "=?", idArgs);
+      }
+      return cursor.getCount();
+    } finally {
+      cursor.close();
+    }
+  }
+}
@@ -48,7 +48,6 @@ import com.google.common.annotations.VisibleForTesting;
 
 import org.cowboycoders.cyclismo.Constants;
 import org.cowboycoders.cyclismo.R;
-import org.cowboycoders.cyclismo.content.MyTracksProviderUtils.LocationIterator;
 import org.cowboycoders.cyclismo.content.TrackDataListener.LocationState;
 import org.cowboycoders.cyclismo.util.LocationUtils;
 import org.cowboycoders.cyclismo.util.PreferencesUtils;
@@ -111,6 +110,9 @@ public class TrackDataHub implements DataSourceListener {
   private long firstSeenLocationId;
   private long lastSeenLocationId;
 
+  // The points of the selected track, guarded by this
+  private TrackPointCache trackPointCache;
+
   /**
    * Creates a new instance.
    */
@@ -189,6 +191,7 @@ public class TrackDataHub implements DataSourceListener {
     dataSource.close();
     dataSource = null;
     dataSourceManager = null;
+    releaseTrackPointCache();
   }
 
   /**
@@ -327,6 +330,18 @@ public class TrackDataHub implements DataSourceListener {
     });
   }
 
+  @Override
+  public void notifyTrackPointsInserted(final long firstId, final long lastId) {
+    runInHanderThread(new Runnable() {
+        @Override
+      public void run() {
+        notifyTrackPointsTableUpdate(
+            true, trackDataManager.getListeners(TrackDataType.SAMPLED_IN_TRACK_POINTS_TABLE),
+            trackDataManager.getListeners(TrackDataType.SAMPLED_OUT_TRACK_POINTS_TABLE), lastId);
+      }
+    });
+  }
+
   @Override
   public void notifyPreferenceChanged(final String key) {
     runInHanderThread(new Runnable() {
@@ -633,6 +648,22 @@ public class TrackDataHub implements DataSourceListener {
    */
   private void notifyTrackPointsTableUpdate(boolean updateSamplingState,
       Set<TrackDataListener> sampledInListeners, Set<TrackDataListener> sampledOutListeners) {
+    notifyTrackPointsTableUpdate(updateSamplingState, sampledInListeners, sampledOutListeners, -1L);
+  }
+
+  /**
+   * Notifies track points table update. To be run in the {@link #handler}
+   * thread.
+   *
+   * @param updateSamplingState true to update the sampling state
+   * @param sampledInListeners the sampled-in listeners
+   * @param sampledOutListeners the sampled-out listeners
+   * @param lastInsertedId the id of the last point inserted, if points were
+   *          only inserted, else -1
+   */
+  private void notifyTrackPointsTableUpdate(boolean updateSamplingState,
+      Set<TrackDataListener> sampledInListeners, Set<TrackDataListener> sampledOutListeners,
+      long lastInsertedId) {
     if (sampledInListeners.isEmpty() && sampledOutListeners.isEmpty()) {
       return;
     }
@@ -650,15 +681,27 @@ public class TrackDataHub implements DataSourceListener {
     long localLastSeenLocationId = updateSamplingState ? lastSeenLocationId : -1L;
     long maxPointId = updateSamplingState ? -1L : lastSeenLocationId;
 
-    long lastTrackPointId = myTracksProviderUtils.getLastTrackPointId(selectedTrackId);
+    TrackPointCache cache = getTrackPointCache();
+    if (cache == null) {
+      return;
+    }
+    // Only reads the points added since any hub showing the track last looked
+    long lastTrackPointId;
+    int numCachedPoints;
+    if (lastInsertedId == -1L) {
+      lastTrackPointId = myTracksProviderUtils.getLastTrackPointId(selectedTrackId);
+      numCachedPoints = cache.update(myTracksProviderUtils, lastTrackPointId);
+    } else {
+      // Only inserts, the cache ends with the last point
+      numCachedPoints = cache.append(myTracksProviderUtils, lastInsertedId);
+      lastTrackPointId = numCachedPoints == 0 ? -1L : cache.getId(numCachedPoints - 1);
+    }
     int samplingFrequency = -1;
     Log.d(TAG,"selectedTrackID: " + selectedTrackId);
-    LocationIterator iterator = myTracksProviderUtils.getTrackPointLocationIterator(selectedTrackId,
-        localLastSeenLocationId + 1, false, MyTracksProviderUtils.DEFAULT_LOCATION_FACTORY);
     boolean includeNextPoint = false;
-    while (iterator.hasNext()) {
-      Location location = iterator.next();
-      long locationId = iterator.getLocationId();
+    for (int index = cache.indexAfter(localLastSeenLocationId); index < numCachedPoints;
+        index++) {
+      long locationId = cache.getId(index);
 
       // Stop if past the last wanted point
       if (maxPointId != -1L && locationId > maxPointId) {
@@ -674,31 +717,31 @@ public class TrackDataHub implements DataSourceListener {
         samplingFrequency = 1 + (int) (numTotalPoints / targetNumPoints);
       }
 
-      if (!LocationUtils.isValidLocation(location)) {
+      if (!cache.isValidLocation(index)) {
         // TODO: also include the last valid point before a split
+        Location location = cache.getLocation(index);
         for (TrackDataListener trackDataListener : sampledInListeners) {
           trackDataListener.onSegmentSplit(location);
           includeNextPoint = true;
         }
-      } else {
+      } else if (includeNextPoint || (localNumLoadedPoints % samplingFrequency == 0)
+          || (locationId == lastTrackPointId && !isSelectedTrackRecording())) {
         // Also include the last point if the selected track is not recording.
-        if (includeNextPoint || (localNumLoadedPoints % samplingFrequency == 0)
-            || (locationId == lastTrackPointId && !isSelectedTrackRecording())) {
-          includeNextPoint = false;
-          for (TrackDataListener trackDataListener : sampledInListeners) {
-            trackDataListener.onSampledInTrackPoint(location);
-          }
-        } else {
-          for (TrackDataListener trackDataListener : sampledOutListeners) {
-            trackDataListener.onSampledOutTrackPoint(location);
-          }
+        includeNextPoint = false;
+        Location location = cache.getLocation(index);
+        for (TrackDataListener trackDataListener : sampledInListeners) {
+          trackDataListener.onSampledInTrackPoint(location);
+        }
+      } else if (!sampledOutListeners.isEmpty()) {
+        Location location = cache.getLocation(index);
+        for (TrackDataListener trackDataListener : sampledOutListeners) {
+          trackDataListener.onSampledOutTrackPoint(location);
         }
       }
 
       localNumLoadedPoints++;
       localLastSeenLocationId = locationId;
     }
-    iterator.close();
 
     if (updateSamplingState) {
       numLoadedPoints = localNumLoadedPoints;
@@ -806,6 +849,32 @@ public class TrackDataHub implements DataSourceListener {
     lastSeenLocationId = -1L;
   }
 
+  /**
+   * Gets the cache of the selected track's points, or null if stopped.
+   */
+  private synchronized TrackPointCache getTrackPointCache() {
+    if (!started) {
+      return null;
+    }
+    if (trackPointCache != null && trackPointCache.getTrackId() != selectedTrackId) {
+      releaseTrackPointCache();
+    }
+    if (trackPointCache == null) {
+      trackPointCache = TrackPointCache.acquire(myTracksProviderUtils, selectedTrackId);
+    }
+    return trackPointCache;
+  }
+
+  /**
+   * Releases the cache of the selected track's points.
+   */
+  private synchronized void releaseTrackPointCache() {
+    if (trackPointCache != null) {
+      trackPointCache.release();
+      trackPointCache = null;
+    }
+  }
+
   /**
    * Returns true if a location is invalid or too old.
    * 
@@ -0,0 +1,259 @@
+/*
+*    Copyright (c) 2013, Will Szumski
+*    Copyright (c) 2013, Doug Szumski
+*
+*    This file is part of Cyclismo.
+*
+*    Cyclismo is free software: you can redistribute it and/or modify
+*    it under the terms of the GNU General Public License as published by
+*    the Free Software Foundation, either version 3 of the License, or
+*    (at your option) any later version.
+*
+*    Cyclismo is distributed in the hope that it will be useful,
+*    but WITHOUT ANY WARRANTY; without even the implied warranty of
+*    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*    GNU General Public License for more details.
+*
+*    You should have received a copy of the GNU General Public License
+*    along with Cyclismo.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package org.cowboycoders.cyclismo.content;
+
+import android.location.Location;
+import android.location.LocationManager;
+
+import com.google.common.annotations.VisibleForTesting;
+
+import org.cowboycoders.cyclismo.content.MyTracksProviderUtils.LocationIterator;
+import org.cowboycoders.cyclismo.content.Sensor.SensorDataSet;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The points of a track held in memory, a primitive array per column, and
+ * shared by every {@link TrackDataHub} showing the track. Each point is read
+ * from the database once: updating only reads the points added since, and
+ * resampling goes over the arrays.
+ *
+ * Caches are reference counted, a cache is dropped once the last hub using it
+ * releases it. Missing values are held as NaN.
+ */
+class TrackPointCache {
+
+  private static final int INITIAL_CAPACITY = 1024;
+
+  // Guarded by itself
+  private static final Map<String, TrackPointCache> caches =
+      new HashMap<String, TrackPointCache>();
+
+  private final String key;
+  private final long trackId;
+
+  // Guarded by caches
+  private int references;
+
+  // Guarded by this
+  private int size;
+  private long[] ids = new long[INITIAL_CAPACITY];
+  private long[] times = new long[INITIAL_CAPACITY];
+  private double[] latitudes = new double[INITIAL_CAPACITY];
+  private double[] longitudes = new double[INITIAL_CAPACITY];
+  private float[] altitudes = new float[INITIAL_CAPACITY];
+  private float[] accuracies = new float[INITIAL_CAPACITY];
+  private float[] speeds = new float[INITIAL_CAPACITY];
+  private float[] bearings = new float[INITIAL_CAPACITY];
+  private float[] powers = new float[INITIAL_CAPACITY];
+  private float[] cadences = new float[INITIAL_CAPACITY];
+  private float[] heartRates = new float[INITIAL_CAPACITY];
+  private float[] sensorSpeeds = new float[INITIAL_CAPACITY];
+  // The last id inserted into the table the points have been read up to
+  private long lastCheckedId = -1L;
+  private long numPointsRead;
+
+  private TrackPointCache(String key, long trackId) {
+    this.key = key;
+    this.trackId = trackId;
+  }
+
+  /**
+   * Gets the cache of a track, to be released once no longer used. Courses
+   * and tracks are kept apart, their ids overlap.
+   *
+   * @param myTracksProviderUtils the provider utils the track is read from
+   * @param trackId the track id
+   */
+  static TrackPointCache acquire(MyTracksProviderUtils myTracksProviderUtils, long trackId) {
+    String key = myTracksProviderUtils.getClass().getName() + ":" + trackId;
+    synchronized (caches) {
+      TrackPointCache cache = caches.get(key);
+      if (cache == null) {
+        cache = new TrackPointCache(key, trackId);
+        caches.put(key, cache);
+      }
+      cache.references++;
+      return cache;
+    }
+  }
+
+  /**
+   * Releases the cache, dropping it if no one else uses it.
+   */
+  void release() {
+    synchronized (caches) {
+      references--;
+      if (references == 0) {
+        caches.remove(key);
+      }
+    }
+  }
+
+  long getTrackId() {
+    return trackId;
+  }
+
+  /**
+   * Reads the points added since the last update. Starts over if points have
+   * been deleted.
+   *
+   * @param myTracksProviderUtils the provider utils
+   * @param lastTrackPointId the id of the last point of the track
+   * @return the number of points
+   */
+  synchronized int update(MyTracksProviderUtils myTracksProviderUtils, long lastTrackPointId) {
+    long lastId = size == 0 ? -1L : ids[size - 1];
+    if (lastTrackPointId < lastId) {
+      size = 0;
+      lastId = -1L;
+      lastCheckedId = -1L;
+    }
+    if (lastTrackPointId != lastId) {
+      readAfter(myTracksProviderUtils, lastId);
+    }
+    return size;
+  }
+
+  /**
+   * Reads the points inserted since the last update, without looking up the
+   * last point of the track. Nothing is read if the points have already been,
+   * so only the first hub to hear of an insert reads.
+   *
+   * @param myTracksProviderUtils the provider utils
+   * @param lastInsertedId the id of the last point inserted into the table,
+   *          of any track
+   * @return the number of points
+   */
+  synchronized int append(MyTracksProviderUtils myTracksProviderUtils, long lastInsertedId) {
+    long lastId = size == 0 ? -1L : ids[size - 1];
+    if (lastInsertedId > lastId && lastInsertedId > lastCheckedId) {
+      readAfter(myTracksProviderUtils, lastId);
+      lastCheckedId = lastInsertedId;
+    }
+    return size;
+  }
+
+  /**
+   * Gets the index of the first point after a point id.
+   *
+   * @param id the point id, -1 for the first point
+   */
+  synchronized int indexAfter(long id) {
+    int index = Arrays.binarySearch(ids, 0, size, id);
+    return index >= 0 ? index + 1 : -index - 1;
+  }
+
+  synchronized long getId(int index) {
+    return ids[index];
+  }
+
+  /**
+   * Returns true if the point at an index is a valid location, false if it
+   * marks a segment split.
+   */
+  synchronized boolean isValidLocation(int index) {
+    return Math.abs(latitudes[index]) <= 90 && Math.abs(longitudes[index]) <= 180;
+  }
+
+  /**
+   * Creates the location of the point at an index, with the decoded sensor
+   * readings.
+   */
+  synchronized Location getLocation(int index) {
+    MyTracksLocation location = new MyTracksLocation(LocationManager.GPS_PROVIDER);
+    location.setTime(times[index]);
+    location.setLatitude(latitudes[index]);
+    location.setLongitude(longitudes[index]);
+    if (!Float.isNaN(altitudes[index])) {
+      location.setAltitude(altitudes[index]);
+    }
+    if (!Float.isNaN(accuracies[index])) {
+      location.setAccuracy(accuracies[index]);
+    }
+    if (!Float.isNaN(speeds[index])) {
+      location.setSpeed(speeds[index]);
+    }
+    if (!Float.isNaN(bearings[index])) {
+      location.setBearing(bearings[index]);
+    }
+    location.setSensorDataSet(SensorDataColumns.build(
+        powers[index], cadences[index], heartRates[index], sensorSpeeds[index]));
+    return location;
+  }
+
+  /**
+   * Gets the number of points read from the database.
+   */
+  @VisibleForTesting
+  synchronized long getNumPointsRead() {
+    return numPointsRead;
+  }
+
+  private void readAfter(MyTracksProviderUtils myTracksProviderUtils, long lastId) {
+    // The hubs only chart and sum the decoded sensor readings
+    LocationIterator iterator = myTracksProviderUtils.getTrackPointLocationIterator(trackId,
+        lastId + 1, false, MyTracksProviderUtils.DEFAULT_LOCATION_FACTORY, true);
+    try {
+      while (iterator.hasNext()) {
+        Location location = iterator.next();
+        add(iterator.getLocationId(), location);
+        numPointsRead++;
+      }
+    } finally {
+      iterator.close();
+    }
+  }
+
+  private void add(long id, Location location) {
+    if (size == ids.length) {
+      int capacity = size * 2;
+      ids = Arrays.copyOf(ids, capacity);
+      times = Arrays.copyOf(times, capacity);
+      latitudes = Arrays.copyOf(latitudes, capacity);
+      longitudes = Arrays.copyOf(longitudes, capacity);
+      altitudes = Arrays.copyOf(altitudes, capacity);
+      accuracies = Arrays.copyOf(accuracies, capacity);
+      speeds = Arrays.copyOf(speeds, capacity);
+      bearings = Arrays.copyOf(bearings, capacity);
+      powers = Arrays.copyOf(powers, capacity);
+      cadences = Arrays.copyOf(cadences, capacity);
+      heartRates = Arrays.copyOf(heartRates, capacity);
+      sensorSpeeds = Arrays.copyOf(sensorSpeeds, capacity);
+    }
+    ids[size] = id;
+    times[size] = location.getTime();
+    latitudes[size] = location.getLatitude();
+    longitudes[size] = location.getLongitude();
+    altitudes[size] = location.hasAltitude() ? (float) location.getAltitude() : Float.NaN;
+    accuracies[size] = location.hasAccuracy() ? location.getAccuracy() : Float.NaN;
+    speeds[size] = location.hasSpeed() ? location.getSpeed() : Float.NaN;
+    bearings[size] = location.hasBearing() ? location.getBearing() : Float.NaN;
+    SensorDataSet sensorDataSet = location instanceof MyTracksLocation
+        ? ((MyTracksLocation) location).getSensorDataSet() : null;
+    powers[size] = SensorDataColumns.getPower(sensorDataSet);
+    cadences[size] = SensorDataColumns.getCadence(sensorDataSet);
+    heartRates[size] = SensorDataColumns.getHeartRate(sensorDataSet);
+    sensorSpeeds[size] = SensorDataColumns.getSpeed(sensorDataSet);
+    size++;
+  }
+}
@@ -83,6 +83,8 @@ public class ChartFragment extends Fragment implements TrackDataListener {
   public static final String CHART_FRAGMENT_TAG = "chartFragment";
 
   private final ArrayList<double[]> pendingPoints = new ArrayList<double[]>();
+  // Data points already copied to the chart view, reused for pending points
+  private final ArrayList<double[]> spareDataPoints = new ArrayList<double[]>();
   private final ArrayList<double[]> pendingOverlayPoints = new ArrayList<double[]>();
 
   private TrackDataHub trackDataHub;
@@ -458,6 +460,7 @@ public class ChartFragment extends Fragment implements TrackDataListener {
     if (isResumed()) {
       Log.d(TAG,"track points cleared");
       tripStatisticsUpdater = startTime != -1L ? new TripStatisticsUpdater(startTime) : null;
+      spareDataPoints.addAll(pendingPoints);
       pendingPoints.clear();
       chartView.reset();
       getActivity().runOnUiThread(new Runnable() {
@@ -475,7 +478,8 @@ public class ChartFragment extends Fragment implements TrackDataListener {
   public synchronized void onSampledInTrackPoint(Location location) {
     if (isResumed()) {
       Log.d(TAG,"adding point");
-      double[] data = new double[ChartView.NUM_SERIES + 1];
+      double[] data = spareDataPoints.isEmpty() ? new double[ChartView.NUM_SERIES + 1]
+          : spareDataPoints.remove(spareDataPoints.size() - 1);
       fillDataPoint(location, data,tripStatisticsUpdater);
       pendingPoints.add(data);
     }
@@ -504,6 +508,7 @@ public class ChartFragment extends Fragment implements TrackDataListener {
     if (isResumed()) {
       Log.d(TAG,"track points done");
       chartView.addDataPoints(pendingPoints);
+      spareDataPoints.addAll(pendingPoints);
       pendingPoints.clear();
       getActivity().runOnUiThread(updateChart);
     }
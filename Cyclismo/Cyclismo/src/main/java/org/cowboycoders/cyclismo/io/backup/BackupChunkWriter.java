@@ -0,0 +1,214 @@
+/*
+*    Copyright (c) 2013, Will Szumski
+*    Copyright (c) 2013, Doug Szumski
+*
+*    This file is part of Cyclismo.
+*
+*    Cyclismo is free software: you can redistribute it and/or modify
+*    it under the terms of the GNU General Public License as published by
+*    the Free Software Foundation, either version 3 of the License, or
+*    (at your option) any later version.
+*
+*    Cyclismo is distributed in the hope that it will be useful,
+*    but WITHOUT ANY WARRANTY; without even the implied warranty of
+*    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*    GNU General Public License for more details.
+*
+*    You should have received a copy of the GNU General Public License
+*    along with Cyclismo.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package org.cowboycoders.cyclismo.io.backup;
+
+import org.cowboycoders.cyclismo.io.backup.BackupManifest.Chunk;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Writes backup chunks into a zip, compressing them in parallel on a bounded
+ * pool of threads. The chunks are written in the order they're given, and no
+ * more than a couple per thread are held in memory at once.
+ *
+ * Each chunk is deflated by the pool and stored in the zip as is, to be read
+ * back by {@link DatabaseImporter#importChunk}.
+ */
+class BackupChunkWriter {
+
+  /**
+   * A buffer chunk rows are written to, which can be rolled back and patched.
+   */
+  static class ChunkBuffer extends ByteArrayOutputStream {
+
+    ChunkBuffer(int size) {
+      super(size);
+    }
+
+    byte[] getBuffer() {
+      return buf;
+    }
+
+    /**
+     * Drops everything written after the given size.
+     */
+    void truncate(int size) {
+      count = size;
+    }
+
+    /**
+     * Overwrites a big-endian int at the given offset, as written by a
+     * {@link java.io.DataOutputStream}.
+     */
+    void setInt(int offset, int value) {
+      buf[offset] = (byte) (value >>> 24);
+      buf[offset + 1] = (byte) (value >>> 16);
+      buf[offset + 2] = (byte) (value >>> 8);
+      buf[offset + 3] = (byte) value;
+    }
+  }
+
+  private static class CompressedChunk {
+    Chunk chunk;
+    byte[] data;
+    int length;
+    long crc;
+  }
+
+  private final ZipOutputStream zipOutputStream;
+  private final int compressionLevel;
+  private final int maxPending;
+  private final ExecutorService executor;
+  private final ArrayDeque<Future<CompressedChunk>> pending =
+      new ArrayDeque<Future<CompressedChunk>>();
+  private final List<Chunk> chunks = new ArrayList<Chunk>();
+
+  /**
+   * @param zipOutputStream the zip to write to
+   * @param compressionLevel the deflate level of the chunks
+   * @param threads the number of threads to compress on
+   */
+  BackupChunkWriter(ZipOutputStream zipOutputStream, int compressionLevel, int threads) {
+    this.zipOutputStream = zipOutputStream;
+    this.compressionLevel = compressionLevel;
+    this.maxPending = threads * 2;
+    this.executor = Executors.newFixedThreadPool(threads);
+  }
+
+  /**
+   * Queues a chunk to be compressed and written. The buffer is owned by the
+   * writer from then on.
+   *
+   * @param entryName the zip entry for the chunk
+   * @param table the table its rows are from
+   * @param update true if the rows replace existing ones
+   * @param rows the number of rows
+   * @param buffer the rows, as written by {@link DatabaseDumper}
+   */
+  void write(final String entryName, final String table, final boolean update, final int rows,
+      final ChunkBuffer buffer) throws IOException {
+    if (pending.size() >= maxPending) {
+      writeNext();
+    }
+    pending.add(executor.submit(new Callable<CompressedChunk>() {
+      @Override
+      public CompressedChunk call() {
+        Chunk chunk = new Chunk(entryName, table, update, rows, buffer.size(),
+            checksum(buffer.getBuffer(), 0, buffer.size()));
+        return compress(chunk, buffer);
+      }
+    }));
+  }
+
+  /**
+   * Writes the chunks still queued and stops the threads.
+   *
+   * @return every chunk written, in order
+   */
+  List<Chunk> finish() throws IOException {
+    try {
+      while (!pending.isEmpty()) {
+        writeNext();
+      }
+    } finally {
+      close();
+    }
+    return chunks;
+  }
+
+  /**
+   * Stops the threads, dropping any chunks still queued.
+   */
+  void close() {
+    for (Future<CompressedChunk> future : pending) {
+      future.cancel(true);
+    }
+    pending.clear();
+    executor.shutdownNow();
+  }
+
+  private void writeNext() throws IOException {
+    CompressedChunk compressed;
+    try {
+      compressed = pending.remove().get();
+    } catch (InterruptedException e) {
+      throw new InterruptedIOException("Interrupted compressing a backup chunk");
+    } catch (ExecutionException e) {
+      throw new IOException("Unable to compress a backup chunk", e.getCause());
+    }
+
+    ZipEntry zipEntry = new ZipEntry(compressed.chunk.entryName);
+    zipEntry.setMethod(ZipEntry.STORED);
+    zipEntry.setSize(compressed.length);
+    zipEntry.setCompressedSize(compressed.length);
+    zipEntry.setCrc(compressed.crc);
+    zipOutputStream.putNextEntry(zipEntry);
+    zipOutputStream.write(compressed.data, 0, compressed.length);
+    zipOutputStream.closeEntry();
+    chunks.add(compressed.chunk);
+  }
+
+  private CompressedChunk compress(Chunk chunk, ChunkBuffer buffer) {
+    Deflater deflater = new Deflater(compressionLevel);
+    try {
+      deflater.setInput(buffer.getBuffer(), 0, buffer.size());
+      deflater.finish();
+      // Compressed rows are usually well under half their size
+      byte[] data = new byte[Math.max(64, buffer.size() / 2)];
+      int length = 0;
+      while (!deflater.finished()) {
+        if (length == data.length) {
+          byte[] grown = new byte[data.length * 2];
+          System.arraycopy(data, 0, grown, 0, length);
+          data = grown;
+        }
+        length += deflater.deflate(data, length, data.length - length);
+      }
+      CompressedChunk compressed = new CompressedChunk();
+      compressed.chunk = chunk;
+      compressed.data = data;
+      compressed.length = length;
+      compressed.crc = checksum(data, 0, length);
+      return compressed;
+    } finally {
+      deflater.end();
+    }
+  }
+
+  static long checksum(byte[] data, int offset, int length) {
+    CRC32 crc = new CRC32();
+    crc.update(data, offset, length);
+    return crc.getValue();
+  }
+}
@@ -0,0 +1,176 @@
+/*
+*    Copyright (c) 2013, Will Szumski
+*    Copyright (c) 2013, Doug Szumski
+*
+*    This file is part of Cyclismo.
+*
+*    Cyclismo is free software: you can redistribute it and/or modify
+*    it under the terms of the GNU General Public License as published by
+*    the Free Software Foundation, either version 3 of the License, or
+*    (at your option) any later version.
+*
+*    Cyclismo is distributed in the hope that it will be useful,
+*    but WITHOUT ANY WARRANTY; without even the implied warranty of
+*    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*    GNU General Public License for more details.
+*
+*    You should have received a copy of the GNU General Public License
+*    along with Cyclismo.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package org.cowboycoders.cyclismo.io.backup;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Describes a chunked backup: the chunks it's made of, and how far into each
+ * table it got, so the next backup can write only what changed since.
+ *
+ * A full backup has no parent. An incremental backup names the backup it
+ * follows on from, and is restored by restoring that first.
+ */
+class BackupManifest {
+
+  static final String ZIP_ENTRY_NAME = "manifest";
+  private static final int VERSION = 2;
+
+  /**
+   * A run of rows of a table, compressed into a zip entry of its own.
+   */
+  static class Chunk {
+    final String entryName;
+    final String table;
+    // true if the rows replace existing ones, false if they're new
+    final boolean update;
+    final int rows;
+    // The size and CRC32 of the uncompressed rows
+    final int size;
+    final long checksum;
+
+    Chunk(String entryName, String table, boolean update, int rows, int size, long checksum) {
+      this.entryName = entryName;
+      this.table = table;
+      this.update = update;
+      this.rows = rows;
+      this.size = size;
+      this.checksum = checksum;
+    }
+  }
+
+  /**
+   * How far into a table a backup got.
+   */
+  static class TableState {
+    // The highest id backed up, for tables only ever appended to
+    long highWaterId = -1L;
+    // The checksum of every row by id, for tables whose rows change
+    final Map<Long, Integer> rowChecksums = new HashMap<Long, Integer>();
+    // The ids of the rows deleted since the parent backup
+    final List<Long> deletedIds = new ArrayList<Long>();
+
+    /**
+     * Returns the highest id backed up, or -1 if there's none.
+     */
+    long getHighestId() {
+      long highestId = highWaterId;
+      for (Long id : rowChecksums.keySet()) {
+        highestId = Math.max(highestId, id);
+      }
+      return highestId;
+    }
+  }
+
+  // The file name of the backup this one follows on from, null if it's full
+  String parentName;
+  // The number of backups back to the full one
+  int chainLength;
+  final Map<String, TableState> tables = new LinkedHashMap<String, TableState>();
+  final List<Chunk> chunks = new ArrayList<Chunk>();
+
+  boolean isIncremental() {
+    return parentName != null;
+  }
+
+  TableState getTableState(String table) {
+    TableState state = tables.get(table);
+    if (state == null) {
+      state = new TableState();
+      tables.put(table, state);
+    }
+    return state;
+  }
+
+  void write(DataOutputStream writer) throws IOException {
+    writer.writeInt(VERSION);
+    writer.writeBoolean(parentName != null);
+    if (parentName != null) {
+      writer.writeUTF(parentName);
+    }
+    writer.writeInt(chainLength);
+
+    writer.writeInt(tables.size());
+    for (Map.Entry<String, TableState> entry : tables.entrySet()) {
+      TableState state = entry.getValue();
+      writer.writeUTF(entry.getKey());
+      writer.writeLong(state.highWaterId);
+      writer.writeInt(state.rowChecksums.size());
+      for (Map.Entry<Long, Integer> row : state.rowChecksums.entrySet()) {
+        writer.writeLong(row.getKey());
+        writer.writeInt(row.getValue());
+      }
+      writer.writeInt(state.deletedIds.size());
+      for (long id : state.deletedIds) {
+        writer.writeLong(id);
+      }
+    }
+
+    writer.writeInt(chunks.size());
+    for (Chunk chunk : chunks) {
+      writer.writeUTF(chunk.entryName);
+      writer.writeUTF(chunk.table);
+      writer.writeBoolean(chunk.update);
+      writer.writeInt(chunk.rows);
+      writer.writeInt(chunk.size);
+      writer.writeLong(chunk.checksum);
+    }
+  }
+
+  static BackupManifest read(DataInputStream reader) throws IOException {
+    int version = reader.readInt();
+    if (version != VERSION) {
+      throw new IOException("Unsupported backup version " + version);
+    }
+    BackupManifest manifest = new BackupManifest();
+    if (reader.readBoolean()) {
+      manifest.parentName = reader.readUTF();
+    }
+    manifest.chainLength = reader.readInt();
+
+    int numTables = reader.readInt();
+    for (int i = 0; i < numTables; i++) {
+      TableState state = manifest.getTableState(reader.readUTF());
+      state.highWaterId = reader.readLong();
+      int numRows = reader.readInt();
+      for (int r = 0; r < numRows; r++) {
+        state.rowChecksums.put(reader.readLong(), reader.readInt());
+      }
+      int numDeleted = reader.readInt();
+      for (int d = 0; d < numDeleted; d++) {
+        state.deletedIds.add(reader.readLong());
+      }
+    }
+
+    int numChunks = reader.readInt();
+    for (int i = 0; i < numChunks; i++) {
+      manifest.chunks.add(new Chunk(reader.readUTF(), reader.readUTF(), reader.readBoolean(),
+          reader.readInt(), reader.readInt(), reader.readLong()));
+    }
+    return manifest;
+  }
+}
@@ -108,6 +108,32 @@ class DatabaseDumper {
     writeQueryMetadata(numRows, writer);
   }
 
+  /**
+   * Prepares to write rows from the given cursor, for when their headers are
+   * written separately with {@link #writeHeaders(int, DataOutputStream)}, e.g.
+   * to split the rows of one cursor across several outputs.
+   *
+   * @param cursor the cursor to get columns from
+   */
+  public void prepare(Cursor cursor) {
+    initializeCachedValues(cursor);
+  }
+
+  /**
+   * Writes just the headers for rows from the cursor last given to
+   * {@link #prepare} or {@link #writeHeaders(Cursor, int, DataOutputStream)}.
+   *
+   * @param numRows the number of rows that will be later written
+   * @param writer the output to write to
+   * @throws IOException if there are errors while writing
+   */
+  public void writeHeaders(int numRows, DataOutputStream writer) throws IOException {
+    if (columnIndices == null) {
+      throw new IllegalStateException("Cannot write headers before preparing a cursor");
+    }
+    writeQueryMetadata(numRows, writer);
+  }
+
   /**
    * Writes the current row from the cursor. The cursor is not advanced.
    * This must be called after {@link #writeHeaders}.
@@ -35,27 +35,114 @@
 package org.cowboycoders.cyclismo.io.backup;
 
 import android.content.ContentResolver;
+import android.content.ContentUris;
 import android.content.ContentValues;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
+import android.provider.BaseColumns;
+import android.util.Log;
 
+import com.google.protobuf.InvalidProtocolBufferException;
+
+import org.cowboycoders.cyclismo.content.BikeInfoColumns;
 import org.cowboycoders.cyclismo.content.ContentTypeIds;
+import org.cowboycoders.cyclismo.content.CourseTrackPointsColumns;
+import org.cowboycoders.cyclismo.content.CourseTracksColumns;
+import org.cowboycoders.cyclismo.content.Sensor.SensorDataSet;
+import org.cowboycoders.cyclismo.content.SensorDataColumns;
+import org.cowboycoders.cyclismo.content.TrackPointsColumns;
+import org.cowboycoders.cyclismo.content.TracksColumns;
+import org.cowboycoders.cyclismo.content.UserInfoColumns;
+import org.cowboycoders.cyclismo.io.backup.BackupManifest.Chunk;
 
+import java.io.ByteArrayInputStream;
 import java.io.DataInputStream;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Locale;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
 
 /**
  * Database importer which reads values written by {@link DatabaseDumper}.
  *
+ * Rows are inserted through the content resolver, or straight into the
+ * database when given one. Inserting straight into the database binds each
+ * row to a compiled statement, with no {@link ContentValues} per row and no
+ * provider call per bulk, but it's up to the caller to run it in a
+ * transaction, see {@link org.cowboycoders.cyclismo.content.MyTracksProvider#restore}.
+ *
  * @author Rodrigo Damazio
  */
 public class DatabaseImporter {
 
+  private static final String TAG = DatabaseImporter.class.getSimpleName();
+
   /** Maximum number of entries in a bulk insertion */
   private static final int DEFAULT_BULK_SIZE = 1024;
 
+  // The track point columns decoded from the sensor blob
+  private static final List<String> SENSOR_COLUMNS = Arrays.asList(TrackPointsColumns.POWER,
+      TrackPointsColumns.CADENCE, TrackPointsColumns.HEART_RATE, TrackPointsColumns.SENSOR_SPEED);
+
+  /**
+   * Columns the provider requires of an insert into a table, and the message
+   * it rejects an insert without them with.
+   */
+  private static class RequiredColumns {
+    final List<String> columns;
+    final String message;
+
+    RequiredColumns(String message, String... columns) {
+      this.columns = Arrays.asList(columns);
+      this.message = message;
+    }
+  }
+
+  // The required columns by table, as checked by the insert methods of the provider
+  private static final Map<String, RequiredColumns> REQUIRED_COLUMNS =
+      new HashMap<String, RequiredColumns>();
+
+  static {
+    RequiredColumns tracks = new RequiredColumns(
+        "Both start time and start id values are required.",
+        TracksColumns.STARTTIME, TracksColumns.STARTID);
+    RequiredColumns trackPoints = new RequiredColumns(
+        "Latitude, longitude, and time values are required.",
+        TrackPointsColumns.LATITUDE, TrackPointsColumns.LONGITUDE, TrackPointsColumns.TIME);
+    REQUIRED_COLUMNS.put(TracksColumns.TABLE_NAME, tracks);
+    REQUIRED_COLUMNS.put(CourseTracksColumns.TABLE_NAME, tracks);
+    REQUIRED_COLUMNS.put(TrackPointsColumns.TABLE_NAME, trackPoints);
+    REQUIRED_COLUMNS.put(CourseTrackPointsColumns.TABLE_NAME, trackPoints);
+    REQUIRED_COLUMNS.put(UserInfoColumns.TABLE_NAME,
+        new RequiredColumns("User must have name", UserInfoColumns.NAME));
+    REQUIRED_COLUMNS.put(BikeInfoColumns.TABLE_NAME,
+        new RequiredColumns("Bike must have name", BikeInfoColumns.NAME));
+  }
+
+  /**
+   * A compiled insert of the columns set in a fields bitmap.
+   */
+  private static class Insert {
+    final SQLiteStatement statement;
+    // True if the sensor columns are bound from the sensor blob, as the provider does
+    final boolean decodeSensor;
+
+    Insert(SQLiteStatement statement, boolean decodeSensor) {
+      this.statement = statement;
+      this.decodeSensor = decodeSensor;
+    }
+  }
+
   private final Uri destinationUri;
   private final ContentResolver resolver;
+  private final SQLiteDatabase db;
   private final boolean readNullFields;
   private final int bulkSize;
 
@@ -65,13 +152,33 @@ public class DatabaseImporter {
 
   public DatabaseImporter(Uri destinationUri, ContentResolver resolver,
       boolean readNullFields) {
-    this(destinationUri, resolver, readNullFields, DEFAULT_BULK_SIZE);
+    this(destinationUri, resolver, null, readNullFields, DEFAULT_BULK_SIZE);
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param destinationUri the content uri of the table
+   * @param resolver the content resolver, rows are updated through it
+   * @param db the database to insert rows straight into, or null to insert
+   *        them through the resolver. The table is the last segment of the uri.
+   * @param readNullFields true if the fields not set were still written
+   */
+  public DatabaseImporter(Uri destinationUri, ContentResolver resolver, SQLiteDatabase db,
+      boolean readNullFields) {
+    this(destinationUri, resolver, db, readNullFields, DEFAULT_BULK_SIZE);
   }
 
   protected DatabaseImporter(Uri destinationUri, ContentResolver resolver,
       boolean readNullFields, int bulkSize) {
+    this(destinationUri, resolver, null, readNullFields, bulkSize);
+  }
+
+  private DatabaseImporter(Uri destinationUri, ContentResolver resolver, SQLiteDatabase db,
+      boolean readNullFields, int bulkSize) {
     this.destinationUri = destinationUri;
     this.resolver = resolver;
+    this.db = db;
     this.readNullFields = readNullFields;
     this.bulkSize = bulkSize;
   }
@@ -99,6 +206,10 @@ public class DatabaseImporter {
    */
   public void importAllRows(DataInputStream reader) throws IOException {
     readHeaders(reader);
+    if (db != null) {
+      insertAllRows(reader);
+      return;
+    }
 
     ContentValues[] valueBulk = new ContentValues[bulkSize];
     int numValues = 0;
@@ -115,20 +226,7 @@ public class DatabaseImporter {
         valueBulk[numValues].clear();
       }
 
-      // Read the fields bitmap
-      long fields = reader.readLong();
-      for (int c = 0; c < numColumns; c++) {
-        if ((fields & 1) == 1) {
-          // Field is present, read into values
-          readOneCell(columnNames[c], columnTypes[c], valueBulk[numValues],
-              reader);
-        } else if (readNullFields) {
-          // Field not present but still written, read and discard
-          readOneCell(columnNames[c], columnTypes[c], null, reader);
-        }
-
-        fields >>= 1;
-      }
+      readOneRow(valueBulk[numValues], reader);
 
       numValues++;
 
@@ -147,10 +245,287 @@ public class DatabaseImporter {
     }
   }
 
+  /**
+   * Inserts all rows from the reader straight into the database. Rows with
+   * the same fields set share a compiled statement, and consecutive rows
+   * nearly always do.
+   *
+   * @throws IOException if there are any errors while reading
+   */
+  private void insertAllRows(DataInputStream reader) throws IOException {
+    int numRows = reader.readInt();
+    Map<Long, Insert> inserts = new HashMap<Long, Insert>();
+    Insert insert = null;
+    long insertFields = 0L;
+    try {
+      for (int r = 0; r < numRows; r++) {
+        long fields = reader.readLong();
+        if (insert == null || fields != insertFields) {
+          insert = inserts.get(fields);
+          if (insert == null) {
+            insert = compileInsert(fields);
+            inserts.put(fields, insert);
+          }
+          insertFields = fields;
+        }
+        insert.statement.clearBindings();
+        bindOneRow(insert, fields, reader);
+        if (insert.statement.executeInsert() < 0) {
+          throw new SQLiteException("Failed to insert into " + destinationUri);
+        }
+      }
+    } finally {
+      for (Insert compiled : inserts.values()) {
+        compiled.statement.close();
+      }
+    }
+  }
+
+  /**
+   * Compiles the insert of the columns set in a fields bitmap.
+   *
+   * @param fields the fields bitmap
+   * @throws IllegalArgumentException if a column the provider requires isn't set
+   */
+  private Insert compileInsert(long fields) {
+    String table = destinationUri.getLastPathSegment();
+    StringBuilder columns = new StringBuilder();
+    List<String> setColumns = new ArrayList<String>();
+    boolean hasSensor = false;
+    boolean hasSensorColumns = false;
+    for (int c = 0; c < columnNames.length; c++) {
+      if ((fields & (1L << c)) != 0) {
+        columns.append(setColumns.isEmpty() ? "" : ", ").append(columnNames[c]);
+        setColumns.add(columnNames[c]);
+        hasSensor |= columnNames[c].equals(TrackPointsColumns.SENSOR);
+        hasSensorColumns |= SENSOR_COLUMNS.contains(columnNames[c]);
+      }
+    }
+    RequiredColumns required = REQUIRED_COLUMNS.get(table);
+    if (required != null && !setColumns.containsAll(required.columns)) {
+      throw new IllegalArgumentException(required.message);
+    }
+    int numColumns = setColumns.size();
+
+    // Backups made before the sensor columns existed only have the blob
+    boolean decodeSensor = table.equals(TrackPointsColumns.TABLE_NAME)
+        && hasSensor && !hasSensorColumns;
+    if (decodeSensor) {
+      for (String column : SENSOR_COLUMNS) {
+        columns.append(", ").append(column);
+        numColumns++;
+      }
+    }
+
+    String sql;
+    if (numColumns == 0) {
+      sql = "INSERT INTO " + table + " DEFAULT VALUES";
+    } else {
+      StringBuilder values = new StringBuilder("?");
+      for (int i = 1; i < numColumns; i++) {
+        values.append(", ?");
+      }
+      sql = "INSERT INTO " + table + " (" + columns + ") VALUES (" + values + ")";
+    }
+    return new Insert(db.compileStatement(sql), decodeSensor);
+  }
+
+  /**
+   * Reads a single row from the reader and binds it to an insert.
+   *
+   * @param insert the insert of the fields set in the row
+   * @param fields the fields bitmap of the row
+   * @throws IOException if there are any problems while reading
+   */
+  private void bindOneRow(Insert insert, long fields, DataInputStream reader)
+      throws IOException {
+    int index = 1;
+    byte[] sensor = null;
+    for (int c = 0; c < columnNames.length; c++) {
+      if ((fields & 1) == 1) {
+        if (insert.decodeSensor && columnNames[c].equals(TrackPointsColumns.SENSOR)) {
+          sensor = readBlob(columnNames[c], reader);
+          bindBlob(insert.statement, index, sensor);
+        } else {
+          bindOneCell(insert.statement, index, columnNames[c], columnTypes[c], reader);
+        }
+        index++;
+      } else if (readNullFields) {
+        readOneCell(columnNames[c], columnTypes[c], null, reader);
+      }
+
+      fields >>= 1;
+    }
+
+    if (insert.decodeSensor) {
+      SensorDataSet sensorDataSet = null;
+      if (sensor != null) {
+        try {
+          sensorDataSet = SensorDataSet.parseFrom(sensor);
+        } catch (InvalidProtocolBufferException e) {
+          Log.w(TAG, "Failed to parse sensor data.", e);
+        }
+      }
+      bindFloat(insert.statement, index++, SensorDataColumns.getPower(sensorDataSet));
+      bindFloat(insert.statement, index++, SensorDataColumns.getCadence(sensorDataSet));
+      bindFloat(insert.statement, index++, SensorDataColumns.getHeartRate(sensorDataSet));
+      bindFloat(insert.statement, index, SensorDataColumns.getSpeed(sensorDataSet));
+    }
+  }
+
+  /**
+   * Reads a single cell from the reader and binds it, as
+   * {@link #readOneCell} would put it in {@link ContentValues}.
+   *
+   * @param statement the statement to bind the cell to
+   * @param index the index of the parameter, from 1
+   * @param name the name of the column to be read
+   * @param typeId the type ID of the column to be read
+   * @throws IOException if there are any problems while reading
+   */
+  private void bindOneCell(SQLiteStatement statement, int index, String name, byte typeId,
+      DataInputStream reader) throws IOException {
+    switch (typeId) {
+      case ContentTypeIds.BOOLEAN_TYPE_ID:
+        statement.bindLong(index, reader.readBoolean() ? 1L : 0L);
+        return;
+      case ContentTypeIds.LONG_TYPE_ID:
+        statement.bindLong(index, reader.readLong());
+        return;
+      case ContentTypeIds.DOUBLE_TYPE_ID:
+        statement.bindDouble(index, reader.readDouble());
+        return;
+      case ContentTypeIds.FLOAT_TYPE_ID:
+        statement.bindDouble(index, reader.readFloat());
+        return;
+      case ContentTypeIds.INT_TYPE_ID:
+        statement.bindLong(index, reader.readInt());
+        return;
+      case ContentTypeIds.STRING_TYPE_ID:
+        statement.bindString(index, reader.readUTF());
+        return;
+      case ContentTypeIds.BLOB_TYPE_ID:
+        bindBlob(statement, index, readBlob(name, reader));
+        return;
+      default:
+        throw new IOException("Read unknown type " + typeId);
+    }
+  }
+
+  private static void bindBlob(SQLiteStatement statement, int index, byte[] blob) {
+    if (blob == null) {
+      statement.bindNull(index);
+    } else {
+      statement.bindBlob(index, blob);
+    }
+  }
+
+  private static void bindFloat(SQLiteStatement statement, int index, float value) {
+    if (Float.isNaN(value)) {
+      statement.bindNull(index);
+    } else {
+      statement.bindDouble(index, value);
+    }
+  }
+
+  /**
+   * Reads all rows from the reader and updates the existing rows with the same
+   * ids in the database.
+   *
+   * @throws IOException if there are any errors while reading
+   */
+  public void updateAllRows(DataInputStream reader) throws IOException {
+    readHeaders(reader);
+
+    int numRows = reader.readInt();
+    ContentValues values = new ContentValues(columnNames.length);
+    for (int r = 0; r < numRows; r++) {
+      values.clear();
+      readOneRow(values, reader);
+      Long id = values.getAsLong(BaseColumns._ID);
+      if (id == null) {
+        throw new IOException("Row to update has no id");
+      }
+      doUpdate(id, values);
+    }
+  }
+
+  /**
+   * Imports a chunk of a chunked backup, see {@link BackupChunkWriter}. The
+   * chunk is checked against its manifest entry before anything is imported.
+   *
+   * @param chunk the manifest entry of the chunk
+   * @param compressed the chunk as read from the backup
+   * @throws IOException if the chunk is corrupt or can't be read
+   */
+  public void importChunk(Chunk chunk, byte[] compressed) throws IOException {
+    DataInputStream reader = new DataInputStream(
+        new ByteArrayInputStream(readChunk(chunk, compressed)));
+    if (chunk.update) {
+      updateAllRows(reader);
+    } else {
+      importAllRows(reader);
+    }
+  }
+
+  /**
+   * Inflates a chunk of a chunked backup and verifies its size and checksum.
+   *
+   * @param chunk the manifest entry of the chunk
+   * @param compressed the chunk as read from the backup
+   * @return the rows of the chunk, as written by {@link DatabaseDumper}
+   * @throws IOException if the chunk is corrupt
+   */
+  static byte[] readChunk(Chunk chunk, byte[] compressed) throws IOException {
+    byte[] data = new byte[chunk.size];
+    Inflater inflater = new Inflater();
+    try {
+      inflater.setInput(compressed);
+      int length = inflater.inflate(data);
+      if (length != chunk.size || !inflater.finished()) {
+        throw new IOException("Wrong size for backup chunk " + chunk.entryName);
+      }
+    } catch (DataFormatException e) {
+      throw new IOException("Corrupt backup chunk " + chunk.entryName, e);
+    } finally {
+      inflater.end();
+    }
+    if (BackupChunkWriter.checksum(data, 0, data.length) != chunk.checksum) {
+      throw new IOException("Checksum mismatch for backup chunk " + chunk.entryName);
+    }
+    return data;
+  }
+
   protected void doBulkInsert(ContentValues[] values) {
     resolver.bulkInsert(destinationUri, values);
   }
 
+  protected void doUpdate(long id, ContentValues values) {
+    resolver.update(ContentUris.withAppendedId(destinationUri, id), values, null, null);
+  }
+
+  /**
+   * Reads a single row from the reader.
+   *
+   * @param values the {@link ContentValues} object to put the row in
+   * @throws IOException if there are any problems while reading
+   */
+  private void readOneRow(ContentValues values, DataInputStream reader) throws IOException {
+    // Read the fields bitmap
+    long fields = reader.readLong();
+    for (int c = 0; c < columnNames.length; c++) {
+      if ((fields & 1) == 1) {
+        // Field is present, read into values
+        readOneCell(columnNames[c], columnTypes[c], values, reader);
+      } else if (readNullFields) {
+        // Field not present but still written, read and discard
+        readOneCell(columnNames[c], columnTypes[c], null, reader);
+      }
+
+      fields >>= 1;
+    }
+  }
+
   /**
    * Reads a single cell from the reader.
    *
@@ -194,19 +569,9 @@ public class DatabaseImporter {
         return;
       }
       case ContentTypeIds.BLOB_TYPE_ID: {
-        int blobLength = reader.readInt();
-        if (blobLength != 0) {
-          byte[] blob = new byte[blobLength];
-          int readBytes = reader.read(blob, 0, blobLength);
-          if (readBytes != blobLength) {
-            throw new IOException(String.format(Locale.US,
-                "Short read on column %s; expected %d bytes, read %d",
-                name, blobLength, readBytes));
-          }
-          
-          if (values != null) {
-            values.put(name, blob);
-          }
+        byte[] blob = readBlob(name, reader);
+        if (blob != null && values != null) {
+          values.put(name, blob);
         }
         return;
       }
@@ -214,4 +579,25 @@ public class DatabaseImporter {
         throw new IOException("Read unknown type " + typeId);
     }
   }
+
+  /**
+   * Reads a blob cell from the reader, null if it's empty.
+   *
+   * @param name the name of the column to be read
+   * @throws IOException if there are any problems while reading
+   */
+  private static byte[] readBlob(String name, DataInputStream reader) throws IOException {
+    int blobLength = reader.readInt();
+    if (blobLength == 0) {
+      return null;
+    }
+    byte[] blob = new byte[blobLength];
+    int readBytes = reader.read(blob, 0, blobLength);
+    if (readBytes != blobLength) {
+      throw new IOException(String.format(Locale.US,
+          "Short read on column %s; expected %d bytes, read %d",
+          name, blobLength, readBytes));
+    }
+    return blob;
+  }
 }
@@ -34,20 +34,37 @@
  */
 package org.cowboycoders.cyclismo.io.backup;
 
+import android.content.ContentProvider;
+import android.content.ContentProviderClient;
 import android.content.ContentResolver;
 import android.content.Context;
 import android.content.SharedPreferences;
 import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.provider.BaseColumns;
+import android.text.TextUtils;
 import android.util.Log;
 
+import com.google.common.annotations.VisibleForTesting;
+
 import org.cowboycoders.cyclismo.Constants;
+import org.cowboycoders.cyclismo.R;
 import org.cowboycoders.cyclismo.content.BikeInfoColumns;
+import org.cowboycoders.cyclismo.content.MyTracksProvider;
+import org.cowboycoders.cyclismo.content.MyTracksProviderUtils;
 import org.cowboycoders.cyclismo.content.TrackPointsColumns;
 import org.cowboycoders.cyclismo.content.TracksColumns;
 import org.cowboycoders.cyclismo.content.UserInfoColumns;
 import org.cowboycoders.cyclismo.content.WaypointsColumns;
+import org.cowboycoders.cyclismo.io.backup.BackupChunkWriter.ChunkBuffer;
+import org.cowboycoders.cyclismo.io.backup.BackupManifest.Chunk;
+import org.cowboycoders.cyclismo.io.backup.BackupManifest.TableState;
 import org.cowboycoders.cyclismo.util.FileUtils;
+import org.cowboycoders.cyclismo.util.PreferencesUtils;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.File;
@@ -58,7 +75,10 @@ import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.TimeZone;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
@@ -67,6 +87,16 @@ import java.util.zip.ZipOutputStream;
 /**
  * Handler for writing or reading single-file backups.
  *
+ * A backup holds the rows of each table in chunks, compressed in parallel, and
+ * a {@link BackupManifest} listing them. Backups after the first are
+ * incremental, holding only the rows added, changed or deleted since the
+ * latest backup, until {@link #MAX_CHAIN_LENGTH} of them follow on from the
+ * same full backup. A full backup is written after a restore, or if the
+ * database no longer carries on from the latest backup.
+ *
+ * Backups are restored straight into the database when the provider is in
+ * this process, see {@link MyTracksProvider#restore}.
+ *
  * @author Rodrigo Damazio
  */
 class ExternalFileBackup {
@@ -81,17 +111,69 @@ class ExternalFileBackup {
   }
 
   private static final String BACKUPS_SUBDIR = "backups";
-  private static final int BACKUP_FORMAT_VERSION = 1;
-  private static final String ZIP_ENTRY_NAME =
-      "backup.mytracks.v" + BACKUP_FORMAT_VERSION;
+  private static final int LEGACY_BACKUP_FORMAT_VERSION = 1;
+  private static final String LEGACY_ZIP_ENTRY_NAME =
+      "backup.mytracks.v" + LEGACY_BACKUP_FORMAT_VERSION;
+  private static final String PREFERENCES_ZIP_ENTRY_NAME = "preferences";
   private static final int COMPRESSION_LEVEL = 8;
 
+  // The number of rows per chunk, and the initial size of a chunk's buffer
+  private static final int CHUNK_ROWS = 8192;
+  private static final int CHUNK_BUFFER_SIZE = 64 * 1024;
+
+  // The most incremental backups following on from a full one
+  static final int MAX_CHAIN_LENGTH = 6;
+
+  /**
+   * A table to back up.
+   */
+  private static class Table {
+    final String name;
+    final Uri uri;
+    final String[] columns;
+    final byte[] types;
+    // true if rows are only ever added, so the ids backed up need no checksums
+    final boolean appendOnly;
+
+    Table(String name, Uri uri, String[] columns, byte[] types, boolean appendOnly) {
+      this.name = name;
+      this.uri = uri;
+      this.columns = columns;
+      this.types = types;
+      this.appendOnly = appendOnly;
+    }
+  }
+
+  // The tables to back up, in the order they're restored
+  private static final Table[] TABLES = {
+      new Table(UserInfoColumns.TABLE_NAME, UserInfoColumns.CONTENT_URI,
+          UserInfoColumns.COLUMNS, UserInfoColumns.COLUMN_TYPES, false),
+      new Table(BikeInfoColumns.TABLE_NAME, BikeInfoColumns.CONTENT_URI,
+          BikeInfoColumns.COLUMNS, BikeInfoColumns.COLUMN_TYPES, false),
+      new Table(TracksColumns.TABLE_NAME, TracksColumns.CONTENT_URI,
+          TracksColumns.COLUMNS, TracksColumns.COLUMN_TYPES, false),
+      new Table(WaypointsColumns.TABLE_NAME, WaypointsColumns.CONTENT_URI,
+          WaypointsColumns.COLUMNS, WaypointsColumns.COLUMN_TYPES, false),
+      new Table(TrackPointsColumns.TABLE_NAME, TrackPointsColumns.CONTENT_URI,
+          TrackPointsColumns.COLUMNS, TrackPointsColumns.COLUMN_TYPES, true),
+  };
+
   private final Context context;
+  private boolean directRestore = true;
 
   public ExternalFileBackup(Context context) {
     this.context = context;
   }
 
+  /**
+   * Sets whether to restore straight into the database, rather than through
+   * the content resolver, when the provider is in this process.
+   */
+  @VisibleForTesting
+  void setDirectRestore(boolean directRestore) {
+    this.directRestore = directRestore;
+  }
+
   /**
    * Returns whether the backups directory is (or can be made) available.
    *
@@ -141,10 +223,11 @@ class ExternalFileBackup {
   }
 
   /**
-   * Writes the backup to the default file.
+   * Writes the backup to the default file, incremental on the latest backup if
+   * there is one.
    */
   public void writeToDefaultFile() throws IOException {
-    writeToFile(getFileForDate(new Date()));
+    writeToFile(getFileForDate(new Date()), true);
   }
 
   /**
@@ -166,157 +249,526 @@ class ExternalFileBackup {
 
   /**
    * Synchronously writes a backup to the given file.
+   *
+   * @param outputFile the file to write to
+   * @param incremental true to write only what changed since the latest
+   *          backup, if there's one to follow on from
    */
-  private void writeToFile(File outputFile) throws IOException {
+  void writeToFile(File outputFile, boolean incremental) throws IOException {
     Log.d(TAG,
         "Writing backup to file " + outputFile.getAbsolutePath());
 
-    // Create all the auxiliary classes that will do the writing
+    // Find the backup to follow on from, if any
+    BackupManifest parent = null;
+    File parentFile = incremental ? getLatestBackupFile(outputFile.getParentFile()) : null;
+    if (parentFile != null) {
+      try {
+        parent = readManifest(parentFile);
+      } catch (IOException e) {
+        Log.w(TAG, "Unable to read backup " + parentFile.getName() + ", writing a full backup", e);
+      }
+      if (parent != null && parent.chainLength >= MAX_CHAIN_LENGTH) {
+        // Start over, so restoring never has to go too far back
+        parent = null;
+      }
+      if (parent != null && !canFollowOn(parent)) {
+        Log.i(TAG, "Database doesn't follow on from " + parentFile.getName()
+            + ", writing a full backup");
+        parent = null;
+      }
+    }
+    BackupManifest manifest = new BackupManifest();
+    if (parent != null) {
+      manifest.parentName = parentFile.getName();
+      manifest.chainLength = parent.chainLength + 1;
+    }
+
     PreferenceBackupHelper preferencesHelper = new PreferenceBackupHelper(context);
-    DatabaseDumper trackDumper = new DatabaseDumper(
-        TracksColumns.COLUMNS,
-        TracksColumns.COLUMN_TYPES,
-        false);
-    DatabaseDumper waypointDumper = new DatabaseDumper(
-        WaypointsColumns.COLUMNS,
-        WaypointsColumns.COLUMN_TYPES,
-        false);
-    DatabaseDumper pointDumper = new DatabaseDumper(
-        TrackPointsColumns.COLUMNS,
-        TrackPointsColumns.COLUMN_TYPES,
-        false);
-    DatabaseDumper userDumper = new DatabaseDumper(
-        UserInfoColumns.COLUMNS,
-        UserInfoColumns.COLUMN_TYPES,
-        false);
-    DatabaseDumper bikeDumper = new DatabaseDumper(
-        BikeInfoColumns.COLUMNS,
-        BikeInfoColumns.COLUMN_TYPES,
-        false);
 
     // Open the target for writing
     FileOutputStream outputStream = new FileOutputStream(outputFile);
-    ZipOutputStream compressedStream = new ZipOutputStream(outputStream);
+    ZipOutputStream compressedStream = new ZipOutputStream(new BufferedOutputStream(outputStream));
     compressedStream.setLevel(COMPRESSION_LEVEL);
-    compressedStream.putNextEntry(new ZipEntry(ZIP_ENTRY_NAME));
     DataOutputStream outWriter = new DataOutputStream(compressedStream);
+    BackupChunkWriter chunkWriter = new BackupChunkWriter(
+        compressedStream, COMPRESSION_LEVEL, Runtime.getRuntime().availableProcessors());
 
+    boolean success = false;
     try {
-      
-      // Dump the entire contents of each table
+      // Dump the rows of each table, or those that changed since the parent
       ContentResolver contentResolver = context.getContentResolver();
-      
-      Cursor userCursor = contentResolver.query(
-          UserInfoColumns.CONTENT_URI, null, null, null, null);
-      try {
-        userDumper.writeAllRows(userCursor, outWriter);
-      } finally {
-        userCursor.close();
-      }
-      
-      Cursor bikeCursor = contentResolver.query(
-          BikeInfoColumns.CONTENT_URI, null, null, null, null);
-      try {
-        bikeDumper.writeAllRows(bikeCursor, outWriter);
-      } finally {
-        bikeCursor.close();
-      }
-      
-      Cursor tracksCursor = contentResolver.query(
-          TracksColumns.CONTENT_URI, null, null, null, null);
-      try {
-        trackDumper.writeAllRows(tracksCursor, outWriter);
-      } finally {
-        tracksCursor.close();
-      }
-
-      Cursor waypointsCursor = contentResolver.query(
-          WaypointsColumns.CONTENT_URI, null, null, null, null);
-      try {
-        waypointDumper.writeAllRows(waypointsCursor, outWriter);
-      } finally {
-        waypointsCursor.close();
-      }
-
-      Cursor pointsCursor = contentResolver.query(
-          TrackPointsColumns.CONTENT_URI, null, null, null, null);
-      try {
-        pointDumper.writeAllRows(pointsCursor, outWriter);
-      } finally {
-        pointsCursor.close();
+      for (Table table : TABLES) {
+        writeTable(contentResolver, table,
+            parent == null ? null : parent.tables.get(table.name),
+            manifest.getTableState(table.name), chunkWriter);
       }
-      
-      
+      manifest.chunks.addAll(chunkWriter.finish());
 
       // Dump preferences
       SharedPreferences preferences = context.getSharedPreferences(
           Constants.SETTINGS_NAME, Context.MODE_PRIVATE);
+      compressedStream.putNextEntry(new ZipEntry(PREFERENCES_ZIP_ENTRY_NAME));
       preferencesHelper.exportPreferences(preferences, outWriter);
-    } catch (IOException e) {
+      outWriter.flush();
+      compressedStream.closeEntry();
+
+      compressedStream.putNextEntry(new ZipEntry(BackupManifest.ZIP_ENTRY_NAME));
+      manifest.write(outWriter);
+      outWriter.flush();
+      compressedStream.closeEntry();
+      success = true;
+      PreferencesUtils.setBoolean(context, R.string.backup_full_required_key, false);
+    } finally {
+      chunkWriter.close();
+      compressedStream.close();
       // We tried to delete the partially created file, but do nothing
       // if that also fails.
-      if (!outputFile.delete()) {
+      if (!success && !outputFile.delete()) {
         Log.w(TAG, "Failed to delete file " + outputFile.getAbsolutePath());
       }
+    }
+    Log.d(TAG, "Wrote " + manifest.chunks.size() + " chunks, "
+        + (parent == null ? "full backup" : "incremental on " + manifest.parentName));
+  }
+
+  /**
+   * Returns true if the database carries on from the given backup, so an
+   * incremental backup can follow on from it. It doesn't after a restore,
+   * which may have gone back to an older backup, or once the app's data has
+   * been cleared. The ids of the tables can then be reused below the highest
+   * id the backup has, and rows would be skipped or taken for changed ones.
+   *
+   * @param parent the backup to follow on from
+   */
+  private boolean canFollowOn(BackupManifest parent) throws IOException {
+    if (PreferencesUtils.getBoolean(context, R.string.backup_full_required_key, false)) {
+      return false;
+    }
+    ContentResolver contentResolver = context.getContentResolver();
+    for (Table table : TABLES) {
+      TableState state = parent.tables.get(table.name);
+      long highestId = state == null ? -1L : state.getHighestId();
+      if (highestId < 0) {
+        continue;
+      }
+      // The next id is past the highest in the table and the sequence
+      Cursor cursor = contentResolver.query(table.uri, new String[] {
+          "MAX(" + BaseColumns._ID + ")",
+          "(SELECT seq FROM sqlite_sequence WHERE name = '" + table.name + "')" },
+          null, null, null);
+      if (cursor == null) {
+        throw new IOException("Unable to read table " + table.name);
+      }
+      try {
+        if (!cursor.moveToFirst() || highestId > cursor.getLong(0)
+            || highestId > cursor.getLong(1)) {
+          return false;
+        }
+      } finally {
+        cursor.close();
+      }
+    }
+    return true;
+  }
 
-      throw e;
+  /**
+   * Dumps the rows of a table into chunks. Given the state of the table in the
+   * parent backup, only the rows added or changed since are dumped: appended
+   * tables are dumped from past their high-water mark, and the rows of other
+   * tables are dumped if their checksum changed.
+   *
+   * @param table the table to dump
+   * @param parentState the state of the table in the parent backup, or null
+   * @param state the state of the table in this backup, filled in
+   */
+  private void writeTable(ContentResolver contentResolver, Table table, TableState parentState,
+      TableState state, BackupChunkWriter chunkWriter) throws IOException {
+    String selection = null;
+    String[] selectionArgs = null;
+    if (table.appendOnly && parentState != null) {
+      selection = BaseColumns._ID + ">?";
+      selectionArgs = new String[] { Long.toString(parentState.highWaterId) };
+      state.highWaterId = parentState.highWaterId;
+    }
+    Cursor cursor = contentResolver.query(
+        table.uri, null, selection, selectionArgs, BaseColumns._ID);
+    if (cursor == null) {
+      throw new IOException("Unable to read table " + table.name);
+    }
+
+    try {
+      DatabaseDumper dumper = new DatabaseDumper(table.columns, table.types, false);
+      dumper.prepare(cursor);
+      int idIndex = cursor.getColumnIndexOrThrow(BaseColumns._ID);
+      ChunkBuilder inserts = new ChunkBuilder(table.name, false, dumper, chunkWriter);
+      ChunkBuilder updates = new ChunkBuilder(table.name, true, dumper, chunkWriter);
+
+      while (cursor.moveToNext()) {
+        long id = cursor.getLong(idIndex);
+        int start = inserts.startRow();
+        dumper.writeOneRow(cursor, inserts.writer);
+        if (table.appendOnly) {
+          state.highWaterId = Math.max(state.highWaterId, id);
+          inserts.endRow();
+          continue;
+        }
+
+        int checksum = (int) inserts.getChecksum(start);
+        state.rowChecksums.put(id, checksum);
+        Integer parentChecksum = parentState == null ? null : parentState.rowChecksums.get(id);
+        if (parentChecksum == null) {
+          inserts.endRow();
+        } else if (parentChecksum != checksum) {
+          inserts.moveRow(start, updates);
+        } else {
+          inserts.moveRow(start, null);
+        }
+      }
+      inserts.flush();
+      updates.flush();
     } finally {
-      compressedStream.closeEntry();
-      compressedStream.close();
+      cursor.close();
+    }
+
+    if (parentState != null && !table.appendOnly) {
+      for (Long id : parentState.rowChecksums.keySet()) {
+        if (!state.rowChecksums.containsKey(id)) {
+          state.deletedIds.add(id);
+        }
+      }
     }
   }
 
   /**
-   * Synchronously restores the backup from the given file.
+   * Synchronously restores the backup from the given file, along with the
+   * backups it follows on from.
    */
-  private void restoreFromFile(File inputFile) throws IOException {
+  void restoreFromFile(File inputFile) throws IOException {
     Log.d(TAG,
         "Restoring from file " + inputFile.getAbsolutePath());
 
+    // Open the backup and the ones it follows on from, oldest first
+    final LinkedList<ZipFile> zipFiles = new LinkedList<ZipFile>();
+    final LinkedList<BackupManifest> manifests = new LinkedList<BackupManifest>();
+    try {
+      File file = inputFile;
+      while (true) {
+        ZipFile zipFile = new ZipFile(file, ZipFile.OPEN_READ);
+        zipFiles.addFirst(zipFile);
+        BackupManifest manifest = readManifest(zipFile);
+        if (manifest == null) {
+          if (file != inputFile) {
+            throw new IOException("Invalid backup ZIP file " + file.getName());
+          }
+          restoreFromLegacyFile(zipFile);
+          return;
+        }
+        manifests.addFirst(manifest);
+        if (!manifest.isIncremental()) {
+          break;
+        }
+        file = new File(inputFile.getParentFile(), manifest.parentName);
+        if (!file.isFile()) {
+          throw new IOException("Missing backup " + manifest.parentName);
+        }
+      }
+
+      // Check every chunk before deleting anything, so a corrupt backup
+      // leaves the database as it was
+      for (int i = 0; i < manifests.size(); i++) {
+        for (Chunk chunk : manifests.get(i).chunks) {
+          DatabaseImporter.readChunk(chunk, readEntry(zipFiles.get(i), chunk.entryName));
+        }
+      }
+
+      final ContentResolver resolver = context.getContentResolver();
+      restoreTables(resolver, new MyTracksProvider.DatabaseRestore() {
+        @Override
+        public void restore(SQLiteDatabase db) throws IOException {
+          Map<String, DatabaseImporter> importers = new HashMap<String, DatabaseImporter>();
+          for (Table table : TABLES) {
+            importers.put(table.name, new DatabaseImporter(table.uri, resolver, db, false));
+          }
+
+          // Delete all previous contents of the tables and preferences.
+          deleteAllTables(resolver);
+
+          // Import the contents of each backup in turn
+          for (int i = 0; i < manifests.size(); i++) {
+            BackupManifest manifest = manifests.get(i);
+            deleteRows(resolver, manifest);
+            for (Chunk chunk : manifest.chunks) {
+              DatabaseImporter importer = importers.get(chunk.table);
+              if (importer == null) {
+                throw new IOException("Unknown table " + chunk.table);
+              }
+              importer.importChunk(chunk, readEntry(zipFiles.get(i), chunk.entryName));
+            }
+          }
+        }
+      });
+
+      // Restore preferences from the latest backup
+      PreferenceBackupHelper preferencesHelper = new PreferenceBackupHelper(context);
+      SharedPreferences preferences = context.getSharedPreferences(
+          Constants.SETTINGS_NAME, Context.MODE_PRIVATE);
+      preferencesHelper.importPreferences(
+          readEntry(zipFiles.getLast(), PREFERENCES_ZIP_ENTRY_NAME), preferences);
+      PreferencesUtils.setBoolean(context, R.string.backup_full_required_key, true);
+    } finally {
+      for (ZipFile zipFile : zipFiles) {
+        zipFile.close();
+      }
+    }
+  }
+
+  /**
+   * Restores a backup written before backups were chunked, with all the
+   * tables in a single entry.
+   */
+  private void restoreFromLegacyFile(ZipFile zipFile) throws IOException {
     PreferenceBackupHelper preferencesHelper = new PreferenceBackupHelper(context);
-    ContentResolver resolver = context.getContentResolver();
-    DatabaseImporter userImporter =
-        new DatabaseImporter(UserInfoColumns.CONTENT_URI, resolver, false);
-    DatabaseImporter bikeImporter =
-        new DatabaseImporter(BikeInfoColumns.CONTENT_URI, resolver, false);
-    DatabaseImporter trackImporter =
-        new DatabaseImporter(TracksColumns.CONTENT_URI, resolver, false);
-    DatabaseImporter waypointImporter =
-        new DatabaseImporter(WaypointsColumns.CONTENT_URI, resolver, false);
-    DatabaseImporter pointImporter =
-        new DatabaseImporter(TrackPointsColumns.CONTENT_URI, resolver, false);
-
-    ZipFile zipFile = new ZipFile(inputFile, ZipFile.OPEN_READ);
-    ZipEntry zipEntry = zipFile.getEntry(ZIP_ENTRY_NAME);
+    final ContentResolver resolver = context.getContentResolver();
+
+    ZipEntry zipEntry = zipFile.getEntry(LEGACY_ZIP_ENTRY_NAME);
     if (zipEntry == null) {
       throw new IOException("Invalid backup ZIP file");
     }
 
     InputStream compressedStream = zipFile.getInputStream(zipEntry);
-    DataInputStream reader = new DataInputStream(compressedStream);
+    final DataInputStream reader = new DataInputStream(compressedStream);
 
     try {
-      // Delete all previous contents of the tables and preferences.
-      resolver.delete(TracksColumns.CONTENT_URI, null, null);
-      resolver.delete(TrackPointsColumns.CONTENT_URI, null, null);
-      resolver.delete(WaypointsColumns.CONTENT_URI, null, null);
-      resolver.delete(UserInfoColumns.CONTENT_URI, null, null);
-      resolver.delete(BikeInfoColumns.CONTENT_URI, null, null);
-
-      // Import the new contents of each table
-      userImporter.importAllRows(reader);
-      bikeImporter.importAllRows(reader);
-      trackImporter.importAllRows(reader);
-      waypointImporter.importAllRows(reader);
-      pointImporter.importAllRows(reader);
+      restoreTables(resolver, new MyTracksProvider.DatabaseRestore() {
+        @Override
+        public void restore(SQLiteDatabase db) throws IOException {
+          // Delete all previous contents of the tables and preferences.
+          deleteAllTables(resolver);
+
+          // Import the new contents of each table
+          new DatabaseImporter(UserInfoColumns.CONTENT_URI, resolver, db, false)
+              .importAllRows(reader);
+          new DatabaseImporter(BikeInfoColumns.CONTENT_URI, resolver, db, false)
+              .importAllRows(reader);
+          new DatabaseImporter(TracksColumns.CONTENT_URI, resolver, db, false)
+              .importAllRows(reader);
+          new DatabaseImporter(WaypointsColumns.CONTENT_URI, resolver, db, false)
+              .importAllRows(reader);
+          new DatabaseImporter(TrackPointsColumns.CONTENT_URI, resolver, db, false)
+              .importAllRows(reader);
+        }
+      });
 
       // Restore preferences
       SharedPreferences preferences = context.getSharedPreferences(
           Constants.SETTINGS_NAME, Context.MODE_PRIVATE);
       preferencesHelper.importPreferences(reader, preferences);
+      PreferencesUtils.setBoolean(context, R.string.backup_full_required_key, true);
     } finally {
       compressedStream.close();
+    }
+  }
+
+  /**
+   * Runs a restore of the tables straight against the database if the
+   * provider is in this process, otherwise through the content resolver, with
+   * a null database.
+   *
+   * @param resolver the content resolver
+   * @param restore the restore
+   */
+  private void restoreTables(ContentResolver resolver, MyTracksProvider.DatabaseRestore restore)
+      throws IOException {
+    ContentProviderClient client = directRestore
+        ? resolver.acquireContentProviderClient(MyTracksProviderUtils.AUTHORITY) : null;
+    try {
+      ContentProvider provider = client != null ? client.getLocalContentProvider() : null;
+      if (provider instanceof MyTracksProvider) {
+        Uri[] urls = new Uri[TABLES.length];
+        for (int i = 0; i < TABLES.length; i++) {
+          urls[i] = TABLES[i].uri;
+        }
+        ((MyTracksProvider) provider).restore(urls, restore);
+      } else {
+        restore.restore(null);
+      }
+    } finally {
+      if (client != null) {
+        client.release();
+      }
+    }
+  }
+
+  private static void deleteAllTables(ContentResolver resolver) {
+    resolver.delete(TracksColumns.CONTENT_URI, null, null);
+    resolver.delete(TrackPointsColumns.CONTENT_URI, null, null);
+    resolver.delete(WaypointsColumns.CONTENT_URI, null, null);
+    resolver.delete(UserInfoColumns.CONTENT_URI, null, null);
+    resolver.delete(BikeInfoColumns.CONTENT_URI, null, null);
+  }
+
+  /**
+   * Deletes the rows an incremental backup recorded as deleted since its
+   * parent, along with the points of deleted tracks.
+   */
+  private static void deleteRows(ContentResolver resolver, BackupManifest manifest) {
+    for (Table table : TABLES) {
+      TableState state = manifest.tables.get(table.name);
+      if (state == null || state.deletedIds.isEmpty()) {
+        continue;
+      }
+      String ids = TextUtils.join(",", state.deletedIds);
+      resolver.delete(table.uri, BaseColumns._ID + " IN (" + ids + ")", null);
+      if (table.uri.equals(TracksColumns.CONTENT_URI)) {
+        resolver.delete(
+            TrackPointsColumns.CONTENT_URI, TrackPointsColumns.TRACKID + " IN (" + ids + ")", null);
+      }
+    }
+  }
+
+  /**
+   * Returns the latest backup in the given directory, or null if there's none.
+   */
+  private static File getLatestBackupFile(File dir) {
+    String[] fileNames = dir == null ? null : dir.list();
+    if (fileNames == null) {
+      return null;
+    }
+    Date latest = null;
+    for (String fileName : fileNames) {
+      try {
+        Date backup = BACKUP_FILENAME_FORMAT.parse(fileName);
+        if (latest == null || backup.after(latest)) {
+          latest = backup;
+        }
+      } catch (ParseException e) {
+        // Not a backup file, ignore
+      }
+    }
+    return latest == null ? null : new File(dir, BACKUP_FILENAME_FORMAT.format(latest));
+  }
+
+  private static BackupManifest readManifest(File file) throws IOException {
+    ZipFile zipFile = new ZipFile(file, ZipFile.OPEN_READ);
+    try {
+      return readManifest(zipFile);
+    } finally {
       zipFile.close();
     }
   }
+
+  /**
+   * Reads the manifest of a backup, or returns null if it wasn't chunked.
+   */
+  private static BackupManifest readManifest(ZipFile zipFile) throws IOException {
+    ZipEntry zipEntry = zipFile.getEntry(BackupManifest.ZIP_ENTRY_NAME);
+    if (zipEntry == null) {
+      return null;
+    }
+    DataInputStream reader = new DataInputStream(
+        new BufferedInputStream(zipFile.getInputStream(zipEntry)));
+    try {
+      return BackupManifest.read(reader);
+    } finally {
+      reader.close();
+    }
+  }
+
+  private static byte[] readEntry(ZipFile zipFile, String entryName) throws IOException {
+    ZipEntry zipEntry = zipFile.getEntry(entryName);
+    if (zipEntry == null || zipEntry.getSize() < 0) {
+      throw new IOException("Missing backup entry " + entryName);
+    }
+    byte[] data = new byte[(int) zipEntry.getSize()];
+    DataInputStream reader = new DataInputStream(zipFile.getInputStream(zipEntry));
+    try {
+      reader.readFully(data);
+    } finally {
+      reader.close();
+    }
+    return data;
+  }
+
+  /**
+   * Builds the chunks of rows of one kind from a table: rows are added to the
+   * current chunk, which is handed to the {@link BackupChunkWriter} once full.
+   */
+  private static class ChunkBuilder {
+    private final String table;
+    private final boolean update;
+    private final DatabaseDumper dumper;
+    private final BackupChunkWriter chunkWriter;
+
+    private ChunkBuffer buffer;
+    private DataOutputStream writer;
+    private int rows;
+    // Where the number of rows is in the chunk headers
+    private int rowCountOffset;
+    private int chunks;
+
+    ChunkBuilder(String table, boolean update, DatabaseDumper dumper,
+        BackupChunkWriter chunkWriter) {
+      this.table = table;
+      this.update = update;
+      this.dumper = dumper;
+      this.chunkWriter = chunkWriter;
+    }
+
+    /**
+     * Gets ready for a row to be written to {@link #writer}.
+     *
+     * @return where the row starts
+     */
+    int startRow() throws IOException {
+      if (buffer == null) {
+        buffer = new ChunkBuffer(CHUNK_BUFFER_SIZE);
+        writer = new DataOutputStream(buffer);
+        // The number of rows is filled in once the chunk is full
+        dumper.writeHeaders(0, writer);
+        rowCountOffset = buffer.size() - 4;
+      }
+      return buffer.size();
+    }
+
+    void endRow() throws IOException {
+      rows++;
+      if (rows == CHUNK_ROWS) {
+        flush();
+      }
+    }
+
+    long getChecksum(int start) {
+      return BackupChunkWriter.checksum(buffer.getBuffer(), start, buffer.size() - start);
+    }
+
+    /**
+     * Moves the row written since start to another builder, or drops it.
+     *
+     * @param start where the row starts
+     * @param target the builder to move it to, or null to drop it
+     */
+    void moveRow(int start, ChunkBuilder target) throws IOException {
+      if (target != null) {
+        target.startRow();
+        target.buffer.write(buffer.getBuffer(), start, buffer.size() - start);
+        target.endRow();
+      }
+      buffer.truncate(start);
+    }
+
+    /**
+     * Hands the current chunk, if it has any rows, to the chunk writer.
+     */
+    void flush() throws IOException {
+      if (rows == 0) {
+        return;
+      }
+      buffer.setInt(rowCountOffset, rows);
+      String entryName = table + (update ? ".update." : ".") + chunks++;
+      chunkWriter.write(entryName, table, update, rows, buffer);
+      buffer = null;
+      writer = null;
+      rows = 0;
+    }
+  }
 }
@@ -64,9 +64,11 @@ public class PreferenceBackupHelper {
   public PreferenceBackupHelper(Context context) {
     doNotBackup = new HashSet<String>();
     doNotBackup.add(context.getString(R.string.auto_resume_track_current_retry_key));
+    doNotBackup.add(context.getString(R.string.backup_full_required_key));
     doNotBackup.add(context.getString(R.string.recording_track_id_key));
     doNotBackup.add(context.getString(R.string.recording_track_paused_key));
     doNotBackup.add(context.getString(R.string.selected_track_id_key));
+    doNotBackup.add(context.getString(R.string.sensor_columns_backfill_id_key));
   }
 
   /**
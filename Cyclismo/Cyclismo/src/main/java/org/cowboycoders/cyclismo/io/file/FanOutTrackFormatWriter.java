@@ -0,0 +1,294 @@
+/*
+*    Copyright (c) 2013, Will Szumski
+*    Copyright (c) 2013, Doug Szumski
+*
+*    This file is part of Cyclismo.
+*
+*    Cyclismo is free software: you can redistribute it and/or modify
+*    it under the terms of the GNU General Public License as published by
+*    the Free Software Foundation, either version 3 of the License, or
+*    (at your option) any later version.
+*
+*    Cyclismo is distributed in the hope that it will be useful,
+*    but WITHOUT ANY WARRANTY; without even the implied warranty of
+*    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*    GNU General Public License for more details.
+*
+*    You should have received a copy of the GNU General Public License
+*    along with Cyclismo.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package org.cowboycoders.cyclismo.io.file;
+
+import android.content.Context;
+import android.location.Location;
+import android.util.Log;
+
+import org.cowboycoders.cyclismo.content.Track;
+import org.cowboycoders.cyclismo.content.Waypoint;
+import org.cowboycoders.cyclismo.io.file.TrackWriterFactory.TrackFileFormat;
+import org.cowboycoders.cyclismo.util.FileUtils;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Writes a track in several formats at once. Every call is passed on to a
+ * writer for each format, so the track's points are read and decoded once by
+ * {@link TrackWriterImpl} however many formats are written.
+ *
+ * The formats either go to streams of their own, see
+ * {@link #prepare(Track, OutputStream[])}, or into a single zip stream with an
+ * entry per format, see {@link #prepare(Track, OutputStream)}. As a zip takes
+ * one entry at a time, the first format is written straight into it and the
+ * rest are buffered until {@link #close()}, in memory sized by their expected
+ * output, or in a temporary file if that is too big.
+ */
+class FanOutTrackFormatWriter implements TrackFormatWriter {
+
+  private static final String TAG = FanOutTrackFormatWriter.class.getSimpleName();
+
+  // The most a format is buffered in memory before it goes to a temporary file
+  static final long MAX_MEMORY_BUFFER_SIZE = 4 * 1024 * 1024;
+
+  // Bounds on the stream buffer of each format
+  private static final int MIN_STREAM_BUFFER_SIZE = 8 * 1024;
+  private static final int MAX_STREAM_BUFFER_SIZE = 64 * 1024;
+
+  private final TrackFileFormat[] formats;
+  private final TrackFormatWriter[] writers;
+  private final File tempDirectory;
+
+  // Set when writing a zip
+  private ZipOutputStream zipOutputStream;
+  private String entryName;
+  private ByteArrayOutputStream[] memoryBuffers;
+  private File[] fileBuffers;
+
+  /**
+   * @param context the context
+   * @param tempDirectory where to buffer large formats when writing a zip
+   * @param formats the formats to write
+   */
+  FanOutTrackFormatWriter(Context context, File tempDirectory, TrackFileFormat... formats) {
+    this.formats = formats;
+    this.tempDirectory = tempDirectory;
+    writers = new TrackFormatWriter[formats.length];
+    for (int i = 0; i < formats.length; i++) {
+      writers[i] = formats[i].newFormatWriter(context);
+    }
+  }
+
+  @Override
+  public String getExtension() {
+    return TrackFileFormat.ZIP.getExtension();
+  }
+
+  /**
+   * Sets up the writers to write into a zip, an entry per format.
+   */
+  @Override
+  public void prepare(Track track, OutputStream outputStream) {
+    int numberOfPoints = track.getNumberOfPoints();
+    zipOutputStream = new ZipOutputStream(new BufferedOutputStream(outputStream,
+        getStreamBufferSize(TrackFileFormat.ZIP.getExpectedSize(numberOfPoints))));
+    entryName = track.getName() == null ? "track" : FileUtils.sanitizeFileName(track.getName());
+    memoryBuffers = new ByteArrayOutputStream[formats.length];
+    fileBuffers = new File[formats.length];
+
+    try {
+      zipOutputStream.putNextEntry(new ZipEntry(entryName + "." + formats[0].getExtension()));
+    } catch (IOException e) {
+      Log.e(TAG, "Unable to start zip entry", e);
+    }
+    writers[0].prepare(track, new EntryOutputStream(zipOutputStream));
+
+    for (int i = 1; i < formats.length; i++) {
+      long expectedSize = formats[i].getExpectedSize(numberOfPoints);
+      OutputStream buffer = null;
+      if (expectedSize > MAX_MEMORY_BUFFER_SIZE && tempDirectory != null) {
+        try {
+          fileBuffers[i] = File.createTempFile("export", "." + formats[i].getExtension(),
+              tempDirectory);
+          buffer = new BufferedOutputStream(new FileOutputStream(fileBuffers[i]),
+              getStreamBufferSize(expectedSize));
+        } catch (IOException e) {
+          Log.w(TAG, "Unable to create a temporary file, buffering in memory", e);
+          fileBuffers[i] = null;
+        }
+      }
+      if (buffer == null) {
+        memoryBuffers[i] = new ByteArrayOutputStream(
+            (int) Math.min(expectedSize, MAX_MEMORY_BUFFER_SIZE));
+        buffer = memoryBuffers[i];
+      }
+      writers[i].prepare(track, buffer);
+    }
+  }
+
+  /**
+   * Sets up the writers to write to a stream each.
+   *
+   * @param track the track to write
+   * @param outputStreams a stream for each format, in order
+   */
+  public void prepare(Track track, OutputStream[] outputStreams) {
+    int numberOfPoints = track.getNumberOfPoints();
+    for (int i = 0; i < formats.length; i++) {
+      writers[i].prepare(track, new BufferedOutputStream(outputStreams[i],
+          getStreamBufferSize(formats[i].getExpectedSize(numberOfPoints))));
+    }
+  }
+
+  @Override
+  public void close() {
+    if (zipOutputStream == null) {
+      for (TrackFormatWriter writer : writers) {
+        writer.close();
+      }
+      return;
+    }
+    try {
+      writers[0].close();
+      zipOutputStream.closeEntry();
+      for (int i = 1; i < formats.length; i++) {
+        writers[i].close();
+        zipOutputStream.putNextEntry(
+            new ZipEntry(entryName + "." + formats[i].getExtension()));
+        if (memoryBuffers[i] != null) {
+          memoryBuffers[i].writeTo(zipOutputStream);
+          memoryBuffers[i] = null;
+        } else {
+          copy(fileBuffers[i], zipOutputStream);
+        }
+        zipOutputStream.closeEntry();
+      }
+      zipOutputStream.close();
+    } catch (IOException e) {
+      Log.e(TAG, "Unable to write zip", e);
+    } finally {
+      for (File file : fileBuffers) {
+        if (file != null && !file.delete()) {
+          Log.w(TAG, "Unable to delete " + file.getAbsolutePath());
+        }
+      }
+      zipOutputStream = null;
+    }
+  }
+
+  @Override
+  public void writeHeader() {
+    for (TrackFormatWriter writer : writers) {
+      writer.writeHeader();
+    }
+  }
+
+  @Override
+  public void writeFooter() {
+    for (TrackFormatWriter writer : writers) {
+      writer.writeFooter();
+    }
+  }
+
+  @Override
+  public void writeBeginWaypoints() {
+    for (TrackFormatWriter writer : writers) {
+      writer.writeBeginWaypoints();
+    }
+  }
+
+  @Override
+  public void writeEndWaypoints() {
+    for (TrackFormatWriter writer : writers) {
+      writer.writeEndWaypoints();
+    }
+  }
+
+  @Override
+  public void writeWaypoint(Waypoint waypoint) {
+    for (TrackFormatWriter writer : writers) {
+      writer.writeWaypoint(waypoint);
+    }
+  }
+
+  @Override
+  public void writeBeginTrack(Location firstLocation) {
+    for (TrackFormatWriter writer : writers) {
+      writer.writeBeginTrack(firstLocation);
+    }
+  }
+
+  @Override
+  public void writeEndTrack(Location lastLocation) {
+    for (TrackFormatWriter writer : writers) {
+      writer.writeEndTrack(lastLocation);
+    }
+  }
+
+  @Override
+  public void writeOpenSegment() {
+    for (TrackFormatWriter writer : writers) {
+      writer.writeOpenSegment();
+    }
+  }
+
+  @Override
+  public void writeCloseSegment() {
+    for (TrackFormatWriter writer : writers) {
+      writer.writeCloseSegment();
+    }
+  }
+
+  @Override
+  public void writeLocation(Location location) {
+    for (TrackFormatWriter writer : writers) {
+      writer.writeLocation(location);
+    }
+  }
+
+  private static int getStreamBufferSize(long expectedSize) {
+    return (int) Math.max(MIN_STREAM_BUFFER_SIZE, Math.min(expectedSize, MAX_STREAM_BUFFER_SIZE));
+  }
+
+  private static void copy(File file, OutputStream outputStream) throws IOException {
+    InputStream inputStream = new FileInputStream(file);
+    try {
+      byte[] buffer = new byte[MAX_STREAM_BUFFER_SIZE];
+      int read;
+      while ((read = inputStream.read(buffer)) != -1) {
+        outputStream.write(buffer, 0, read);
+      }
+    } finally {
+      inputStream.close();
+    }
+  }
+
+  /**
+   * Passes writes on to the current zip entry, but leaves the zip open when
+   * the format writer closes it.
+   */
+  private static class EntryOutputStream extends FilterOutputStream {
+
+    EntryOutputStream(OutputStream out) {
+      super(out);
+    }
+
+    @Override
+    public void write(byte[] buffer, int offset, int length) throws IOException {
+      out.write(buffer, offset, length);
+    }
+
+    @Override
+    public void close() throws IOException {
+      flush();
+    }
+  }
+}
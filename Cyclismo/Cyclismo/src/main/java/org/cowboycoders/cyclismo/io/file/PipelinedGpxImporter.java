@@ -0,0 +1,339 @@
+/*
+*    Copyright (c) 2013, Will Szumski
+*    Copyright (c) 2013, Doug Szumski
+*
+*    This file is part of Cyclismo.
+*
+*    Cyclismo is free software: you can redistribute it and/or modify
+*    it under the terms of the GNU General Public License as published by
+*    the Free Software Foundation, either version 3 of the License, or
+*    (at your option) any later version.
+*
+*    Cyclismo is distributed in the hope that it will be useful,
+*    but WITHOUT ANY WARRANTY; without even the implied warranty of
+*    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*    GNU General Public License for more details.
+*
+*    You should have received a copy of the GNU General Public License
+*    along with Cyclismo.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package org.cowboycoders.cyclismo.io.file;
+
+import android.location.Location;
+import android.location.LocationManager;
+import android.net.Uri;
+import android.util.Log;
+
+import org.cowboycoders.cyclismo.content.MyTracksProviderUtils;
+import org.cowboycoders.cyclismo.content.Track;
+import org.cowboycoders.cyclismo.content.User;
+import org.cowboycoders.cyclismo.services.TrackRecordingService;
+import org.cowboycoders.cyclismo.stats.TripStatistics;
+import org.cowboycoders.cyclismo.stats.TripStatisticsUpdater;
+import org.cowboycoders.cyclismo.util.LocationUtils;
+import org.fluxoid.utils.GpxPullParser;
+import org.fluxoid.utils.TrackImportPipeline;
+import org.fluxoid.utils.TrackPointBatch;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Imports GPX files like {@link GpxImporter}, but through a
+ * {@link TrackImportPipeline}: while a file is parsed on the calling thread,
+ * its points are made into locations and trip statistics on a second thread
+ * and bulk inserted a batch at a time on a third. Files imported at once
+ * through the same pipeline share its batches, which bounds the memory used.
+ */
+public class PipelinedGpxImporter implements TrackImportPipeline.Stages {
+
+  private static final String TAG = PipelinedGpxImporter.class.getSimpleName();
+
+  // The number of points per batch, and so per bulk insert
+  public static final int BATCH_SIZE = 4096;
+
+  // The number of batches shared by the files being imported
+  public static final int BATCHES = 8;
+
+  /**
+   * The locations converted from a batch, with the trip statistics if it ends
+   * a track.
+   */
+  private static class ConvertedLocations {
+    Location[] locations = new Location[BATCH_SIZE];
+    int size;
+    TripStatistics tripStatistics;
+
+    void add(Location location) {
+      if (size == locations.length) {
+        Location[] grown = new Location[locations.length * 2];
+        System.arraycopy(locations, 0, grown, 0, size);
+        locations = grown;
+      }
+      locations[size++] = location;
+    }
+  }
+
+  private final MyTracksProviderUtils myTracksProviderUtils;
+  private final int minRecordingDistance;
+  private final User trackOwner;
+
+  // Used on the convert thread: the trip statistics updater for the current track
+  private TripStatisticsUpdater tripStatisticsUpdater;
+
+  // True if the current track has a start time
+  private boolean hasStartTime;
+
+  // The import time
+  private long importTime;
+
+  // The last location in the current track and segment
+  private Location lastLocation;
+  private Location lastLocationInSegment;
+
+  // Used on the write thread: the current track
+  private Track track;
+
+  // The number of locations inserted for the current track
+  private int numberOfLocations;
+
+  // True if the current track is not yet finished
+  private boolean isCurrentTrackFinished = true;
+
+  // List of successfully imported track ids
+  private final List<Long> tracksIds = new ArrayList<Long>();
+
+  /**
+   * Reads GPS tracks from a GPX file and writes tracks and their coordinates to
+   * the database.
+   *
+   * @param pipeline the pipeline to import through
+   * @param inputStream the input stream for the GPX file
+   * @param myTracksProviderUtils my tracks provider utils
+   * @param minRecordingDistance the min recording distance
+   * @param trackOwner the owner of the tracks, can be null
+   * @return long[] array of track ids written to the database.
+   */
+  public static long[] importGPXFile(TrackImportPipeline pipeline, InputStream inputStream,
+      MyTracksProviderUtils myTracksProviderUtils, int minRecordingDistance, User trackOwner)
+      throws IOException {
+    PipelinedGpxImporter importer = new PipelinedGpxImporter(
+        myTracksProviderUtils, minRecordingDistance, trackOwner);
+    long[] trackIds = new long[0];
+
+    try {
+      long start = System.currentTimeMillis();
+
+      pipeline.importFile(GpxPullParser.newReader(inputStream), importer);
+
+      long end = System.currentTimeMillis();
+      Log.d(TAG, "Total import time: " + (end - start) + "ms");
+
+      trackIds = importer.getImportedTrackIds();
+      if (trackIds.length == 0) {
+        throw new IOException("No track imported.");
+      }
+    } finally {
+      // Delete the current track if not finished
+      importer.rollbackUnfinishedTracks();
+    }
+    return trackIds;
+  }
+
+  /**
+   * Imports a single GPX file through a pipeline of its own.
+   *
+   * @see #importGPXFile(TrackImportPipeline, InputStream, MyTracksProviderUtils, int, User)
+   */
+  public static long[] importGPXFile(InputStream inputStream,
+      MyTracksProviderUtils myTracksProviderUtils, int minRecordingDistance, User trackOwner)
+      throws IOException {
+    TrackImportPipeline pipeline = new TrackImportPipeline(BATCH_SIZE, 2);
+    try {
+      return importGPXFile(
+          pipeline, inputStream, myTracksProviderUtils, minRecordingDistance, trackOwner);
+    } finally {
+      pipeline.shutdown();
+    }
+  }
+
+  public PipelinedGpxImporter(MyTracksProviderUtils myTracksProviderUtils,
+      int minRecordingDistance, User trackOwner) {
+    this.myTracksProviderUtils = myTracksProviderUtils;
+    this.minRecordingDistance = minRecordingDistance;
+    this.trackOwner = trackOwner;
+  }
+
+  @Override
+  public void convert(TrackPointBatch batch) throws IOException {
+    if (!(batch.getAttachment() instanceof ConvertedLocations)) {
+      batch.setAttachment(new ConvertedLocations());
+    }
+    ConvertedLocations converted = (ConvertedLocations) batch.getAttachment();
+    converted.size = 0;
+    converted.tripStatistics = null;
+
+    if (batch.isTrackStart()) {
+      tripStatisticsUpdater = null;
+      lastLocation = null;
+      lastLocationInSegment = null;
+    }
+    for (int i = 0; i < batch.getSize(); i++) {
+      double altitude = batch.getAltitude(i);
+      Location location = createNewLocation(batch.getLatitude(i), batch.getLongitude(i),
+          batch.getTime(i));
+      if (!Double.isNaN(altitude)) {
+        location.setAltitude(altitude);
+      }
+      if (!LocationUtils.isValidLocation(location)) {
+        throw new IOException("Invalid location detected: " + location);
+      }
+
+      if (batch.isSegmentStart(i)) {
+        // If not the first segment, add a pause and resume separator
+        if (lastLocation != null) {
+          convertPoint(createNewLocation(
+              TrackRecordingService.PAUSE_LATITUDE, 0.0, lastLocation.getTime()), converted);
+          convertPoint(createNewLocation(
+              TrackRecordingService.RESUME_LATITUDE, 0.0, location.getTime()), converted);
+        }
+        lastLocationInSegment = null;
+      }
+      if (location.getTime() != -1L) {
+        setSpeedAndBearing(location);
+      }
+      convertPoint(location, converted);
+      lastLocation = location;
+      lastLocationInSegment = location;
+    }
+
+    if (batch.isTrackEnd()) {
+      if (tripStatisticsUpdater == null) {
+        long now = System.currentTimeMillis();
+        tripStatisticsUpdater = new TripStatisticsUpdater(now);
+        tripStatisticsUpdater.updateTime(now);
+      }
+      converted.tripStatistics = tripStatisticsUpdater.getTripStatistics();
+    }
+  }
+
+  @Override
+  public void write(TrackPointBatch batch) {
+    ConvertedLocations converted = (ConvertedLocations) batch.getAttachment();
+    if (batch.isTrackStart()) {
+      track = new Track();
+      if (trackOwner != null) {
+        track.setOwner(trackOwner.getId());
+      }
+      Uri uri = myTracksProviderUtils.insertTrack(track);
+      track.setId(Long.parseLong(uri.getLastPathSegment()));
+      isCurrentTrackFinished = false;
+      numberOfLocations = 0;
+    }
+
+    if (converted.size > 0) {
+      myTracksProviderUtils.bulkInsertTrackPoint(
+          converted.locations, converted.size, track.getId());
+      numberOfLocations += converted.size;
+      // set the start id if necessary
+      if (track.getStartId() == -1L) {
+        track.setStartId(myTracksProviderUtils.getFirstTrackPointId(track.getId()));
+      }
+    }
+
+    if (batch.isTrackEnd()) {
+      if (batch.getName() != null) {
+        track.setName(batch.getName());
+      }
+      if (batch.getDescription() != null) {
+        track.setDescription(batch.getDescription());
+      }
+      track.setStopId(myTracksProviderUtils.getLastTrackPointId(track.getId()));
+      track.setTripStatistics(converted.tripStatistics);
+      track.setNumberOfPoints(numberOfLocations);
+      myTracksProviderUtils.updateTrack(track);
+      tracksIds.add(track.getId());
+      isCurrentTrackFinished = true;
+    }
+  }
+
+  /**
+   * Rolls back last track if possible.
+   */
+  public void rollbackUnfinishedTracks() {
+    if (!isCurrentTrackFinished && track != null) {
+      myTracksProviderUtils.deleteTrack(track.getId());
+      isCurrentTrackFinished = true;
+    }
+  }
+
+  /**
+   * We don't have a speed and bearing in GPX, make something up from the last
+   * two points. GPS points tend to have some inherent imprecision, speed and
+   * bearing will likely be off, so the statistics for things like max speed
+   * will also be off.
+   */
+  private void setSpeedAndBearing(Location location) {
+    if (lastLocationInSegment == null || lastLocationInSegment.getTime() == 0) {
+      return;
+    }
+    long timeDifference = location.getTime() - lastLocationInSegment.getTime();
+
+    // check for negative time change
+    if (timeDifference <= 0) {
+      Log.w(TAG, "Time difference not positive.");
+    } else {
+      float speed = lastLocationInSegment.distanceTo(location) * 1000.0f / timeDifference;
+      location.setSpeed(speed);
+    }
+    location.setBearing(lastLocationInSegment.bearingTo(location));
+  }
+
+  /**
+   * Adds a location to the trip statistics and to the locations to insert.
+   */
+  private void convertPoint(Location newLocation, ConvertedLocations converted) {
+    if (tripStatisticsUpdater == null) {
+      hasStartTime = newLocation.getTime() != -1L;
+      importTime = System.currentTimeMillis();
+      tripStatisticsUpdater = new TripStatisticsUpdater(
+          hasStartTime ? newLocation.getTime() : importTime);
+    }
+    if (!hasStartTime) {
+      newLocation.setTime(importTime);
+    }
+    tripStatisticsUpdater.addLocation(newLocation, minRecordingDistance);
+    converted.add(newLocation);
+  }
+
+  /**
+   * Creates a new location
+   * @param latitude location latitude
+   * @param longitude location longitude
+   * @param time location time
+   */
+  private Location createNewLocation(double latitude, double longitude, long time) {
+    Location loc = new Location(LocationManager.GPS_PROVIDER);
+    loc.setLatitude(latitude);
+    loc.setLongitude(longitude);
+    loc.setAltitude(0.0f);
+    loc.setTime(time);
+    loc.removeAccuracy();
+    loc.removeBearing();
+    loc.removeSpeed();
+    return loc;
+  }
+
+  /**
+   * Gets the imported track ids.
+   */
+  private long[] getImportedTrackIds() {
+    long[] result = new long[tracksIds.size()];
+    for (int i = 0; i < result.length; i++) {
+      result[i] = tracksIds.get(i);
+    }
+    return result;
+  }
+}
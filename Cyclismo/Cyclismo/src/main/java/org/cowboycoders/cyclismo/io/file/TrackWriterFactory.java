@@ -56,31 +56,60 @@ public class TrackWriterFactory {
    * Definition of all possible track formats.
    */
   public enum TrackFileFormat implements Parcelable {
-    GPX {
+    GPX(110) {
       @Override
       TrackFormatWriter newFormatWriter(Context context) {
         return new GpxTrackWriter(context);
       }
     },
-    KML {
+    KML(140) {
       @Override
       TrackFormatWriter newFormatWriter(Context context) {
         return new KmlTrackWriter(context);
       }
     },
-    CSV {
+    CSV(160) {
       @Override
       public TrackFormatWriter newFormatWriter(Context context) {
         return new CsvTrackWriter(context);
       }
     },
-    TCX {
+    TCX(260) {
       @Override
       public TrackFormatWriter newFormatWriter(Context context) {
         return new TcxTrackWriter(context);
       }
+    },
+    /**
+     * All the other formats, written in one pass into a zip file.
+     */
+    ZIP(0) {
+      @Override
+      TrackFormatWriter newFormatWriter(Context context) {
+        return new FanOutTrackFormatWriter(context, context.getCacheDir(), GPX, KML, CSV, TCX);
+      }
+
+      @Override
+      public String getMimeType() {
+        return "application/zip";
+      }
+
+      @Override
+      public long getExpectedSize(int numberOfPoints) {
+        return GPX.getExpectedSize(numberOfPoints) + KML.getExpectedSize(numberOfPoints)
+            + CSV.getExpectedSize(numberOfPoints) + TCX.getExpectedSize(numberOfPoints);
+      }
     };
 
+    // Roughly what a file holds besides its points
+    private static final int HEADER_SIZE = 2048;
+
+    private final int bytesPerPoint;
+
+    private TrackFileFormat(int bytesPerPoint) {
+      this.bytesPerPoint = bytesPerPoint;
+    }
+
     @Override
     public int describeContents() {
       return 0;
@@ -121,6 +150,14 @@ public class TrackWriterFactory {
     public String getExtension() {
       return this.name().toLowerCase();
     }
+
+    /**
+     * Returns about how many bytes a track of the given number of points takes
+     * in each format, to size buffers by.
+     */
+    public long getExpectedSize(int numberOfPoints) {
+      return HEADER_SIZE + (long) bytesPerPoint * numberOfPoints;
+    }
   }
 
   /**
@@ -0,0 +1,93 @@
+/*
+*    Copyright (c) 2013, Will Szumski
+*    Copyright (c) 2013, Doug Szumski
+*
+*    This file is part of Cyclismo.
+*
+*    Cyclismo is free software: you can redistribute it and/or modify
+*    it under the terms of the GNU General Public License as published by
+*    the Free Software Foundation, either version 3 of the License, or
+*    (at your option) any later version.
+*
+*    Cyclismo is distributed in the hope that it will be useful,
+*    but WITHOUT ANY WARRANTY; without even the implied warranty of
+*    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*    GNU General Public License for more details.
+*
+*    You should have received a copy of the GNU General Public License
+*    along with Cyclismo.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.cowboycoders.cyclismo.maps;
+
+import org.fluxoid.utils.PathSink;
+import org.fluxoid.utils.PolyLineLevels;
+import org.mapsforge.core.graphics.Canvas;
+import org.mapsforge.core.graphics.GraphicFactory;
+import org.mapsforge.core.graphics.Paint;
+import org.mapsforge.core.graphics.Path;
+import org.mapsforge.core.model.BoundingBox;
+import org.mapsforge.core.model.LatLong;
+import org.mapsforge.core.model.Point;
+import org.mapsforge.core.util.MercatorProjection;
+import org.mapsforge.map.layer.overlay.Polyline;
+
+import java.util.List;
+
+/**
+ * A {@link Polyline} that only draws the points that make a difference at the
+ * current zoom level and are near the screen, see {@link PolyLineLevels}.
+ * Points should only be appended to {@link #getLatLongs()}; they're picked up
+ * on the next draw.
+ */
+public class SimplifiedPolyline extends Polyline {
+
+  // Pixels a dropped point may be from the line drawn
+  private static final double TOLERANCE = 0.5;
+  // Pixels beyond the canvas to draw, so strokes reaching into it aren't cut
+  private static final int MARGIN = 16;
+
+  private final GraphicFactory graphicFactory;
+  private final PolyLineLevels levels = new PolyLineLevels(TOLERANCE);
+
+  public SimplifiedPolyline(Paint paintStroke, GraphicFactory graphicFactory) {
+    super(paintStroke, graphicFactory);
+    this.graphicFactory = graphicFactory;
+  }
+
+  @Override
+  public synchronized void draw(BoundingBox boundingBox, byte zoomLevel, Canvas canvas,
+      final Point topLeftPoint) {
+    Paint paintStroke = getPaintStroke();
+    List<LatLong> latLongs = getLatLongs();
+    if (latLongs.isEmpty() || paintStroke == null) {
+      return;
+    }
+    if (latLongs.size() < levels.size()) {
+      levels.clear();
+    }
+    for (int i = levels.size(); i < latLongs.size(); i++) {
+      LatLong latLong = latLongs.get(i);
+      levels.add(latLong.latitude, latLong.longitude);
+    }
+
+    long mapSize = MercatorProjection.getMapSize(zoomLevel, displayModel.getTileSize());
+    final Path path = graphicFactory.createPath();
+    int points = levels.getPoints(zoomLevel, mapSize, topLeftPoint.x - MARGIN,
+        topLeftPoint.y - MARGIN, topLeftPoint.x + canvas.getWidth() + MARGIN,
+        topLeftPoint.y + canvas.getHeight() + MARGIN, new PathSink() {
+          @Override
+          public void moveTo(double x, double y) {
+            path.moveTo((float) (x - topLeftPoint.x), (float) (y - topLeftPoint.y));
+          }
+
+          @Override
+          public void lineTo(double x, double y) {
+            path.lineTo((float) (x - topLeftPoint.x), (float) (y - topLeftPoint.y));
+          }
+        });
+    if (points > 0) {
+      canvas.drawPath(path, paintStroke);
+    }
+  }
+}
@@ -76,7 +76,7 @@ public class TrackPathUtils {
       Polyline lastPolyline = paths.get(paths.size() - 1).getPolyLine();
       lastPolyline.getLatLongs().addAll(points);
     } else {
-        Polyline polyline = new Polyline(MapForgeUtils.createPaint(
+        Polyline polyline = new SimplifiedPolyline(MapForgeUtils.createPaint(
                 AndroidGraphicFactory.INSTANCE.createColor(color), 8,
                 Style.STROKE), AndroidGraphicFactory.INSTANCE);
         List<LatLong> latLongs = polyline.getLatLongs();
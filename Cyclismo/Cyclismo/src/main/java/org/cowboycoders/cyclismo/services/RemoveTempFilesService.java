@@ -101,6 +101,7 @@ public class RemoveTempFilesService extends Service {
       cleanTempDirectory(TrackFileFormat.KML.getExtension());
       cleanTempDirectory(TrackFileFormat.CSV.getExtension());
       cleanTempDirectory(TrackFileFormat.TCX.getExtension());
+      cleanTempDirectory(TrackFileFormat.ZIP.getExtension());
       return null;
     }
 
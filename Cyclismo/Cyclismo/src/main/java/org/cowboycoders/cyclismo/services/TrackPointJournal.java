@@ -0,0 +1,251 @@
+/*
+*    Copyright (c) 2013, Will Szumski
+*    Copyright (c) 2013, Doug Szumski
+*
+*    This file is part of Cyclismo.
+*
+*    Cyclismo is free software: you can redistribute it and/or modify
+*    it under the terms of the GNU General Public License as published by
+*    the Free Software Foundation, either version 3 of the License, or
+*    (at your option) any later version.
+*
+*    Cyclismo is distributed in the hope that it will be useful,
+*    but WITHOUT ANY WARRANTY; without even the implied warranty of
+*    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*    GNU General Public License for more details.
+*
+*    You should have received a copy of the GNU General Public License
+*    along with Cyclismo.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package org.cowboycoders.cyclismo.services;
+
+import android.location.Location;
+import android.location.LocationManager;
+import android.util.Log;
+
+import com.google.protobuf.InvalidProtocolBufferException;
+
+import org.cowboycoders.cyclismo.content.MyTracksLocation;
+import org.cowboycoders.cyclismo.content.Sensor.SensorDataSet;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only file of the track points that have been accepted by the
+ * {@link TrackRecordingService} but not yet committed to the database. Each
+ * record is synced to storage as soon as it is appended, so the points survive
+ * the process being killed or the device losing power. The journal is cleared
+ * once the points are committed, and replayed by
+ * {@link TrackPointWriter#recover()} on restart.
+ * <p>
+ * A record is its length, the payload and a CRC32 of the payload, so a record
+ * torn by a kill mid-write is detected and dropped along with anything after
+ * it.
+ */
+class TrackPointJournal {
+
+  private static final String TAG = TrackPointJournal.class.getSimpleName();
+
+  private static final int HAS_ALTITUDE = 1;
+  private static final int HAS_ACCURACY = 1 << 1;
+  private static final int HAS_SPEED = 1 << 2;
+  private static final int HAS_BEARING = 1 << 3;
+  private static final int HAS_SENSOR = 1 << 4;
+
+  // Sanity limit when reading back the length prefix of a record
+  private static final int MAX_RECORD_LENGTH = 64 * 1024;
+
+  /**
+   * A track point read back from the journal.
+   */
+  static class Entry {
+    final long trackId;
+    final Location location;
+
+    Entry(long trackId, Location location) {
+      this.trackId = trackId;
+      this.location = location;
+    }
+  }
+
+  private final File file;
+  private final ByteArrayOutputStream recordBytes = new ByteArrayOutputStream(128);
+  private final DataOutputStream record = new DataOutputStream(recordBytes);
+  private final CRC32 crc = new CRC32();
+  private FileOutputStream out;
+
+  TrackPointJournal(File file) {
+    this.file = file;
+  }
+
+  /**
+   * Appends a track point.
+   *
+   * @param trackId the track id
+   * @param location the location
+   */
+  void append(long trackId, Location location) throws IOException {
+    recordBytes.reset();
+    record.writeInt(0); // length, filled in below
+    record.writeLong(trackId);
+    record.writeDouble(location.getLatitude());
+    record.writeDouble(location.getLongitude());
+    record.writeLong(location.getTime());
+
+    byte[] sensor = null;
+    if (location instanceof MyTracksLocation) {
+      SensorDataSet sensorDataSet = ((MyTracksLocation) location).getSensorDataSet();
+      if (sensorDataSet != null) {
+        sensor = sensorDataSet.toByteArray();
+      }
+    }
+    int flags = (location.hasAltitude() ? HAS_ALTITUDE : 0)
+        | (location.hasAccuracy() ? HAS_ACCURACY : 0)
+        | (location.hasSpeed() ? HAS_SPEED : 0)
+        | (location.hasBearing() ? HAS_BEARING : 0)
+        | (sensor != null ? HAS_SENSOR : 0);
+    record.writeByte(flags);
+    if (location.hasAltitude()) {
+      record.writeDouble(location.getAltitude());
+    }
+    if (location.hasAccuracy()) {
+      record.writeFloat(location.getAccuracy());
+    }
+    if (location.hasSpeed()) {
+      record.writeFloat(location.getSpeed());
+    }
+    if (location.hasBearing()) {
+      record.writeFloat(location.getBearing());
+    }
+    if (sensor != null) {
+      record.writeInt(sensor.length);
+      record.write(sensor);
+    }
+    record.flush();
+
+    byte[] bytes = recordBytes.toByteArray();
+    int payloadLength = bytes.length - 4;
+    crc.reset();
+    crc.update(bytes, 4, payloadLength);
+    record.writeLong(crc.getValue());
+    record.flush();
+    bytes = recordBytes.toByteArray();
+    bytes[0] = (byte) (payloadLength >>> 24);
+    bytes[1] = (byte) (payloadLength >>> 16);
+    bytes[2] = (byte) (payloadLength >>> 8);
+    bytes[3] = (byte) payloadLength;
+
+    // A single write, so the record reaches the OS in one go
+    getOutputStream().write(bytes);
+    getOutputStream().getFD().sync();
+  }
+
+  /**
+   * Discards all the records. Called once they have been committed.
+   */
+  void clear() throws IOException {
+    getOutputStream().getChannel().truncate(0);
+  }
+
+  /**
+   * Reads back all the intact records.
+   */
+  List<Entry> read() throws IOException {
+    List<Entry> entries = new ArrayList<Entry>();
+    if (!file.exists()) {
+      return entries;
+    }
+    DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+    try {
+      while (true) {
+        int length;
+        try {
+          length = in.readInt();
+        } catch (EOFException e) {
+          break;
+        }
+        if (length <= 0 || length > MAX_RECORD_LENGTH) {
+          Log.w(TAG, "Corrupt journal record length: " + length);
+          break;
+        }
+        byte[] payload = new byte[length];
+        long checksum;
+        try {
+          in.readFully(payload);
+          checksum = in.readLong();
+        } catch (EOFException e) {
+          Log.w(TAG, "Ignoring truncated journal record.");
+          break;
+        }
+        crc.reset();
+        crc.update(payload, 0, length);
+        if (crc.getValue() != checksum) {
+          Log.w(TAG, "Ignoring journal record with bad checksum.");
+          break;
+        }
+        entries.add(decode(payload));
+      }
+    } finally {
+      in.close();
+    }
+    return entries;
+  }
+
+  void close() throws IOException {
+    if (out != null) {
+      out.close();
+      out = null;
+    }
+  }
+
+  private FileOutputStream getOutputStream() throws IOException {
+    if (out == null) {
+      out = new FileOutputStream(file, true);
+    }
+    return out;
+  }
+
+  private static Entry decode(byte[] payload) throws IOException {
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+    long trackId = in.readLong();
+    MyTracksLocation location = new MyTracksLocation(LocationManager.GPS_PROVIDER);
+    location.setLatitude(in.readDouble());
+    location.setLongitude(in.readDouble());
+    location.setTime(in.readLong());
+    int flags = in.readByte();
+    if ((flags & HAS_ALTITUDE) != 0) {
+      location.setAltitude(in.readDouble());
+    }
+    if ((flags & HAS_ACCURACY) != 0) {
+      location.setAccuracy(in.readFloat());
+    }
+    if ((flags & HAS_SPEED) != 0) {
+      location.setSpeed(in.readFloat());
+    }
+    if ((flags & HAS_BEARING) != 0) {
+      location.setBearing(in.readFloat());
+    }
+    if ((flags & HAS_SENSOR) != 0) {
+      byte[] sensor = new byte[in.readInt()];
+      in.readFully(sensor);
+      try {
+        location.setSensorDataSet(SensorDataSet.parseFrom(sensor));
+      } catch (InvalidProtocolBufferException e) {
+        Log.w(TAG, "Dropping unreadable sensor data from journal.", e);
+      }
+    }
+    return new Entry(trackId, location);
+  }
+}
@@ -0,0 +1,294 @@
+/*
+*    Copyright (c) 2013, Will Szumski
+*    Copyright (c) 2013, Doug Szumski
+*
+*    This file is part of Cyclismo.
+*
+*    Cyclismo is free software: you can redistribute it and/or modify
+*    it under the terms of the GNU General Public License as published by
+*    the Free Software Foundation, either version 3 of the License, or
+*    (at your option) any later version.
+*
+*    Cyclismo is distributed in the hope that it will be useful,
+*    but WITHOUT ANY WARRANTY; without even the implied warranty of
+*    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*    GNU General Public License for more details.
+*
+*    You should have received a copy of the GNU General Public License
+*    along with Cyclismo.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package org.cowboycoders.cyclismo.services;
+
+import android.database.Cursor;
+import android.location.Location;
+import android.util.Log;
+
+import org.cowboycoders.cyclismo.content.MyTracksProviderUtils;
+import org.cowboycoders.cyclismo.content.Track;
+import org.cowboycoders.cyclismo.util.LocationUtils;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Stages the track points recorded by the {@link TrackRecordingService} and
+ * commits them to the database in a single bulk insert transaction, instead of
+ * one transaction per point. Points are committed once {@code maxPoints} have
+ * been staged or the oldest has been waiting {@code maxDelay} milliseconds, and
+ * whenever {@link #flush()} is called.
+ * <p>
+ * Every staged point is also appended to a {@link TrackPointJournal}, so points
+ * that were staged when the process died are written by {@link #recover()}.
+ * <p>
+ * Points of different tracks aren't expected to be interleaved; if the track
+ * changes, the staged points are committed first.
+ */
+class TrackPointWriter {
+
+  private static final String TAG = TrackPointWriter.class.getSimpleName();
+
+  private final MyTracksProviderUtils myTracksProviderUtils;
+  private final TrackPointJournal journal;
+  private final Location[] staged;
+  private final long maxDelay;
+
+  private int count;
+  private int validCount;
+  private long trackId = -1L;
+  private long firstStagedTime;
+  private Location lastValid;
+
+  /**
+   * @param myTracksProviderUtils used to commit the points
+   * @param journal journal of the staged points, can be null
+   * @param maxPoints the maximum number of points to stage
+   * @param maxDelay the maximum time to stage a point, in milliseconds
+   */
+  TrackPointWriter(MyTracksProviderUtils myTracksProviderUtils, TrackPointJournal journal,
+      int maxPoints, long maxDelay) {
+    this.myTracksProviderUtils = myTracksProviderUtils;
+    this.journal = journal;
+    this.staged = new Location[maxPoints];
+    this.maxDelay = maxDelay;
+  }
+
+  /**
+   * Stages a track point.
+   *
+   * @param trackId the track id
+   * @param location the location
+   * @return true if the staged points should now be committed with
+   *         {@link #flush()}
+   */
+  synchronized boolean add(long trackId, Location location) {
+    if (count > 0 && trackId != this.trackId) {
+      flush();
+    }
+    if (count == staged.length) {
+      // Only if the caller ignored our return value
+      flush();
+    }
+    if (journal != null) {
+      try {
+        journal.append(trackId, location);
+      } catch (IOException e) {
+        // Better to lose the batching than the point
+        Log.e(TAG, "Unable to journal track point, committing immediately.", e);
+        stage(trackId, location);
+        return true;
+      }
+    }
+    stage(trackId, location);
+    return count == staged.length || isFlushDue(System.currentTimeMillis());
+  }
+
+  private void stage(long trackId, Location location) {
+    if (count == 0) {
+      this.trackId = trackId;
+      firstStagedTime = System.currentTimeMillis();
+    }
+    staged[count++] = location;
+    if (LocationUtils.isValidLocation(location)) {
+      lastValid = location;
+      validCount++;
+    }
+  }
+
+  /**
+   * Returns true if the oldest staged point has waited long enough.
+   *
+   * @param now the current time in milliseconds
+   */
+  synchronized boolean isFlushDue(long now) {
+    return count > 0 && now - firstStagedTime >= maxDelay;
+  }
+
+  /**
+   * Commits the staged points to the database.
+   *
+   * @return the number of valid points committed
+   */
+  synchronized int flush() {
+    if (count == 0) {
+      return 0;
+    }
+    myTracksProviderUtils.bulkInsertTrackPoint(staged, count, trackId);
+    int committed = validCount;
+    reset();
+    clearJournal();
+    return committed;
+  }
+
+  private void reset() {
+    for (int i = 0; i < count; i++) {
+      staged[i] = null;
+    }
+    count = 0;
+    validCount = 0;
+    lastValid = null;
+  }
+
+  /**
+   * Drops the staged points without committing them, e.g. if their track has
+   * been deleted.
+   */
+  synchronized void discard() {
+    reset();
+    clearJournal();
+  }
+
+  /**
+   * Returns the track id of the staged points, or -1 if none are staged.
+   */
+  synchronized long getStagedTrackId() {
+    return count > 0 ? trackId : -1L;
+  }
+
+  /**
+   * Returns the number of staged points.
+   */
+  synchronized int getStagedCount() {
+    return count;
+  }
+
+  /**
+   * Returns the last valid staged point of a track, or null if there isn't
+   * one. Staged points aren't in the database yet, so this should be checked
+   * before looking in the database.
+   *
+   * @param trackId the track id
+   */
+  synchronized Location getLastValidTrackPoint(long trackId) {
+    return count > 0 && trackId == this.trackId ? lastValid : null;
+  }
+
+  /**
+   * Commits any points left in the journal by a previous process and updates
+   * the point count and stop id of their tracks. Should be called before
+   * anything is staged.
+   *
+   * @return the number of valid points recovered, across all tracks
+   */
+  synchronized int recover() {
+    if (journal == null) {
+      return 0;
+    }
+    List<TrackPointJournal.Entry> entries;
+    try {
+      entries = journal.read();
+    } catch (IOException e) {
+      Log.e(TAG, "Unable to read track point journal.", e);
+      return 0;
+    }
+    int recovered = 0;
+    int start = 0;
+    while (start < entries.size()) {
+      long entryTrackId = entries.get(start).trackId;
+      int end = start;
+      while (end < entries.size() && entries.get(end).trackId == entryTrackId) {
+        end++;
+      }
+      recovered += recover(entryTrackId, entries.subList(start, end));
+      start = end;
+    }
+    clearJournal();
+    if (recovered > 0) {
+      Log.i(TAG, "Recovered " + recovered + " valid track points from journal.");
+    }
+    return recovered;
+  }
+
+  private int recover(long trackId, List<TrackPointJournal.Entry> entries) {
+    Track track = myTracksProviderUtils.getTrack(trackId);
+    if (track == null) {
+      Log.w(TAG, "Dropping journalled points of deleted track " + trackId);
+      return 0;
+    }
+    /*
+     * A batch is committed in one transaction, so either all of it is in the
+     * database or none of it. If the process died after the commit but before
+     * the journal was cleared, the last point will already be there.
+     */
+    Location last = entries.get(entries.size() - 1).location;
+    Location committed = getLastTrackPoint(trackId);
+    if (committed != null && committed.getTime() == last.getTime()
+        && (int) (committed.getLatitude() * 1E6) == (int) (last.getLatitude() * 1E6)
+        && (int) (committed.getLongitude() * 1E6) == (int) (last.getLongitude() * 1E6)) {
+      return 0;
+    }
+    Location[] locations = new Location[entries.size()];
+    int valid = 0;
+    for (int i = 0; i < locations.length; i++) {
+      locations[i] = entries.get(i).location;
+      if (LocationUtils.isValidLocation(locations[i])) {
+        valid++;
+      }
+    }
+    myTracksProviderUtils.bulkInsertTrackPoint(locations, locations.length, trackId);
+
+    if (track.getStartId() < 0) {
+      track.setStartId(myTracksProviderUtils.getFirstTrackPointId(trackId));
+    }
+    track.setStopId(myTracksProviderUtils.getLastTrackPointId(trackId));
+    track.setNumberOfPoints(track.getNumberOfPoints() + valid);
+    myTracksProviderUtils.updateTrack(track);
+    return valid;
+  }
+
+  private Location getLastTrackPoint(long trackId) {
+    Cursor cursor = myTracksProviderUtils.getTrackPointCursor(trackId, -1L, 1, true);
+    if (cursor == null) {
+      return null;
+    }
+    try {
+      return cursor.moveToFirst() ? myTracksProviderUtils.createTrackPoint(cursor) : null;
+    } finally {
+      cursor.close();
+    }
+  }
+
+  private void clearJournal() {
+    if (journal == null) {
+      return;
+    }
+    try {
+      journal.clear();
+    } catch (IOException e) {
+      Log.e(TAG, "Unable to clear track point journal.", e);
+    }
+  }
+
+  /**
+   * Commits the staged points and closes the journal.
+   */
+  synchronized void close() {
+    flush();
+    if (journal != null) {
+      try {
+        journal.close();
+      } catch (IOException e) {
+        Log.e(TAG, "Unable to close track point journal.", e);
+      }
+    }
+  }
+}
@@ -88,12 +88,15 @@ import org.cowboycoders.cyclismo.util.PreferencesUtils;
 import org.cowboycoders.cyclismo.util.TrackIconUtils;
 import org.cowboycoders.cyclismo.util.TrackNameUtils;
 
+import java.io.File;
 import java.util.Timer;
 import java.util.TimerTask;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.locks.ReentrantLock;
 
 import static org.cowboycoders.cyclismo.Constants.RESUME_TRACK_EXTRA_NAME;
@@ -116,6 +119,13 @@ public class TrackRecordingService extends Service {
   private static final long ONE_MINUTE = 60 * ONE_SECOND;
   @VisibleForTesting
   static final int MAX_AUTO_RESUME_TRACK_RETRY_ATTEMPTS = 3;
+  // Track points are committed in batches of up to this many
+  @VisibleForTesting
+  static final int TRACK_POINT_BATCH_SIZE = 10;
+  // A staged track point is committed within this many milliseconds
+  @VisibleForTesting
+  static final long TRACK_POINT_BATCH_DELAY = 5 * ONE_SECOND;
+  private static final String TRACK_POINT_JOURNAL_NAME = "trackpoints.journal";
 
   // The following variables are set in onCreate:
   private Context context;
@@ -124,6 +134,8 @@ public class TrackRecordingService extends Service {
   private PeriodicTaskExecutor voiceExecutor;
   private PeriodicTaskExecutor splitExecutor;
   private ExecutorService executorService;
+  private volatile Thread executorThread;
+  private TrackPointWriter trackPointWriter;
   private SharedPreferences sharedPreferences;
   private long recordingTrackId;
   private boolean recordingTrackPaused;
@@ -292,6 +304,28 @@ public class TrackRecordingService extends Service {
     }
   };
 
+  private TimerTask flushTrackPoints = new TimerTask() {
+      @Override
+    public void run() {
+      if (executorService == null || executorService.isShutdown()
+          || !trackPointWriter.isFlushDue(System.currentTimeMillis())) {
+        return;
+      }
+      try {
+        executorService.submit(new Runnable() {
+          @Override
+          public void run() {
+            if (myTracksProviderUtils != null) {
+              flushTrackPoints();
+            }
+          }
+        });
+      } catch (RejectedExecutionException e) {
+        // Shutting down, onDestroy commits the staged points
+      }
+    }
+  };
+
   /*
    * Note that this service, through the AndroidManifest.xml, is configured to
    * allow both MyTracks and third party apps to invoke it. For the onCreate
@@ -307,7 +341,16 @@ public class TrackRecordingService extends Service {
     myTracksLocationManager = new MyTracksLocationManager(this);
     voiceExecutor = new PeriodicTaskExecutor(this, new AnnouncementPeriodicTaskFactory());
     splitExecutor = new PeriodicTaskExecutor(this, new SplitPeriodicTaskFactory());
-    executorService = Executors.newSingleThreadExecutor();
+    executorService = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+      public Thread newThread(Runnable runnable) {
+        executorThread = new Thread(runnable, TAG);
+        return executorThread;
+      }
+    });
+    trackPointWriter = new TrackPointWriter(myTracksProviderUtils,
+        new TrackPointJournal(new File(getFilesDir(), TRACK_POINT_JOURNAL_NAME)),
+        TRACK_POINT_BATCH_SIZE, TRACK_POINT_BATCH_DELAY);
     sharedPreferences = getSharedPreferences(Constants.SETTINGS_NAME, Context.MODE_PRIVATE);
     sharedPreferences.registerOnSharedPreferenceChangeListener(sharedPreferenceChangeListener);
 
@@ -318,6 +361,10 @@ public class TrackRecordingService extends Service {
     sharedPreferenceChangeListener.onSharedPreferenceChanged(sharedPreferences, null);
 
     timer.schedule(checkLocationListener, 0, ONE_MINUTE);
+    timer.schedule(flushTrackPoints, TRACK_POINT_BATCH_DELAY, TRACK_POINT_BATCH_DELAY);
+
+    // Commit the track points staged when the process was last killed
+    boolean recoveredTrackPoints = trackPointWriter.recover() > 0;
 
     /*
      * Try to restart the previous recording track in case the service has been
@@ -325,7 +372,7 @@ public class TrackRecordingService extends Service {
      */
     Track track = myTracksProviderUtils.getTrack(recordingTrackId);
     if (track != null) {
-      restartTrack(track);
+      restartTrack(track, recoveredTrackPoints);
     } else {
       if (isRecording()) {
         Log.w(TAG, "track is null, but recordingTrackId not -1L. " + recordingTrackId);
@@ -372,6 +419,8 @@ public class TrackRecordingService extends Service {
     sharedPreferences.unregisterOnSharedPreferenceChangeListener(sharedPreferenceChangeListener);
     checkLocationListener.cancel();
     checkLocationListener = null;
+    flushTrackPoints.cancel();
+    flushTrackPoints = null;
     timer.cancel();
     timer.purge();
     unregisterLocationListener();
@@ -393,6 +442,17 @@ public class TrackRecordingService extends Service {
       sensorManager = null;
     }
 
+    try {
+      runOnExecutorAndWait(new Runnable() {
+        @Override
+        public void run() {
+          flushTrackPoints();
+        }
+      });
+    } finally {
+      trackPointWriter.close();
+    }
+
     // Make sure we have no indirect references to this service.
     myTracksProviderUtils = null;
     myTracksLocationManager.close();
@@ -498,6 +558,13 @@ public class TrackRecordingService extends Service {
     } finally {
       lastLocationFutureLock.unlock();
     }
+    // So the waypoint can be placed relative to the committed track points
+    runOnExecutorAndWait(new Runnable() {
+      @Override
+      public void run() {
+        flushTrackPoints();
+      }
+    });
     Location location = getLastValidTrackPointInCurrentSegment(recordingTrackId);
     if (location != null && trackTripStatisticsUpdater != null) {
       TripStatistics stats = trackTripStatisticsUpdater.getTripStatistics();
@@ -635,8 +702,10 @@ public class TrackRecordingService extends Service {
    * Restart a track.
    * 
    * @param track the track
+   * @param recoveredTrackPoints true if track points were recovered from the
+   *          journal, so the trip statistics of the track are out of date
    */
-  private void restartTrack(Track track) {
+  private void restartTrack(Track track, boolean recoveredTrackPoints) {
     Log.d(TAG, "Restarting track: " + track.getId());
 
     TripStatistics tripStatistics = track.getTripStatistics();
@@ -676,6 +745,10 @@ public class TrackRecordingService extends Service {
         cursor.close();
       }
     }
+    if (recoveredTrackPoints) {
+      // The recovery already counted the points, only the statistics are stale
+      updateRecordingTrack(track, -1L, 0);
+    }
     startRecording(true);
   }
 
@@ -693,14 +766,19 @@ public class TrackRecordingService extends Service {
     PreferencesUtils.setBoolean(this, R.string.recording_track_paused_key, false);
 
     // Update database
-    Track track = myTracksProviderUtils.getTrack(recordingTrackId);
-    if (track != null) {
-      Location resume = new Location(LocationManager.GPS_PROVIDER);
-      resume.setLongitude(0);
-      resume.setLatitude(RESUME_LATITUDE);
-      resume.setTime(System.currentTimeMillis());
-      insertLocation(track, resume, null);
-    }
+    runOnExecutorAndWait(new Runnable() {
+      @Override
+      public void run() {
+        Track track = myTracksProviderUtils.getTrack(recordingTrackId);
+        if (track != null) {
+          Location resume = new Location(LocationManager.GPS_PROVIDER);
+          resume.setLongitude(0);
+          resume.setLatitude(RESUME_LATITUDE);
+          resume.setTime(System.currentTimeMillis());
+          insertLocation(track, resume, null);
+        }
+      }
+    });
 
     startRecording(false);
   }
@@ -742,18 +820,25 @@ public class TrackRecordingService extends Service {
     }
 
     // Need to remember the recordingTrackId before setting it to -1L
-    long trackId = recordingTrackId;
-    boolean paused = recordingTrackPaused;
+    final long trackId = recordingTrackId;
+    final boolean paused = recordingTrackPaused;
 
     // Update shared preferences
     updateRecordingState(PreferencesUtils.RECORDING_TRACK_ID_DEFAULT, true);
 
     // Update database
-    Track track = myTracksProviderUtils.getTrack(trackId);
-    if (track != null && !paused) {
-      insertLocation(track, lastLocation, getLastValidTrackPointInCurrentSegment(trackId));
-      updateRecordingTrack(track, myTracksProviderUtils.getLastTrackPointId(trackId), false);
-    }
+    runOnExecutorAndWait(new Runnable() {
+      @Override
+      public void run() {
+        Track track = myTracksProviderUtils.getTrack(trackId);
+        if (track != null && !paused) {
+          insertLocation(track, lastLocation, getLastValidTrackPointInCurrentSegment(trackId));
+        }
+        if (track != null) {
+          flushTrackPoints(track);
+        }
+      }
+    });
 
     endRecording(true, trackId);
     stopSelf();
@@ -770,7 +855,8 @@ public class TrackRecordingService extends Service {
     if (!currentSegmentHasLocation) {
       return null;
     }
-    return myTracksProviderUtils.getLastValidTrackPoint(trackId);
+    Location staged = trackPointWriter.getLastValidTrackPoint(trackId);
+    return staged != null ? staged : myTracksProviderUtils.getLastValidTrackPoint(trackId);
   }
 
   /**
@@ -787,16 +873,23 @@ public class TrackRecordingService extends Service {
     PreferencesUtils.setBoolean(this, R.string.recording_track_paused_key, true);
 
     // Update database
-    Track track = myTracksProviderUtils.getTrack(recordingTrackId);
-    if (track != null) {
-      insertLocation(track, lastLocation, getLastValidTrackPointInCurrentSegment(track.getId()));
-
-      Location pause = new Location(LocationManager.GPS_PROVIDER);
-      pause.setLongitude(0);
-      pause.setLatitude(PAUSE_LATITUDE);
-      pause.setTime(System.currentTimeMillis());
-      insertLocation(track, pause, null);
-    }
+    runOnExecutorAndWait(new Runnable() {
+      @Override
+      public void run() {
+        Track track = myTracksProviderUtils.getTrack(recordingTrackId);
+        if (track != null) {
+          insertLocation(
+              track, lastLocation, getLastValidTrackPointInCurrentSegment(track.getId()));
+
+          Location pause = new Location(LocationManager.GPS_PROVIDER);
+          pause.setLongitude(0);
+          pause.setLatitude(PAUSE_LATITUDE);
+          pause.setTime(System.currentTimeMillis());
+          insertLocation(track, pause, null);
+          flushTrackPoints(track);
+        }
+      }
+    });
 
     endRecording(false, recordingTrackId);
   }
@@ -934,7 +1027,8 @@ public class TrackRecordingService extends Service {
   }
 
   /**
-   * Inserts a location.
+   * Inserts a location. The location is staged and committed with the next
+   * batch, see {@link TrackPointWriter}.
    * 
    * @param track the track
    * @param location the location
@@ -961,11 +1055,12 @@ public class TrackRecordingService extends Service {
       Log.d(TAG, "insertLocation, lastValidLocation: " + lastValidTrackPoint.toString());
     }
     try {
-      Uri uri = myTracksProviderUtils.insertTrackPoint(location, track.getId());
-      long trackPointId = Long.parseLong(uri.getLastPathSegment());
+      boolean flushDue = trackPointWriter.add(track.getId(), location);
       trackTripStatisticsUpdater.addLocation(location, minRecordingDistance);
       markerTripStatisticsUpdater.addLocation(location, minRecordingDistance);
-      updateRecordingTrack(track, trackPointId, LocationUtils.isValidLocation(location));
+      if (flushDue) {
+        flushTrackPoints(track);
+      }
     } catch (SQLiteException e) {
       /*
        * Insert failed, most likely because of SqlLite error code 5
@@ -976,20 +1071,77 @@ public class TrackRecordingService extends Service {
     }
     voiceExecutor.update();
     splitExecutor.update();
+  }
+
+  /**
+   * Runs a task on the executor, where the locations are inserted, and waits
+   * for it. The track points and the trip statistics are only ever touched
+   * from the executor, so a flush from another thread cannot race a location
+   * update on the track's point count or statistics. Runs the task directly
+   * if already on the executor, e.g. when a split inserts a waypoint.
+   * 
+   * @param task the task
+   */
+  private void runOnExecutorAndWait(Runnable task) {
+    if (Thread.currentThread() == executorThread) {
+      task.run();
+      return;
+    }
+    Future<?> future;
+    try {
+      future = executorService.submit(task);
+    } catch (RejectedExecutionException e) {
+      Log.w(TAG, "Executor is shut down.", e);
+      return;
+    }
+    try {
+      future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (ExecutionException e) {
+      Log.w(TAG, "Unable to update the track.", e.getCause());
+    }
+  }
+
+  /**
+   * Commits the staged track points, whichever track they belong to.
+   */
+  private void flushTrackPoints() {
+    long trackId = trackPointWriter.getStagedTrackId();
+    if (trackId < 0) {
+      return;
+    }
+    Track track = myTracksProviderUtils.getTrack(trackId);
+    if (track == null) {
+      Log.w(TAG, "Dropping staged track points of deleted track " + trackId);
+      trackPointWriter.discard();
+      return;
+    }
+    flushTrackPoints(track);
+  }
+
+  /**
+   * Commits the staged track points in a single transaction and updates the
+   * track.
+   * 
+   * @param track the track
+   */
+  private void flushTrackPoints(Track track) {
+    int validTrackPoints = trackPointWriter.flush();
+    updateRecordingTrack(track, myTracksProviderUtils.getLastTrackPointId(track.getId()),
+        validTrackPoints);
     sendTrackBroadcast(R.string.track_update_broadcast_action, track.getId());
   }
 
   private void updateRecordingTrack(
-      Track track, long trackPointId, boolean isTrackPointNewAndValid) {
-    if (trackPointId >= 0) {
+      Track track, long lastTrackPointId, int numberOfNewValidTrackPoints) {
+    if (lastTrackPointId >= 0) {
       if (track.getStartId() < 0) {
-        track.setStartId(trackPointId);
+        track.setStartId(myTracksProviderUtils.getFirstTrackPointId(track.getId()));
       }
-      track.setStopId(trackPointId);
-    }
-    if (isTrackPointNewAndValid) {
-      track.setNumberOfPoints(track.getNumberOfPoints() + 1);
+      track.setStopId(lastTrackPointId);
     }
+    track.setNumberOfPoints(track.getNumberOfPoints() + numberOfNewValidTrackPoints);
 
     trackTripStatisticsUpdater.updateTime(System.currentTimeMillis());
     track.setTripStatistics(trackTripStatisticsUpdater.getTripStatistics());
@@ -1263,15 +1415,18 @@ public class TrackRecordingService extends Service {
       if (!canAccess()) {
         return null;
       }
-      if (trackRecordingService.sensorManager == null) {
+      // Read once, the sensor manager and its data set can be cleared meanwhile
+      SensorManager sensorManager = trackRecordingService.sensorManager;
+      if (sensorManager == null) {
         Log.d(TAG, "sensorManager is null.");
         return null;
       }
-      if (trackRecordingService.sensorManager.getSensorDataSet() == null) {
+      SensorDataSet sensorDataSet = sensorManager.getSensorDataSet();
+      if (sensorDataSet == null) {
         Log.d(TAG, "Sensor data set is null.");
         return null;
       }
-      return trackRecordingService.sensorManager.getSensorDataSet().toByteArray();
+      return sensorDataSet.toByteArray();
     }
 
     @Override
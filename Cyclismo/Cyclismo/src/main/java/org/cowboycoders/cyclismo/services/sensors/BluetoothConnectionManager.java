@@ -64,7 +64,6 @@ public class BluetoothConnectionManager {
 
   // Message types sent to hander
   public static final int MESSAGE_DEVICE_NAME = 1;
-  public static final int MESSAGE_READ = 2;
 
   // Key for storing the device name
   public static final String KEY_DEVICE_NAME = "device_name";
@@ -74,6 +73,7 @@ public class BluetoothConnectionManager {
   private final BluetoothAdapter bluetoothAdapter;
   private final Handler handler;
   private final MessageParser messageParser;
+  private final SensorFrame sensorFrame;
   private SensorState sensorState;
 
   private ConnectThread connectThread;
@@ -85,12 +85,14 @@ public class BluetoothConnectionManager {
    * @param bluetoothAdapter the bluetooth adapter
    * @param handler a hander for sending messages back to the UI activity
    * @param messageParser a message parser
+   * @param sensorFrame the sensor frame to parse the messages into
    */
-  public BluetoothConnectionManager(
-      BluetoothAdapter bluetoothAdapter, Handler handler, MessageParser messageParser) {
+  public BluetoothConnectionManager(BluetoothAdapter bluetoothAdapter, Handler handler,
+      MessageParser messageParser, SensorFrame sensorFrame) {
     this.bluetoothAdapter = bluetoothAdapter;
     this.handler = handler;
     this.messageParser = messageParser;
+    this.sensorFrame = sensorFrame;
     this.sensorState = SensorState.NONE;
   }
 
@@ -254,49 +256,20 @@ public class BluetoothConnectionManager {
 
     @Override
     public void run() {
-      byte[] buffer = new byte[messageParser.getFrameSize()];
-      int bytes; // bytes read
-      int offset = 0;
+      MessageFramer messageFramer = new MessageFramer(messageParser, sensorFrame);
 
       // Keep listening to the inputStream while connected
-      while (true) {
-        try {
-          // Read from the inputStream
-          bytes = inputStream.read(buffer, offset, messageParser.getFrameSize() - offset);
-
-          if (bytes == -1) { throw new IOException("EOF reached."); }
-
-          offset += bytes;
-
-          if (offset != messageParser.getFrameSize()) {
-            // Partial frame received. Call read again to receive the rest.
-            continue;
-          }
-
-          if (!messageParser.isValid(buffer)) {
-            int index = messageParser.findNextAlignment(buffer);
-            if (index == -1) {
-              Log.w(TAG, "Could not find any valid data. Drop data.");
-              offset = 0;
-              continue;
-            }
-            Log.w(TAG, "Misaligned data. Found new message at " + index + ". Recovering...");
-            offset = messageParser.getFrameSize() - index;
-            System.arraycopy(buffer, index, buffer, 0, offset);
-            continue;
-          }
-
-          offset = 0;
-
-          // Send a copy of the obtained bytes to the handler to avoid memory
-          // inconsistency issues
-          handler.obtainMessage(MESSAGE_READ, bytes, -1, buffer.clone()).sendToTarget();
-        } catch (IOException e) {
-          Log.i(TAG, "Bluetooth connection lost.", e);
-          setState(Sensor.SensorState.DISCONNECTED);
-          break;
+      try {
+        while (messageFramer.read(inputStream)) {
+          // Each message is parsed into the sensor frame as it is read
         }
+        Log.i(TAG, "Bluetooth connection lost. EOF reached.");
+      } catch (IOException e) {
+        Log.i(TAG, "Bluetooth connection lost.", e);
       }
+      Log.d(TAG, messageFramer.getNumFrames() + " messages read, "
+          + messageFramer.getNumDroppedBytes() + " bytes dropped.");
+      setState(Sensor.SensorState.DISCONNECTED);
     }
 
     /**
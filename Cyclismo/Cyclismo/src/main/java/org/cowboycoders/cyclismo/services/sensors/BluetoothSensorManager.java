@@ -103,9 +103,8 @@ public class BluetoothSensorManager extends SensorManager {
   }
 
   private final Context context;
-  private final MessageParser messageParser;
+  private final SensorFrame sensorFrame = new SensorFrame();
   private final BluetoothConnectionManager bluetoothConnectionManager;
-  private SensorDataSet sensorDataSet = null;
 
   // Handler that gets information back from the bluetoothConnectionManager
   private final Handler messageHandler = new Handler(Looper.getMainLooper()) {
@@ -118,19 +117,6 @@ public class BluetoothSensorManager extends SensorManager {
           Toast.makeText(context, context.getString(R.string.settings_sensor_connected, deviceName),
               Toast.LENGTH_SHORT).show();
           break;
-        case BluetoothConnectionManager.MESSAGE_READ:
-          try {
-            byte[] readBuf = (byte[]) message.obj;
-            sensorDataSet = messageParser.parseBuffer(readBuf);
-            Log.d(TAG, "MESSAGE_READ: " + sensorDataSet);
-          } catch (IllegalArgumentException e) {
-            sensorDataSet = null;
-            Log.i(TAG, "Unexpected exception on read", e);
-          } catch (RuntimeException e) {
-            sensorDataSet = null;
-            Log.i(TAG, "Unexpected exception on read.", e);
-          }
-          break;
         default:
           break;
       }
@@ -145,9 +131,8 @@ public class BluetoothSensorManager extends SensorManager {
    */
   public BluetoothSensorManager(Context context, MessageParser messageParser) {
     this.context = context;
-    this.messageParser = messageParser;
     bluetoothConnectionManager = new BluetoothConnectionManager(
-        bluetoothAdapter, messageHandler, messageParser);
+        bluetoothAdapter, messageHandler, messageParser, sensorFrame);
   }
 
   @Override
@@ -182,6 +167,7 @@ public class BluetoothSensorManager extends SensorManager {
   @Override
   protected void tearDownChannel() {
     bluetoothConnectionManager.reset();
+    sensorFrame.clear();
   }
 
   @Override
@@ -191,6 +177,6 @@ public class BluetoothSensorManager extends SensorManager {
 
   @Override
   public SensorDataSet getSensorDataSet() {
-    return sensorDataSet;
+    return sensorFrame.getSensorDataSet();
   }
 }
@@ -0,0 +1,152 @@
+/*
+*    Copyright (c) 2013, Will Szumski
+*    Copyright (c) 2013, Doug Szumski
+*
+*    This file is part of Cyclismo.
+*
+*    Cyclismo is free software: you can redistribute it and/or modify
+*    it under the terms of the GNU General Public License as published by
+*    the Free Software Foundation, either version 3 of the License, or
+*    (at your option) any later version.
+*
+*    Cyclismo is distributed in the hope that it will be useful,
+*    but WITHOUT ANY WARRANTY; without even the implied warranty of
+*    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*    GNU General Public License for more details.
+*
+*    You should have received a copy of the GNU General Public License
+*    along with Cyclismo.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package org.cowboycoders.cyclismo.services.sensors;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Splits a stream of bytes from a sensor into frames, a byte at a time, and
+ * parses each valid frame into a {@link SensorFrame}.
+ *
+ * The bytes are read straight into a ring buffer the size of the largest
+ * frame. Each byte is checked by the {@link MessageParser} as it arrives, so
+ * the bytes of a frame are never scanned again once it is parsed. When a
+ * candidate frame turns out to be invalid, its first byte is dropped and the
+ * candidate starting at the next byte is checked.
+ */
+public class MessageFramer {
+
+  private final MessageParser messageParser;
+  private final SensorFrame sensorFrame;
+  private final byte[] buffer;
+  private final int mask;
+
+  // The index in the buffer of the first byte of the candidate frame
+  private int start;
+  // The number of bytes buffered
+  private int size;
+  // The number of bytes of the candidate frame checked
+  private int checked;
+  private long numFrames;
+  private long numDroppedBytes;
+
+  /**
+   * Constructor.
+   *
+   * @param messageParser the message parser
+   * @param sensorFrame the sensor frame to parse the frames into
+   */
+  public MessageFramer(MessageParser messageParser, SensorFrame sensorFrame) {
+    this.messageParser = messageParser;
+    this.sensorFrame = sensorFrame;
+    int capacity = Integer.highestOneBit(messageParser.getFrameSize() - 1) << 1;
+    this.buffer = new byte[capacity];
+    this.mask = capacity - 1;
+  }
+
+  /**
+   * Reads the bytes available from an input stream, blocking until there is
+   * at least one.
+   *
+   * @param inputStream the input stream
+   * @return false once the end of the stream is reached
+   */
+  public boolean read(InputStream inputStream) throws IOException {
+    int end = (start + size) & mask;
+    // Only up to the end of the buffer, the rest is read next time
+    int length = Math.min(buffer.length - size, buffer.length - end);
+    int bytes = inputStream.read(buffer, end, length);
+    if (bytes == -1) {
+      return false;
+    }
+    size += bytes;
+    process();
+    return true;
+  }
+
+  /**
+   * Adds a byte.
+   *
+   * @param b the byte
+   */
+  public void push(byte b) {
+    buffer[(start + size) & mask] = b;
+    size++;
+    process();
+  }
+
+  /**
+   * Gets a byte of the candidate frame.
+   *
+   * @param index the index of the byte from the start of the frame
+   */
+  public byte get(int index) {
+    return buffer[(start + index) & mask];
+  }
+
+  /**
+   * Gets the number of frames parsed.
+   */
+  public long getNumFrames() {
+    return numFrames;
+  }
+
+  /**
+   * Gets the number of bytes dropped while looking for a valid frame.
+   */
+  public long getNumDroppedBytes() {
+    return numDroppedBytes;
+  }
+
+  /**
+   * Checks the bytes not yet checked, parsing and dropping each complete
+   * frame. Leaves fewer bytes buffered than the largest frame.
+   */
+  private void process() {
+    while (checked < size) {
+      checked++;
+      int frameLength = messageParser.checkFrame(this, checked);
+      if (frameLength == MessageParser.FRAME_INCOMPLETE && checked < messageParser.getFrameSize()) {
+        continue;
+      }
+      if (frameLength > 0) {
+        messageParser.parseFrame(this, sensorFrame);
+        numFrames++;
+        drop(frameLength);
+      } else {
+        numDroppedBytes++;
+        drop(1);
+      }
+    }
+  }
+
+  /**
+   * Drops bytes from the start of the buffer, and starts a new candidate
+   * frame after them.
+   *
+   * @param length the number of bytes
+   */
+  private void drop(int length) {
+    start = (start + length) & mask;
+    size -= length;
+    checked = 0;
+  }
+}
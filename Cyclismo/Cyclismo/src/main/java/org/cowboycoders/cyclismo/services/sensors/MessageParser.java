@@ -44,11 +44,41 @@ import org.cowboycoders.cyclismo.content.Sensor;
  */
 public interface MessageParser {
 
+  /**
+   * Returned by {@link #checkFrame} when more bytes are needed.
+   */
+  public static final int FRAME_INCOMPLETE = 0;
+
+  /**
+   * Returned by {@link #checkFrame} when the bytes are not a valid frame.
+   */
+  public static final int FRAME_INVALID = -1;
+
+  /**
+   * Gets the size of the largest frame.
+   */
   public int getFrameSize();
   
   public Sensor.SensorDataSet parseBuffer(byte[] readBuff);
   
   public boolean isValid(byte[] buffer);
 
-  public int findNextAlignment(byte[] buffer);
+  /**
+   * Checks the last byte received of a candidate frame. The bytes before it
+   * have already been checked.
+   *
+   * @param framer the framer holding the candidate frame
+   * @param length the number of bytes of the candidate frame received
+   * @return the length of the frame once complete and valid,
+   *         {@link #FRAME_INCOMPLETE} or {@link #FRAME_INVALID}
+   */
+  public int checkFrame(MessageFramer framer, int length);
+
+  /**
+   * Parses a complete and valid frame into the latest readings.
+   *
+   * @param framer the framer holding the frame
+   * @param sensorFrame the sensor frame to update
+   */
+  public void parseFrame(MessageFramer framer, SensorFrame sensorFrame);
 }
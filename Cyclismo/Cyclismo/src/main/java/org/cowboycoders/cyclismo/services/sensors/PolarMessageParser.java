@@ -57,6 +57,8 @@ import org.cowboycoders.cyclismo.content.Sensor;
  */
 public class PolarMessageParser implements MessageParser {
 
+  private static final int MIN_PACKET_SIZE = 8;
+
   private int lastHeartRate = 0;                   
 
   /**
@@ -130,10 +132,8 @@ public class PolarMessageParser implements MessageParser {
   /**
    * Polar uses variable packet sizes; 8, 10, 12, 14 and rarely 16.
    * The most frequent are 8 and 10.
-   * We will wait for 16 bytes.
-   * This way, we are assured of getting one good one.
    * 
-   * @return the size of buffer needed to parse a good packet
+   * @return the size of the largest packet
    */
   @Override
   public int getFrameSize() {
@@ -141,19 +141,32 @@ public class PolarMessageParser implements MessageParser {
   }
 
   /**
-   * Searches buffer for the beginning of a valid packet.
-   *     
-   * @param buffer an array of bytes to parse
-   * @return index to beginning of good packet, or -1 if none found.
+   * Applies the Polar packet validation rules to the header bytes as they
+   * arrive. The packet is complete once as many bytes as its length byte
+   * gives have arrived.
    */
   @Override
-  public int findNextAlignment(byte[] buffer) {
-    // Minimum length Polar packets is 8, so stop search 8 bytes before buffer ends.
-    for (int i = 0; i < buffer.length - 8; i++) {
-      if (packetValid(buffer,i)) {
-	    return i;
-      }
+  public int checkFrame(MessageFramer framer, int length) {
+    int index = length - 1;
+    int value = framer.get(index) & 0xFF;
+    switch (index) {
+      case 0:
+        return value == 0xFE ? FRAME_INCOMPLETE : FRAME_INVALID;
+      case 1:
+        return value >= MIN_PACKET_SIZE && value <= getFrameSize()
+            ? FRAME_INCOMPLETE : FRAME_INVALID;
+      case 2:
+        return value == 0xFF - (framer.get(1) & 0xFF) ? FRAME_INCOMPLETE : FRAME_INVALID;
+      case 3:
+        return value < 16 ? FRAME_INCOMPLETE : FRAME_INVALID;
+      default:
+        return length == (framer.get(1) & 0xFF) ? length : FRAME_INCOMPLETE;
     }
-    return -1;
+  }
+
+  @Override
+  public void parseFrame(MessageFramer framer, SensorFrame sensorFrame) {
+    lastHeartRate = framer.get(5) & 0xFF;
+    sensorFrame.update(SensorFrame.Field.HEART_RATE, lastHeartRate);
   }
 }
@@ -0,0 +1,172 @@
+/*
+*    Copyright (c) 2013, Will Szumski
+*    Copyright (c) 2013, Doug Szumski
+*
+*    This file is part of Cyclismo.
+*
+*    Cyclismo is free software: you can redistribute it and/or modify
+*    it under the terms of the GNU General Public License as published by
+*    the Free Software Foundation, either version 3 of the License, or
+*    (at your option) any later version.
+*
+*    Cyclismo is distributed in the hope that it will be useful,
+*    but WITHOUT ANY WARRANTY; without even the implied warranty of
+*    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*    GNU General Public License for more details.
+*
+*    You should have received a copy of the GNU General Public License
+*    along with Cyclismo.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package org.cowboycoders.cyclismo.services.sensors;
+
+import com.google.common.annotations.VisibleForTesting;
+
+import org.cowboycoders.cyclismo.content.Sensor.SensorData;
+import org.cowboycoders.cyclismo.content.Sensor.SensorDataSet;
+import org.cowboycoders.cyclismo.content.Sensor.SensorState;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The latest sensor readings, written as the sensor reports them and read as a
+ * {@link SensorDataSet} once per recorded point. The turbo trainer readings are
+ * passed within the process from the TurboService to the
+ * {@link TurboSensorManager} through the shared instance, each
+ * {@link BluetoothSensorManager} has its own.
+ *
+ * Writing a reading doesn't allocate or lock, each field has a single writer.
+ * The sensor data set is only built when read after a change.
+ */
+public class SensorFrame {
+
+  /**
+   * The readings of a frame.
+   */
+  public enum Field {
+    SPEED, POWER, CADENCE, DISTANCE, HEART_RATE, BATTERY_LEVEL
+  }
+
+  // How often to broadcast each reading to consumers outside the process
+  @VisibleForTesting
+  static final long BROADCAST_INTERVAL_MS = 1000;
+
+  private static final SensorFrame instance = new SensorFrame();
+
+  // The bits of each reading, NaN if there isn't one
+  private final AtomicIntegerArray values = new AtomicIntegerArray(Field.values().length);
+  private final AtomicLongArray lastBroadcastTimes = new AtomicLongArray(Field.values().length);
+  // Incremented after each reading is written
+  private final AtomicLong version = new AtomicLong();
+  private volatile long updateTime;
+
+  // Guarded by this
+  private long builtVersion = -1L;
+  private SensorDataSet sensorDataSet;
+
+  SensorFrame() {
+    clear();
+  }
+
+  /**
+   * Gets the frame shared within the process by the turbo trainer.
+   */
+  public static SensorFrame getInstance() {
+    return instance;
+  }
+
+  /**
+   * Updates a reading.
+   *
+   * @param field the field
+   * @param value the value
+   */
+  public void update(Field field, double value) {
+    values.set(field.ordinal(), Float.floatToRawIntBits((float) value));
+    updateTime = System.currentTimeMillis();
+    version.incrementAndGet();
+  }
+
+  /**
+   * Clears the readings.
+   */
+  public void clear() {
+    int nan = Float.floatToRawIntBits(Float.NaN);
+    for (int i = 0; i < values.length(); i++) {
+      values.set(i, nan);
+    }
+    updateTime = 0;
+    version.incrementAndGet();
+  }
+
+  /**
+   * Returns true if a reading should be broadcast, at most once every
+   * {@link #BROADCAST_INTERVAL_MS} per field.
+   *
+   * @param field the field
+   * @param now the current time
+   */
+  public boolean shouldBroadcast(Field field, long now) {
+    int index = field.ordinal();
+    long lastBroadcastTime = lastBroadcastTimes.get(index);
+    return now - lastBroadcastTime >= BROADCAST_INTERVAL_MS
+        && lastBroadcastTimes.compareAndSet(index, lastBroadcastTime, now);
+  }
+
+  /**
+   * Gets the readings as a sensor data set, with the time of the last update
+   * as its creation time. Returns null if there are no readings.
+   */
+  public SensorDataSet getSensorDataSet() {
+    // Read before the readings, so that a reading written meanwhile is built next time
+    long currentVersion = version.get();
+    synchronized (this) {
+      if (currentVersion != builtVersion) {
+        sensorDataSet = build();
+        builtVersion = currentVersion;
+      }
+      return sensorDataSet;
+    }
+  }
+
+  private SensorDataSet build() {
+    SensorDataSet.Builder builder = null;
+    for (Field field : Field.values()) {
+      float value = Float.intBitsToFloat(values.get(field.ordinal()));
+      if (Float.isNaN(value)) {
+        continue;
+      }
+      if (builder == null) {
+        builder = SensorDataSet.newBuilder();
+      }
+      SensorData sensorData = SensorData.newBuilder()
+          .setValue(value)
+          .setState(SensorState.SENDING)
+          .build();
+      switch (field) {
+        case SPEED:
+          builder.setSpeed(sensorData);
+          break;
+        case POWER:
+          builder.setPower(sensorData);
+          break;
+        case CADENCE:
+          builder.setCadence(sensorData);
+          break;
+        case DISTANCE:
+          builder.setDistance(sensorData);
+          break;
+        case HEART_RATE:
+          builder.setHeartRate(sensorData);
+          break;
+        case BATTERY_LEVEL:
+          builder.setBatteryLevel(sensorData);
+          break;
+        default:
+          break;
+      }
+    }
+    return builder == null ? null : builder.setCreationTime(updateTime).build();
+  }
+}
@@ -127,6 +127,6 @@ public class SensorManagerFactory {
 //      return new PolarSensorManager(context);
 //    }
 //    return null;
-    return new TurboSensorManager(context);
+    return new TurboSensorManager();
   }
 }
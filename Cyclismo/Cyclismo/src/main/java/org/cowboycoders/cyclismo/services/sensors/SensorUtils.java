@@ -100,7 +100,7 @@ public class SensorUtils {
    * @param crc int of crc value
    * @param add the next byte to add to the CRC8 calculation
    */
-  private static byte crc8PushByte(byte crc, byte add) {
+  public static byte crc8PushByte(byte crc, byte add) {
     crc = (byte) (crc ^ add);
     
     for (int i = 0; i < 8; i++) {
@@ -19,42 +19,23 @@
 */
 package org.cowboycoders.cyclismo.services.sensors;
 
-import android.content.BroadcastReceiver;
-import android.content.Context;
-import android.content.Intent;
-import android.content.IntentFilter;
-import android.util.Log;
-
-import org.cowboycoders.cyclismo.R;
-import org.cowboycoders.cyclismo.content.Sensor;
-import org.cowboycoders.cyclismo.content.Sensor.SensorData;
 import org.cowboycoders.cyclismo.content.Sensor.SensorDataSet;
 import org.cowboycoders.cyclismo.content.Sensor.SensorState;
 
+/**
+ * Reads the turbo trainer readings from the {@link SensorFrame} the
+ * TurboService writes to.
+ */
 public class TurboSensorManager extends SensorManager {
-  
-  SensorDataSet sensorDataSet;
-  
-  private static final String TAG = TurboSensorManager.class.getSimpleName();
-  
-  private static String NEW_CADENCE_ACTION;
-  private static String NEW_SPEED_ACTION;
-  private static String NEW_DISTANCE_ACTION;
-  private static String NEW_HEART_RATE_ACTION;
-  private static String NEW_POWER_ACTION;
-  private static String DATA_ID;
-  
-  private Context context;
-  
-  public TurboSensorManager(Context context) {
-    this.context = context;
-    sensorDataSet = Sensor.SensorDataSet.getDefaultInstance();
-    NEW_CADENCE_ACTION = context.getString(R.string.sensor_data_cadence);
-    NEW_SPEED_ACTION = context.getString(R.string.sensor_data_speed_kmh);
-    NEW_DISTANCE_ACTION = context.getString(R.string.sensor_data_distance);
-    NEW_HEART_RATE_ACTION = context.getString(R.string.sensor_data_heart_rate);
-    NEW_POWER_ACTION = context.getString(R.string.sensor_data_power);
-    DATA_ID = context.getString(R.string.sensor_data_double_value);
+
+  private final SensorFrame sensorFrame;
+
+  public TurboSensorManager() {
+    this(SensorFrame.getInstance());
+  }
+
+  TurboSensorManager(SensorFrame sensorFrame) {
+    this.sensorFrame = sensorFrame;
   }
 
   @Override
@@ -64,106 +45,20 @@ public class TurboSensorManager extends SensorManager {
 
   @Override
   protected void setUpChannel() {
-    setSensorState(SensorState.CONNECTING);
-    registerTurboReceiver();
     setSensorState(SensorState.CONNECTED);
   }
 
   @Override
   protected void tearDownChannel() {
-    unregisterTurboReceiver();
     setSensorState(SensorState.DISCONNECTED);
   }
 
   @Override
-  public synchronized SensorDataSet getSensorDataSet() {
-    return sensorDataSet;
-  }
-  
-  public synchronized void setSensorDataSet(SensorDataSet newSet) {
-    this.sensorDataSet = newSet;
-  }
-  
-  private final BroadcastReceiver receiver = new BroadcastReceiver() {
-    @Override
-    public void onReceive(Context context, Intent intent) {
-        setSensorState(SensorState.SENDING);
-       String action = intent.getAction();
-       double value = intent.getDoubleExtra(DATA_ID, -1);
-       SensorData sd = SensorData.newBuilder()
-           .setValue((float) value)
-           .setState(Sensor.SensorState.SENDING)
-           .build();
-       if(action.equals(NEW_CADENCE_ACTION)){
-         synchronized (TurboSensorManager.this) {
-           Log.d(TAG,"cadence raw: " + value);
-           SensorDataSet sds = getSensorDataSet();
-           sds = sds.toBuilder()
-               .setCadence(sd)
-               .setCreationTime(System.currentTimeMillis())
-               .build();
-           setSensorDataSet(sds);
-           Log.d(TAG,"sensorDataSet has cadence: " + sds.hasCadence());
-           Log.d(TAG,"cadence in sensorDataSet: " + sds.getCadence());
-         }
-       }
-       else if(action.equals(NEW_SPEED_ACTION)){
-         synchronized (TurboSensorManager.this) {
-           SensorDataSet sds = getSensorDataSet();
-           sds = sds.toBuilder()
-               .setSpeed(sd)
-               .setCreationTime(System.currentTimeMillis())
-               .build();
-           setSensorDataSet(sds);
-         }
-       }
-       else if(action.equals(NEW_DISTANCE_ACTION)){
-         synchronized (TurboSensorManager.this) {
-           SensorDataSet sds = getSensorDataSet();
-           sds = sds.toBuilder()
-               .setDistance(sd)
-               .setCreationTime(System.currentTimeMillis())
-               .build();
-           setSensorDataSet(sds);
-         }
-       }
-       else if(action.equals(NEW_HEART_RATE_ACTION)){
-         synchronized (TurboSensorManager.this) {
-           SensorDataSet sds = getSensorDataSet();
-           sds = sds.toBuilder()
-               .setHeartRate(sd)
-               .setCreationTime(System.currentTimeMillis())
-               .build();
-           setSensorDataSet(sds);
-         }
-       }
-       else if(action.equals(NEW_POWER_ACTION)){
-         synchronized (TurboSensorManager.this) {
-           SensorDataSet sds = getSensorDataSet();
-           sds = sds.toBuilder()
-               .setPower(sd)
-               .setCreationTime(System.currentTimeMillis())
-               .build();
-           setSensorDataSet(sds);
-         }
-       }
+  public SensorDataSet getSensorDataSet() {
+    SensorDataSet sensorDataSet = sensorFrame.getSensorDataSet();
+    if (sensorDataSet != null && getSensorState() == SensorState.CONNECTED) {
+      setSensorState(SensorState.SENDING);
     }
-  };
-
-
-  public void registerTurboReceiver() {
-    IntentFilter filter = new IntentFilter();
-    filter.addAction(NEW_POWER_ACTION);
-    filter.addAction(NEW_HEART_RATE_ACTION);
-    filter.addAction(NEW_SPEED_ACTION);
-    filter.addAction(NEW_DISTANCE_ACTION);
-    filter.addAction(NEW_CADENCE_ACTION);
-
-    context.registerReceiver(receiver, filter);
-  }
-
-  public void unregisterTurboReceiver() {
-    context.unregisterReceiver(receiver);
+    return sensorDataSet;
   }
-
 }
@@ -50,10 +50,18 @@ public class ZephyrMessageParser implements MessageParser {
   public static final int ZEPHYR_HXM_BYTE_STX = 0;
   public static final int ZEPHYR_HXM_BYTE_CRC = 58;
   public static final int ZEPHYR_HXM_BYTE_ETX = 59;
+
+  private static final int ZEPHYR_HXM_BYTE_MSG_ID = 1;
+  private static final int ZEPHYR_HXM_BYTE_DLC = 2;
+  private static final int ZEPHYR_HXM_MSG_ID = 0x26;
+  private static final int ZEPHYR_HXM_DLC = 55;
   
   private static final byte[] CADENCE_BUG_FW_ID = {0x1A, 0x00, 0x31, 0x65, 0x50, 0x00, 0x31, 0x62};
   
   private StrideReadings strideReadings;
+
+  // The CRC of the payload of the candidate frame checked so far
+  private byte crc;
   
   @Override
   public Sensor.SensorDataSet parseBuffer(byte[] buffer) {
@@ -77,30 +85,41 @@ public class ZephyrMessageParser implements MessageParser {
   }
 
   private void setCadence(Sensor.SensorDataSet.Builder sds, byte[] buffer) {
-    // Device Firmware ID, Firmware Version, Hardware ID, Hardware Version
-    // 0x1A00316550003162 produces erroneous values for Cadence and needs
-    // a workaround based on the stride counter.
     // Firmware values range from field 3 to 10 (inclusive) of the byte buffer.
     byte[] hardwareFirmwareId = ApiAdapterFactory.getApiAdapter().copyByteArray(buffer, 3, 11);
+    float value = getCadence(Arrays.equals(hardwareFirmwareId, CADENCE_BUG_FW_ID),
+        buffer[54] & 0xFF, SensorUtils.unsignedShortToIntLittleEndian(buffer, 56));
     Sensor.SensorData.Builder cadence = Sensor.SensorData.newBuilder();
-
-    if (Arrays.equals(hardwareFirmwareId, CADENCE_BUG_FW_ID)) {
-      if (strideReadings == null) {
-        strideReadings = new StrideReadings();
-      }
-      strideReadings.updateStrideReading(buffer[54] & 0xFF);
-      
-      if (strideReadings.getCadence() != StrideReadings.CADENCE_NOT_AVAILABLE) {
-        cadence.setValue(strideReadings.getCadence()).setState(Sensor.SensorState.SENDING);
-      }
-    } else {
-      cadence
-        .setValue(SensorUtils.unsignedShortToIntLittleEndian(buffer, 56) / 16)
-        .setState(Sensor.SensorState.SENDING);
+    if (!Float.isNaN(value)) {
+      cadence.setValue(value).setState(Sensor.SensorState.SENDING);
     }
     sds.setCadence(cadence);
   }
 
+  /**
+   * Gets the cadence, or NaN if not available.
+   *
+   * @param cadenceBug true if the device firmware has the cadence bug
+   * @param strides the stride counter
+   * @param cadence the cadence reported by the device, in 1/16 strides/min
+   */
+  private float getCadence(boolean cadenceBug, int strides, int cadence) {
+    // Device Firmware ID, Firmware Version, Hardware ID, Hardware Version
+    // 0x1A00316550003162 produces erroneous values for Cadence and needs
+    // a workaround based on the stride counter.
+    if (!cadenceBug) {
+      return cadence / 16;
+    }
+    if (strideReadings == null) {
+      strideReadings = new StrideReadings();
+    }
+    strideReadings.updateStrideReading(strides);
+    if (strideReadings.getCadence() == StrideReadings.CADENCE_NOT_AVAILABLE) {
+      return Float.NaN;
+    }
+    return strideReadings.getCadence();
+  }
+
   @Override
   public boolean isValid(byte[] buffer) {
     // Check STX (Start of Text), ETX (End of Text) and CRC Checksum
@@ -115,14 +134,48 @@ public class ZephyrMessageParser implements MessageParser {
     return 60;
   }
 
+  /**
+   * Checks the header as it arrives, and the CRC and ETX once the frame is
+   * complete. The CRC is worked out a byte at a time.
+   */
   @Override
-  public int findNextAlignment(byte[] buffer) {
-    // TODO test or understand this code.
-    for (int i = 0; i < buffer.length - 1; i++) {
-      if (buffer[i] == 0x03 && buffer[i+1] == 0x02) {
-        return i;
+  public int checkFrame(MessageFramer framer, int length) {
+    int index = length - 1;
+    byte value = framer.get(index);
+    switch (index) {
+      case ZEPHYR_HXM_BYTE_STX:
+        crc = 0;
+        return value == 0x02 ? FRAME_INCOMPLETE : FRAME_INVALID;
+      case ZEPHYR_HXM_BYTE_MSG_ID:
+        return value == ZEPHYR_HXM_MSG_ID ? FRAME_INCOMPLETE : FRAME_INVALID;
+      case ZEPHYR_HXM_BYTE_DLC:
+        return value == ZEPHYR_HXM_DLC ? FRAME_INCOMPLETE : FRAME_INVALID;
+      case ZEPHYR_HXM_BYTE_CRC:
+        return value == crc ? FRAME_INCOMPLETE : FRAME_INVALID;
+      case ZEPHYR_HXM_BYTE_ETX:
+        return value == 0x03 ? length : FRAME_INVALID;
+      default:
+        crc = SensorUtils.crc8PushByte(crc, value);
+        return FRAME_INCOMPLETE;
+    }
+  }
+
+  @Override
+  public void parseFrame(MessageFramer framer, SensorFrame sensorFrame) {
+    sensorFrame.update(SensorFrame.Field.HEART_RATE, framer.get(12) & 0xFF);
+    sensorFrame.update(SensorFrame.Field.BATTERY_LEVEL, framer.get(11));
+
+    boolean cadenceBug = true;
+    for (int i = 0; i < CADENCE_BUG_FW_ID.length; i++) {
+      if (framer.get(3 + i) != CADENCE_BUG_FW_ID[i]) {
+        cadenceBug = false;
+        break;
       }
     }
-    return -1;
+    int cadence = (framer.get(56) & 0xFF) | (framer.get(57) & 0xFF) << 8;
+    float value = getCadence(cadenceBug, framer.get(54) & 0xFF, cadence);
+    if (!Float.isNaN(value)) {
+      sensorFrame.update(SensorFrame.Field.CADENCE, value);
+    }
   }
 }
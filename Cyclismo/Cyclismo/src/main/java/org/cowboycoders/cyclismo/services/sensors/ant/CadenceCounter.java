@@ -35,12 +35,13 @@
 
 package org.cowboycoders.cyclismo.services.sensors.ant;
 
-import java.util.LinkedList;
-
 /**
  * A counter that processes an Ant+ sensor data (count + event time) and returns
  * the instantaneous cadence value.
  *
+ * The history of the sensor data is held in a ring buffer of primitive arrays,
+ * so that processing a message doesn't allocate.
+ *
  * @author Laszlo Molnar
  */
 public class CadenceCounter {
@@ -50,36 +51,22 @@ public class CadenceCounter {
   private static final int MAX_HISTORY_SIZE = 100;
   private static final int EVENT_TIME_PER_MINUTE = 60 * 1024;
 
-  /**
-   * Cadence data.
-   * 
-   * @author Laszlo Molnar
-   */
-  private static class CadenceData {
-    final long systemTime;
-    final int count;
-    final int eventTime;
-
-    private CadenceData(long systemTime, int count, int eventTime) {
-      this.systemTime = systemTime;
-      this.count = count;
-      this.eventTime = eventTime;
-    }
-  }
-
   // The last count
   private int lastCount;
 
   // The last calculated cadence
   private int eventsPerMinute;
 
-  // The history of the previous sensor data, oldest first
-  private LinkedList<CadenceData> history;
+  // The history of the previous sensor data, oldest at historyStart
+  private final long[] historySystemTimes = new long[MAX_HISTORY_SIZE];
+  private final int[] historyCounts = new int[MAX_HISTORY_SIZE];
+  private final int[] historyEventTimes = new int[MAX_HISTORY_SIZE];
+  private int historyStart;
+  private int historySize;
 
   public CadenceCounter() {
     lastCount = -1;
     eventsPerMinute = 0;
-    history = new LinkedList<CadenceData>();
   }
 
   /**
@@ -89,7 +76,17 @@ public class CadenceCounter {
    * @param eventTime event time
    */
   public int getEventsPerMinute(int count, int eventTime) {
-    long now = System.currentTimeMillis();
+    return getEventsPerMinute(count, eventTime, System.currentTimeMillis());
+  }
+
+  /**
+   * Gets the cadence value.
+   * 
+   * @param count count
+   * @param eventTime event time
+   * @param now the current system time
+   */
+  public int getEventsPerMinute(int count, int eventTime, long now) {
     int countChange = (count - lastCount) & 0xFFFF;
 
     if (lastCount < 0) {
@@ -106,24 +103,24 @@ public class CadenceCounter {
 
     if (countChange != 0) {
       if (removeOldHistory(now)) {
-        CadenceData lastCadenceData = history.getLast();
-        int eventTimeChange = (eventTime - lastCadenceData.eventTime) & 0xFFFF;
+        int last = getHistoryIndex(historySize - 1);
+        int eventTimeChange = (eventTime - historyEventTimes[last]) & 0xFFFF;
         if (eventTimeChange != 0) {
-          countChange = (count - lastCadenceData.count) & 0xFFFF;
+          countChange = (count - historyCounts[last]) & 0xFFFF;
           eventsPerMinute = countChange * EVENT_TIME_PER_MINUTE / eventTimeChange;
         }
       }
-      history.addLast(new CadenceData(now, count, eventTime));
+      addHistory(now, count, eventTime);
       return eventsPerMinute;
     } else {
       // The sensor has resent old data
-      if (history.isEmpty()) {
+      if (historySize == 0) {
         eventsPerMinute = 0;
         return 0;
       }
 
-      CadenceData lastCadenceData = history.getLast();
-      if ((now - lastCadenceData.systemTime) * eventsPerMinute < MILLIS_PER_MINUTE) {
+      int last = getHistoryIndex(historySize - 1);
+      if ((now - historySystemTimes[last]) * eventsPerMinute < MILLIS_PER_MINUTE) {
         // The last eventsPerMinute is still valid
         return eventsPerMinute;
       }
@@ -150,13 +147,13 @@ public class CadenceCounter {
    * @param now the current system time
    */
   private int getValueFromHistory(long now) {
-    CadenceData firstCadenceData = history.getFirst();
-    CadenceData lastCadenceData = history.getLast();
-    int eventTimeChange = (lastCadenceData.eventTime - firstCadenceData.eventTime) & 0xFFFF;
-    int countChange = (lastCount - firstCadenceData.count) & 0xFFFF;
+    int first = historyStart;
+    int last = getHistoryIndex(historySize - 1);
+    int eventTimeChange = (historyEventTimes[last] - historyEventTimes[first]) & 0xFFFF;
+    int countChange = (lastCount - historyCounts[first]) & 0xFFFF;
 
-    // (now - lastCadenceData) + (lastCadenceData - firstCadenceData)
-    int systemTimeChange = (int) (now - lastCadenceData.systemTime
+    // (now - last system time) + (last system time - first system time)
+    int systemTimeChange = (int) (now - historySystemTimes[last]
         + (eventTimeChange * MILLIS_PER_MINUTE) / EVENT_TIME_PER_MINUTE);
 
     /*
@@ -177,21 +174,38 @@ public class CadenceCounter {
   }
 
   /**
-   * Removes old data from the history.
+   * Removes old data from the history. Leaves room for one more element.
    * 
    * @param now the current system time
    * @return true if the remaining history is not empty.
    */
   private boolean removeOldHistory(long now) {
-    CadenceData historyElement = history.peek();
-    while (historyElement != null) {
-      if (now - historyElement.systemTime <= MAX_HISTORY_TIME_IN_MILLIS
-          && history.size() < MAX_HISTORY_SIZE) {
+    while (historySize > 0) {
+      if (now - historySystemTimes[historyStart] <= MAX_HISTORY_TIME_IN_MILLIS
+          && historySize < MAX_HISTORY_SIZE) {
         return true;
       }
-      history.removeFirst();
-      historyElement = history.peek();
+      historyStart = getHistoryIndex(1);
+      historySize--;
     }
     return false;
   }
+
+  /**
+   * Adds data to the end of the history, which must have room for it.
+   */
+  private void addHistory(long systemTime, int count, int eventTime) {
+    int index = getHistoryIndex(historySize);
+    historySystemTimes[index] = systemTime;
+    historyCounts[index] = count;
+    historyEventTimes[index] = eventTime;
+    historySize++;
+  }
+
+  /**
+   * Gets the array index of the i-th oldest element of the history.
+   */
+  private int getHistoryIndex(int i) {
+    return (historyStart + i) % MAX_HISTORY_SIZE;
+  }
 }
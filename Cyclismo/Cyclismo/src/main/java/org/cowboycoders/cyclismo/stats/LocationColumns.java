@@ -0,0 +1,150 @@
+/*
+*    Copyright (c) 2013, Will Szumski
+*    Copyright (c) 2013, Doug Szumski
+*
+*    This file is part of Cyclismo.
+*
+*    Cyclismo is free software: you can redistribute it and/or modify
+*    it under the terms of the GNU General Public License as published by
+*    the Free Software Foundation, either version 3 of the License, or
+*    (at your option) any later version.
+*
+*    Cyclismo is distributed in the hope that it will be useful,
+*    but WITHOUT ANY WARRANTY; without even the implied warranty of
+*    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*    GNU General Public License for more details.
+*
+*    You should have received a copy of the GNU General Public License
+*    along with Cyclismo.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package org.cowboycoders.cyclismo.stats;
+
+import android.location.Location;
+
+import org.cowboycoders.cyclismo.content.Sensor.SensorDataSet;
+import org.cowboycoders.cyclismo.util.LocationUtils;
+
+import java.util.Arrays;
+
+/**
+ * The locations of a track held as a primitive array per column, for
+ * {@link TripStatisticsUpdater#addLocations}. Missing sensor readings are held
+ * as NaN.
+ */
+public class LocationColumns {
+
+  int size;
+  long[] times;
+  double[] latitudes;
+  double[] longitudes;
+  double[] altitudes;
+  float[] speeds;
+  float[] powers;
+  float[] cadences;
+  float[] heartRates;
+
+  /**
+   * Constructor.
+   *
+   * @param capacity the number of locations to make room for
+   */
+  public LocationColumns(int capacity) {
+    capacity = Math.max(capacity, 1);
+    times = new long[capacity];
+    latitudes = new double[capacity];
+    longitudes = new double[capacity];
+    altitudes = new double[capacity];
+    speeds = new float[capacity];
+    powers = new float[capacity];
+    cadences = new float[capacity];
+    heartRates = new float[capacity];
+  }
+
+  /**
+   * Adds a location.
+   *
+   * @param location the location
+   */
+  public void add(Location location) {
+    SensorDataSet sensorDataSet = LocationUtils.getSensorDataSet(location);
+    float power = Float.NaN;
+    float cadence = Float.NaN;
+    float heartRate = Float.NaN;
+    if (sensorDataSet != null) {
+      power = sensorDataSet.hasPower() ? sensorDataSet.getPower().getValue() : Float.NaN;
+      cadence = sensorDataSet.hasCadence() ? sensorDataSet.getCadence().getValue() : Float.NaN;
+      heartRate = sensorDataSet.hasHeartRate()
+          ? sensorDataSet.getHeartRate().getValue() : Float.NaN;
+    }
+    add(location.getTime(), location.getLatitude(), location.getLongitude(),
+        location.getAltitude(), location.getSpeed(), power, cadence, heartRate);
+  }
+
+  /**
+   * Adds a location.
+   *
+   * @param time the time
+   * @param latitude the latitude
+   * @param longitude the longitude
+   * @param altitude the altitude
+   * @param speed the speed
+   * @param power the power, NaN if missing
+   * @param cadence the cadence, NaN if missing
+   * @param heartRate the heart rate, NaN if missing
+   */
+  public void add(long time, double latitude, double longitude, double altitude, float speed,
+      float power, float cadence, float heartRate) {
+    if (size == times.length) {
+      int capacity = size * 2;
+      times = Arrays.copyOf(times, capacity);
+      latitudes = Arrays.copyOf(latitudes, capacity);
+      longitudes = Arrays.copyOf(longitudes, capacity);
+      altitudes = Arrays.copyOf(altitudes, capacity);
+      speeds = Arrays.copyOf(speeds, capacity);
+      powers = Arrays.copyOf(powers, capacity);
+      cadences = Arrays.copyOf(cadences, capacity);
+      heartRates = Arrays.copyOf(heartRates, capacity);
+    }
+    times[size] = time;
+    latitudes[size] = latitude;
+    longitudes[size] = longitude;
+    altitudes[size] = altitude;
+    speeds[size] = speed;
+    powers[size] = power;
+    cadences[size] = cadence;
+    heartRates[size] = heartRate;
+    size++;
+  }
+
+  /**
+   * Gets the number of locations.
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Gets the latitude of a location.
+   *
+   * @param index the index of the location
+   */
+  public double getLatitude(int index) {
+    return latitudes[index];
+  }
+
+  /**
+   * Gets the longitude of a location.
+   *
+   * @param index the index of the location
+   */
+  public double getLongitude(int index) {
+    return longitudes[index];
+  }
+
+  /**
+   * Removes all the locations, keeping the arrays.
+   */
+  public void clear() {
+    size = 0;
+  }
+}
@@ -41,7 +41,6 @@ import android.util.Log;
 import com.google.common.annotations.VisibleForTesting;
 
 import org.cowboycoders.cyclismo.Constants;
-import org.cowboycoders.cyclismo.content.Sensor.SensorDataSet;
 import org.cowboycoders.cyclismo.lib.CyclismoLibConstants;
 import org.cowboycoders.cyclismo.services.TrackRecordingService;
 import org.cowboycoders.cyclismo.util.LocationUtils;
@@ -50,7 +49,8 @@ import org.cowboycoders.cyclismo.util.LocationUtils;
 /**
  * Updater for {@link TripStatistics}. For updating track trip statistics as new
  * locations are added. Note that some of the locations represent pause/resume
- * separator.
+ * separator. The locations of a whole track can be added at once with
+ * {@link #addLocations}, without creating a location per point.
  * 
  * @author Sandor Dornbush
  * @author Rodrigo Damazio
@@ -65,11 +65,29 @@ public class TripStatisticsUpdater {
   // The current segment's trip statistics
   private TripStatistics currentSegment;
 
-  // Current segment's last location.
-  private Location lastLocation;
+  // True if the current segment has a last location
+  private boolean hasLastLocation;
+
+  // Current segment's last location. The sensor readings are NaN if missing.
+  private long lastTime;
+  private double lastLatitude;
+  private double lastLongitude;
+  private float lastSpeed;
+  private float lastPower;
+  private float lastCadence;
+  private float lastHeartRate;
+
+  // True if the last location is also the last moving location
+  private boolean lastLocationMoving;
 
   // Current segment's last moving location
-  private Location lastMovingLocation;
+  private double lastMovingLatitude;
+  private double lastMovingLongitude;
+
+  private final float[] distanceResults = new float[1];
+
+  // Holds the location being added by addLocation
+  private final LocationColumns singleLocation = new LocationColumns(1);
 
   // A buffer of the recent speed readings (m/s) for calculating max speed
   private final DoubleBuffer speedBuffer = new DoubleBuffer(Constants.SPEED_SMOOTHING_FACTOR);
@@ -116,97 +134,138 @@ public class TripStatisticsUpdater {
    * @param minRecordingDistance the min recording distance
    */
   public void addLocation(Location location, int minRecordingDistance) {
-    if (!LocationUtils.isValidLocation(location)) {
-      updateTime(location.getTime());
-      if (location.getLatitude() == TrackRecordingService.PAUSE_LATITUDE) {
-        if (lastLocation != null && lastMovingLocation != null
-            && lastLocation != lastMovingLocation) {
-          currentSegment.addTotalDistance(lastMovingLocation.distanceTo(lastLocation));
+    singleLocation.clear();
+    singleLocation.add(location);
+    addLocations(singleLocation, minRecordingDistance, null);
+  }
+
+  /**
+   * Adds the locations of a track, with the same results as adding them one at
+   * a time with {@link #addLocation(Location, int)}.
+   * 
+   * @param columns the locations
+   * @param minRecordingDistance the min recording distance
+   * @param smoothedElevations if not null, set to the smoothed elevation after
+   *          each location
+   */
+  public void addLocations(
+      LocationColumns columns, int minRecordingDistance, double[] smoothedElevations) {
+    for (int i = 0; i < columns.size; i++) {
+      addLocation(columns.times[i], columns.latitudes[i], columns.longitudes[i],
+          columns.altitudes[i], columns.speeds[i], columns.powers[i], columns.cadences[i],
+          columns.heartRates[i], minRecordingDistance);
+      if (smoothedElevations != null) {
+        smoothedElevations[i] = elevationBuffer.getAverage();
+      }
+    }
+  }
+
+  private void addLocation(long time, double latitude, double longitude, double altitude,
+      float speed, float power, float cadence, float heartRate, int minRecordingDistance) {
+    if (!LocationUtils.isValidLocation(latitude, longitude)) {
+      updateTime(time);
+      if (latitude == TrackRecordingService.PAUSE_LATITUDE) {
+        if (hasLastLocation && !lastLocationMoving) {
+          currentSegment.addTotalDistance(
+              distanceBetween(lastMovingLatitude, lastMovingLongitude, lastLatitude, lastLongitude));
         }
         tripStatistics.merge(currentSegment);
       }
-      currentSegment = init(location.getTime());
-      lastLocation = null;
-      lastMovingLocation = null;
+      currentSegment = init(time);
+      hasLastLocation = false;
       speedBuffer.reset();
       elevationBuffer.reset();
       distanceBuffer.reset();
       gradeBuffer.reset();
       return;
     }
-    double elevationDifference = updateElevation(location.getAltitude());
-    currentSegment.updateLatitudeExtremities(location.getLatitude());
-    currentSegment.updateLongitudeExtremities(location.getLongitude());
-
-    if (lastLocation == null || lastMovingLocation == null) {
-      updateTime(location.getTime());
-      lastLocation = location;
-      lastMovingLocation = location;
+    double elevationDifference = updateElevation(altitude);
+    currentSegment.updateLatitudeExtremities(latitude);
+    currentSegment.updateLongitudeExtremities(longitude);
+
+    if (!hasLastLocation) {
+      updateTime(time);
+      setLastLocation(time, latitude, longitude, speed, power, cadence, heartRate, true);
       return;
     }
-    double movingDistance = lastMovingLocation.distanceTo(location);
+    double movingDistance = distanceBetween(
+        lastMovingLatitude, lastMovingLongitude, latitude, longitude);
     if (movingDistance < minRecordingDistance - Constants.RECORDING_DISTANCE_ACCURACY 
-        && location.getSpeed() < Constants.MAX_NO_MOVEMENT_SPEED) { //TODO: Make this into a preference
-      updateTime(location.getTime());
-      lastLocation = location;
+        && speed < Constants.MAX_NO_MOVEMENT_SPEED) { //TODO: Make this into a preference
+      updateTime(time);
+      setLastLocation(time, latitude, longitude, speed, power, cadence, heartRate, false);
       return;
     }
-    long movingTime = location.getTime() - lastLocation.getTime();
+    long movingTime = time - lastTime;
     if (movingTime < 0) {
-      updateTime(location.getTime());
-      lastLocation = location;
+      updateTime(time);
+      setLastLocation(time, latitude, longitude, speed, power, cadence, heartRate, false);
       return;
     }
-    updateSensorData(lastLocation, movingTime);
+    updateSensorData(movingTime);
 
     currentSegment.addTotalDistance(movingDistance);
     currentSegment.addMovingTime(movingTime);
-    updateSpeed(
-        location.getTime(), location.getSpeed(), lastLocation.getTime(), lastLocation.getSpeed());
-    updateGrade(lastLocation.distanceTo(location), elevationDifference);
-    updateTime(location.getTime());
+    updateSpeed(time, speed, lastTime, lastSpeed);
+    double distance = lastLocationMoving
+        ? movingDistance : distanceBetween(lastLatitude, lastLongitude, latitude, longitude);
+    updateGrade(distance, elevationDifference);
+    updateTime(time);
 
-    lastLocation = location;
-    lastMovingLocation = location;
+    setLastLocation(time, latitude, longitude, speed, power, cadence, heartRate, true);
+  }
+
+  private void setLastLocation(long time, double latitude, double longitude, float speed,
+      float power, float cadence, float heartRate, boolean moving) {
+    hasLastLocation = true;
+    lastTime = time;
+    lastLatitude = latitude;
+    lastLongitude = longitude;
+    lastSpeed = speed;
+    lastPower = power;
+    lastCadence = cadence;
+    lastHeartRate = heartRate;
+    lastLocationMoving = moving;
+    if (moving) {
+      lastMovingLatitude = latitude;
+      lastMovingLongitude = longitude;
+    }
   }
 
   /**
-   * Updates the running sensor data totals. Eg. total work done, total heart beats.
+   * Gets the distance between two points, as {@link Location#distanceTo}.
+   */
+  private double distanceBetween(
+      double startLatitude, double startLongitude, double endLatitude, double endLongitude) {
+    Location.distanceBetween(
+        startLatitude, startLongitude, endLatitude, endLongitude, distanceResults);
+    return distanceResults[0];
+  }
+
+  /**
+   * Updates the running sensor data totals from the readings of the last
+   * location. Eg. total work done, total heart beats.
    *
    * The time delta should be kept small (~1000ms) to maintain accurate counts.
    *
-   * @param lastLocation the location previous to the present one.
    * @param timeDelta the time in ms that elapsed when travelling from the previous location to the
    *                  present location.
    */
-  @VisibleForTesting
-  private void updateSensorData(Location lastLocation, long timeDelta) {
-    SensorDataSet sensorDataSet = LocationUtils.getSensorDataSet(lastLocation);
-    if ( sensorDataSet == null ) {
-      Log.d(TAG, "No sensor data");
-      return;
-    }
-
+  private void updateSensorData(long timeDelta) {
     double timeDeltaSeconds = timeDelta / CyclismoLibConstants.MILLISEC_IN_SEC;
 
-    if (sensorDataSet.hasPower()) {
-      double work = sensorDataSet.getPower().getValue() * timeDeltaSeconds;
-      currentSegment.addWorkDone(work);
-      Log.d(TAG, "Added work done (J): " + work);
+    if (!Float.isNaN(lastPower)) {
+      currentSegment.addWorkDone(lastPower * timeDeltaSeconds);
     }
 
-    if (sensorDataSet.hasCadence()) {
-      double revs = sensorDataSet.getCadence().getValue()
-              * timeDeltaSeconds / CyclismoLibConstants.SEC_IN_MIN;
-      currentSegment.addCrankRotations(revs);
-      Log.d(TAG, "Added crank revolutions: " + revs);
+    if (!Float.isNaN(lastCadence)) {
+      currentSegment.addCrankRotations(
+          lastCadence * timeDeltaSeconds / CyclismoLibConstants.SEC_IN_MIN);
     }
 
-    if (sensorDataSet.hasHeartRate()) {
-      double beats = sensorDataSet.getHeartRate().getValue()
-              * timeDeltaSeconds / CyclismoLibConstants.SEC_IN_MIN;;
-      currentSegment.addHeartBeats(beats);
-      Log.d(TAG, "Added heart beats: " + beats);
+    if (!Float.isNaN(lastHeartRate)) {
+      currentSegment.addHeartBeats(
+          lastHeartRate * timeDeltaSeconds / CyclismoLibConstants.SEC_IN_MIN);
     }
   }
 
@@ -224,8 +283,8 @@ public class TripStatisticsUpdater {
   }
   
   public double getSpeed() {
-    if (lastLocation == null) return 0.;
-    return lastLocation.getSpeed();
+    if (!hasLastLocation) return 0.;
+    return lastSpeed;
   }
 
   /**
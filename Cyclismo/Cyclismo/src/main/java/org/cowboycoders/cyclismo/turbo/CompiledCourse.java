@@ -0,0 +1,257 @@
+/*
+*    Copyright (c) 2013, Will Szumski
+*    Copyright (c) 2013, Doug Szumski
+*
+*    This file is part of Cyclismo.
+*
+*    Cyclismo is free software: you can redistribute it and/or modify
+*    it under the terms of the GNU General Public License as published by
+*    the Free Software Foundation, either version 3 of the License, or
+*    (at your option) any later version.
+*
+*    Cyclismo is distributed in the hope that it will be useful,
+*    but WITHOUT ANY WARRANTY; without even the implied warranty of
+*    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*    GNU General Public License for more details.
+*
+*    You should have received a copy of the GNU General Public License
+*    along with Cyclismo.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package org.cowboycoders.cyclismo.turbo;
+
+import android.location.Location;
+
+import org.cowboycoders.cyclismo.Constants;
+import org.cowboycoders.cyclismo.content.MyTracksProviderUtils.LocationIterator;
+import org.cowboycoders.cyclismo.stats.LocationColumns;
+import org.cowboycoders.cyclismo.stats.TripStatisticsUpdater;
+import org.fluxoid.utils.LatLongAlt;
+import org.fluxoid.utils.LocationUtils;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A course ready to ride: the points at least the minimum track point spacing
+ * apart, each with its smoothed altitude, its distance along the course and
+ * the gradient from the point before. A course is compiled into a file once
+ * and the file is memory-mapped for each ride after.
+ *
+ * The file is a header followed by a record of fixed size per point. The
+ * header holds the course id, the ids of its first and last points and the
+ * spacing, and the file is compiled again if any of them change. Tracks have
+ * no modification time, the point ids stand in for it as they're never reused.
+ */
+class CompiledCourse {
+
+  // Bump when the records or the way they're compiled change
+  static final int VERSION = 1;
+
+  private static final int MAGIC = 0x43594331;
+  // Magic, version, course id, first and last point ids, spacing, size
+  private static final int HEADER_SIZE = 4 + 4 + 8 + 8 + 8 + 8 + 4;
+  private static final int SIZE_OFFSET = HEADER_SIZE - 4;
+  // Latitude, longitude, altitude, distance, gradient
+  private static final int RECORD_SIZE = 5 * 8;
+  private static final int ALTITUDE_OFFSET = 16;
+  private static final int DISTANCE_OFFSET = 24;
+  private static final int GRADIENT_OFFSET = 32;
+
+  private final ByteBuffer buffer;
+  private final int size;
+
+  private CompiledCourse(ByteBuffer buffer) {
+    this.buffer = buffer;
+    this.size = buffer.getInt(SIZE_OFFSET);
+  }
+
+  /**
+   * Compiles the points of a course into a file. The points are sampled and
+   * their altitudes smoothed as the course track data hub did, then the
+   * points closer than the spacing to the last point kept are dropped.
+   *
+   * @param iterator the points of the course, in order
+   * @param courseId the course id
+   * @param firstPointId the id of the first point
+   * @param lastPointId the id of the last point
+   * @param spacing the minimum distance between points in meters
+   * @param file the file to write
+   */
+  static void compile(LocationIterator iterator, long courseId, long firstPointId,
+      long lastPointId, double spacing, File file) throws IOException {
+    // Only the points the hub sampled in, the altitudes are smoothed over them
+    int samplingFrequency = 1 + (int) (Math.max(0L, lastPointId - firstPointId)
+        / Constants.TARGET_DISPLAYED_TRACK_POINTS);
+    LocationColumns columns = new LocationColumns(Constants.TARGET_DISPLAYED_TRACK_POINTS);
+    boolean includeNextPoint = false;
+    for (int index = 0; iterator.hasNext(); index++) {
+      Location location = iterator.next();
+      if (!org.cowboycoders.cyclismo.util.LocationUtils.isValidLocation(location)) {
+        includeNextPoint = true;
+      } else if (includeNextPoint || index % samplingFrequency == 0
+          || iterator.getLocationId() == lastPointId) {
+        includeNextPoint = false;
+        columns.add(location);
+      }
+    }
+
+    double[] altitudes = new double[columns.size()];
+    if (columns.size() > 0) {
+      TripStatisticsUpdater tripStatisticsUpdater = new TripStatisticsUpdater(0L);
+      tripStatisticsUpdater.addLocations(columns, (int) spacing, altitudes);
+    }
+
+    File directory = file.getParentFile();
+    if (directory != null && !directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("Unable to create " + directory);
+    }
+    File tempFile = new File(file.getPath() + ".tmp");
+    DataOutputStream writer = new DataOutputStream(
+        new BufferedOutputStream(new FileOutputStream(tempFile)));
+    try {
+      writer.writeInt(MAGIC);
+      writer.writeInt(VERSION);
+      writer.writeLong(courseId);
+      writer.writeLong(firstPointId);
+      writer.writeLong(lastPointId);
+      writer.writeDouble(spacing);
+      // The size is only known once the points are spaced, filled in below
+      writer.writeInt(0);
+
+      int size = 0;
+      double distance = 0.0;
+      LatLongAlt lastPoint = null;
+      for (int i = 0; i < columns.size(); i++) {
+        LatLongAlt point = new LatLongAlt(
+            columns.getLatitude(i), columns.getLongitude(i), altitudes[i]);
+        double gradient = 0.0;
+        if (lastPoint != null) {
+          if (LocationUtils.getDistance(lastPoint, point) <= spacing) {
+            continue;
+          }
+          distance += LocationUtils.getGradientCorrectedDistance(lastPoint, point);
+          gradient = LocationUtils.getLocalisedGradient(lastPoint, point);
+        }
+        writer.writeDouble(point.getLatitude());
+        writer.writeDouble(point.getLongitude());
+        writer.writeDouble(point.getAltitude());
+        writer.writeDouble(distance);
+        writer.writeDouble(gradient);
+        lastPoint = point;
+        size++;
+      }
+      writer.close();
+      writer = null;
+
+      RandomAccessFile randomAccessFile = new RandomAccessFile(tempFile, "rw");
+      try {
+        randomAccessFile.seek(SIZE_OFFSET);
+        randomAccessFile.writeInt(size);
+      } finally {
+        randomAccessFile.close();
+      }
+    } finally {
+      if (writer != null) {
+        writer.close();
+      }
+    }
+    if (!tempFile.renameTo(file)) {
+      tempFile.delete();
+      throw new IOException("Unable to rename " + tempFile + " to " + file);
+    }
+  }
+
+  /**
+   * Memory-maps a compiled course. Returns null if there's no file, or it was
+   * compiled from something else or by another version.
+   *
+   * @param file the file
+   * @param courseId the course id
+   * @param firstPointId the id of the first point
+   * @param lastPointId the id of the last point
+   * @param spacing the minimum distance between points in meters
+   */
+  static CompiledCourse load(File file, long courseId, long firstPointId, long lastPointId,
+      double spacing) throws IOException {
+    if (!file.isFile() || file.length() < HEADER_SIZE) {
+      return null;
+    }
+    RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+    ByteBuffer buffer;
+    try {
+      // The mapping stays valid once the file is closed
+      buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+    } finally {
+      randomAccessFile.close();
+    }
+    if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION
+        || buffer.getLong(8) != courseId || buffer.getLong(16) != firstPointId
+        || buffer.getLong(24) != lastPointId || buffer.getDouble(32) != spacing) {
+      return null;
+    }
+    int size = buffer.getInt(SIZE_OFFSET);
+    if (size < 0 || buffer.capacity() != HEADER_SIZE + (long) size * RECORD_SIZE) {
+      return null;
+    }
+    return new CompiledCourse(buffer);
+  }
+
+  /**
+   * Gets the number of points.
+   */
+  int size() {
+    return size;
+  }
+
+  double getLatitude(int index) {
+    return buffer.getDouble(getOffset(index));
+  }
+
+  double getLongitude(int index) {
+    return buffer.getDouble(getOffset(index) + 8);
+  }
+
+  /**
+   * Gets the smoothed altitude of a point.
+   */
+  double getAltitude(int index) {
+    return buffer.getDouble(getOffset(index) + ALTITUDE_OFFSET);
+  }
+
+  /**
+   * Gets the distance along the course to a point, corrected for the gradient.
+   */
+  double getDistance(int index) {
+    return buffer.getDouble(getOffset(index) + DISTANCE_OFFSET);
+  }
+
+  /**
+   * Gets the gradient in percent from the point before, 0 for the first point.
+   */
+  double getGradient(int index) {
+    return buffer.getDouble(getOffset(index) + GRADIENT_OFFSET);
+  }
+
+  /**
+   * Gets the points as the course tracker takes them.
+   */
+  List<LatLongAlt> getLatLongAlts() {
+    List<LatLongAlt> latLongAlts = new ArrayList<LatLongAlt>(size);
+    for (int i = 0; i < size; i++) {
+      latLongAlts.add(new LatLongAlt(getLatitude(i), getLongitude(i), getAltitude(i)));
+    }
+    return latLongAlts;
+  }
+
+  private int getOffset(int index) {
+    return HEADER_SIZE + index * RECORD_SIZE;
+  }
+}
@@ -57,6 +57,8 @@ import org.cowboycoders.cyclismo.content.CyclismoProviderUtils;
 import org.cowboycoders.cyclismo.content.MyTracksProviderUtils;
 import org.cowboycoders.cyclismo.content.User;
 import org.cowboycoders.cyclismo.services.TrackRecordingServiceConnection;
+import org.cowboycoders.cyclismo.services.sensors.SensorFrame;
+import org.cowboycoders.cyclismo.services.sensors.SensorFrame.Field;
 import org.cowboycoders.cyclismo.util.IntentUtils;
 import org.cowboycoders.cyclismo.util.PreferenceEntry;
 import org.cowboycoders.cyclismo.util.PreferencesUtils;
@@ -75,8 +77,10 @@ import org.cowboycoders.turbotrainers.bushido.brake.BushidoBrake;
 import org.cowboycoders.turbotrainers.bushido.brake.ConstantResistanceController;
 import org.cowboycoders.turbotrainers.bushido.headunit.BushidoHeadunit;
 import org.cowboycoders.turbotrainers.fec.FecTurbo;
+import org.fluxoid.utils.CoursePositionSynthesizer;
 import org.fluxoid.utils.LatLongAlt;
 
+import java.io.IOException;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.util.HashMap;
@@ -110,6 +114,12 @@ public class TurboService extends Service {
 
   public static double TARGET_TRACKPOINT_DISTANCE_METRES = 0.1;
 
+  // How often to synthesize a location along the course
+  private static final long LOCATION_INTERVAL_MS = 1000;
+
+  // Location.makeComplete, needed from Jelly Bean on, null if there isn't one
+  private static final Method MAKE_COMPLETE_METHOD = getMakeCompleteMethod();
+
   protected AntLoggerImpl antLogger;
 
   private TurboRegistry turboRegistry;
@@ -158,6 +168,7 @@ public class TurboService extends Service {
   private Lock parameterBuilderLock = new ReentrantLock();
 
   private Parameters.Builder parameterBuilder;
+  private final SensorFrame sensorFrame = SensorFrame.getInstance();
   private HeartRateMonitor hrm;
   private DataSourceCombiner dsc = new DataSourceCombiner(new HeartRateListener() {
 
@@ -167,13 +178,28 @@ public class TurboService extends Service {
     @Override
     public void onValueChange(int heartRate) {
       if (heartRate > 0) {
-        Intent intent = new Intent(getString(R.string.sensor_data_heart_rate));
-        intent.putExtra(getString(R.string.sensor_data_double_value), (double) heartRate);
-        sendBroadcast(intent);
+        updateSensorData(Field.HEART_RATE, R.string.sensor_data_heart_rate, heartRate);
       }
     }
   }, TIMEOUT_HRM_STALE_DATA);
 
+  /**
+   * Updates a reading in the {@link SensorFrame} read by the recording, and
+   * broadcasts it for consumers outside the process, at most once a second.
+   *
+   * @param field the field of the reading
+   * @param actionId the broadcast action string id
+   * @param value the value
+   */
+  private void updateSensorData(Field field, int actionId, double value) {
+    sensorFrame.update(field, value);
+    if (sensorFrame.shouldBroadcast(field, System.currentTimeMillis())) {
+      Intent intent = new Intent(getString(actionId));
+      intent.putExtra(getString(R.string.sensor_data_double_value), value);
+      sendBroadcast(intent);
+    }
+  }
+
   public void setParameterBuilder(Parameters.Builder builder) {
     try {
       parameterBuilderLock.lock();
@@ -207,9 +233,7 @@ public class TurboService extends Service {
 
       // synchronized to keep speed in alignment with distance
 
-      Intent intent = new Intent(getString(R.string.sensor_data_speed_kmh));
-      intent.putExtra(getString(R.string.sensor_data_double_value), speed);
-      sendBroadcast(intent);
+      updateSensorData(Field.SPEED, R.string.sensor_data_speed_kmh, speed);
 
       try {
         updatingLock.lock();
@@ -224,6 +248,7 @@ public class TurboService extends Service {
       Log.v(TAG, "new speed: " + speed);
 
       courseTracker.updateSpeed(speed);
+      positionSynthesizer.update(courseTracker.getDistance(), speed / UnitConversions.MS_TO_KMH);
 
       try {
         updatingLock.lock();
@@ -236,17 +261,13 @@ public class TurboService extends Service {
 
     @Override
     public void onPowerChange(double power) {
-      Intent intent = new Intent(getString(R.string.sensor_data_power));
-      intent.putExtra(getString(R.string.sensor_data_double_value), power);
-      sendBroadcast(intent);
+      updateSensorData(Field.POWER, R.string.sensor_data_power, power);
     }
 
     @Override
     public void onCadenceChange(double cadence) {
       Log.d(TAG, "cadence: " + cadence);
-      Intent intent = new Intent(getString(R.string.sensor_data_cadence));
-      intent.putExtra(getString(R.string.sensor_data_double_value), cadence);
-      sendBroadcast(intent);
+      updateSensorData(Field.CADENCE, R.string.sensor_data_cadence, cadence);
     }
 
     @Override
@@ -272,12 +293,7 @@ public class TurboService extends Service {
       Log.d(TAG, "sensor distance: " + distance);
       Log.d(TAG, "courseTracker distance" + courseTrackerDistance);
 
-      Intent intent = new Intent(getString(R.string.sensor_data_distance));
-      intent.putExtra(getString(R.string.sensor_data_double_value), courseTrackerDistance);
-      sendBroadcast(intent);
-
-      LatLongAlt currentLocation = courseTracker.getNearestLocation();
-      updateLocation(currentLocation);
+      updateSensorData(Field.DISTANCE, R.string.sensor_data_distance, courseTrackerDistance);
 
       // returns 0.0 if finished for warm down
       double gradient = courseTracker.getCurrentGradient();
@@ -330,6 +346,8 @@ public class TurboService extends Service {
 
   private CourseTracker courseTracker;
 
+  private CoursePositionSynthesizer positionSynthesizer;
+
   private long recordingTrackId;
 
   private SharedPreferences preferences;
@@ -431,13 +449,14 @@ public class TurboService extends Service {
     CourseLoader cl = new CourseLoader(context, trackId);
     try {
       latLongAlts = cl.getLatLongAlts();
-    } catch (InterruptedException e) {
-      Log.e(TAG, "interrupted whilst loading course");
+    } catch (IOException e) {
+      Log.e(TAG, "unable to load course");
       handleException(e, "Error loading course", true, NOTIFCATION_ID_STARTUP);
     }
 
 
     this.courseTracker = new CourseTracker(latLongAlts, TARGET_TRACKPOINT_DISTANCE_METRES);
+    this.positionSynthesizer = new CoursePositionSynthesizer(latLongAlts);
 
     Log.d(TAG, "latlong length: " + latLongAlts.size());
 
@@ -596,8 +615,7 @@ public class TurboService extends Service {
             }
             turboTrainer.registerDataListener(dataListener);
             unpauseRecording();
-            LatLongAlt loc = courseTracker.getNearestLocation();
-            updateLocation(loc);
+            positionSynthesizer.start(LOCATION_INTERVAL_MS, positionListener);
           } catch (Exception e) {
             handleException(e, "Error initiliasing turbo trainer", true, NOTIFCATION_ID_STARTUP);
           }
@@ -774,43 +792,54 @@ public class TurboService extends Service {
     this.startService(intent);
   }
 
-  private synchronized void updateLocation(LatLongAlt pos) {
-    try {
-      float locSpeed = (float) (lastRecordedSpeed / UnitConversions.MS_TO_KMH);
-      final long timestamp = System.currentTimeMillis();
-      Log.v(TAG, "location timestamp: " + timestamp);
-      Location loc = new Location(MOCK_LOCATION_PROVIDER);
-      Log.d(TAG, "alt: " + pos.getAltitude());
-      Log.d(TAG, "lat: " + pos.getLatitude());
-      Log.d(TAG, "long: " + pos.getLongitude());
-      loc.setLatitude(pos.getLatitude());
-      loc.setLongitude(pos.getLongitude());
-      loc.setAltitude(pos.getAltitude());
-      // TODO(dszumski) one possible way to correct
-      // long timeCorrection = (long) (1000.0 * (delta / lastRecordedSpeed));
-      // loc.setTime(timestamp - timeCorrection);
-      loc.setTime(timestamp);
-      loc.setSpeed(locSpeed);
-      loc.setAccuracy(gpsAccuracy);
-      Method locationJellyBeanFixMethod = null;
+  /**
+   * Broadcasts each location synthesized along the course, on the
+   * synthesizer's thread. The location is reused, it's copied into the
+   * broadcast. The synthesizer stops once the trainer stops reporting, and a
+   * paused recording is only resumed when the rider has moved on.
+   */
+  private final CoursePositionSynthesizer.PositionListener positionListener =
+      new CoursePositionSynthesizer.PositionListener() {
+    private final Location location = new Location(MOCK_LOCATION_PROVIDER);
+    private double lastDistance;
+
+    @Override
+    public void onPosition(double latitude, double longitude, double altitude, double distance,
+        double speed) {
       try {
-        locationJellyBeanFixMethod = Location.class.getMethod("makeComplete");
-      } catch (NoSuchMethodException e) {
-        // ignore
-      }
-      if (locationJellyBeanFixMethod != null) {
-        locationJellyBeanFixMethod.invoke(loc);
+        location.setLatitude(latitude);
+        location.setLongitude(longitude);
+        location.setAltitude(altitude);
+        // TODO(dszumski) one possible way to correct
+        // long timeCorrection = (long) (1000.0 * (delta / lastRecordedSpeed));
+        // loc.setTime(timestamp - timeCorrection);
+        location.setTime(System.currentTimeMillis());
+        location.setSpeed((float) speed);
+        location.setAccuracy(gpsAccuracy);
+        if (MAKE_COMPLETE_METHOD != null) {
+          MAKE_COMPLETE_METHOD.invoke(location);
+        }
+        if (distance > lastDistance) {
+          lastDistance = distance;
+          unpauseRecording(); // automatically resume when moving
+        }
+        broadcastLocation(location);
+      } catch (SecurityException e) {
+        // is this possible now we aren't using mock locations?
+        handleException(e, "Error updating location", true, NOTIFCATION_ID_STARTUP);
+      } catch (InvocationTargetException e) {
+        Log.w(TAG, "unable to complete location", e);
+      } catch (IllegalAccessException e) {
+        Log.w(TAG, "unable to complete location", e);
       }
-      unpauseRecording(); // automatically resume on location updates
-      broadcastLocation(loc);
-      Log.d(TAG, "updated location");
-    } catch (SecurityException e) {
-      // is this possible now we aren't using mock locations?
-      handleException(e, "Error updating location", true, NOTIFCATION_ID_STARTUP);
-    } catch (InvocationTargetException e) {
-      e.printStackTrace();
-    } catch (IllegalAccessException e) {
-      e.printStackTrace();
+    }
+  };
+
+  private static Method getMakeCompleteMethod() {
+    try {
+      return Location.class.getMethod("makeComplete");
+    } catch (NoSuchMethodException e) {
+      return null;
     }
   }
 
@@ -860,6 +889,11 @@ public class TurboService extends Service {
       Log.i(TAG, shutdownMessage);
 
     }
+    if (positionSynthesizer != null) {
+      positionSynthesizer.stop();
+    }
+    // Don't record the last readings once the trainer has stopped
+    sensorFrame.clear();
     Intent intent = new Intent().setAction(this.getString(R.string.anthub_action_shutdown));
     sendBroadcast(intent);
     if (wakeLock.isHeld()) {
@@ -888,6 +922,7 @@ public class TurboService extends Service {
   @Override
   public void onCreate() {
     super.onCreate();
+    sensorFrame.clear();
     trackRecordingServiceConnection = new TrackRecordingServiceConnection(this, bindChangedCallback);
     // trackRecordingServiceConnection.startAndBind();
     PowerManager pm = (PowerManager) getSystemService(Context.POWER_SERVICE);
@@ -150,8 +150,7 @@ public class FileUtils {
    *
    * @param name name
    */
-  @VisibleForTesting
-  static String sanitizeFileName(String name) {
+  public static String sanitizeFileName(String name) {
     StringBuffer buffer = new StringBuffer(name.length());
     for (int i = 0; i < name.length(); i++) {
       int codePoint = name.codePointAt(i);
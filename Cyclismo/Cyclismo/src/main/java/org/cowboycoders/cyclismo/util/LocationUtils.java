@@ -179,8 +179,18 @@ public class LocationUtils {
    * @return true if the location is a valid location.
    */
   public static boolean isValidLocation(Location location) {
-    return location != null && Math.abs(location.getLatitude()) <= 90
-        && Math.abs(location.getLongitude()) <= 180;
+    return location != null && isValidLocation(location.getLatitude(), location.getLongitude());
+  }
+
+  /**
+   * Checks if a given latitude and longitude is a valid location, see
+   * {@link #isValidLocation(Location)}.
+   * 
+   * @param latitude the latitude
+   * @param longitude the longitude
+   */
+  public static boolean isValidLocation(double latitude, double longitude) {
+    return Math.abs(latitude) <= 90 && Math.abs(longitude) <= 180;
   }
 
   /**
@@ -81,6 +81,14 @@ public interface CourseTrackPointsColumns extends BaseColumns {
       + SENSOR + " BLOB"
       + ");";
 
+  // Most queries are scoped to a single track
+  public static final String CREATE_TRACKID_ID_INDEX = "CREATE INDEX IF NOT EXISTS "
+      + TABLE_NAME + "_" + TRACKID + "_" + _ID + "_index ON " + TABLE_NAME + " ("
+      + TRACKID + ", " + _ID + ");";
+  public static final String CREATE_TRACKID_TIME_INDEX = "CREATE INDEX IF NOT EXISTS "
+      + TABLE_NAME + "_" + TRACKID + "_" + TIME + "_index ON " + TABLE_NAME + " ("
+      + TRACKID + ", " + TIME + ");";
+
   public static final String[] COLUMNS = {
       _ID,
       TRACKID,
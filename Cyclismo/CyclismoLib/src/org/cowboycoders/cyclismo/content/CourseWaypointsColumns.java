@@ -130,6 +130,11 @@ public interface CourseWaypointsColumns extends BaseColumns {
       + MAXGRADE + " FLOAT"
       + ");";
 
+  // Most queries are scoped to a single track
+  public static final String CREATE_TRACKID_ID_INDEX = "CREATE INDEX IF NOT EXISTS "
+      + TABLE_NAME + "_" + TRACKID + "_" + _ID + "_index ON " + TABLE_NAME + " ("
+      + TRACKID + ", " + _ID + ");";
+
   public static final String[] COLUMNS = {
       _ID,
       NAME,
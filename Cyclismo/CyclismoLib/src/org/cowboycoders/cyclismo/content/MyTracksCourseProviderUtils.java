@@ -35,12 +35,15 @@
 
 package org.cowboycoders.cyclismo.content;
 
+import android.content.ContentProviderOperation;
 import android.content.ContentResolver;
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.OperationApplicationException;
 import android.database.Cursor;
 import android.location.Location;
 import android.net.Uri;
+import android.os.RemoteException;
 import android.util.Log;
 
 import com.google.protobuf.InvalidProtocolBufferException;
@@ -50,6 +53,7 @@ import org.cowboycoders.cyclismo.stats.TripStatistics;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 import java.util.NoSuchElementException;
 
 /**
@@ -198,7 +202,7 @@ public class MyTracksCourseProviderUtils implements MyTracksProviderUtils {
   public void deleteAllTracks() {
     contentResolver.delete(CourseTrackPointsColumns.CONTENT_URI, null, null);
     contentResolver.delete(CourseWaypointsColumns.CONTENT_URI, null, null);
-    // Delete tracks last since it triggers a database vaccum call
+    // Delete tracks last since it triggers reclaiming the space
     contentResolver.delete(CourseTracksColumns.CONTENT_URI, null, null);
   }
 
@@ -215,11 +219,40 @@ public class MyTracksCourseProviderUtils implements MyTracksProviderUtils {
     contentResolver.delete(CourseWaypointsColumns.CONTENT_URI, CourseWaypointsColumns.TRACKID +
             "=?",
         new String[]{Long.toString(trackId)});
-    // Delete tracks last since it triggers a database vaccum call
+    // Delete tracks last since it triggers reclaiming the space
     contentResolver.delete(CourseTracksColumns.CONTENT_URI, CourseTracksColumns._ID + "=?",
         new String[]{Long.toString(trackId)});
   }
 
+  @Override
+  public void deleteTracks(long[] trackIds) {
+    if (trackIds.length == 0) {
+      return;
+    }
+    StringBuilder ids = new StringBuilder();
+    for (long trackId : trackIds) {
+      if (ids.length() > 0) {
+        ids.append(',');
+      }
+      ids.append(trackId);
+    }
+    ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+    operations.add(ContentProviderOperation.newDelete(CourseTrackPointsColumns.CONTENT_URI)
+        .withSelection(CourseTrackPointsColumns.TRACKID + " IN (" + ids + ")", null).build());
+    operations.add(ContentProviderOperation.newDelete(CourseWaypointsColumns.CONTENT_URI)
+        .withSelection(CourseWaypointsColumns.TRACKID + " IN (" + ids + ")", null).build());
+    // Delete tracks last since it triggers reclaiming the space
+    operations.add(ContentProviderOperation.newDelete(CourseTracksColumns.CONTENT_URI)
+        .withSelection(CourseTracksColumns._ID + " IN (" + ids + ")", null).build());
+    try {
+      contentResolver.applyBatch(AUTHORITY, operations);
+    } catch (RemoteException e) {
+      Log.e(TAG, "Unable to delete tracks.", e);
+    } catch (OperationApplicationException e) {
+      Log.e(TAG, "Unable to delete tracks.", e);
+    }
+  }
+
   @Override
   public List<Track> getAllTracks() {
     Cursor cursor = getTrackCursor(null, null, null, CourseTracksColumns._ID);
@@ -295,6 +328,32 @@ public class MyTracksCourseProviderUtils implements MyTracksProviderUtils {
     return getTrackCursor(null, selection, selectionArgs, sortOrder);
   }
 
+  /**
+   * Courses aren't materialized in the track statistics table, so this merges
+   * the statistics of every course.
+   */
+  @Override
+  public TripStatistics getAggregatedTripStatistics() {
+    List<Track> tracks = getAllTracks();
+    TripStatistics tripStatistics = null;
+    if (!tracks.isEmpty()) {
+      tripStatistics = new TripStatistics(tracks.get(0).getTripStatistics());
+      for (int i = 1; i < tracks.size(); i++) {
+        tripStatistics.merge(tracks.get(i).getTripStatistics());
+      }
+    }
+    return tripStatistics;
+  }
+
+  /**
+   * Courses have no materialized statistics, so the buckets are merged from the
+   * course tracks on each call.
+   */
+  @Override
+  public Map<Long, TripStatistics> getTripStatisticsRollup(int bucketType) {
+    return TrackStatsChecker.recompute(getAllTracks(), bucketType);
+  }
+
   @Override
   public Uri insertTrack(Track track) {
     return contentResolver.insert(CourseTracksColumns.CONTENT_URI, createContentValues(track));
@@ -346,15 +405,8 @@ public class MyTracksCourseProviderUtils implements MyTracksProviderUtils {
     return values;
   }
 
-  /**
-   * Gets a track cursor.
-   *
-   * @param projection the projection
-   * @param selection the selection
-   * @param selectionArgs the selection arguments
-   * @param sortOrder the sort oder
-   */
-  private Cursor getTrackCursor(
+  @Override
+  public Cursor getTrackCursor(
       String[] projection, String selection, String[] selectionArgs, String sortOrder) {
     return contentResolver.query(
         CourseTracksColumns.CONTENT_URI, projection, selection, selectionArgs, sortOrder);
@@ -748,16 +800,8 @@ public class MyTracksCourseProviderUtils implements MyTracksProviderUtils {
     return null;
   }
 
-  /**
-   * Gets a waypoint cursor.
-   *
-   * @param projection the projection
-   * @param selection the selection
-   * @param selectionArgs the selection args
-   * @param sortOrder the sort order
-   * @param maxWaypoints the maximum number of waypoints
-   */
-  private Cursor getWaypointCursor(String[] projection, String selection, String[] selectionArgs,
+  @Override
+  public Cursor getWaypointCursor(String[] projection, String selection, String[] selectionArgs,
       String sortOrder, int maxWaypoints) {
     if (sortOrder == null) {
       sortOrder = CourseWaypointsColumns._ID;
@@ -893,6 +937,13 @@ public class MyTracksCourseProviderUtils implements MyTracksProviderUtils {
     return getTrackPointCursor(null, selection, selectionArgs, sortOrder);
   }
 
+  @Override
+  public LocationIterator getTrackPointLocationIterator(long trackId, long startTrackPointId,
+      boolean descending, LocationFactory locationFactory, boolean decodedSensorData) {
+    // Course track points have no sensor data to decode
+    return getTrackPointLocationIterator(trackId, startTrackPointId, descending, locationFactory);
+  }
+
   @Override
   public LocationIterator getTrackPointLocationIterator(final long trackId,
       final long startTrackPointId, final boolean descending,
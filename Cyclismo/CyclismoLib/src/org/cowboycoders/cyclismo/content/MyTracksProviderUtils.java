@@ -41,8 +41,11 @@ import android.location.Location;
 import android.location.LocationManager;
 import android.net.Uri;
 
+import org.cowboycoders.cyclismo.stats.TripStatistics;
+
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Utilities to access data from the My Tracks content provider.
@@ -85,6 +88,14 @@ public interface MyTracksProviderUtils {
    */
   public void deleteTrack(long trackId);
 
+  /**
+   * Deletes several tracks (including waypoints and track points) in a single
+   * transaction.
+   *
+   * @param trackIds the track ids
+   */
+  public void deleteTracks(long[] trackIds);
+
   /**
    * Gets all the tracks. If no track exists, an empty list is returned.
    * <p>
@@ -117,6 +128,34 @@ public interface MyTracksProviderUtils {
    */
   public Cursor getTrackCursor(String selection, String[] selectionArgs, String sortOrder);
 
+  /**
+   * Gets a track cursor with the given columns, which can include computed
+   * columns. The caller owns the returned cursor and is responsible for
+   * closing it.
+   *
+   * @param projection the columns, null for all
+   * @param selection the selection
+   * @param selectionArgs the selection arguments
+   * @param sortOrder the sort order
+   */
+  public Cursor getTrackCursor(
+      String[] projection, String selection, String[] selectionArgs, String sortOrder);
+
+  /**
+   * Gets the statistics of all the tracks merged together. Returns null if
+   * there are no tracks.
+   */
+  public TripStatistics getAggregatedTripStatistics();
+
+  /**
+   * Gets the statistics of the tracks merged together by bucket, ordered by
+   * bucket key. If no track exists, an empty map is returned.
+   *
+   * @param bucketType the bucket type, see {@link TrackStatsColumns}
+   * @return the statistics of each bucket, by bucket key
+   */
+  public Map<Long, TripStatistics> getTripStatisticsRollup(int bucketType);
+
   /**
    * Inserts a track.
    * <p>
@@ -197,6 +236,20 @@ public interface MyTracksProviderUtils {
   public Cursor getWaypointCursor(
       String selection, String[] selectionArgs, String sortOrder, int maxWaypoints);
 
+  /**
+   * Gets a waypoint cursor with the given columns, which can include computed
+   * columns. The caller owns the returned cursor and is responsible for
+   * closing it.
+   *
+   * @param projection the columns, null for all
+   * @param selection the selection
+   * @param selectionArgs the selection arguments
+   * @param sortOrder the sort order
+   * @param maxWaypoints the maximum number of waypoints to return
+   */
+  public Cursor getWaypointCursor(String[] projection, String selection, String[] selectionArgs,
+      String sortOrder, int maxWaypoints);
+
   /**
    * Gets a waypoint cursor for a track. The caller owns the returned cursor and
    * is responsible for closing it.
@@ -300,6 +353,25 @@ public interface MyTracksProviderUtils {
   public LocationIterator getTrackPointLocationIterator(
       long trackId, long startTrackPointId, boolean descending, LocationFactory locationFactory);
 
+  /**
+   * Creates a new read-only iterator over a given track's points, as
+   * {@link #getTrackPointLocationIterator(long, long, boolean, LocationFactory)}
+   * does, optionally without parsing each point's stored sensor data set. The
+   * sensor data is then built from the decoded power, cadence, heart rate and
+   * sensor speed columns, which is enough for the statistics and charts.
+   *
+   * @param trackId the track id
+   * @param startTrackPointId the start track point id or -1L to start from the
+   * first point
+   * @param descending true to sort the result in descending order (latest
+   * location first)
+   * @param locationFactory the location factory
+   * @param decodedSensorData true to build the sensor data from the decoded
+   * columns rather than the stored sensor data set
+   */
+  public LocationIterator getTrackPointLocationIterator(long trackId, long startTrackPointId,
+      boolean descending, LocationFactory locationFactory, boolean decodedSensorData);
+
   /**
    * Inserts a track point.
    *
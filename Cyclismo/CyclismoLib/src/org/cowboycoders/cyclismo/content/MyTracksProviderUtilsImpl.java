@@ -35,11 +35,14 @@
 
 package org.cowboycoders.cyclismo.content;
 
+import android.content.ContentProviderOperation;
 import android.content.ContentResolver;
 import android.content.ContentValues;
+import android.content.OperationApplicationException;
 import android.database.Cursor;
 import android.location.Location;
 import android.net.Uri;
+import android.os.RemoteException;
 import android.util.Log;
 
 import com.google.protobuf.InvalidProtocolBufferException;
@@ -48,7 +51,9 @@ import org.cowboycoders.cyclismo.content.Sensor.SensorDataSet;
 import org.cowboycoders.cyclismo.stats.TripStatistics;
 
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.NoSuchElementException;
 
 /**
@@ -381,24 +386,42 @@ public class MyTracksProviderUtilsImpl implements MyTracksProviderUtils {
   public void deleteAllTracks() {
     contentResolver.delete(TrackPointsColumns.CONTENT_URI, null, null);
     contentResolver.delete(WaypointsColumns.CONTENT_URI, null, null);
-    // Delete tracks last since it triggers a database vaccum call
+    // Delete tracks last since it triggers reclaiming the space
     contentResolver.delete(TracksColumns.CONTENT_URI, null, null);
   }
 
   @Override
   public void deleteTrack(long trackId) {
-    Track track = getTrack(trackId);
-    if (track != null) {
-      String where = TrackPointsColumns._ID + ">=? AND " + TrackPointsColumns._ID + "<=?";
-      String[] selectionArgs = new String[]{
-          Long.toString(track.getStartId()), Long.toString(track.getStopId())};
-      contentResolver.delete(TrackPointsColumns.CONTENT_URI, where, selectionArgs);
-    }
-    contentResolver.delete(WaypointsColumns.CONTENT_URI, WaypointsColumns.TRACKID + "=?",
-        new String[]{Long.toString(trackId)});
-    // Delete tracks last since it triggers a database vaccum call
-    contentResolver.delete(TracksColumns.CONTENT_URI, TracksColumns._ID + "=?",
-        new String[]{Long.toString(trackId)});
+    deleteTracks(new long[]{trackId});
+  }
+
+  @Override
+  public void deleteTracks(long[] trackIds) {
+    if (trackIds.length == 0) {
+      return;
+    }
+    StringBuilder ids = new StringBuilder();
+    for (long trackId : trackIds) {
+      if (ids.length() > 0) {
+        ids.append(',');
+      }
+      ids.append(trackId);
+    }
+    ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+    operations.add(ContentProviderOperation.newDelete(TrackPointsColumns.CONTENT_URI)
+        .withSelection(TrackPointsColumns.TRACKID + " IN (" + ids + ")", null).build());
+    operations.add(ContentProviderOperation.newDelete(WaypointsColumns.CONTENT_URI)
+        .withSelection(WaypointsColumns.TRACKID + " IN (" + ids + ")", null).build());
+    // Delete tracks last since it triggers reclaiming the space
+    operations.add(ContentProviderOperation.newDelete(TracksColumns.CONTENT_URI)
+        .withSelection(TracksColumns._ID + " IN (" + ids + ")", null).build());
+    try {
+      contentResolver.applyBatch(AUTHORITY, operations);
+    } catch (RemoteException e) {
+      Log.e(TAG, "Unable to delete tracks.", e);
+    } catch (OperationApplicationException e) {
+      Log.e(TAG, "Unable to delete tracks.", e);
+    }
   }
 
   @Override
@@ -468,6 +491,93 @@ public class MyTracksProviderUtilsImpl implements MyTracksProviderUtils {
     return getTrackCursor(null, selection, selectionArgs, sortOrder);
   }
 
+  @Override
+  public TripStatistics getAggregatedTripStatistics() {
+    Map<Long, TripStatistics> all = getTripStatisticsRollup(TrackStatsColumns.BUCKET_ALL);
+    return all.isEmpty() ? null : all.values().iterator().next();
+  }
+
+  @Override
+  public Map<Long, TripStatistics> getTripStatisticsRollup(int bucketType) {
+    Map<Long, TripStatistics> rollup = new LinkedHashMap<Long, TripStatistics>();
+    Cursor cursor = contentResolver.query(TrackStatsColumns.CONTENT_URI, null,
+        TrackStatsColumns.BUCKETTYPE + "=?", new String[]{Integer.toString(bucketType)},
+        TrackStatsColumns.BUCKETKEY);
+    if (cursor != null) {
+      try {
+        int bucketKeyIndex = cursor.getColumnIndexOrThrow(TrackStatsColumns.BUCKETKEY);
+        while (cursor.moveToNext()) {
+          rollup.put(cursor.getLong(bucketKeyIndex), createTripStatistics(cursor));
+        }
+      } finally {
+        cursor.close();
+      }
+    }
+    return rollup;
+  }
+
+  /**
+   * Creates the statistics of a bucket from a track statistics cursor.
+   *
+   * @param cursor the cursor pointing to the bucket
+   */
+  private TripStatistics createTripStatistics(Cursor cursor) {
+    int startTimeIndex = cursor.getColumnIndexOrThrow(TracksColumns.STARTTIME);
+    int stopTimeIndex = cursor.getColumnIndexOrThrow(TracksColumns.STOPTIME);
+    int totalDistanceIndex = cursor.getColumnIndexOrThrow(TracksColumns.TOTALDISTANCE);
+    int totalTimeIndex = cursor.getColumnIndexOrThrow(TracksColumns.TOTALTIME);
+    int movingTimeIndex = cursor.getColumnIndexOrThrow(TracksColumns.MOVINGTIME);
+    int minLatIndex = cursor.getColumnIndexOrThrow(TracksColumns.MINLAT);
+    int maxLatIndex = cursor.getColumnIndexOrThrow(TracksColumns.MAXLAT);
+    int minLonIndex = cursor.getColumnIndexOrThrow(TracksColumns.MINLON);
+    int maxLonIndex = cursor.getColumnIndexOrThrow(TracksColumns.MAXLON);
+    int totalWorkDoneIndex = cursor.getColumnIndexOrThrow(TracksColumns.TOTALWORKDONE);
+    int totalCrankRevsIndex = cursor.getColumnIndexOrThrow(TracksColumns.TOTALCRANKROTATIONS);
+    int totalHeartBeatsIndex = cursor.getColumnIndexOrThrow(TracksColumns.TOTALHEARTBEATS);
+    int maxSpeedIndex = cursor.getColumnIndexOrThrow(TracksColumns.MAXSPEED);
+    int minElevationIndex = cursor.getColumnIndexOrThrow(TracksColumns.MINELEVATION);
+    int maxElevationIndex = cursor.getColumnIndexOrThrow(TracksColumns.MAXELEVATION);
+    int elevationGainIndex = cursor.getColumnIndexOrThrow(TracksColumns.ELEVATIONGAIN);
+    int minGradeIndex = cursor.getColumnIndexOrThrow(TracksColumns.MINGRADE);
+    int maxGradeIndex = cursor.getColumnIndexOrThrow(TracksColumns.MAXGRADE);
+
+    TripStatistics tripStatistics = new TripStatistics();
+    if (checkCursor(cursor, startTimeIndex)) {
+      tripStatistics.setStartTime(cursor.getLong(startTimeIndex));
+    }
+    if (checkCursor(cursor, stopTimeIndex)) {
+      tripStatistics.setStopTime(cursor.getLong(stopTimeIndex));
+    }
+    tripStatistics.setTotalDistance(cursor.getDouble(totalDistanceIndex));
+    tripStatistics.setTotalTime(cursor.getLong(totalTimeIndex));
+    tripStatistics.setMovingTime(cursor.getLong(movingTimeIndex));
+    if (checkCursor(cursor, minLatIndex) && checkCursor(cursor, maxLatIndex)
+        && checkCursor(cursor, minLonIndex) && checkCursor(cursor, maxLonIndex)) {
+      tripStatistics.setBounds(cursor.getInt(minLonIndex), cursor.getInt(maxLatIndex),
+          cursor.getInt(maxLonIndex), cursor.getInt(minLatIndex));
+    }
+    tripStatistics.setTotalWorkDone(cursor.getDouble(totalWorkDoneIndex));
+    tripStatistics.setTotalCrankRotations(cursor.getDouble(totalCrankRevsIndex));
+    tripStatistics.setTotalHeartBeats(cursor.getDouble(totalHeartBeatsIndex));
+    if (checkCursor(cursor, maxSpeedIndex)) {
+      tripStatistics.setMaxSpeed(cursor.getDouble(maxSpeedIndex));
+    }
+    if (checkCursor(cursor, minElevationIndex)) {
+      tripStatistics.setMinElevation(cursor.getDouble(minElevationIndex));
+    }
+    if (checkCursor(cursor, maxElevationIndex)) {
+      tripStatistics.setMaxElevation(cursor.getDouble(maxElevationIndex));
+    }
+    tripStatistics.setTotalElevationGain(cursor.getDouble(elevationGainIndex));
+    if (checkCursor(cursor, minGradeIndex)) {
+      tripStatistics.setMinGrade(cursor.getDouble(minGradeIndex));
+    }
+    if (checkCursor(cursor, maxGradeIndex)) {
+      tripStatistics.setMaxGrade(cursor.getDouble(maxGradeIndex));
+    }
+    return tripStatistics;
+  }
+
   /**
    * Hook to add validation
    */
@@ -531,15 +641,8 @@ public class MyTracksProviderUtilsImpl implements MyTracksProviderUtils {
     return values;
   }
 
-  /**
-   * Gets a track cursor.
-   *
-   * @param projection the projection
-   * @param selection the selection
-   * @param selectionArgs the selection arguments
-   * @param sortOrder the sort oder
-   */
-  protected Cursor getTrackCursor(
+  @Override
+  public Cursor getTrackCursor(
       String[] projection, String selection, String[] selectionArgs, String sortOrder) {
     return contentResolver.query(
         TracksColumns.CONTENT_URI, projection, selection, selectionArgs, sortOrder);
@@ -925,16 +1028,8 @@ public class MyTracksProviderUtilsImpl implements MyTracksProviderUtils {
     return null;
   }
 
-  /**
-   * Gets a waypoint cursor.
-   *
-   * @param projection the projection
-   * @param selection the selection
-   * @param selectionArgs the selection args
-   * @param sortOrder the sort order
-   * @param maxWaypoints the maximum number of waypoints
-   */
-  private Cursor getWaypointCursor(String[] projection, String selection, String[] selectionArgs,
+  @Override
+  public Cursor getWaypointCursor(String[] projection, String selection, String[] selectionArgs,
       String sortOrder, int maxWaypoints) {
     if (sortOrder == null) {
       sortOrder = WaypointsColumns._ID;
@@ -1036,6 +1131,20 @@ public class MyTracksProviderUtilsImpl implements MyTracksProviderUtils {
   @Override
   public Cursor getTrackPointCursor(
       long trackId, long startTrackPointId, int maxLocations, boolean descending) {
+    return getTrackPointCursor(null, trackId, startTrackPointId, maxLocations, descending);
+  }
+
+  /**
+   * Creates a location cursor with the given projection.
+   *
+   * @param projection the projection, null for every column
+   * @param trackId the track id
+   * @param startTrackPointId the starting track point id
+   * @param maxLocations maximum number of locations to return
+   * @param descending true to sort the result in descending order
+   */
+  private Cursor getTrackPointCursor(String[] projection, long trackId, long startTrackPointId,
+      int maxLocations, boolean descending) {
     if (trackId < 0) {
       return null;
     }
@@ -1059,16 +1168,24 @@ public class MyTracksProviderUtilsImpl implements MyTracksProviderUtils {
     if (maxLocations > 0) {
       sortOrder += " LIMIT " + maxLocations;
     }
-    return getTrackPointCursor(null, selection, selectionArgs, sortOrder);
+    return getTrackPointCursor(projection, selection, selectionArgs, sortOrder);
+  }
+
+  @Override
+  public LocationIterator getTrackPointLocationIterator(long trackId, long startTrackPointId,
+      boolean descending, LocationFactory locationFactory) {
+    return getTrackPointLocationIterator(
+        trackId, startTrackPointId, descending, locationFactory, false);
   }
 
   @Override
   public LocationIterator getTrackPointLocationIterator(final long trackId,
       final long startTrackPointId, final boolean descending,
-      final LocationFactory locationFactory) {
+      final LocationFactory locationFactory, boolean decodedSensorData) {
     if (locationFactory == null) {
       throw new IllegalArgumentException("locationFactory is null");
     }
+    final String[] projection = decodedSensorData ? TrackPointsColumns.DECODED_COLUMNS : null;
     return new LocationIterator() {
       private long lastTrackPointId = -1L;
       private Cursor cursor = getCursor(startTrackPointId);
@@ -1082,7 +1199,8 @@ public class MyTracksProviderUtilsImpl implements MyTracksProviderUtils {
        * @param trackPointId the starting track point id
        */
       private Cursor getCursor(long trackPointId) {
-        return getTrackPointCursor(trackId, trackPointId, defaultCursorBatchSize, descending);
+        return getTrackPointCursor(
+            projection, trackId, trackPointId, defaultCursorBatchSize, descending);
       }
 
       /**
@@ -1193,6 +1311,7 @@ public class MyTracksProviderUtilsImpl implements MyTracksProviderUtils {
       if (myTracksLocation.getSensorDataSet() != null) {
         values.put(TrackPointsColumns.SENSOR, myTracksLocation.getSensorDataSet().toByteArray());
       }
+      SensorDataColumns.put(values, myTracksLocation.getSensorDataSet());
     }
     return values;
   }
@@ -1228,8 +1347,18 @@ public class MyTracksProviderUtilsImpl implements MyTracksProviderUtils {
     if (!cursor.isNull(indexes.bearingIndex)) {
       location.setBearing(cursor.getFloat(indexes.bearingIndex));
     }
-    if (location instanceof MyTracksLocation && !cursor.isNull(indexes.sensorIndex)) {
-      MyTracksLocation myTracksLocation = (MyTracksLocation) location;
+    if (!(location instanceof MyTracksLocation)) {
+      return;
+    }
+    MyTracksLocation myTracksLocation = (MyTracksLocation) location;
+    if (indexes.sensorIndex == -1) {
+      // Not in the projection, only the decoded readings are wanted
+      if (indexes.powerIndex == -1) {
+        return;
+      }
+      myTracksLocation.setSensorDataSet(SensorDataColumns.read(cursor, indexes.powerIndex,
+          indexes.cadenceIndex, indexes.heartRateIndex, indexes.sensorSpeedIndex));
+    } else if (!cursor.isNull(indexes.sensorIndex)) {
       try {
         myTracksLocation.setSensorDataSet(
             SensorDataSet.parseFrom(cursor.getBlob(indexes.sensorIndex)));
@@ -1280,7 +1409,12 @@ public class MyTracksProviderUtilsImpl implements MyTracksProviderUtils {
     public final int accuracyIndex;
     public final int speedIndex;
     public final int bearingIndex;
+    // The sensor columns are -1 if they aren't in the projection
     public final int sensorIndex;
+    public final int powerIndex;
+    public final int cadenceIndex;
+    public final int heartRateIndex;
+    public final int sensorSpeedIndex;
 
     public CachedTrackPointsIndexes(Cursor cursor) {
       idIndex = cursor.getColumnIndex(TrackPointsColumns._ID);
@@ -1291,7 +1425,11 @@ public class MyTracksProviderUtilsImpl implements MyTracksProviderUtils {
       accuracyIndex = cursor.getColumnIndexOrThrow(TrackPointsColumns.ACCURACY);
       speedIndex = cursor.getColumnIndexOrThrow(TrackPointsColumns.SPEED);
       bearingIndex = cursor.getColumnIndexOrThrow(TrackPointsColumns.BEARING);
-      sensorIndex = cursor.getColumnIndexOrThrow(TrackPointsColumns.SENSOR);
+      sensorIndex = cursor.getColumnIndex(TrackPointsColumns.SENSOR);
+      powerIndex = cursor.getColumnIndex(TrackPointsColumns.POWER);
+      cadenceIndex = cursor.getColumnIndex(TrackPointsColumns.CADENCE);
+      heartRateIndex = cursor.getColumnIndex(TrackPointsColumns.HEART_RATE);
+      sensorSpeedIndex = cursor.getColumnIndex(TrackPointsColumns.SENSOR_SPEED);
     }
   }
 
@@ -0,0 +1,154 @@
+package org.cowboycoders.cyclismo.content;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+
+import org.cowboycoders.cyclismo.content.Sensor.SensorData;
+import org.cowboycoders.cyclismo.content.Sensor.SensorDataSet;
+import org.cowboycoders.cyclismo.content.Sensor.SensorState;
+
+/**
+ * Converts between a {@link SensorDataSet} and the decoded sensor columns of
+ * {@link TrackPointsColumns}. A reading is only kept in its column while the
+ * sensor is sending, so a {@link SensorDataSet} built back from the columns
+ * holds the readings the statistics and charts use, but not the state of
+ * sensors that weren't sending, nor the less used readings only in the blob.
+ *
+ * @author Will Szumski
+ */
+public class SensorDataColumns {
+
+  private SensorDataColumns() {}
+
+  /**
+   * Puts the decoded readings of a sensor data set, or null for each reading
+   * it doesn't have, so that every decoded column is set.
+   *
+   * @param values the values to put the readings in
+   * @param sensorDataSet the sensor data set, can be null
+   */
+  public static void put(ContentValues values, SensorDataSet sensorDataSet) {
+    putReading(values, TrackPointsColumns.POWER,
+        sensorDataSet != null && sensorDataSet.hasPower() ? sensorDataSet.getPower() : null);
+    putReading(values, TrackPointsColumns.CADENCE,
+        sensorDataSet != null && sensorDataSet.hasCadence() ? sensorDataSet.getCadence() : null);
+    putReading(values, TrackPointsColumns.HEART_RATE,
+        sensorDataSet != null && sensorDataSet.hasHeartRate()
+            ? sensorDataSet.getHeartRate() : null);
+    putReading(values, TrackPointsColumns.SENSOR_SPEED,
+        sensorDataSet != null && sensorDataSet.hasSpeed() ? sensorDataSet.getSpeed() : null);
+  }
+
+  /**
+   * Returns true if the values set any of the decoded columns.
+   */
+  public static boolean hasAny(ContentValues values) {
+    return values.containsKey(TrackPointsColumns.POWER)
+        || values.containsKey(TrackPointsColumns.CADENCE)
+        || values.containsKey(TrackPointsColumns.HEART_RATE)
+        || values.containsKey(TrackPointsColumns.SENSOR_SPEED);
+  }
+
+  /**
+   * Builds a sensor data set from the decoded columns of the current row.
+   * Returns null if the row has no readings.
+   *
+   * @param cursor the cursor
+   * @param powerIndex the power column index
+   * @param cadenceIndex the cadence column index
+   * @param heartRateIndex the heart rate column index
+   * @param speedIndex the sensor speed column index
+   */
+  public static SensorDataSet read(Cursor cursor, int powerIndex, int cadenceIndex,
+      int heartRateIndex, int speedIndex) {
+    return build(getReading(cursor, powerIndex), getReading(cursor, cadenceIndex),
+        getReading(cursor, heartRateIndex), getReading(cursor, speedIndex));
+  }
+
+  /**
+   * Builds a sensor data set from decoded readings, each NaN if missing.
+   * Returns null if there are no readings.
+   *
+   * @param power the power
+   * @param cadence the cadence
+   * @param heartRate the heart rate
+   * @param speed the sensor speed
+   */
+  public static SensorDataSet build(float power, float cadence, float heartRate, float speed) {
+    boolean hasPower = !Float.isNaN(power);
+    boolean hasCadence = !Float.isNaN(cadence);
+    boolean hasHeartRate = !Float.isNaN(heartRate);
+    boolean hasSpeed = !Float.isNaN(speed);
+    if (!hasPower && !hasCadence && !hasHeartRate && !hasSpeed) {
+      return null;
+    }
+    SensorDataSet.Builder builder = SensorDataSet.newBuilder();
+    if (hasPower) {
+      builder.setPower(newReading(power));
+    }
+    if (hasCadence) {
+      builder.setCadence(newReading(cadence));
+    }
+    if (hasHeartRate) {
+      builder.setHeartRate(newReading(heartRate));
+    }
+    if (hasSpeed) {
+      builder.setSpeed(newReading(speed));
+    }
+    return builder.build();
+  }
+
+  /**
+   * Gets the decoded power of a sensor data set, or NaN if it has none.
+   */
+  public static float getPower(SensorDataSet sensorDataSet) {
+    return sensorDataSet != null && sensorDataSet.hasPower()
+        ? getReading(sensorDataSet.getPower()) : Float.NaN;
+  }
+
+  /**
+   * Gets the decoded cadence of a sensor data set, or NaN if it has none.
+   */
+  public static float getCadence(SensorDataSet sensorDataSet) {
+    return sensorDataSet != null && sensorDataSet.hasCadence()
+        ? getReading(sensorDataSet.getCadence()) : Float.NaN;
+  }
+
+  /**
+   * Gets the decoded heart rate of a sensor data set, or NaN if it has none.
+   */
+  public static float getHeartRate(SensorDataSet sensorDataSet) {
+    return sensorDataSet != null && sensorDataSet.hasHeartRate()
+        ? getReading(sensorDataSet.getHeartRate()) : Float.NaN;
+  }
+
+  /**
+   * Gets the decoded sensor speed of a sensor data set, or NaN if it has none.
+   */
+  public static float getSpeed(SensorDataSet sensorDataSet) {
+    return sensorDataSet != null && sensorDataSet.hasSpeed()
+        ? getReading(sensorDataSet.getSpeed()) : Float.NaN;
+  }
+
+  private static void putReading(ContentValues values, String column, SensorData sensorData) {
+    float reading = sensorData != null ? getReading(sensorData) : Float.NaN;
+    if (Float.isNaN(reading)) {
+      values.putNull(column);
+    } else {
+      values.put(column, reading);
+    }
+  }
+
+  private static float getReading(SensorData sensorData) {
+    return sensorData.getState() == SensorState.SENDING && sensorData.hasValue()
+        ? sensorData.getValue() : Float.NaN;
+  }
+
+  private static float getReading(Cursor cursor, int index) {
+    return cursor.isNull(index) ? Float.NaN : cursor.getFloat(index);
+  }
+
+  private static SensorData newReading(float value) {
+    return SensorData.newBuilder().setState(SensorState.SENDING).setValue(value).build();
+  }
+}
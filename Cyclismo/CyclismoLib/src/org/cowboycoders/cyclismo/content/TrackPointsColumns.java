@@ -68,6 +68,12 @@ public interface TrackPointsColumns extends BaseColumns {
   public static final String BEARING = "bearing"; // bearing
   public static final String SENSOR = "sensor"; // sensor
 
+  // Readings decoded from SENSOR, null if the sensor wasn't sending
+  public static final String POWER = "power"; // power
+  public static final String CADENCE = "cadence"; // cadence
+  public static final String HEART_RATE = "heartrate"; // heart rate
+  public static final String SENSOR_SPEED = "sensorspeed"; // sensor speed
+
   public static final String CREATE_TABLE = "CREATE TABLE " + TABLE_NAME + " ("
       + _ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
       + TRACKID + " INTEGER, "
@@ -78,9 +84,21 @@ public interface TrackPointsColumns extends BaseColumns {
       + ACCURACY + " FLOAT, "
       + SPEED + " FLOAT, "
       + BEARING + " FLOAT, "
-      + SENSOR + " BLOB"
+      + SENSOR + " BLOB, "
+      + POWER + " FLOAT, "
+      + CADENCE + " FLOAT, "
+      + HEART_RATE + " FLOAT, "
+      + SENSOR_SPEED + " FLOAT"
       + ");";
 
+  // Most queries are scoped to a single track
+  public static final String CREATE_TRACKID_ID_INDEX = "CREATE INDEX IF NOT EXISTS "
+      + TABLE_NAME + "_" + TRACKID + "_" + _ID + "_index ON " + TABLE_NAME + " ("
+      + TRACKID + ", " + _ID + ");";
+  public static final String CREATE_TRACKID_TIME_INDEX = "CREATE INDEX IF NOT EXISTS "
+      + TABLE_NAME + "_" + TRACKID + "_" + TIME + "_index ON " + TABLE_NAME + " ("
+      + TRACKID + ", " + TIME + ");";
+
   public static final String[] COLUMNS = {
       _ID,
       TRACKID,
@@ -91,7 +109,31 @@ public interface TrackPointsColumns extends BaseColumns {
       ACCURACY,
       SPEED,
       BEARING,
-      SENSOR
+      SENSOR,
+      POWER,
+      CADENCE,
+      HEART_RATE,
+      SENSOR_SPEED
+  };
+
+  /**
+   * Every column but SENSOR, for readers that only need the decoded sensor
+   * readings and can skip parsing the blob.
+   */
+  public static final String[] DECODED_COLUMNS = {
+      _ID,
+      TRACKID,
+      LONGITUDE,
+      LATITUDE,
+      TIME,
+      ALTITUDE,
+      ACCURACY,
+      SPEED,
+      BEARING,
+      POWER,
+      CADENCE,
+      HEART_RATE,
+      SENSOR_SPEED
   };
 
   public static final byte[] COLUMN_TYPES = {
@@ -104,6 +146,10 @@ public interface TrackPointsColumns extends BaseColumns {
       FLOAT_TYPE_ID, // accuracy
       FLOAT_TYPE_ID, // speed
       FLOAT_TYPE_ID, // bearing
-      BLOB_TYPE_ID // sensor
+      BLOB_TYPE_ID, // sensor
+      FLOAT_TYPE_ID, // power
+      FLOAT_TYPE_ID, // cadence
+      FLOAT_TYPE_ID, // heart rate
+      FLOAT_TYPE_ID // sensor speed
   };
 }
@@ -0,0 +1,168 @@
+package org.cowboycoders.cyclismo.content;
+
+import android.util.Log;
+
+import org.cowboycoders.cyclismo.stats.TripStatistics;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.TreeMap;
+
+/**
+ * Checks the materialized statistics in {@link TrackStatsColumns} by
+ * recomputing every bucket from scratch, merging the statistics of each track
+ * the way the aggregated stats screen used to.
+ *
+ * @author Will Szumski
+ */
+public class TrackStatsChecker {
+
+  private static final String TAG = TrackStatsChecker.class.getSimpleName();
+
+  private static final long ONE_DAY = 24L * 60 * 60 * 1000;
+
+  // Tracks store floats, the table sums doubles
+  private static final double RELATIVE_TOLERANCE = 1E-4;
+
+  private static final int[] BUCKET_TYPES = {
+      TrackStatsColumns.BUCKET_ALL,
+      TrackStatsColumns.BUCKET_WEEK,
+      TrackStatsColumns.BUCKET_MONTH,
+      TrackStatsColumns.BUCKET_OWNER,
+  };
+
+  private final MyTracksProviderUtils myTracksProviderUtils;
+
+  public TrackStatsChecker(MyTracksProviderUtils myTracksProviderUtils) {
+    this.myTracksProviderUtils = myTracksProviderUtils;
+  }
+
+  /**
+   * Compares every bucket with its recomputed statistics.
+   *
+   * @return a description of each difference found, empty if consistent
+   */
+  public List<String> check() {
+    List<Track> tracks = myTracksProviderUtils.getAllTracks();
+    List<String> differences = new ArrayList<String>();
+    for (int bucketType : BUCKET_TYPES) {
+      Map<Long, TripStatistics> expected = recompute(tracks, bucketType);
+      Map<Long, TripStatistics> actual = myTracksProviderUtils.getTripStatisticsRollup(bucketType);
+      if (!expected.keySet().equals(actual.keySet())) {
+        differences.add("Bucket type " + bucketType + ": expected buckets " + expected.keySet()
+            + " but was " + actual.keySet());
+        continue;
+      }
+      for (Map.Entry<Long, TripStatistics> entry : expected.entrySet()) {
+        String difference = compare(entry.getValue(), actual.get(entry.getKey()));
+        if (difference != null) {
+          differences.add("Bucket type " + bucketType + ", key " + entry.getKey() + ": "
+              + difference);
+        }
+      }
+    }
+    for (String difference : differences) {
+      Log.w(TAG, difference);
+    }
+    return differences;
+  }
+
+  /**
+   * Merges the statistics of the tracks in each bucket, ordered by bucket key.
+   */
+  static Map<Long, TripStatistics> recompute(List<Track> tracks, int bucketType) {
+    Map<Long, TripStatistics> buckets = new TreeMap<Long, TripStatistics>();
+    for (Track track : tracks) {
+      Long key = getBucketKey(bucketType, track);
+      if (key == null) {
+        continue;
+      }
+      TripStatistics tripStatistics = buckets.get(key);
+      if (tripStatistics == null) {
+        buckets.put(key, new TripStatistics(track.getTripStatistics()));
+      } else {
+        tripStatistics.merge(track.getTripStatistics());
+      }
+    }
+    return buckets;
+  }
+
+  /**
+   * Gets the key of the bucket a track falls in, or null if it isn't in any
+   * bucket of that type.
+   */
+  static Long getBucketKey(int bucketType, Track track) {
+    long startTime = track.getTripStatistics().getStartTime();
+    switch (bucketType) {
+      case TrackStatsColumns.BUCKET_ALL:
+        return 0L;
+      case TrackStatsColumns.BUCKET_WEEK:
+        if (startTime < 0) {
+          return null;
+        }
+        // The epoch was a Thursday, weeks start on Monday
+        return ((startTime / ONE_DAY + 3) / 7 * 7 - 3) * ONE_DAY;
+      case TrackStatsColumns.BUCKET_MONTH:
+        if (startTime < 0) {
+          return null;
+        }
+        Calendar calendar = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+        calendar.setTimeInMillis(startTime);
+        return (long) (calendar.get(Calendar.YEAR) * 100 + calendar.get(Calendar.MONTH) + 1);
+      case TrackStatsColumns.BUCKET_OWNER:
+        return track.getOwner() == -1L ? null : track.getOwner();
+      default:
+        throw new IllegalArgumentException("Unknown bucket type " + bucketType);
+    }
+  }
+
+  /**
+   * @return a description of the first difference, or null if equal
+   */
+  private static String compare(TripStatistics expected, TripStatistics actual) {
+    if (expected.getStartTime() != actual.getStartTime()) {
+      return "start time " + expected.getStartTime() + " != " + actual.getStartTime();
+    }
+    if (expected.getStopTime() != actual.getStopTime()) {
+      return "stop time " + expected.getStopTime() + " != " + actual.getStopTime();
+    }
+    if (expected.getTotalTime() != actual.getTotalTime()) {
+      return "total time " + expected.getTotalTime() + " != " + actual.getTotalTime();
+    }
+    if (expected.getMovingTime() != actual.getMovingTime()) {
+      return "moving time " + expected.getMovingTime() + " != " + actual.getMovingTime();
+    }
+    if (expected.getTop() != actual.getTop() || expected.getBottom() != actual.getBottom()
+        || expected.getLeft() != actual.getLeft() || expected.getRight() != actual.getRight()) {
+      return "bounds differ";
+    }
+    String[] names = {"total distance", "max speed", "min elevation", "max elevation",
+        "elevation gain", "min grade", "max grade", "total work done", "total heart beats",
+        "total crank rotations"};
+    double[] expectedValues = {expected.getTotalDistance(), expected.getMaxSpeed(),
+        expected.getMinElevation(), expected.getMaxElevation(), expected.getTotalElevationGain(),
+        expected.getMinGrade(), expected.getMaxGrade(), expected.getTotalWorkDone(),
+        expected.getTotalHeartBeats(), expected.getTotalCrankRotations()};
+    double[] actualValues = {actual.getTotalDistance(), actual.getMaxSpeed(),
+        actual.getMinElevation(), actual.getMaxElevation(), actual.getTotalElevationGain(),
+        actual.getMinGrade(), actual.getMaxGrade(), actual.getTotalWorkDone(),
+        actual.getTotalHeartBeats(), actual.getTotalCrankRotations()};
+    for (int i = 0; i < names.length; i++) {
+      if (!isClose(expectedValues[i], actualValues[i])) {
+        return names[i] + " " + expectedValues[i] + " != " + actualValues[i];
+      }
+    }
+    return null;
+  }
+
+  private static boolean isClose(double expected, double actual) {
+    if (Double.isInfinite(expected) || Double.isInfinite(actual)) {
+      return expected == actual;
+    }
+    return Math.abs(expected - actual)
+        <= RELATIVE_TOLERANCE * Math.max(1.0, Math.max(Math.abs(expected), Math.abs(actual)));
+  }
+}
@@ -0,0 +1,100 @@
+package org.cowboycoders.cyclismo.content;
+
+import android.net.Uri;
+
+/**
+ * Constants for the track statistics table. Each row holds the statistics of a
+ * bucket of tracks merged together, kept up to date by triggers on the tracks
+ * table. The statistics columns have the same names as in {@link TracksColumns}.
+ * The table is read only.
+ *
+ * @author Will Szumski
+ */
+public interface TrackStatsColumns {
+
+  public static final String TABLE_NAME = "trackstats";
+
+  /**
+   * Track statistics provider uri.
+   */
+  public static final Uri CONTENT_URI = Uri.parse(
+      "content://org.cowboycoders.cyclismo/trackstats");
+
+  /**
+   * Track statistics content type.
+   */
+  public static final String CONTENT_TYPE = "vnd.android.cursor.dir/vnd.cowboycoders.trackstats";
+
+  /**
+   * Track statistics table default sort order.
+   */
+  public static final String DEFAULT_SORT_ORDER = "buckettype, bucketkey";
+
+  // Bucket types
+  public static final int BUCKET_ALL = 0; // every track, the key is 0
+  public static final int BUCKET_WEEK = 1; // key is the start of the UTC week (Monday) in ms
+  public static final int BUCKET_MONTH = 2; // key is the UTC year * 100 + month, e.g. 201307
+  public static final int BUCKET_OWNER = 3; // key is the user_id of the owner
+
+  // Columns
+  public static final String BUCKETTYPE = "buckettype"; // one of the bucket types
+  public static final String BUCKETKEY = "bucketkey"; // bucket key, depends on the type
+  public static final String NUMTRACKS = "numtracks"; // number of tracks in the bucket
+
+  // Statistics summed over the bucket
+  public static final String[] SUM_COLUMNS = {
+      TracksColumns.NUMPOINTS,
+      TracksColumns.TOTALDISTANCE,
+      TracksColumns.TOTALTIME,
+      TracksColumns.MOVINGTIME,
+      TracksColumns.ELEVATIONGAIN,
+      TracksColumns.TOTALWORKDONE,
+      TracksColumns.TOTALCRANKROTATIONS,
+      TracksColumns.TOTALHEARTBEATS,
+  };
+
+  // Statistics minimised over the bucket
+  public static final String[] MIN_COLUMNS = {
+      TracksColumns.STARTTIME,
+      TracksColumns.MINLAT,
+      TracksColumns.MINLON,
+      TracksColumns.MINELEVATION,
+      TracksColumns.MINGRADE,
+  };
+
+  // Statistics maximised over the bucket
+  public static final String[] MAX_COLUMNS = {
+      TracksColumns.STOPTIME,
+      TracksColumns.MAXLAT,
+      TracksColumns.MAXLON,
+      TracksColumns.MAXSPEED,
+      TracksColumns.MAXELEVATION,
+      TracksColumns.MAXGRADE,
+  };
+
+  public static final String CREATE_TABLE = "CREATE TABLE " + TABLE_NAME + " ("
+      + BUCKETTYPE + " INTEGER NOT NULL, "
+      + BUCKETKEY + " INTEGER NOT NULL, "
+      + NUMTRACKS + " INTEGER NOT NULL DEFAULT 0, "
+      + TracksColumns.NUMPOINTS + " INTEGER NOT NULL DEFAULT 0, "
+      + TracksColumns.TOTALDISTANCE + " FLOAT NOT NULL DEFAULT 0, "
+      + TracksColumns.TOTALTIME + " INTEGER NOT NULL DEFAULT 0, "
+      + TracksColumns.MOVINGTIME + " INTEGER NOT NULL DEFAULT 0, "
+      + TracksColumns.ELEVATIONGAIN + " FLOAT NOT NULL DEFAULT 0, "
+      + TracksColumns.TOTALWORKDONE + " FLOAT NOT NULL DEFAULT 0, "
+      + TracksColumns.TOTALCRANKROTATIONS + " FLOAT NOT NULL DEFAULT 0, "
+      + TracksColumns.TOTALHEARTBEATS + " FLOAT NOT NULL DEFAULT 0, "
+      + TracksColumns.STARTTIME + " INTEGER, "
+      + TracksColumns.STOPTIME + " INTEGER, "
+      + TracksColumns.MINLAT + " INTEGER, "
+      + TracksColumns.MAXLAT + " INTEGER, "
+      + TracksColumns.MINLON + " INTEGER, "
+      + TracksColumns.MAXLON + " INTEGER, "
+      + TracksColumns.MAXSPEED + " FLOAT, "
+      + TracksColumns.MINELEVATION + " FLOAT, "
+      + TracksColumns.MAXELEVATION + " FLOAT, "
+      + TracksColumns.MINGRADE + " FLOAT, "
+      + TracksColumns.MAXGRADE + " FLOAT, "
+      + "PRIMARY KEY (" + BUCKETTYPE + ", " + BUCKETKEY + ")"
+      + ");";
+}
@@ -135,6 +135,12 @@ public interface TracksColumns extends BaseColumns {
       "UPDATE CASCADE"
       + ");";
 
+  /**
+   * Full text search table over the name, description and category of the tracks, kept in sync
+   * by triggers on the tracks table. The docid of a row is the id of its track.
+   */
+  public static final String SEARCH_TABLE_NAME = "tracks_search";
+
   public static final String[] COLUMNS = {
       _ID,
       NAME,
@@ -130,6 +130,14 @@ public interface WaypointsColumns extends BaseColumns {
       + MAXGRADE + " FLOAT"
       + ");";
 
+  // Full text search over the name, description and category, the docid is the waypoint id
+  public static final String SEARCH_TABLE_NAME = "waypoints_search";
+
+  // Most queries are scoped to a single track
+  public static final String CREATE_TRACKID_ID_INDEX = "CREATE INDEX IF NOT EXISTS "
+      + TABLE_NAME + "_" + TRACKID + "_" + _ID + "_index ON " + TABLE_NAME + " ("
+      + TRACKID + ", " + _ID + ");";
+
   public static final String[] COLUMNS = {
       _ID,
       NAME,
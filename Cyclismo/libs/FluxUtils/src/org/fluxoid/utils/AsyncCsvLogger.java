@@ -0,0 +1,712 @@
+/*
+ *    Copyright (c) 2013, Will Szumski
+ *    Copyright (c) 2013, Doug Szumski
+ *
+ *    This file is part of Cyclismo.
+ *
+ *    Cyclismo is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    Cyclismo is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with Cyclismo.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.fluxoid.utils;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Drop-in replacement for {@link SimpleCsvLogger} that never touches the file system on the
+ * calling thread. Rows are copied into a pre-allocated ring buffer and handed off, without locking,
+ * to a background writer which formats them into a reusable buffer and flushes in batches.
+ *
+ * If the writer falls behind and the ring is full, rows are dropped (see
+ * {@link #getDroppedRows()}) rather than blocking the caller.
+ *
+ * Optionally writes a compact binary columnar format instead of csv, see {@link #binary(boolean)}.
+ * The binary file consists of a header (written each time the file is opened):
+ * <pre>
+ *   int    BINARY_MAGIC
+ *   short  column count
+ *   UTF    column name (repeated column count times)
+ * </pre>
+ * followed by any number of blocks:
+ * <pre>
+ *   int    row count
+ *   double value (repeated row count times, for each column in turn)
+ * </pre>
+ * All values are big endian. Non-numeric values are stored as NaN.
+ */
+public class AsyncCsvLogger extends SimpleCsvLogger {
+
+  private static final Logger LOGGER = Logger.getLogger(AsyncCsvLogger.class.getSimpleName());
+
+  public static final int BINARY_MAGIC = 0x464c5843;
+
+  private static final int DEFAULT_CAPACITY = 1024;
+  private static final long DEFAULT_FLUSH_INTERVAL_MS = 1000;
+  private static final int DEFAULT_PRECISION = 6;
+  private static final double SECONDS_PER_NANO = 1e-9;
+  private static final int CHAR_BUFFER_SIZE = 8192;
+  // longest value we will format is a long (20 chars) or a fixed point double
+  private static final int MAX_FIELD_CHARS = 48;
+  private static final long[] POW10 = new long[19];
+
+  static {
+    POW10[0] = 1;
+    for (int i = 1; i < POW10.length; i++) {
+      POW10[i] = POW10[i - 1] * 10;
+    }
+  }
+
+  private static final byte KIND_DOUBLE = 0;
+  private static final byte KIND_LONG = 1;
+  private static final byte KIND_OBJECT = 2;
+
+  private final String[] headings;
+  private final Map<String, Integer> headingIndex = new HashMap<String, Integer>();
+
+  // config, frozen on first update
+  private int capacity = DEFAULT_CAPACITY;
+  private long flushIntervalMs = DEFAULT_FLUSH_INTERVAL_MS;
+  private int precision = DEFAULT_PRECISION;
+  private boolean binary = false;
+  private volatile boolean started = false;
+
+  // ring buffer; one slot per row
+  private int columns;
+  private int mask;
+  private long[] rowTimes;
+  private double[] rowValues;
+  private byte[] rowKinds;
+  private Object[] rowObjects;
+  private AtomicLongArray published;
+  private final AtomicLong head = new AtomicLong();
+  private final AtomicLong tail = new AtomicLong();
+  private final AtomicLong dropped = new AtomicLong();
+  private final AtomicInteger logGeneration = new AtomicInteger();
+
+  // partially assembled row for update(heading, value)
+  private final double[] pendingValues;
+  private final byte[] pendingKinds;
+  private final Object[] pendingObjects;
+  private final boolean[] pendingPresent;
+  private int pendingCount;
+
+  private volatile boolean running;
+  // set while the writer is parked, or about to park, waiting for rows
+  private volatile boolean writerIdle;
+  private Thread writerThread;
+  private Long timeOffset;
+
+  public AsyncCsvLogger(String dir, String filename, String... headings) {
+    super(dir, filename, headings);
+    this.headings = headings;
+    for (int i = 0; i < headings.length; i++) {
+      headingIndex.put(headings[i], i);
+    }
+    pendingValues = new double[headings.length];
+    pendingKinds = new byte[headings.length];
+    pendingObjects = new Object[headings.length];
+    pendingPresent = new boolean[headings.length];
+  }
+
+  public AsyncCsvLogger(File file, String... headings) {
+    this(file.getParent() == null ? System.getProperty("user.dir") : file.getParent(), file
+        .getName(), headings);
+  }
+
+  /**
+   * Maximum number of rows waiting to be written. Rounded up to a power of two.
+   * Must be called before first update.
+   */
+  public synchronized void setCapacity(int capacity) {
+    if (started)
+      return;
+    if (capacity <= 0) {
+      throw new IllegalArgumentException("capacity must be positive");
+    }
+    this.capacity = capacity;
+  }
+
+  /**
+   * Maximum time rows may sit in memory before being written to disk. Must be called before
+   * first update.
+   *
+   * @param flushIntervalMs in milliseconds
+   */
+  public synchronized void setFlushInterval(long flushIntervalMs) {
+    if (started)
+      return;
+    this.flushIntervalMs = flushIntervalMs;
+  }
+
+  /**
+   * Maximum number of decimal places used when formatting doubles. Trailing zeros are
+   * trimmed. Must be called before first update.
+   */
+  public synchronized void setPrecision(int precision) {
+    if (started)
+      return;
+    if (precision < 1 || precision > 15) {
+      throw new IllegalArgumentException("precision must be in range 1-15");
+    }
+    this.precision = precision;
+  }
+
+  /**
+   * Write compact binary columnar blocks instead of csv. Default false.
+   * Must be called before first update.
+   */
+  public synchronized void binary(boolean binary) {
+    if (started)
+      return;
+    this.binary = binary;
+  }
+
+  /**
+   * @return number of rows discarded because the writer could not keep up
+   */
+  public long getDroppedRows() {
+    return dropped.get();
+  }
+
+  private synchronized void start() {
+    if (started) {
+      return;
+    }
+    columns = headings.length;
+    int slots = Integer.highestOneBit(capacity);
+    if (slots < capacity) {
+      slots <<= 1;
+    }
+    mask = slots - 1;
+    rowTimes = new long[slots];
+    rowValues = new double[slots * columns];
+    rowKinds = new byte[slots * columns];
+    rowObjects = new Object[slots * columns];
+    published = new AtomicLongArray(slots);
+    running = true;
+    writerThread = new Thread(new WriterTask(), "AsyncCsvLogger:" + getFile().getName());
+    writerThread.setDaemon(true);
+    writerThread.start();
+    started = true;
+  }
+
+  @Override
+  public void update(Object... values) {
+    if (values.length != headings.length) {
+      throw new IllegalArgumentException("expected " + headings.length + " values");
+    }
+    if (!started) {
+      start();
+    }
+    long seq = claim();
+    if (seq < 0) {
+      return;
+    }
+    int slot = (int) (seq & mask);
+    int base = slot * columns;
+    rowTimes[slot] = System.nanoTime();
+    for (int i = 0; i < columns; i++) {
+      store(base + i, values[i]);
+    }
+    publish(slot, seq);
+  }
+
+  /**
+   * Accumulates values until every heading has been given a value, at which point a row is
+   * queued. Later values for the same heading replace earlier ones.
+   */
+  @Override
+  public synchronized void update(String heading, Object value) {
+    if (heading == null || value == null) throw new NullPointerException("null values not allowed");
+    Integer index = headingIndex.get(heading);
+    if (index == null) {
+      throw new IllegalArgumentException("heading not in list passed to constructor");
+    }
+    int i = index;
+    if (!pendingPresent[i]) {
+      pendingPresent[i] = true;
+      pendingCount++;
+    }
+    if (value instanceof Double || value instanceof Float) {
+      pendingKinds[i] = KIND_DOUBLE;
+      pendingValues[i] = ((Number) value).doubleValue();
+      pendingObjects[i] = null;
+    } else if (value instanceof Number) {
+      pendingKinds[i] = KIND_LONG;
+      pendingValues[i] = ((Number) value).longValue();
+      pendingObjects[i] = null;
+    } else {
+      pendingKinds[i] = KIND_OBJECT;
+      pendingObjects[i] = value;
+    }
+
+    if (pendingCount < columns()) {
+      return;
+    }
+    if (!started) {
+      start();
+    }
+    pendingCount = 0;
+    for (int j = 0; j < pendingPresent.length; j++) {
+      pendingPresent[j] = false;
+    }
+    long seq = claim();
+    if (seq < 0) {
+      return;
+    }
+    int slot = (int) (seq & mask);
+    int base = slot * columns;
+    rowTimes[slot] = System.nanoTime();
+    System.arraycopy(pendingValues, 0, rowValues, base, columns);
+    System.arraycopy(pendingKinds, 0, rowKinds, base, columns);
+    System.arraycopy(pendingObjects, 0, rowObjects, base, columns);
+    publish(slot, seq);
+  }
+
+  private int columns() {
+    return headings.length;
+  }
+
+  /**
+   * Headings (and comment) are rewritten before the next row.
+   */
+  @Override
+  public void newLog() {
+    logGeneration.incrementAndGet();
+  }
+
+  /**
+   * Writes any queued rows and stops the writer thread. The logger may be reused, in which case
+   * the file is reopened in append mode.
+   */
+  @Override
+  public void close() {
+    Thread writer;
+    synchronized (this) {
+      if (!started) {
+        return;
+      }
+      running = false;
+      writer = writerThread;
+    }
+    LockSupport.unpark(writer);
+    try {
+      writer.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    synchronized (this) {
+      started = false;
+      append(true);
+    }
+  }
+
+  /**
+   * Hands a filled slot to the writer, waking it if it is idle. Both the slot and the idle flag
+   * are volatile, so either the writer sees the row before parking or we see it parked.
+   */
+  private void publish(int slot, long seq) {
+    published.set(slot, seq + 1);
+    if (writerIdle) {
+      LockSupport.unpark(writerThread);
+    }
+  }
+
+  /**
+   * @return sequence number of the claimed slot, or -1 if the ring is full
+   */
+  private long claim() {
+    long seq;
+    do {
+      seq = tail.get();
+      if (seq - head.get() > mask) {
+        dropped.incrementAndGet();
+        return -1;
+      }
+    } while (!tail.compareAndSet(seq, seq + 1));
+    return seq;
+  }
+
+  private void store(int index, Object value) {
+    if (value instanceof Double || value instanceof Float) {
+      rowKinds[index] = KIND_DOUBLE;
+      rowValues[index] = ((Number) value).doubleValue();
+      rowObjects[index] = null;
+    } else if (value instanceof Number) {
+      rowKinds[index] = KIND_LONG;
+      rowValues[index] = ((Number) value).longValue();
+      rowObjects[index] = null;
+    } else {
+      rowKinds[index] = KIND_OBJECT;
+      rowObjects[index] = value;
+    }
+  }
+
+  private class WriterTask implements Runnable {
+
+    private final char[] chars = new char[CHAR_BUFFER_SIZE];
+    private final char[] digits = new char[20];
+    private int charCount;
+    private Writer csvWriter;
+
+    private ByteBuffer bytes;
+    private double[][] block;
+    private int blockRows;
+    private FileChannel channel;
+    private FileOutputStream out;
+
+    private boolean addTime;
+    private int writtenGeneration = -1;
+    private long lastFlush;
+    // rows have been drained since the last flush
+    private boolean unflushed;
+
+    @Override
+    public void run() {
+      try {
+        open();
+        lastFlush = System.nanoTime();
+        long flushIntervalNanos = flushIntervalMs * 1000000L;
+        while (true) {
+          // read before draining so that rows queued before close() are always written
+          boolean stopping = !running;
+          int drained = drain();
+          if (drained > 0) {
+            unflushed = true;
+          }
+          long now = System.nanoTime();
+          if (now - lastFlush >= flushIntervalNanos) {
+            flush();
+            lastFlush = now;
+            unflushed = false;
+          }
+          if (stopping) {
+            break;
+          }
+          if (drained == 0) {
+            idle(unflushed ? lastFlush + flushIntervalNanos - now : 0);
+          }
+        }
+        flush();
+      } catch (IOException e) {
+        LOGGER.log(Level.WARNING, "error writing log", e);
+      } finally {
+        closeQuietly();
+      }
+    }
+
+    /**
+     * Parks until a row is published or the logger is closed, or for at most the given time if
+     * rows are waiting to be flushed.
+     *
+     * @param nanos longest time to park, or 0 to park until woken
+     */
+    private void idle(long nanos) {
+      writerIdle = true;
+      long seq = head.get();
+      // a row published before we were marked idle didn't wake us
+      if (running && published.get((int) (seq & mask)) != seq + 1) {
+        if (nanos > 0) {
+          LockSupport.parkNanos(nanos);
+        } else {
+          LockSupport.park();
+        }
+      }
+      writerIdle = false;
+    }
+
+    private void open() throws IOException {
+      File file = getFile();
+      File dir = file.getParentFile();
+      if (dir != null && !dir.exists()) {
+        dir.mkdirs();
+      }
+      if (!isAppend()) {
+        file.delete();
+      }
+      addTime = isAddTime();
+      out = new FileOutputStream(file, true);
+      if (binary) {
+        channel = out.getChannel();
+        int cols = columns + (addTime ? 1 : 0);
+        block = new double[cols][mask + 1];
+        bytes = ByteBuffer.allocate(Math.max(CHAR_BUFFER_SIZE, 4 + cols * 8 * (mask + 1)));
+        writeBinaryHeader();
+      } else {
+        csvWriter = new OutputStreamWriter(out, Charset.forName("UTF-8"));
+      }
+    }
+
+    private int drain() throws IOException {
+      int count = 0;
+      long seq = head.get();
+      while (true) {
+        int slot = (int) (seq & mask);
+        if (published.get(slot) != seq + 1) {
+          break;
+        }
+        int generation = logGeneration.get();
+        if (generation != writtenGeneration && !binary) {
+          writeHeadings();
+          writtenGeneration = generation;
+        }
+        if (timeOffset == null) {
+          timeOffset = rowTimes[slot];
+        }
+        double time = (rowTimes[slot] - timeOffset) * SECONDS_PER_NANO;
+        if (binary) {
+          appendBinaryRow(slot, time);
+        } else {
+          appendCsvRow(slot, time);
+        }
+        // release references held by the slot
+        int base = slot * columns;
+        for (int i = 0; i < columns; i++) {
+          rowObjects[base + i] = null;
+        }
+        seq++;
+        head.lazySet(seq);
+        count++;
+      }
+      return count;
+    }
+
+    private void writeHeadings() throws IOException {
+      appendChar('\n');
+      CharSequence comment = getComment();
+      if (comment != null) {
+        appendText(comment);
+      }
+      appendChar('\n');
+      if (addTime) {
+        appendText("time;");
+      }
+      for (int i = 0; i < headings.length; i++) {
+        if (i > 0) {
+          appendChar(';');
+        }
+        appendText(headings[i]);
+      }
+      appendChar('\n');
+    }
+
+    private void appendCsvRow(int slot, double time) throws IOException {
+      int base = slot * columns;
+      if (addTime) {
+        ensureRoom(MAX_FIELD_CHARS);
+        appendDouble(time);
+        appendChar(';');
+      }
+      for (int i = 0; i < columns; i++) {
+        if (i > 0) {
+          appendChar(';');
+        }
+        switch (rowKinds[base + i]) {
+          case KIND_DOUBLE:
+            ensureRoom(MAX_FIELD_CHARS);
+            appendDouble(rowValues[base + i]);
+            break;
+          case KIND_LONG:
+            ensureRoom(MAX_FIELD_CHARS);
+            appendLong((long) rowValues[base + i]);
+            break;
+          default:
+            appendText(String.valueOf(rowObjects[base + i]));
+            break;
+        }
+      }
+      appendChar('\n');
+    }
+
+    private void appendBinaryRow(int slot, double time) throws IOException {
+      int base = slot * columns;
+      int col = 0;
+      if (addTime) {
+        block[col++][blockRows] = time;
+      }
+      for (int i = 0; i < columns; i++) {
+        block[col++][blockRows] = rowKinds[base + i] == KIND_OBJECT ? Double.NaN
+            : rowValues[base + i];
+      }
+      blockRows++;
+      if (blockRows == block[0].length) {
+        writeBlock();
+      }
+    }
+
+    private void writeBinaryHeader() throws IOException {
+      bytes.clear();
+      bytes.putInt(BINARY_MAGIC);
+      bytes.putShort((short) block.length);
+      if (addTime) {
+        putUtf("time");
+      }
+      for (String heading : headings) {
+        putUtf(heading);
+      }
+      drainBytes();
+    }
+
+    private void putUtf(String value) {
+      byte[] encoded = value.getBytes(Charset.forName("UTF-8"));
+      bytes.putShort((short) encoded.length);
+      bytes.put(encoded);
+    }
+
+    private void writeBlock() throws IOException {
+      if (blockRows == 0) {
+        return;
+      }
+      bytes.clear();
+      bytes.putInt(blockRows);
+      for (double[] column : block) {
+        for (int i = 0; i < blockRows; i++) {
+          bytes.putDouble(column[i]);
+        }
+      }
+      drainBytes();
+      blockRows = 0;
+    }
+
+    private void drainBytes() throws IOException {
+      bytes.flip();
+      while (bytes.hasRemaining()) {
+        channel.write(bytes);
+      }
+    }
+
+    private void flush() throws IOException {
+      if (binary) {
+        writeBlock();
+      } else {
+        drainChars();
+        csvWriter.flush();
+      }
+    }
+
+    private void ensureRoom(int needed) throws IOException {
+      if (chars.length - charCount < needed) {
+        drainChars();
+      }
+    }
+
+    private void drainChars() throws IOException {
+      if (charCount > 0) {
+        csvWriter.write(chars, 0, charCount);
+        charCount = 0;
+      }
+    }
+
+    private void appendChar(char c) throws IOException {
+      ensureRoom(1);
+      chars[charCount++] = c;
+    }
+
+    private void appendText(CharSequence text) throws IOException {
+      for (int i = 0; i < text.length(); i++) {
+        appendChar(text.charAt(i));
+      }
+    }
+
+    private void appendLong(long value) {
+      if (value == Long.MIN_VALUE) {
+        String s = Long.toString(value);
+        s.getChars(0, s.length(), chars, charCount);
+        charCount += s.length();
+        return;
+      }
+      if (value < 0) {
+        chars[charCount++] = '-';
+        value = -value;
+      }
+      int n = 0;
+      do {
+        digits[n++] = (char) ('0' + (value % 10));
+        value /= 10;
+      } while (value != 0);
+      while (n > 0) {
+        chars[charCount++] = digits[--n];
+      }
+    }
+
+    /**
+     * Fixed point formatting with trailing zeros trimmed, so whole numbers look like
+     * {@link Double#toString(double)} output, e.g 2.0
+     */
+    private void appendDouble(double value) {
+      long scale = POW10[precision];
+      double abs = Math.abs(value);
+      if (Double.isNaN(value) || Double.isInfinite(value) || abs * scale >= Long.MAX_VALUE / 10) {
+        String s = Double.toString(value);
+        s.getChars(0, s.length(), chars, charCount);
+        charCount += s.length();
+        return;
+      }
+      long scaled = Math.round(abs * scale);
+      if (value < 0 && scaled != 0) {
+        chars[charCount++] = '-';
+      }
+      appendLong(scaled / scale);
+      chars[charCount++] = '.';
+      long fraction = scaled % scale;
+      int places = precision;
+      while (places > 1 && fraction % 10 == 0) {
+        fraction /= 10;
+        places--;
+      }
+      for (int i = places - 1; i >= 0; i--) {
+        chars[charCount++] = (char) ('0' + (fraction / POW10[i]) % 10);
+      }
+    }
+
+    private void closeQuietly() {
+      try {
+        if (csvWriter != null) {
+          csvWriter.close();
+        } else if (out != null) {
+          out.close();
+        }
+      } catch (IOException e) {
+        LOGGER.log(Level.WARNING, "error closing log", e);
+      }
+    }
+  }
+
+  public static void main(String[] args) {
+    File file = new File("./logs/async.log");
+    AsyncCsvLogger log = new AsyncCsvLogger(file, "power", "speed");
+    log.append(false);
+    log.setComment("hi there");
+    for (int i = 0; i < 1000000; i++) {
+      log.update("power", 200.0 + i % 50);
+      log.update("speed", i % 40);
+    }
+    log.close();
+    System.out.println("dropped rows: " + log.getDroppedRows());
+  }
+
+}
@@ -0,0 +1,207 @@
+/*
+ *    Copyright (c) 2013, Will Szumski
+ *    Copyright (c) 2013, Doug Szumski
+ *
+ *    This file is part of Cyclismo.
+ *
+ *    Cyclismo is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    Cyclismo is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with Cyclismo.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.fluxoid.utils;
+
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Synthesizes positions along a course at a fixed rate, from the latest distance and speed
+ * reported by a trainer. Between reports the distance is extrapolated at the reported speed, and
+ * the position is interpolated between the course points either side of it. The rate of positions
+ * doesn't depend on how often the trainer reports. No positions are synthesized before the first
+ * report, or once the trainer hasn't reported for {@link #MAX_EXTRAPOLATION_NANOS}.
+ *
+ * Reports are published without locking the reader: the synthesizing thread reads the latest one
+ * through a sequence number, retrying if it raced with a report. Positions are passed to the
+ * {@link PositionListener} as primitives, so synthesizing one allocates nothing.
+ */
+public class CoursePositionSynthesizer {
+
+  /**
+   * Receives the synthesized positions, on the synthesizing thread.
+   */
+  public interface PositionListener {
+
+    /**
+     * @param latitude - Latitude (decimal)
+     * @param longitude - Longitude (decimal)
+     * @param altitude - Altitude (m)
+     * @param distance - Distance along the course (m)
+     * @param speed - Speed (m/s)
+     */
+    void onPosition(double latitude, double longitude, double altitude, double distance,
+        double speed);
+  }
+
+  // Don't synthesize further than this past the last report, the trainer may have stopped
+  static final long MAX_EXTRAPOLATION_NANOS = TimeUnit.SECONDS.toNanos(2);
+
+  private final double[] latitudes;
+  private final double[] longitudes;
+  private final double[] altitudes;
+  // Gradient corrected, as the course tracker measures it
+  private final double[] distances;
+
+  // The latest report, odd while it's being written
+  private final AtomicLong sequence = new AtomicLong();
+  private volatile long reportNanos;
+  private volatile double reportDistance;
+  private volatile double reportSpeed;
+
+  // Only used by the synthesizing thread
+  private int segment;
+  private double lastDistance;
+
+  private ScheduledExecutorService executor;
+
+  /**
+   * @param coursePoints - the points of the course, at least one
+   */
+  public CoursePositionSynthesizer(List<LatLongAlt> coursePoints) {
+    if (coursePoints.isEmpty()) {
+      throw new IllegalArgumentException("course has no points");
+    }
+    int size = coursePoints.size();
+    latitudes = new double[size];
+    longitudes = new double[size];
+    altitudes = new double[size];
+    distances = new double[size];
+    for (int i = 0; i < size; i++) {
+      LatLongAlt point = coursePoints.get(i);
+      latitudes[i] = point.getLatitude();
+      longitudes[i] = point.getLongitude();
+      altitudes[i] = point.getAltitude();
+      if (i > 0) {
+        distances[i] = distances[i - 1]
+            + LocationUtils.getGradientCorrectedDistance(coursePoints.get(i - 1), point);
+      }
+    }
+  }
+
+  /**
+   * Reports the distance and speed from the trainer. Reports from different threads are
+   * serialized with each other, but never block the synthesizing thread.
+   *
+   * @param distance - Distance along the course (m)
+   * @param speed - Speed (m/s)
+   */
+  public void update(double distance, double speed) {
+    update(distance, speed, System.nanoTime());
+  }
+
+  synchronized void update(double distance, double speed, long nanos) {
+    sequence.incrementAndGet();
+    reportNanos = nanos;
+    reportDistance = distance;
+    reportSpeed = speed;
+    sequence.incrementAndGet();
+  }
+
+  /**
+   * Starts synthesizing positions on a thread of its own, the first straight away.
+   *
+   * @param periodMs - the time between positions in milliseconds
+   * @param listener - the listener to pass each position to
+   */
+  public synchronized void start(long periodMs, final PositionListener listener) {
+    if (executor != null) {
+      return;
+    }
+    executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, CoursePositionSynthesizer.class.getSimpleName());
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    executor.scheduleAtFixedRate(new Runnable() {
+      @Override
+      public void run() {
+        synthesize(System.nanoTime(), listener);
+      }
+    }, 0, periodMs, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Stops synthesizing positions. A position being synthesized is still passed on.
+   */
+  public synchronized void stop() {
+    if (executor == null) {
+      return;
+    }
+    executor.shutdown();
+    executor = null;
+  }
+
+  /**
+   * Synthesizes the position at a time from the latest report. The distance never goes back,
+   * and stops at the end of the course. Nothing is passed to the listener if there's been no
+   * report, or the latest is too old.
+   *
+   * @param nanos - the time, as {@link System#nanoTime()}
+   * @param listener - the listener to pass the position to
+   */
+  void synthesize(long nanos, PositionListener listener) {
+    long nanosAtReport;
+    double distance;
+    double speed;
+    long before;
+    do {
+      before = sequence.get();
+      nanosAtReport = reportNanos;
+      distance = reportDistance;
+      speed = reportSpeed;
+    } while ((before & 1) != 0 || before != sequence.get());
+
+    if (nanosAtReport == 0 || nanos - nanosAtReport > MAX_EXTRAPOLATION_NANOS) {
+      return;
+    }
+    if (speed > 0) {
+      distance += speed * Math.max(nanos - nanosAtReport, 0) / 1E9;
+    }
+    distance = Math.min(Math.max(distance, lastDistance), distances[distances.length - 1]);
+    lastDistance = distance;
+
+    // The distance only goes forward, so the segment is found from the last one
+    while (segment < distances.length - 1 && distances[segment + 1] <= distance) {
+      segment++;
+    }
+    if (segment == distances.length - 1) {
+      listener.onPosition(latitudes[segment], longitudes[segment], altitudes[segment], distance,
+          speed);
+      return;
+    }
+    double length = distances[segment + 1] - distances[segment];
+    double fraction = length > 0 ? (distance - distances[segment]) / length : 0;
+    listener.onPosition(
+        interpolate(latitudes, fraction), interpolate(longitudes, fraction),
+        interpolate(altitudes, fraction), distance, speed);
+  }
+
+  private double interpolate(double[] values, double fraction) {
+    return values[segment] + (values[segment + 1] - values[segment]) * fraction;
+  }
+}
@@ -0,0 +1,744 @@
+package org.fluxoid.utils;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Pulls the tracks out of a GPX document one point at a time, see
+ * {@link #next()}. Coordinates, elevations and times are decoded straight from
+ * the read buffer, so unlike SAX a point costs no strings or objects.
+ * Waypoints, routes and anything else outside a track are skipped.
+ */
+public class GpxPullParser {
+
+  /**
+   * There are no more tracks.
+   */
+  public static final int END_DOCUMENT = 0;
+
+  /**
+   * A track starts; its segments and points follow.
+   */
+  public static final int TRACK = 1;
+
+  /**
+   * A segment of the current track starts.
+   */
+  public static final int SEGMENT = 2;
+
+  /**
+   * A point of the current segment, see {@link #getLatitude()},
+   * {@link #getLongitude()}, {@link #getAltitude()} and {@link #getTime()}.
+   */
+  public static final int POINT = 3;
+
+  /**
+   * The current track ends, see {@link #getName()} and
+   * {@link #getDescription()}.
+   */
+  public static final int END_TRACK = 4;
+
+  private static final int NONE = -1;
+
+  // The elements we look at, by local name
+  private static final int ELEMENT_OTHER = 0;
+  private static final int ELEMENT_TRACK = 1;
+  private static final int ELEMENT_SEGMENT = 2;
+  private static final int ELEMENT_POINT = 3;
+  private static final int ELEMENT_NAME = 4;
+  private static final int ELEMENT_DESCRIPTION = 5;
+  private static final int ELEMENT_ALTITUDE = 6;
+  private static final int ELEMENT_TIME = 7;
+
+  private static final String[] ELEMENT_NAMES = {
+      null, "trk", "trkseg", "trkpt", "name", "desc", "ele", "time"
+  };
+
+  private static final int ATTRIBUTE_OTHER = 0;
+  private static final int ATTRIBUTE_LATITUDE = 1;
+  private static final int ATTRIBUTE_LONGITUDE = 2;
+
+  // Every power of ten that is exact as a double
+  private static final double[] POWERS_OF_TEN = {
+      1E0, 1E1, 1E2, 1E3, 1E4, 1E5, 1E6, 1E7, 1E8, 1E9, 1E10, 1E11, 1E12, 1E13, 1E14, 1E15,
+      1E16, 1E17, 1E18, 1E19, 1E20, 1E21, 1E22
+  };
+
+  private static final long MAX_EXACT_MANTISSA = 1L << 53;
+
+  private static final int BUFFER_SIZE = 16384;
+
+  // How far into a stream to look for the encoding
+  private static final int PROLOG_SIZE = 256;
+  private static final Pattern ENCODING = Pattern.compile(
+      "^<\\?xml[^>]*encoding\\s*=\\s*[\"']([A-Za-z0-9._:-]+)[\"']");
+
+  private final Reader reader;
+  private final char[] buffer = new char[BUFFER_SIZE];
+  private int position;
+  private int limit;
+  private int line = 1;
+  private int column;
+
+  // The content of the current element, or the value of the current attribute
+  private char[] text = new char[64];
+  private int textLength;
+
+  // The local name of the current element or attribute
+  private char[] name = new char[16];
+  private int nameLength;
+
+  // An event to return before reading on, for a self closing track
+  private int pendingEvent = NONE;
+
+  private boolean isInTrackElement;
+  private int trackChildDepth;
+  private boolean isInPointElement;
+
+  private String trackName;
+  private String trackDescription;
+  private double latitude;
+  private double longitude;
+  private double altitude;
+  private long time;
+
+  public GpxPullParser(Reader reader) {
+    this.reader = reader;
+  }
+
+  /**
+   * Creates a reader for an XML stream in the encoding its declaration names,
+   * or UTF-8 if it doesn't.
+   */
+  public static Reader newReader(InputStream inputStream) throws IOException {
+    BufferedInputStream in = new BufferedInputStream(inputStream, BUFFER_SIZE);
+    in.mark(PROLOG_SIZE);
+    byte[] prolog = new byte[PROLOG_SIZE];
+    int length = 0;
+    int read;
+    while (length < PROLOG_SIZE && (read = in.read(prolog, length, PROLOG_SIZE - length)) > 0) {
+      length += read;
+    }
+    in.reset();
+    String charset = "UTF-8";
+    Matcher matcher = ENCODING.matcher(new String(prolog, 0, length, "ISO-8859-1"));
+    if (matcher.find() && Charset.isSupported(matcher.group(1))) {
+      charset = matcher.group(1);
+    }
+    return new InputStreamReader(in, charset);
+  }
+
+  /**
+   * Reads on to the next event: {@link #TRACK}, {@link #SEGMENT},
+   * {@link #POINT}, {@link #END_TRACK} or {@link #END_DOCUMENT}.
+   *
+   * @throws IOException if the stream can't be read or isn't valid GPX
+   */
+  public int next() throws IOException {
+    if (pendingEvent != NONE) {
+      int event = pendingEvent;
+      pendingEvent = NONE;
+      return event;
+    }
+    int c;
+    while ((c = read()) != -1) {
+      if (c == '&') {
+        appendEntity();
+        continue;
+      }
+      if (c != '<') {
+        appendText((char) c);
+        continue;
+      }
+      int event;
+      c = read();
+      if (c == '/') {
+        c = readName(read());
+        int element = getElement();
+        while (c != '>') {
+          if (c == -1) {
+            throw createError("Unexpected end of document.");
+          }
+          c = read();
+        }
+        event = onElementEnd(element);
+      } else if (c == '?') {
+        skipProcessingInstruction();
+        event = NONE;
+      } else if (c == '!') {
+        skipDeclaration();
+        event = NONE;
+      } else {
+        event = onElementStart(c);
+      }
+      if (event != NONE) {
+        return event;
+      }
+    }
+    if (isInTrackElement) {
+      throw createError("Unexpected end of document inside a track.");
+    }
+    return END_DOCUMENT;
+  }
+
+  /**
+   * Gets the latitude of the current point.
+   */
+  public double getLatitude() {
+    return latitude;
+  }
+
+  /**
+   * Gets the longitude of the current point.
+   */
+  public double getLongitude() {
+    return longitude;
+  }
+
+  /**
+   * Gets the elevation of the current point in metres, or NaN if it has none.
+   */
+  public double getAltitude() {
+    return altitude;
+  }
+
+  /**
+   * Gets the time of the current point in milliseconds, or -1 if it has none.
+   */
+  public long getTime() {
+    return time;
+  }
+
+  /**
+   * Gets the name of the track just ended, or null if it has none.
+   */
+  public String getName() {
+    return trackName;
+  }
+
+  /**
+   * Gets the description of the track just ended, or null if it has none.
+   */
+  public String getDescription() {
+    return trackDescription;
+  }
+
+  public int getLineNumber() {
+    return line;
+  }
+
+  public int getColumnNumber() {
+    return column;
+  }
+
+  private int onElementStart(int c) throws IOException {
+    c = readName(c);
+    int element = getElement();
+    boolean isPoint = isInTrackElement && element == ELEMENT_POINT;
+    if (isPoint) {
+      if (isInPointElement) {
+        throw createError("Found a track point inside another one.");
+      }
+      latitude = Double.NaN;
+      longitude = Double.NaN;
+      altitude = Double.NaN;
+      time = -1L;
+    }
+    boolean isEmpty = false;
+    while (true) {
+      while (isWhitespace(c)) {
+        c = read();
+      }
+      if (c == '>') {
+        break;
+      }
+      if (c == '/') {
+        if (read() != '>') {
+          throw createError("Expected '>'.");
+        }
+        isEmpty = true;
+        break;
+      }
+      if (c == -1) {
+        throw createError("Unexpected end of document.");
+      }
+      c = readAttribute(c, isPoint);
+    }
+    textLength = 0;
+
+    if (!isInTrackElement) {
+      if (element != ELEMENT_TRACK) {
+        return NONE;
+      }
+      isInTrackElement = !isEmpty;
+      trackChildDepth = 0;
+      trackName = null;
+      trackDescription = null;
+      if (isEmpty) {
+        pendingEvent = END_TRACK;
+      }
+      return TRACK;
+    }
+    if (element == ELEMENT_TRACK) {
+      throw createError("Invalid GPX. Already inside a track.");
+    }
+    if (isPoint && (Double.isNaN(latitude) || Double.isNaN(longitude))) {
+      throw createError("Point with no longitude or latitude.");
+    }
+    if (isEmpty) {
+      return element == ELEMENT_SEGMENT ? SEGMENT : isPoint ? POINT : NONE;
+    }
+    trackChildDepth++;
+    if (element == ELEMENT_SEGMENT) {
+      return SEGMENT;
+    }
+    if (isPoint) {
+      isInPointElement = true;
+    }
+    return NONE;
+  }
+
+  private int onElementEnd(int element) throws IOException {
+    if (!isInTrackElement) {
+      textLength = 0;
+      return NONE;
+    }
+    int event = NONE;
+    switch (element) {
+      case ELEMENT_TRACK:
+        isInTrackElement = false;
+        isInPointElement = false;
+        event = END_TRACK;
+        break;
+      case ELEMENT_NAME:
+        // we are only interested in the first level name element
+        if (trackChildDepth == 1) {
+          trackName = getTrimmedText();
+        }
+        break;
+      case ELEMENT_DESCRIPTION:
+        // we are only interested in the first level description element
+        if (trackChildDepth == 1) {
+          trackDescription = getTrimmedText();
+        }
+        break;
+      case ELEMENT_POINT:
+        if (isInPointElement) {
+          isInPointElement = false;
+          event = POINT;
+        }
+        break;
+      case ELEMENT_ALTITUDE:
+        if (isInPointElement && trim()) {
+          try {
+            altitude = parseDouble(text, 0, textLength);
+          } catch (NumberFormatException e) {
+            throw createError("Unable to parse altitude: " + new String(text, 0, textLength));
+          }
+        }
+        break;
+      case ELEMENT_TIME:
+        if (isInPointElement && trim()) {
+          try {
+            time = parseTime(text, 0, textLength);
+          } catch (IllegalArgumentException e) {
+            throw createError("Unable to parse time: " + new String(text, 0, textLength));
+          }
+        }
+        break;
+      default:
+        break;
+    }
+    trackChildDepth--;
+    textLength = 0;
+    return event;
+  }
+
+  /**
+   * Reads an attribute starting with c, decoding it if it is the latitude or
+   * longitude of a point. Returns the character after it.
+   */
+  private int readAttribute(int c, boolean isPoint) throws IOException {
+    c = readName(c);
+    int attribute = ATTRIBUTE_OTHER;
+    if (isPoint && nameLength == 3 && name[0] == 'l') {
+      if (name[1] == 'a' && name[2] == 't') {
+        attribute = ATTRIBUTE_LATITUDE;
+      } else if (name[1] == 'o' && name[2] == 'n') {
+        attribute = ATTRIBUTE_LONGITUDE;
+      }
+    }
+    while (isWhitespace(c)) {
+      c = read();
+    }
+    if (c != '=') {
+      throw createError("Expected '=' after attribute.");
+    }
+    do {
+      c = read();
+    } while (isWhitespace(c));
+    if (c != '"' && c != '\'') {
+      throw createError("Expected a quoted attribute value.");
+    }
+    int quote = c;
+    textLength = 0;
+    while ((c = read()) != quote) {
+      if (c == -1) {
+        throw createError("Unexpected end of document.");
+      } else if (c == '&') {
+        appendEntity();
+      } else {
+        appendText((char) c);
+      }
+    }
+    if (attribute != ATTRIBUTE_OTHER) {
+      try {
+        trim();
+        double value = parseDouble(text, 0, textLength);
+        if (attribute == ATTRIBUTE_LATITUDE) {
+          latitude = value;
+        } else {
+          longitude = value;
+        }
+      } catch (NumberFormatException e) {
+        throw createError("Unable to parse latitude/longitude: " + new String(text, 0, textLength));
+      }
+    }
+    return read();
+  }
+
+  /**
+   * Reads a name starting with c, keeping the part after any namespace prefix.
+   * Returns the character after it.
+   */
+  private int readName(int c) throws IOException {
+    nameLength = 0;
+    while (c != -1 && c != '>' && c != '/' && c != '=' && !isWhitespace(c)) {
+      if (c == ':') {
+        nameLength = 0;
+      } else {
+        if (nameLength == name.length) {
+          char[] grown = new char[name.length * 2];
+          System.arraycopy(name, 0, grown, 0, nameLength);
+          name = grown;
+        }
+        name[nameLength++] = (char) c;
+      }
+      c = read();
+    }
+    return c;
+  }
+
+  private int getElement() {
+    for (int element = ELEMENT_TRACK; element < ELEMENT_NAMES.length; element++) {
+      String elementName = ELEMENT_NAMES[element];
+      if (elementName.length() != nameLength) {
+        continue;
+      }
+      int i = 0;
+      while (i < nameLength && name[i] == elementName.charAt(i)) {
+        i++;
+      }
+      if (i == nameLength) {
+        return element;
+      }
+    }
+    return ELEMENT_OTHER;
+  }
+
+  private void skipProcessingInstruction() throws IOException {
+    int last = 0;
+    int c;
+    while ((c = read()) != -1) {
+      if (c == '>' && last == '?') {
+        return;
+      }
+      last = c;
+    }
+    throw createError("Unexpected end of document.");
+  }
+
+  /**
+   * Skips a comment or doctype, or appends the content of a CDATA section.
+   */
+  private void skipDeclaration() throws IOException {
+    int c = read();
+    if (c == '-') {
+      if (read() != '-') {
+        throw createError("Invalid comment.");
+      }
+      int dashes = 0;
+      while ((c = read()) != -1) {
+        if (c == '>' && dashes >= 2) {
+          return;
+        }
+        dashes = c == '-' ? dashes + 1 : 0;
+      }
+    } else if (c == '[') {
+      for (int i = 0; i < "CDATA[".length(); i++) {
+        if (read() != "CDATA[".charAt(i)) {
+          throw createError("Invalid CDATA section.");
+        }
+      }
+      int brackets = 0;
+      while ((c = read()) != -1) {
+        if (c == ']') {
+          brackets++;
+          continue;
+        }
+        if (c == '>' && brackets >= 2) {
+          brackets -= 2;
+          c = NONE;
+        }
+        for (; brackets > 0; brackets--) {
+          appendText(']');
+        }
+        if (c == NONE) {
+          return;
+        }
+        appendText((char) c);
+      }
+    } else {
+      int depth = 0;
+      while (c != -1) {
+        if (c == '[') {
+          depth++;
+        } else if (c == ']') {
+          depth--;
+        } else if (c == '>' && depth <= 0) {
+          return;
+        }
+        c = read();
+      }
+    }
+    throw createError("Unexpected end of document.");
+  }
+
+  /**
+   * Appends the character an entity reference stands for, the '&' having been
+   * read.
+   */
+  private void appendEntity() throws IOException {
+    int start = textLength;
+    int c;
+    while ((c = read()) != ';') {
+      if (c == -1 || textLength - start > 10) {
+        throw createError("Invalid entity reference.");
+      }
+      appendText((char) c);
+    }
+    String entity = new String(text, start, textLength - start);
+    textLength = start;
+    if (entity.equals("lt")) {
+      appendText('<');
+    } else if (entity.equals("gt")) {
+      appendText('>');
+    } else if (entity.equals("amp")) {
+      appendText('&');
+    } else if (entity.equals("quot")) {
+      appendText('"');
+    } else if (entity.equals("apos")) {
+      appendText('\'');
+    } else if (entity.startsWith("#")) {
+      try {
+        int codePoint = entity.startsWith("#x") ? Integer.parseInt(entity.substring(2), 16)
+            : Integer.parseInt(entity.substring(1));
+        for (char ch : Character.toChars(codePoint)) {
+          appendText(ch);
+        }
+      } catch (IllegalArgumentException e) {
+        throw createError("Invalid character reference: &" + entity + ";");
+      }
+    } else {
+      throw createError("Unknown entity: &" + entity + ";");
+    }
+  }
+
+  private void appendText(char c) {
+    if (textLength == text.length) {
+      char[] grown = new char[text.length * 2];
+      System.arraycopy(text, 0, grown, 0, textLength);
+      text = grown;
+    }
+    text[textLength++] = c;
+  }
+
+  /**
+   * Trims the text in place, returning whether anything is left.
+   */
+  private boolean trim() {
+    int start = 0;
+    while (start < textLength && isWhitespace(text[start])) {
+      start++;
+    }
+    while (textLength > start && isWhitespace(text[textLength - 1])) {
+      textLength--;
+    }
+    if (start > 0) {
+      System.arraycopy(text, start, text, 0, textLength - start);
+      textLength -= start;
+    }
+    return textLength > 0;
+  }
+
+  private String getTrimmedText() {
+    return trim() ? new String(text, 0, textLength) : null;
+  }
+
+  private int read() throws IOException {
+    if (position == limit) {
+      limit = reader.read(buffer, 0, buffer.length);
+      position = 0;
+      if (limit <= 0) {
+        limit = 0;
+        return -1;
+      }
+    }
+    char c = buffer[position++];
+    if (c == '\n') {
+      line++;
+      column = 0;
+    } else {
+      column++;
+    }
+    return c;
+  }
+
+  private IOException createError(String message) {
+    return new IOException(String.format(Locale.US, "Parsing error at line: %d column: %d. %s",
+        line, column, message));
+  }
+
+  private static boolean isWhitespace(int c) {
+    return c == ' ' || c == '\n' || c == '\r' || c == '\t';
+  }
+
+  /**
+   * Parses a decimal number. Plain decimals of up to 15 or so digits, which is
+   * all GPX writers produce, are converted exactly without making a string;
+   * anything else is left to {@link Double#parseDouble(String)}.
+   */
+  static double parseDouble(char[] chars, int start, int end) {
+    int i = start;
+    boolean negative = false;
+    if (i < end && (chars[i] == '-' || chars[i] == '+')) {
+      negative = chars[i] == '-';
+      i++;
+    }
+    long mantissa = 0;
+    int digits = 0;
+    int decimals = 0;
+    boolean isFraction = false;
+    for (; i < end; i++) {
+      char c = chars[i];
+      if (c >= '0' && c <= '9') {
+        if (mantissa >= MAX_EXACT_MANTISSA) {
+          return Double.parseDouble(new String(chars, start, end - start));
+        }
+        mantissa = mantissa * 10 + (c - '0');
+        digits++;
+        if (isFraction) {
+          decimals++;
+        }
+      } else if (c == '.' && !isFraction) {
+        isFraction = true;
+      } else {
+        return Double.parseDouble(new String(chars, start, end - start));
+      }
+    }
+    if (digits == 0 || mantissa > MAX_EXACT_MANTISSA || decimals >= POWERS_OF_TEN.length) {
+      return Double.parseDouble(new String(chars, start, end - start));
+    }
+    // Both are exact, so the quotient is correctly rounded
+    double value = mantissa / POWERS_OF_TEN[decimals];
+    return negative ? -value : value;
+  }
+
+  /**
+   * Parses an XML date time such as 2013-04-21T09:15:02.250+01:00 to
+   * milliseconds since the epoch.
+   *
+   * @throws IllegalArgumentException if it isn't one
+   */
+  static long parseTime(char[] chars, int start, int end) {
+    if (end - start < 19 || chars[start + 4] != '-' || chars[start + 7] != '-'
+        || chars[start + 10] != 'T' || chars[start + 13] != ':' || chars[start + 16] != ':') {
+      throw new IllegalArgumentException();
+    }
+    int year = parseDigits(chars, start, 4);
+    int month = parseDigits(chars, start + 5, 2);
+    int day = parseDigits(chars, start + 8, 2);
+    int hour = parseDigits(chars, start + 11, 2);
+    int minute = parseDigits(chars, start + 14, 2);
+    int second = parseDigits(chars, start + 17, 2);
+    if (month < 1 || month > 12 || day < 1 || day > 31) {
+      throw new IllegalArgumentException();
+    }
+    long time = (((getEpochDay(year, month, day) * 24 + hour) * 60 + minute) * 60 + second)
+        * 1000;
+
+    int i = start + 19;
+    if (i < end && chars[i] == '.') {
+      int scale = 100;
+      int digits = 0;
+      while (++i < end && chars[i] >= '0' && chars[i] <= '9') {
+        time += (chars[i] - '0') * scale;
+        scale /= 10;
+        digits++;
+      }
+      if (digits == 0) {
+        throw new IllegalArgumentException();
+      }
+    }
+    if (i < end && chars[i] == 'Z') {
+      i++;
+    } else if (i < end && (chars[i] == '+' || chars[i] == '-')) {
+      if (end - i < 6 || chars[i + 3] != ':') {
+        throw new IllegalArgumentException();
+      }
+      int offsetHours = parseDigits(chars, i + 1, 2);
+      int offsetMinutes = parseDigits(chars, i + 4, 2);
+      if (offsetHours > 14 || offsetMinutes > 59) {
+        throw new IllegalArgumentException();
+      }
+      long offset = (offsetHours * 60L + offsetMinutes) * 60000L;
+      time += chars[i] == '+' ? -offset : offset;
+      i += 6;
+    }
+    if (i != end) {
+      throw new IllegalArgumentException();
+    }
+    return time;
+  }
+
+  private static int parseDigits(char[] chars, int start, int count) {
+    int value = 0;
+    for (int i = start; i < start + count; i++) {
+      char c = chars[i];
+      if (c < '0' || c > '9') {
+        throw new IllegalArgumentException();
+      }
+      value = value * 10 + (c - '0');
+    }
+    return value;
+  }
+
+  /**
+   * Days from 1970-01-01 to a date of the proleptic Gregorian calendar.
+   */
+  private static long getEpochDay(int year, int month, int day) {
+    year -= month <= 2 ? 1 : 0;
+    int era = (year >= 0 ? year : year - 399) / 400;
+    int yearOfEra = year - era * 400;
+    int dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+    int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+    return era * 146097L + dayOfEra - 719468;
+  }
+}
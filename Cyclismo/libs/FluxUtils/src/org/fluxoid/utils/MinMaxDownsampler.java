@@ -0,0 +1,333 @@
+package org.fluxoid.utils;
+
+import java.util.Arrays;
+
+/**
+ * Shape preserving downsampler for line charts. Points are added in order of
+ * increasing x and put into buckets of equal width, keeping the first, last,
+ * minimum and maximum point of each column in each bucket. Drawing those four
+ * points per pixel gives the same picture as drawing every point, so the cost
+ * of building a chart is bounded by its width rather than the number of points.
+ * <p>
+ * Buckets are aligned to x = 0 and their width is a power of two. While there
+ * are fewer than {@code maxBuckets} distinct x values every point has its own
+ * bucket; after that the bucket width doubles, merging pairs of buckets, each
+ * time the buckets run out. Points arriving live are therefore rebucketed
+ * incrementally, in amortised constant time.
+ * <p>
+ * Missing values are NaN. Not thread safe.
+ */
+public class MinMaxDownsampler {
+
+  // Layout of a bucket, per column
+  private static final int FIRST_X = 0;
+  private static final int FIRST_Y = 1;
+  private static final int MIN_X = 2;
+  private static final int MIN_Y = 3;
+  private static final int MAX_X = 4;
+  private static final int MAX_Y = 5;
+  private static final int LAST_X = 6;
+  private static final int LAST_Y = 7;
+  private static final int STRIDE = 8;
+
+  private static final int INITIAL_CAPACITY = 64;
+
+  private final int columns;
+  private final int maxBuckets;
+  private final double[] lastValues;
+  // the group of buckets being emitted by getPoints
+  private final double[] current = new double[STRIDE];
+
+  // x of the first point in each bucket
+  private double[] bucketX;
+  // the buckets of each column, STRIDE values per bucket
+  private double[][] buckets;
+  private int count;
+  private long pointCount;
+  private double bucketWidth;
+  private double lastX = Double.NaN;
+
+  /**
+   * @param columns the number of values per point
+   * @param maxBuckets the maximum number of buckets, at least 8
+   */
+  public MinMaxDownsampler(int columns, int maxBuckets) {
+    if (maxBuckets < 8) {
+      throw new IllegalArgumentException("maxBuckets must be at least 8");
+    }
+    this.columns = columns;
+    this.maxBuckets = maxBuckets;
+    this.lastValues = new double[columns];
+    int capacity = Math.min(INITIAL_CAPACITY, maxBuckets);
+    bucketX = new double[capacity];
+    buckets = new double[columns][capacity * STRIDE];
+    clear();
+  }
+
+  /**
+   * Adds a point.
+   *
+   * @param x the x value, not less than that of the previous point. The point
+   *          is ignored if NaN
+   * @param values the values of the point, NaN if missing
+   * @param offset the index in values of the first column
+   */
+  public void add(double x, double[] values, int offset) {
+    if (Double.isNaN(x)) {
+      return;
+    }
+    if (count > 0 && x < lastX) {
+      // Out of order, treat as a repeat of the last x
+      x = lastX;
+    }
+    if (count == 0 || isNewBucket(x)) {
+      if (count == maxBuckets) {
+        rebucket();
+      }
+      if (count == 0 || isNewBucket(x)) {
+        newBucket(x);
+      }
+    }
+    int offsetInBucket = (count - 1) * STRIDE;
+    for (int c = 0; c < columns; c++) {
+      double y = values[offset + c];
+      lastValues[c] = y;
+      if (!Double.isNaN(y)) {
+        update(buckets[c], offsetInBucket, x, y);
+      }
+    }
+    lastX = x;
+    pointCount++;
+  }
+
+  private boolean isNewBucket(double x) {
+    double previous = bucketX[count - 1];
+    if (bucketWidth == 0) {
+      return x != previous;
+    }
+    return getKey(x, bucketWidth) != getKey(previous, bucketWidth);
+  }
+
+  private static long getKey(double x, double width) {
+    return (long) Math.floor(x / width);
+  }
+
+  private void newBucket(double x) {
+    if (count == bucketX.length) {
+      int capacity = Math.min(2 * bucketX.length, maxBuckets);
+      bucketX = Arrays.copyOf(bucketX, capacity);
+      for (int c = 0; c < columns; c++) {
+        buckets[c] = Arrays.copyOf(buckets[c], capacity * STRIDE);
+      }
+    }
+    bucketX[count] = x;
+    for (int c = 0; c < columns; c++) {
+      buckets[c][count * STRIDE + FIRST_X] = Double.NaN;
+    }
+    count++;
+  }
+
+  private static void update(double[] bucket, int i, double x, double y) {
+    if (Double.isNaN(bucket[i + FIRST_X])) {
+      bucket[i + FIRST_X] = bucket[i + MIN_X] = bucket[i + MAX_X] = x;
+      bucket[i + FIRST_Y] = bucket[i + MIN_Y] = bucket[i + MAX_Y] = y;
+    } else if (y < bucket[i + MIN_Y]) {
+      bucket[i + MIN_X] = x;
+      bucket[i + MIN_Y] = y;
+    } else if (y > bucket[i + MAX_Y]) {
+      bucket[i + MAX_X] = x;
+      bucket[i + MAX_Y] = y;
+    }
+    bucket[i + LAST_X] = x;
+    bucket[i + LAST_Y] = y;
+  }
+
+  /**
+   * Merges bucket j, which follows bucket i, into bucket i.
+   */
+  private static void merge(double[] bucket, int i, int j) {
+    if (Double.isNaN(bucket[j + FIRST_X])) {
+      return;
+    }
+    if (Double.isNaN(bucket[i + FIRST_X])) {
+      System.arraycopy(bucket, j, bucket, i, STRIDE);
+      return;
+    }
+    if (bucket[j + MIN_Y] < bucket[i + MIN_Y]) {
+      bucket[i + MIN_X] = bucket[j + MIN_X];
+      bucket[i + MIN_Y] = bucket[j + MIN_Y];
+    }
+    if (bucket[j + MAX_Y] > bucket[i + MAX_Y]) {
+      bucket[i + MAX_X] = bucket[j + MAX_X];
+      bucket[i + MAX_Y] = bucket[j + MAX_Y];
+    }
+    bucket[i + LAST_X] = bucket[j + LAST_X];
+    bucket[i + LAST_Y] = bucket[j + LAST_Y];
+  }
+
+  /**
+   * Widens the buckets until at most half of them are used.
+   */
+  private void rebucket() {
+    if (bucketWidth == 0) {
+      // The smallest power of two that fits the points into half the buckets
+      double span = (bucketX[count - 1] - bucketX[0]) / (maxBuckets / 2);
+      bucketWidth = Math.scalb(1.0, Math.getExponent(span) + 1);
+    } else {
+      bucketWidth *= 2;
+    }
+    int merged = 0;
+    for (int b = 1; b < count; b++) {
+      if (getKey(bucketX[b], bucketWidth) == getKey(bucketX[merged], bucketWidth)) {
+        for (int c = 0; c < columns; c++) {
+          merge(buckets[c], merged * STRIDE, b * STRIDE);
+        }
+      } else {
+        merged++;
+        bucketX[merged] = bucketX[b];
+        for (int c = 0; c < columns; c++) {
+          System.arraycopy(buckets[c], b * STRIDE, buckets[c], merged * STRIDE, STRIDE);
+        }
+      }
+    }
+    count = merged + 1;
+    if (count > maxBuckets / 2 + 1) {
+      rebucket();
+    }
+  }
+
+  /**
+   * Gets the points to draw for a column, in order of increasing x: the first,
+   * minimum, maximum and last point of each group of buckets no wider than
+   * resolution.
+   *
+   * @param column the column
+   * @param resolution the x width of a pixel, or 0 to get every bucket
+   * @param xs receives the x values, at least {@link #getMaxPoints()} long
+   * @param ys receives the y values, at least {@link #getMaxPoints()} long
+   * @return the number of points
+   */
+  public int getPoints(int column, double resolution, double[] xs, double[] ys) {
+    double group = 0;
+    if (resolution > 0) {
+      // A power of two multiple of the bucket width, so groups are whole buckets
+      group = bucketWidth > 0 && resolution > bucketWidth
+          ? Math.scalb(bucketWidth, Math.getExponent(resolution / bucketWidth))
+          : Math.max(resolution, bucketWidth);
+    }
+    double[] bucket = buckets[column];
+    double[] current = this.current;
+    boolean hasCurrent = false;
+    long currentKey = 0;
+    int n = 0;
+    for (int b = 0; b < count; b++) {
+      int i = b * STRIDE;
+      if (Double.isNaN(bucket[i + FIRST_X])) {
+        continue;
+      }
+      long key = group > 0 ? getKey(bucket[i + FIRST_X], group) : b;
+      if (hasCurrent && key == currentKey) {
+        mergeInto(current, bucket, i);
+        continue;
+      }
+      if (hasCurrent) {
+        n = emit(current, xs, ys, n);
+      }
+      System.arraycopy(bucket, i, current, 0, STRIDE);
+      hasCurrent = true;
+      currentKey = key;
+    }
+    if (hasCurrent) {
+      n = emit(current, xs, ys, n);
+    }
+    return n;
+  }
+
+  private static void mergeInto(double[] current, double[] bucket, int j) {
+    if (bucket[j + MIN_Y] < current[MIN_Y]) {
+      current[MIN_X] = bucket[j + MIN_X];
+      current[MIN_Y] = bucket[j + MIN_Y];
+    }
+    if (bucket[j + MAX_Y] > current[MAX_Y]) {
+      current[MAX_X] = bucket[j + MAX_X];
+      current[MAX_Y] = bucket[j + MAX_Y];
+    }
+    current[LAST_X] = bucket[j + LAST_X];
+    current[LAST_Y] = bucket[j + LAST_Y];
+  }
+
+  private static int emit(double[] bucket, double[] xs, double[] ys, int n) {
+    n = emit(bucket[FIRST_X], bucket[FIRST_Y], xs, ys, n);
+    if (bucket[MIN_X] <= bucket[MAX_X]) {
+      n = emit(bucket[MIN_X], bucket[MIN_Y], xs, ys, n);
+      n = emit(bucket[MAX_X], bucket[MAX_Y], xs, ys, n);
+    } else {
+      n = emit(bucket[MAX_X], bucket[MAX_Y], xs, ys, n);
+      n = emit(bucket[MIN_X], bucket[MIN_Y], xs, ys, n);
+    }
+    return emit(bucket[LAST_X], bucket[LAST_Y], xs, ys, n);
+  }
+
+  private static int emit(double x, double y, double[] xs, double[] ys, int n) {
+    if (n > 0 && xs[n - 1] == x && ys[n - 1] == y) {
+      return n;
+    }
+    xs[n] = x;
+    ys[n] = y;
+    return n + 1;
+  }
+
+  /**
+   * Removes all points.
+   */
+  public void clear() {
+    count = 0;
+    pointCount = 0;
+    bucketWidth = 0;
+    lastX = Double.NaN;
+    Arrays.fill(lastValues, Double.NaN);
+  }
+
+  public boolean isEmpty() {
+    return pointCount == 0;
+  }
+
+  /**
+   * Returns the number of points added since the last {@link #clear()}.
+   */
+  public long getPointCount() {
+    return pointCount;
+  }
+
+  public int getBucketCount() {
+    return count;
+  }
+
+  /**
+   * Returns the x width of a bucket, 0 while every point has its own bucket.
+   */
+  public double getBucketWidth() {
+    return bucketWidth;
+  }
+
+  /**
+   * Returns the maximum number of points {@link #getPoints} can return.
+   */
+  public int getMaxPoints() {
+    return 4 * count;
+  }
+
+  /**
+   * Returns the x value of the last point, NaN if empty.
+   */
+  public double getLastX() {
+    return lastX;
+  }
+
+  /**
+   * Returns a value of the last point, NaN if empty or missing.
+   */
+  public double getLastValue(int column) {
+    return lastValues[column];
+  }
+}
@@ -0,0 +1,19 @@
+package org.fluxoid.utils;
+
+/**
+ * Receives the points of a path to draw, see
+ * {@link PolyLineLevels#getPoints(int, long, double, double, double, double, PathSink)}
+ */
+public interface PathSink {
+
+  /**
+   * Starts a new run of the path.
+   */
+  public abstract void moveTo(double x, double y);
+
+  /**
+   * Continues the current run of the path.
+   */
+  public abstract void lineTo(double x, double y);
+
+}
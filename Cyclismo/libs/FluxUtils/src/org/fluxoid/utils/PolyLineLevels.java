@@ -0,0 +1,352 @@
+package org.fluxoid.utils;
+
+import java.util.Arrays;
+
+/**
+ * A polyline simplified for each zoom level of a Web Mercator map, so drawing it
+ * costs the number of points visible at that zoom rather than the number of
+ * points in the line.
+ * <p>
+ * Points are projected once, to map coordinates between 0 and 1. The
+ * Douglas-Peucker significance of every point is computed once as well: the
+ * squared distance at which the simplification would drop it, no larger than
+ * that of the points it was split from. A point is kept at a zoom level if its
+ * significance is greater than the tolerance at that zoom, giving the same
+ * points as running Douglas-Peucker with that tolerance. Points are simplified
+ * in blocks of {@link #BLOCK_SIZE}, so appending points only reworks the last
+ * block.
+ * <p>
+ * The points kept at a zoom level are built the first time it is drawn. They
+ * are split into chunks of consecutive points with bounding boxes, and the
+ * chunks into groups, so only the chunks in the viewport are drawn.
+ * <p>
+ * Not thread safe.
+ */
+public class PolyLineLevels {
+
+  public static final int BLOCK_SIZE = 1024;
+  public static final int MAX_ZOOM_LEVEL = 31;
+
+  // Points per chunk, and chunks per group
+  private static final int CHUNK_SIZE = 32;
+  private static final int GROUP_SIZE = 32;
+
+  // Mapsforge's limits of the projection
+  private static final double LATITUDE_MAX = 85.05112877980659;
+  private static final double LATITUDE_MIN = -LATITUDE_MAX;
+
+  private static final int INITIAL_CAPACITY = 256;
+
+  private final double tolerance;
+  private final Level[] levels = new Level[MAX_ZOOM_LEVEL + 1];
+
+  private double[] xs = new double[INITIAL_CAPACITY];
+  private double[] ys = new double[INITIAL_CAPACITY];
+  private double[] significance = new double[INITIAL_CAPACITY];
+  private int count;
+  // points from here on need simplifying
+  private int dirtyFrom;
+
+  /**
+   * @param tolerance the maximum distance in pixels of a dropped point from the
+   *          simplified line
+   */
+  public PolyLineLevels(double tolerance) {
+    this.tolerance = tolerance;
+  }
+
+  /**
+   * Appends a point.
+   *
+   * @param latitude decimal degrees
+   * @param longitude decimal degrees
+   */
+  public void add(double latitude, double longitude) {
+    if (count == xs.length) {
+      xs = Arrays.copyOf(xs, 2 * count);
+      ys = Arrays.copyOf(ys, 2 * count);
+      significance = Arrays.copyOf(significance, 2 * count);
+    }
+    latitude = Math.max(LATITUDE_MIN, Math.min(LATITUDE_MAX, latitude));
+    double sinLatitude = Math.sin(Math.toRadians(latitude));
+    xs[count] = (longitude + 180) / 360;
+    ys[count] = 0.5 - Math.log((1 + sinLatitude) / (1 - sinLatitude)) / (4 * Math.PI);
+    if (count > 0) {
+      // The last point becomes part of a line
+      dirtyFrom = Math.min(dirtyFrom, (count - 1) / BLOCK_SIZE * BLOCK_SIZE);
+    }
+    count++;
+  }
+
+  /**
+   * Removes all points.
+   */
+  public void clear() {
+    count = 0;
+    dirtyFrom = 0;
+    Arrays.fill(levels, null);
+  }
+
+  public int size() {
+    return count;
+  }
+
+  /**
+   * Draws the points kept at a zoom level that are in the viewport, plus the
+   * points either side of them, in order. Coordinates are absolute pixels.
+   *
+   * @param zoomLevel the zoom level
+   * @param mapSize the width of the map at the zoom level, in pixels
+   * @param left left of the viewport
+   * @param top top of the viewport
+   * @param right right of the viewport
+   * @param bottom bottom of the viewport
+   * @param sink receives the points
+   * @return the number of points drawn
+   */
+  public int getPoints(int zoomLevel, long mapSize, double left, double top, double right,
+      double bottom, PathSink sink) {
+    if (count == 0) {
+      return 0;
+    }
+    Level level = getLevel(zoomLevel, mapSize);
+    left /= mapSize;
+    top /= mapSize;
+    right /= mapSize;
+    bottom /= mapSize;
+
+    int[] indices = level.indices;
+    int chunks = level.getChunkCount();
+    int drawn = 0;
+    int lastChunk = -2;
+    for (int group = 0; group * GROUP_SIZE < chunks; group++) {
+      if (!intersects(level.groupBoxes, group, left, top, right, bottom)) {
+        continue;
+      }
+      int end = Math.min(chunks, (group + 1) * GROUP_SIZE);
+      for (int chunk = group * GROUP_SIZE; chunk < end; chunk++) {
+        if (!intersects(level.chunkBoxes, chunk, left, top, right, bottom)) {
+          continue;
+        }
+        int first = chunk * CHUNK_SIZE;
+        int last = Math.min(first + CHUNK_SIZE, level.count - 1);
+        if (chunk != lastChunk + 1) {
+          sink.moveTo(xs[indices[first]] * mapSize, ys[indices[first]] * mapSize);
+          drawn++;
+        }
+        for (int i = first + 1; i <= last; i++) {
+          sink.lineTo(xs[indices[i]] * mapSize, ys[indices[i]] * mapSize);
+          drawn++;
+        }
+        lastChunk = chunk;
+      }
+    }
+    return drawn;
+  }
+
+  /**
+   * Returns the number of points kept at a zoom level.
+   */
+  public int getLevelSize(int zoomLevel, long mapSize) {
+    return count == 0 ? 0 : getLevel(zoomLevel, mapSize).count;
+  }
+
+  private static boolean intersects(double[] boxes, int box, double left, double top,
+      double right, double bottom) {
+    int i = 4 * box;
+    return boxes[i] <= right && boxes[i + 2] >= left && boxes[i + 1] <= bottom
+        && boxes[i + 3] >= top;
+  }
+
+  private Level getLevel(int zoomLevel, long mapSize) {
+    simplify();
+    zoomLevel = Math.max(0, Math.min(MAX_ZOOM_LEVEL, zoomLevel));
+    Level level = levels[zoomLevel];
+    if (level == null || level.mapSize != mapSize) {
+      double normalizedTolerance = tolerance / mapSize;
+      level = new Level(mapSize, normalizedTolerance * normalizedTolerance);
+      levels[zoomLevel] = level;
+    }
+    level.update();
+    return level;
+  }
+
+  /**
+   * Computes the significance of the points in the blocks that have changed.
+   */
+  private void simplify() {
+    if (dirtyFrom >= count) {
+      return;
+    }
+    int[] stack = new int[64];
+    for (int start = dirtyFrom; start < count - 1; start += BLOCK_SIZE) {
+      stack = simplify(start, Math.min(start + BLOCK_SIZE, count - 1), stack);
+    }
+    significance[0] = Double.POSITIVE_INFINITY;
+    significance[count - 1] = Double.POSITIVE_INFINITY;
+    dirtyFrom = count;
+  }
+
+  /**
+   * Douglas-Peucker over a block, recording the significance of every point
+   * instead of dropping any, like {@link PolyLineUtils#simplify}.
+   */
+  private int[] simplify(int blockStart, int blockEnd, int[] stack) {
+    significance[blockStart] = Double.POSITIVE_INFINITY;
+    significance[blockEnd] = Double.POSITIVE_INFINITY;
+    // pairs of (start, end) indices still to be examined
+    int top = 0;
+    stack[top++] = blockStart;
+    stack[top++] = blockEnd;
+    while (top > 0) {
+      int end = stack[--top];
+      int start = stack[--top];
+      double parent = Math.min(significance[start], significance[end]);
+      double x1 = xs[start];
+      double y1 = ys[start];
+      double dx = xs[end] - x1;
+      double dy = ys[end] - y1;
+      double lengthSquared = dx * dx + dy * dy;
+
+      double maxDistance = -1;
+      int furthest = -1;
+      for (int i = start + 1; i < end; i++) {
+        double px = xs[i] - x1;
+        double py = ys[i] - y1;
+        double distance;
+        if (lengthSquared == 0) {
+          distance = px * px + py * py;
+        } else {
+          double t = (px * dx + py * dy) / lengthSquared;
+          if (t < 0) {
+            t = 0;
+          } else if (t > 1) {
+            t = 1;
+          }
+          double ex = px - t * dx;
+          double ey = py - t * dy;
+          distance = ex * ex + ey * ey;
+        }
+        if (distance > maxDistance) {
+          maxDistance = distance;
+          furthest = i;
+        }
+      }
+
+      if (furthest >= 0) {
+        significance[furthest] = Math.min(maxDistance, parent);
+        if (top + 4 > stack.length) {
+          stack = Arrays.copyOf(stack, stack.length * 2);
+        }
+        stack[top++] = start;
+        stack[top++] = furthest;
+        stack[top++] = furthest;
+        stack[top++] = end;
+      }
+    }
+    return stack;
+  }
+
+  /**
+   * The points kept at a zoom level.
+   */
+  private class Level {
+    final long mapSize;
+    final double toleranceSquared;
+
+    int[] indices = new int[INITIAL_CAPACITY];
+    int count;
+    // number of points of the line when last updated
+    int pointCount;
+    // minimum x, minimum y, maximum x, maximum y of each chunk and group
+    double[] chunkBoxes = new double[4 * (INITIAL_CAPACITY / CHUNK_SIZE + 1)];
+    double[] groupBoxes = new double[4];
+
+    Level(long mapSize, double toleranceSquared) {
+      this.mapSize = mapSize;
+      this.toleranceSquared = toleranceSquared;
+    }
+
+    int getChunkCount() {
+      return count <= 1 ? count : (count - 2) / CHUNK_SIZE + 1;
+    }
+
+    /**
+     * Catches up with points added since the last update. Only the last block
+     * simplified then can have changed.
+     */
+    void update() {
+      int points = PolyLineLevels.this.count;
+      if (pointCount == points) {
+        return;
+      }
+      int from = pointCount == 0 ? 0 : (pointCount - 1) / BLOCK_SIZE * BLOCK_SIZE;
+      while (count > 0 && indices[count - 1] >= from) {
+        count--;
+      }
+      int changedFrom = count;
+      for (int i = from; i < points; i++) {
+        if (significance[i] > toleranceSquared) {
+          if (count == indices.length) {
+            indices = Arrays.copyOf(indices, 2 * count);
+          }
+          indices[count++] = i;
+        }
+      }
+      pointCount = points;
+      updateBoxes(Math.max(0, changedFrom - 1) / CHUNK_SIZE);
+    }
+
+    private void updateBoxes(int fromChunk) {
+      int chunks = getChunkCount();
+      if (chunkBoxes.length < 4 * chunks) {
+        chunkBoxes = Arrays.copyOf(chunkBoxes, Math.max(4 * chunks, 2 * chunkBoxes.length));
+      }
+      for (int chunk = fromChunk; chunk < chunks; chunk++) {
+        int first = chunk * CHUNK_SIZE;
+        int last = Math.min(first + CHUNK_SIZE, count - 1);
+        double minX = Double.POSITIVE_INFINITY;
+        double minY = Double.POSITIVE_INFINITY;
+        double maxX = Double.NEGATIVE_INFINITY;
+        double maxY = Double.NEGATIVE_INFINITY;
+        for (int i = first; i <= last; i++) {
+          double x = xs[indices[i]];
+          double y = ys[indices[i]];
+          minX = Math.min(minX, x);
+          minY = Math.min(minY, y);
+          maxX = Math.max(maxX, x);
+          maxY = Math.max(maxY, y);
+        }
+        setBox(chunkBoxes, chunk, minX, minY, maxX, maxY);
+      }
+
+      int groups = (chunks + GROUP_SIZE - 1) / GROUP_SIZE;
+      if (groupBoxes.length < 4 * groups) {
+        groupBoxes = Arrays.copyOf(groupBoxes, Math.max(4 * groups, 2 * groupBoxes.length));
+      }
+      for (int group = fromChunk / GROUP_SIZE; group < groups; group++) {
+        int end = Math.min(chunks, (group + 1) * GROUP_SIZE);
+        int i = 4 * group * GROUP_SIZE;
+        setBox(groupBoxes, group, chunkBoxes[i], chunkBoxes[i + 1], chunkBoxes[i + 2],
+            chunkBoxes[i + 3]);
+        for (int chunk = group * GROUP_SIZE + 1; chunk < end; chunk++) {
+          i = 4 * chunk;
+          int j = 4 * group;
+          groupBoxes[j] = Math.min(groupBoxes[j], chunkBoxes[i]);
+          groupBoxes[j + 1] = Math.min(groupBoxes[j + 1], chunkBoxes[i + 1]);
+          groupBoxes[j + 2] = Math.max(groupBoxes[j + 2], chunkBoxes[i + 2]);
+          groupBoxes[j + 3] = Math.max(groupBoxes[j + 3], chunkBoxes[i + 3]);
+        }
+      }
+    }
+
+    private void setBox(double[] boxes, int box, double minX, double minY, double maxX,
+        double maxY) {
+      int i = 4 * box;
+      boxes[i] = minX;
+      boxes[i + 1] = minY;
+      boxes[i + 2] = maxX;
+      boxes[i + 3] = maxY;
+    }
+  }
+}
@@ -0,0 +1,15 @@
+package org.fluxoid.utils;
+
+/**
+ * Receives points as they are decoded from a polyline, see
+ * {@link PolyLineUtils#decode(CharSequence, PolyLineSink)}
+ */
+public interface PolyLineSink {
+
+  /**
+   * @param latitude decimal degrees
+   * @param longitude decimal degrees
+   */
+  public abstract void onPoint(double latitude, double longitude);
+
+}
@@ -23,6 +23,7 @@
 
 package org.fluxoid.utils;
 
+import java.nio.CharBuffer;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.logging.Logger;
@@ -42,27 +43,127 @@ public class PolyLineUtils {
   public static final int CHUNK_SIZE = 5;
   public static final int ASCII_OFFSET = 63;
 
+  // polyline values are stored as integers in units of 1e-5 degrees
+  private static final double SCALE = 1e5;
+
   /**
    * @param polyLine
    * @return
    */
   public static List<LatLong> decode(CharSequence polyLine) throws DecodeException {
-    try {
-      List<LatLong> latLongs = new ArrayList<LatLong>();
-      TrackedCharSequence polyLineChars = new TrackedCharSequence(polyLine);
-      double latitude = 0;
-      double longitude = 0;
-      while (polyLineChars.hasNext()) {
-        //getValue iterates through the TrackedCharSequence
-        latitude += getValue(polyLineChars);
-        longitude += getValue(polyLineChars);
+    final List<LatLong> latLongs = new ArrayList<LatLong>();
+    decode(polyLine, new PolyLineSink() {
+      @Override
+      public void onPoint(double latitude, double longitude) {
         latLongs.add(new LatLong(latitude, longitude));
       }
+    });
+    return latLongs;
+  }
+
+  /**
+   * Decodes a polyline, passing each point to sink as it is decoded.
+   *
+   * @return number of points decoded
+   */
+  public static int decode(CharSequence polyLine, PolyLineSink sink) throws DecodeException {
+    int length = polyLine.length();
+    int index = 0;
+    int count = 0;
+    long latitude = 0;
+    long longitude = 0;
+    while (index < length) {
+      long value = nextValue(polyLine, index, length);
+      latitude += (int) value;
+      index = (int) (value >>> 32);
+      value = nextValue(polyLine, index, length);
+      longitude += (int) value;
+      index = (int) (value >>> 32);
+      sink.onPoint(latitude / SCALE, longitude / SCALE);
+      count++;
+    }
+    return count;
+  }
+
+  /**
+   * Decodes a polyline directly into coordinate arrays. Use {@link #countPoints(CharSequence)} to
+   * size them.
+   *
+   * @return number of points decoded
+   * @throws DecodeException if the arrays are too small or the polyline is malformed
+   */
+  public static int decode(CharSequence polyLine, double[] latitudes, double[] longitudes)
+      throws DecodeException {
+    int length = polyLine.length();
+    int index = 0;
+    int count = 0;
+    long latitude = 0;
+    long longitude = 0;
+    while (index < length) {
+      if (count >= latitudes.length || count >= longitudes.length) {
+        throw new DecodeException("coordinate arrays too small");
+      }
+      long value = nextValue(polyLine, index, length);
+      latitude += (int) value;
+      index = (int) (value >>> 32);
+      value = nextValue(polyLine, index, length);
+      longitude += (int) value;
+      index = (int) (value >>> 32);
+      latitudes[count] = latitude / SCALE;
+      longitudes[count] = longitude / SCALE;
+      count++;
+    }
+    return count;
+  }
+
+  /**
+   * Decodes a polyline held in a char array, see {@link #decode(CharSequence, PolyLineSink)}
+   */
+  public static int decode(char[] polyLine, int offset, int length, PolyLineSink sink)
+      throws DecodeException {
+    return decode(CharBuffer.wrap(polyLine, offset, length), sink);
+  }
+
+  /**
+   * @return number of points in the polyline, without decoding them
+   */
+  public static int countPoints(CharSequence polyLine) {
+    int values = 0;
+    for (int i = 0; i < polyLine.length(); i++) {
+      // every value ends with a chunk that doesn't have the continuation bit set
+      if (polyLine.charAt(i) - ASCII_OFFSET < 0x20) {
+        values++;
+      }
+    }
+    // an unpaired trailing latitude is still decoded as a point
+    return (values + 1) / 2;
+  }
 
-      return latLongs;
-    } catch (RuntimeException e) {
-      throw new DecodeException(e);
+  /**
+   * Reads one value starting at index.
+   *
+   * @return the decoded value in the low 32 bits and the index of the next unread char in the
+   * high 32 bits
+   */
+  private static long nextValue(CharSequence polyLine, int index, int length)
+      throws DecodeException {
+    if (index >= length) {
+      // matches getValue(TrackedCharSequence)
+      return ((long) index) << 32;
     }
+    int result = 0;
+    int shift = 0;
+    int currentByte;
+    do {
+      if (index >= length) {
+        throw new DecodeException("polyline ended part way through a value");
+      }
+      currentByte = polyLine.charAt(index++) - ASCII_OFFSET;
+      result |= (currentByte & 0x1f) << shift;
+      shift += CHUNK_SIZE;
+    } while (currentByte >= 0x20);
+    result = ((result & 1) > 0) ? ~(result >> 1) : (result >> 1);
+    return (((long) index) << 32) | (result & 0xffffffffL);
   }
 
   /**
@@ -74,11 +175,11 @@ public class PolyLineUtils {
     int lastLong = 0;
     for (LatLong l : latLongs) {
 
-      int currentLat = (int) Math.round(l.getLatitude() * Math.pow(10, 5));
-      int currentLong = (int) Math.round(l.getLongitude() * Math.pow(10, 5));
+      int currentLat = (int) Math.round(l.getLatitude() * SCALE);
+      int currentLong = (int) Math.round(l.getLongitude() * SCALE);
 
-      polyLine.append(encodeNumber(currentLat - lastLat));
-      polyLine.append(encodeNumber(currentLong - lastLong));
+      encodeNumber(currentLat - lastLat, polyLine);
+      encodeNumber(currentLong - lastLong, polyLine);
 
       lastLat = currentLat;
       lastLong = currentLong;
@@ -86,8 +187,132 @@ public class PolyLineUtils {
     return polyLine;
   }
 
+  /**
+   * Encodes the first count points of the coordinate arrays, appending to polyLine.
+   */
+  public static StringBuilder encode(double[] latitudes, double[] longitudes, int count,
+                                     StringBuilder polyLine) {
+    return encode(latitudes, longitudes, count, 0, polyLine);
+  }
+
+  /**
+   * Encodes the first count points of the coordinate arrays, appending to polyLine. Points are
+   * first simplified with the Douglas-Peucker algorithm: a point is dropped if it lies within
+   * toleranceM of the line joining the points either side of it. The first and last points are
+   * always kept.
+   *
+   * @param toleranceM maximum deviation in metres, zero to keep every point
+   */
+  public static StringBuilder encode(double[] latitudes, double[] longitudes, int count,
+                                     double toleranceM, StringBuilder polyLine) {
+    boolean[] keep = null;
+    if (toleranceM > 0 && count > 2) {
+      keep = simplify(latitudes, longitudes, count, toleranceM);
+    }
+    polyLine.ensureCapacity(polyLine.length() + count * 8);
+    int lastLat = 0;
+    int lastLong = 0;
+    for (int i = 0; i < count; i++) {
+      if (keep != null && !keep[i]) {
+        continue;
+      }
+      int currentLat = (int) Math.round(latitudes[i] * SCALE);
+      int currentLong = (int) Math.round(longitudes[i] * SCALE);
+      encodeNumber(currentLat - lastLat, polyLine);
+      encodeNumber(currentLong - lastLong, polyLine);
+      lastLat = currentLat;
+      lastLong = currentLong;
+    }
+    return polyLine;
+  }
+
+  /**
+   * Douglas-Peucker simplification, using an explicit stack so that long routes can't overflow
+   * the call stack. Distances are measured on an equirectangular projection centred on the
+   * first point, which is accurate enough at the scale of a route.
+   *
+   * @return flags marking the points to keep
+   */
+  public static boolean[] simplify(double[] latitudes, double[] longitudes, int count,
+                                   double toleranceM) {
+    boolean[] keep = new boolean[count];
+    if (count == 0) {
+      return keep;
+    }
+    keep[0] = true;
+    keep[count - 1] = true;
+    if (count < 3) {
+      return keep;
+    }
+    double metresPerDegree = Math.toRadians(LocationUtils.EARTH_RADIUS_M);
+    double xScale = metresPerDegree * Math.cos(Math.toRadians(latitudes[0]));
+    double toleranceSquared = toleranceM * toleranceM;
+
+    // pairs of (start, end) indices still to be examined
+    int[] stack = new int[64];
+    int top = 0;
+    stack[top++] = 0;
+    stack[top++] = count - 1;
+    while (top > 0) {
+      int end = stack[--top];
+      int start = stack[--top];
+      double x1 = longitudes[start] * xScale;
+      double y1 = latitudes[start] * metresPerDegree;
+      double dx = longitudes[end] * xScale - x1;
+      double dy = latitudes[end] * metresPerDegree - y1;
+      double lengthSquared = dx * dx + dy * dy;
+
+      double maxDistance = -1;
+      int furthest = -1;
+      for (int i = start + 1; i < end; i++) {
+        double px = longitudes[i] * xScale - x1;
+        double py = latitudes[i] * metresPerDegree - y1;
+        double distance;
+        if (lengthSquared == 0) {
+          distance = px * px + py * py;
+        } else {
+          double t = (px * dx + py * dy) / lengthSquared;
+          if (t < 0) {
+            t = 0;
+          } else if (t > 1) {
+            t = 1;
+          }
+          double ex = px - t * dx;
+          double ey = py - t * dy;
+          distance = ex * ex + ey * ey;
+        }
+        if (distance > maxDistance) {
+          maxDistance = distance;
+          furthest = i;
+        }
+      }
+
+      if (furthest >= 0 && maxDistance > toleranceSquared) {
+        keep[furthest] = true;
+        if (top + 4 > stack.length) {
+          int[] bigger = new int[stack.length * 2];
+          System.arraycopy(stack, 0, bigger, 0, top);
+          stack = bigger;
+        }
+        stack[top++] = start;
+        stack[top++] = furthest;
+        stack[top++] = furthest;
+        stack[top++] = end;
+      }
+    }
+    return keep;
+  }
 
   public static CharSequence encodeNumber(int number) {
+    StringBuilder encoded = new StringBuilder();
+    encodeNumber(number, encoded);
+    return encoded;
+  }
+
+  /**
+   * Appends the encoded number to polyLine
+   */
+  public static void encodeNumber(int number, StringBuilder polyLine) {
 
     int shifted = number << 1;
 
@@ -95,15 +320,13 @@ public class PolyLineUtils {
       shifted = ~shifted;
     }
 
-    StringBuilder encoded = new StringBuilder();
     while (shifted >= 0x20) {
       //while another chunk follows
-      encoded.append((char) ((0x20 | (shifted & 0x1f)) + ASCII_OFFSET));
+      polyLine.append((char) ((0x20 | (shifted & 0x1f)) + ASCII_OFFSET));
       //OR value with 0x20, convert to decimal and add 63
       shifted >>= CHUNK_SIZE; //shift to next chunk
     }
-    encoded.append((char) (shifted + ASCII_OFFSET));
-    return encoded;
+    polyLine.append((char) (shifted + ASCII_OFFSET));
   }
 
   /**
@@ -32,6 +32,8 @@ import java.util.logging.Logger;
 
 public class SimpleCsvLogger {
 
+  private static final double NANOS_PER_SECOND = 1e9;
+
   private String directoryName;
   private String fileName;
   private static final Logger LOGGER = Logger.getLogger(SimpleCsvLogger.class
@@ -103,11 +105,44 @@ public class SimpleCsvLogger {
     StringBuilder headingsBuilder = new StringBuilder();
     headingsBuilder.append(values[0].toString());
     for (int i = 1; i < values.length; i++) {
-      headingsBuilder.append(";" + values[i].toString());
+      headingsBuilder.append(';').append(values[i].toString());
     }
     return headingsBuilder;
   }
 
+  protected synchronized boolean isAppend() {
+    return append;
+  }
+
+  protected synchronized boolean isAddTime() {
+    return addTime;
+  }
+
+  protected synchronized CharSequence getComment() {
+    return comment;
+  }
+
+  /**
+   * @return headings passed to the constructor, excluding time
+   */
+  protected String[] getHeadings() {
+    return userHeadings;
+  }
+
+  /**
+   * @return file that rows are written to
+   */
+  protected File getFile() {
+    return new File(directoryName, fileName);
+  }
+
+  /**
+   * Releases any resources held by the logger. Each row is written and closed immediately, so
+   * there is nothing to do here; subclasses that buffer should flush.
+   */
+  public void close() {
+  }
+
   /**
    * Creates a new output stream to write to the given filename.
    */
@@ -156,7 +191,7 @@ public class SimpleCsvLogger {
       currentTimeStamp = 0;
     } else {
       currentTimeStamp = (System.nanoTime() - timeOffset)
-          / Math.pow(10, 9);
+          / NANOS_PER_SECOND;
     }
 
     StringBuilder outputText = new StringBuilder();
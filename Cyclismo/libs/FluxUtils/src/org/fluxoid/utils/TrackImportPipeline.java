@@ -0,0 +1,298 @@
+package org.fluxoid.utils;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.Reader;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Imports GPX files in three stages: a file is parsed with a
+ * {@link GpxPullParser} on the calling thread, while the points already
+ * parsed are converted on a second thread and written on a third, see
+ * {@link Stages}. Any number of files may be imported at once from different
+ * threads; they share a fixed pool of {@link TrackPointBatch}es, so the points
+ * in flight are bounded however many there are.
+ */
+public class TrackImportPipeline {
+
+  /**
+   * What is done with the points of a file once parsed. Each method is called
+   * on its own thread, for every batch of the file in order.
+   */
+  public interface Stages {
+
+    /**
+     * Converts a batch, attaching the result for {@link #write}.
+     */
+    public abstract void convert(TrackPointBatch batch) throws Exception;
+
+    /**
+     * Writes a converted batch.
+     */
+    public abstract void write(TrackPointBatch batch) throws Exception;
+
+  }
+
+  // Marks the end of a file's batches
+  private static final TrackPointBatch END = new TrackPointBatch(0);
+
+  private final BlockingQueue<TrackPointBatch> pool;
+  private final int batchSize;
+  private final ExecutorService executor = Executors.newCachedThreadPool(new ThreadFactory() {
+    @Override
+    public Thread newThread(Runnable runnable) {
+      Thread thread = new Thread(runnable, TrackImportPipeline.class.getSimpleName());
+      thread.setDaemon(true);
+      return thread;
+    }
+  });
+
+  /**
+   * @param batchSize the points per batch
+   * @param batches the batches shared by all the files being imported
+   */
+  public TrackImportPipeline(int batchSize, int batches) {
+    if (batches < 2) {
+      throw new IllegalArgumentException("need at least two batches");
+    }
+    this.batchSize = batchSize;
+    pool = new ArrayBlockingQueue<TrackPointBatch>(batches);
+    for (int i = 0; i < batches; i++) {
+      pool.add(new TrackPointBatch(batchSize));
+    }
+  }
+
+  public int getBatchSize() {
+    return batchSize;
+  }
+
+  /**
+   * Gets the number of batches not in use by any file.
+   */
+  public int getIdleBatches() {
+    return pool.size();
+  }
+
+  /**
+   * Imports a file, returning once all its batches are written. If any stage
+   * fails the rest of the file is skipped and the failure thrown; it's up to
+   * the stages to roll back what was written.
+   *
+   * @param reader the GPX file
+   * @param stages what to do with its points
+   * @throws IOException if the file can't be parsed, or a stage threw it or a
+   *           checked exception, which is wrapped
+   */
+  public void importFile(Reader reader, Stages stages) throws IOException {
+    final FileImport fileImport = new FileImport(stages);
+    Future<?> converter = executor.submit(new Runnable() {
+      @Override
+      public void run() {
+        fileImport.runConverter();
+      }
+    });
+    Future<?> writer = executor.submit(new Runnable() {
+      @Override
+      public void run() {
+        fileImport.runWriter();
+      }
+    });
+    try {
+      parse(reader, fileImport);
+    } catch (Throwable t) {
+      fileImport.fail(t);
+    } finally {
+      fileImport.converting.add(END);
+    }
+
+    boolean interrupted = false;
+    while (true) {
+      try {
+        converter.get();
+        writer.get();
+        break;
+      } catch (InterruptedException e) {
+        // the stages stop on their own once they see the failure
+        interrupted = true;
+        fileImport.fail(e);
+      } catch (ExecutionException e) {
+        fileImport.fail(e.getCause());
+      }
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+
+    Throwable failure = fileImport.failure;
+    if (failure == null) {
+      return;
+    }
+    if (failure instanceof IOException) {
+      throw (IOException) failure;
+    }
+    if (failure instanceof InterruptedException) {
+      InterruptedIOException exception = new InterruptedIOException("Import interrupted.");
+      exception.initCause(failure);
+      throw exception;
+    }
+    if (failure instanceof RuntimeException) {
+      throw (RuntimeException) failure;
+    }
+    if (failure instanceof Error) {
+      throw (Error) failure;
+    }
+    throw new IOException(failure);
+  }
+
+  /**
+   * Stops the threads once the files being imported are done.
+   */
+  public void shutdown() {
+    executor.shutdown();
+  }
+
+  private void parse(Reader reader, FileImport fileImport) throws IOException,
+      InterruptedException {
+    GpxPullParser parser = new GpxPullParser(reader);
+    TrackPointBatch batch = null;
+    int track = -1;
+    boolean isSegmentStart = false;
+    try {
+      int event;
+      while ((event = parser.next()) != GpxPullParser.END_DOCUMENT) {
+        switch (event) {
+          case GpxPullParser.TRACK:
+            track++;
+            isSegmentStart = false;
+            batch = pool.take();
+            batch.reset(track, true);
+            break;
+          case GpxPullParser.SEGMENT:
+            isSegmentStart = true;
+            break;
+          case GpxPullParser.POINT:
+            if (batch.isFull()) {
+              if (fileImport.failure != null) {
+                return;
+              }
+              fileImport.converting.add(batch);
+              batch = null;
+              batch = pool.take();
+              batch.reset(track, false);
+            }
+            batch.add(parser.getLatitude(), parser.getLongitude(), parser.getAltitude(),
+                parser.getTime(), isSegmentStart);
+            isSegmentStart = false;
+            break;
+          case GpxPullParser.END_TRACK:
+            batch.endTrack(parser.getName(), parser.getDescription());
+            fileImport.converting.add(batch);
+            batch = null;
+            if (fileImport.failure != null) {
+              return;
+            }
+            break;
+          default:
+            break;
+        }
+      }
+    } finally {
+      if (batch != null) {
+        recycle(batch);
+      }
+    }
+  }
+
+  private void recycle(TrackPointBatch batch) {
+    pool.add(batch);
+  }
+
+  /**
+   * The state of one file going through the pipeline.
+   */
+  private class FileImport {
+    private final Stages stages;
+    private final BlockingQueue<TrackPointBatch> converting =
+        new LinkedBlockingQueue<TrackPointBatch>();
+    private final BlockingQueue<TrackPointBatch> writing =
+        new LinkedBlockingQueue<TrackPointBatch>();
+    private volatile Throwable failure;
+
+    public FileImport(Stages stages) {
+      this.stages = stages;
+    }
+
+    public synchronized void fail(Throwable t) {
+      if (failure == null) {
+        failure = t;
+      }
+    }
+
+    public void runConverter() {
+      while (true) {
+        TrackPointBatch batch = takeUninterruptibly(converting);
+        if (batch == END) {
+          writing.add(END);
+          return;
+        }
+        if (failure == null) {
+          try {
+            stages.convert(batch);
+          } catch (Throwable t) {
+            fail(t);
+          }
+        }
+        if (failure == null) {
+          writing.add(batch);
+        } else {
+          recycle(batch);
+        }
+      }
+    }
+
+    public void runWriter() {
+      while (true) {
+        TrackPointBatch batch = takeUninterruptibly(writing);
+        if (batch == END) {
+          return;
+        }
+        if (failure == null) {
+          try {
+            stages.write(batch);
+          } catch (Throwable t) {
+            fail(t);
+          }
+        }
+        recycle(batch);
+      }
+    }
+  }
+
+  /**
+   * Takes from a queue that is sure to be fed, so every batch taken from the
+   * pool finds its way back whatever happens.
+   */
+  private static TrackPointBatch takeUninterruptibly(BlockingQueue<TrackPointBatch> queue) {
+    boolean interrupted = false;
+    try {
+      while (true) {
+        try {
+          return queue.take();
+        } catch (InterruptedException e) {
+          interrupted = true;
+        }
+      }
+    } finally {
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+}
@@ -0,0 +1,146 @@
+package org.fluxoid.utils;
+
+/**
+ * A run of points from one track, handed from stage to stage of a
+ * {@link TrackImportPipeline}. Batches are recycled once written, so a stage
+ * must not keep hold of one or of its attachment.
+ */
+public class TrackPointBatch {
+
+  private final double[] latitudes;
+  private final double[] longitudes;
+  private final double[] altitudes;
+  private final long[] times;
+  private final boolean[] segmentStarts;
+  private int size;
+
+  private int track;
+  private boolean isTrackStart;
+  private boolean isTrackEnd;
+  private String name;
+  private String description;
+
+  private Object attachment;
+
+  public TrackPointBatch(int capacity) {
+    latitudes = new double[capacity];
+    longitudes = new double[capacity];
+    altitudes = new double[capacity];
+    times = new long[capacity];
+    segmentStarts = new boolean[capacity];
+  }
+
+  /**
+   * Empties the batch for the given track of a file.
+   *
+   * @param track the index of the track in its file
+   * @param isTrackStart true if the batch starts the track
+   */
+  void reset(int track, boolean isTrackStart) {
+    this.track = track;
+    this.isTrackStart = isTrackStart;
+    isTrackEnd = false;
+    name = null;
+    description = null;
+    size = 0;
+  }
+
+  void add(double latitude, double longitude, double altitude, long time,
+      boolean isSegmentStart) {
+    latitudes[size] = latitude;
+    longitudes[size] = longitude;
+    altitudes[size] = altitude;
+    times[size] = time;
+    segmentStarts[size] = isSegmentStart;
+    size++;
+  }
+
+  void endTrack(String name, String description) {
+    isTrackEnd = true;
+    this.name = name;
+    this.description = description;
+  }
+
+  public boolean isFull() {
+    return size == latitudes.length;
+  }
+
+  public int getCapacity() {
+    return latitudes.length;
+  }
+
+  public int getSize() {
+    return size;
+  }
+
+  public double getLatitude(int i) {
+    return latitudes[i];
+  }
+
+  public double getLongitude(int i) {
+    return longitudes[i];
+  }
+
+  /**
+   * Gets the elevation of a point in metres, or NaN if it has none.
+   */
+  public double getAltitude(int i) {
+    return altitudes[i];
+  }
+
+  /**
+   * Gets the time of a point in milliseconds, or -1 if it has none.
+   */
+  public long getTime(int i) {
+    return times[i];
+  }
+
+  /**
+   * Returns true if a point is the first of its segment.
+   */
+  public boolean isSegmentStart(int i) {
+    return segmentStarts[i];
+  }
+
+  /**
+   * Gets the index of the track in its file.
+   */
+  public int getTrack() {
+    return track;
+  }
+
+  /**
+   * Returns true if the batch is the first of its track.
+   */
+  public boolean isTrackStart() {
+    return isTrackStart;
+  }
+
+  /**
+   * Returns true if the batch is the last of its track, in which case the
+   * track's name and description are set.
+   */
+  public boolean isTrackEnd() {
+    return isTrackEnd;
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public String getDescription() {
+    return description;
+  }
+
+  /**
+   * Gets what a stage attached to the batch, e.g. the points it converted for
+   * the next stage. It stays with the batch when it's recycled, for reuse.
+   */
+  public Object getAttachment() {
+    return attachment;
+  }
+
+  public void setAttachment(Object attachment) {
+    this.attachment = attachment;
+  }
+}
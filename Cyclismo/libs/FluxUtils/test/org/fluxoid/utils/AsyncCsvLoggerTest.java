@@ -0,0 +1,167 @@
+package org.fluxoid.utils;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class AsyncCsvLoggerTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private List<String> readLines(File file) throws IOException {
+    return Files.readAllLines(file.toPath(), Charset.forName("UTF-8"));
+  }
+
+  @Test
+  public void writesHeadingsAndRows() throws IOException {
+    File file = new File(folder.getRoot(), "log.csv");
+    AsyncCsvLogger log = new AsyncCsvLogger(file, "power", "speed");
+    log.addTime(false);
+    log.setComment("comment");
+    log.update("power", 2.);
+    log.update("power", 5.);
+    log.update("speed", 10);
+    log.update(7.25, -3);
+    log.update(-0.5, "text");
+    log.close();
+
+    List<String> lines = readLines(file);
+    assertEquals("", lines.get(0));
+    assertEquals("comment", lines.get(1));
+    assertEquals("power;speed", lines.get(2));
+    assertEquals("5.0;10", lines.get(3));
+    assertEquals("7.25;-3", lines.get(4));
+    assertEquals("-0.5;text", lines.get(5));
+    assertEquals(6, lines.size());
+  }
+
+  @Test
+  public void prefixesTime() throws IOException {
+    File file = new File(folder.getRoot(), "time.csv");
+    AsyncCsvLogger log = new AsyncCsvLogger(file, "power");
+    log.update(1.0);
+    log.update(2.0);
+    log.close();
+
+    List<String> lines = readLines(file);
+    assertEquals("time;power", lines.get(2));
+    assertEquals("0.0;1.0", lines.get(3));
+    String[] second = lines.get(4).split(";");
+    assertTrue(Double.parseDouble(second[0]) >= 0);
+    assertEquals("2.0", second[1]);
+  }
+
+  @Test
+  public void reopensInAppendModeAfterClose() throws IOException {
+    File file = new File(folder.getRoot(), "reopen.csv");
+    AsyncCsvLogger log = new AsyncCsvLogger(file, "power");
+    log.addTime(false);
+    log.append(false);
+    log.update(1.0);
+    log.close();
+    log.update(2.0);
+    log.close();
+
+    List<String> lines = readLines(file);
+    assertEquals("1.0", lines.get(3));
+    assertEquals("2.0", lines.get(7));
+  }
+
+  @Test
+  public void manyRowsAreWrittenInOrder() throws IOException {
+    File file = new File(folder.getRoot(), "many.csv");
+    AsyncCsvLogger log = new AsyncCsvLogger(file, "index");
+    log.addTime(false);
+    log.setCapacity(64);
+    final int rows = 100000;
+    for (int i = 0; i < rows; i++) {
+      log.update(i);
+    }
+    log.close();
+
+    List<String> lines = readLines(file);
+    // blank line, comment line and headings
+    assertEquals(rows - log.getDroppedRows(), lines.size() - 3);
+    long last = -1;
+    for (int i = 3; i < lines.size(); i++) {
+      long value = Long.parseLong(lines.get(i));
+      assertTrue(value > last);
+      last = value;
+    }
+  }
+
+  @Test
+  public void idleWriterIsWokenByUpdate() throws Exception {
+    File file = new File(folder.getRoot(), "idle.csv");
+    AsyncCsvLogger log = new AsyncCsvLogger(file, "power");
+    log.addTime(false);
+    log.setFlushInterval(0);
+    log.update(1.0);
+    // long enough for the writer to run out of rows and park
+    Thread.sleep(100);
+    log.update(2.0);
+
+    long deadline = System.currentTimeMillis() + 5000;
+    List<String> lines = readLines(file);
+    while (lines.size() < 5 && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+      lines = readLines(file);
+    }
+    log.close();
+    assertEquals(5, lines.size());
+    assertEquals("2.0", lines.get(4));
+  }
+
+  @Test
+  public void binaryColumns() throws IOException {
+    File file = new File(folder.getRoot(), "log.bin");
+    AsyncCsvLogger log = new AsyncCsvLogger(file, "power", "speed");
+    log.addTime(false);
+    log.binary(true);
+    log.setCapacity(4);
+    for (int i = 0; i < 3; i++) {
+      log.update(i * 1.5, i);
+    }
+    log.close();
+
+    DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+    try {
+      assertEquals(AsyncCsvLogger.BINARY_MAGIC, in.readInt());
+      assertEquals(2, in.readShort());
+      assertEquals("power", in.readUTF());
+      assertEquals("speed", in.readUTF());
+      int rows = in.readInt();
+      assertEquals(3, rows);
+      for (int i = 0; i < rows; i++) {
+        assertEquals(i * 1.5, in.readDouble(), 0.0);
+      }
+      for (int i = 0; i < rows; i++) {
+        assertEquals(i, in.readDouble(), 0.0);
+      }
+      assertEquals(-1, in.read());
+    } finally {
+      in.close();
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void unknownHeading() {
+    AsyncCsvLogger log = new AsyncCsvLogger(new File(folder.getRoot(), "x.csv"), "power");
+    log.update("speed", 1.0);
+  }
+
+}
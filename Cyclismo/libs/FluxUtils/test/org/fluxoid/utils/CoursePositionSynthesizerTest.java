@@ -0,0 +1,214 @@
+package org.fluxoid.utils;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class CoursePositionSynthesizerTest {
+
+  private static final double DELTA = 1e-9;
+  private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+  private static final long PERIOD_MS = 50;
+  private static final long RIDE_MS = 2000;
+
+  /**
+   * Records the positions it's passed.
+   */
+  private static class RecordingListener implements CoursePositionSynthesizer.PositionListener {
+    final List<double[]> positions = new ArrayList<double[]>();
+    final List<Long> times = new ArrayList<Long>();
+
+    @Override
+    public synchronized void onPosition(double latitude, double longitude, double altitude,
+        double distance, double speed) {
+      positions.add(new double[] {latitude, longitude, altitude, distance, speed});
+      times.add(System.nanoTime());
+    }
+
+    synchronized double[] last() {
+      return positions.get(positions.size() - 1);
+    }
+  }
+
+  /**
+   * Three points due north, 100 m apart on the flat.
+   */
+  private List<LatLongAlt> createCourse() {
+    List<LatLongAlt> points = new ArrayList<LatLongAlt>();
+    LatLongAlt start = new LatLongAlt(50.0, 5.0, 10.0);
+    double degrees = Math.toDegrees(100.0 / LocationUtils.EARTH_RADIUS_M);
+    points.add(start);
+    points.add(new LatLongAlt(50.0 + degrees, 5.0, 10.0));
+    points.add(new LatLongAlt(50.0 + 2 * degrees, 5.0, 10.0));
+    return points;
+  }
+
+  @Test
+  public void startsAtTheStartOfTheCourse() {
+    CoursePositionSynthesizer synthesizer = new CoursePositionSynthesizer(createCourse());
+    RecordingListener listener = new RecordingListener();
+    synthesizer.update(0.0, 0.0, SECOND);
+    synthesizer.synthesize(SECOND, listener);
+    assertEquals(50.0, listener.last()[0], DELTA);
+    assertEquals(5.0, listener.last()[1], DELTA);
+    assertEquals(0.0, listener.last()[3], DELTA);
+  }
+
+  @Test
+  public void interpolatesBetweenPoints() {
+    List<LatLongAlt> course = createCourse();
+    CoursePositionSynthesizer synthesizer = new CoursePositionSynthesizer(course);
+    RecordingListener listener = new RecordingListener();
+    synthesizer.update(150.0, 0.0, SECOND);
+    synthesizer.synthesize(SECOND, listener);
+    double[] position = listener.last();
+    assertEquals(150.0, position[3], DELTA);
+    double expected = (course.get(1).getLatitude() + course.get(2).getLatitude()) / 2;
+    assertEquals(expected, position[0], 1e-7);
+    assertEquals(5.0, position[1], DELTA);
+    assertEquals(10.0, position[2], DELTA);
+  }
+
+  @Test
+  public void extrapolatesAtTheReportedSpeed() {
+    CoursePositionSynthesizer synthesizer = new CoursePositionSynthesizer(createCourse());
+    RecordingListener listener = new RecordingListener();
+    synthesizer.update(20.0, 10.0, SECOND);
+    synthesizer.synthesize(SECOND + SECOND / 2, listener);
+    assertEquals(25.0, listener.last()[3], DELTA);
+    assertEquals(10.0, listener.last()[4], DELTA);
+
+    // Not past the last report by more than two seconds
+    synthesizer.synthesize(SECOND * 3, listener);
+    assertEquals(40.0, listener.last()[3], DELTA);
+  }
+
+  @Test
+  public void stopsWithoutReports() {
+    CoursePositionSynthesizer synthesizer = new CoursePositionSynthesizer(createCourse());
+    RecordingListener listener = new RecordingListener();
+    synthesizer.synthesize(SECOND, listener);
+    assertTrue(listener.positions.isEmpty());
+
+    synthesizer.update(20.0, 10.0, SECOND);
+    synthesizer.synthesize(SECOND * 2, listener);
+    assertEquals(1, listener.positions.size());
+
+    // The trainer stopped reporting
+    synthesizer.synthesize(SECOND + CoursePositionSynthesizer.MAX_EXTRAPOLATION_NANOS + 1,
+        listener);
+    assertEquals(1, listener.positions.size());
+
+    synthesizer.update(40.0, 10.0, SECOND * 10);
+    synthesizer.synthesize(SECOND * 10, listener);
+    assertEquals(2, listener.positions.size());
+    assertEquals(40.0, listener.last()[3], DELTA);
+  }
+
+  @Test
+  public void neverGoesBackOrPastTheEnd() {
+    CoursePositionSynthesizer synthesizer = new CoursePositionSynthesizer(createCourse());
+    RecordingListener listener = new RecordingListener();
+    synthesizer.update(50.0, 10.0, SECOND);
+    synthesizer.synthesize(2 * SECOND, listener);
+    assertEquals(60.0, listener.last()[3], DELTA);
+
+    // The trainer's distance lags the extrapolated one
+    synthesizer.update(55.0, 10.0, 2 * SECOND);
+    synthesizer.synthesize(2 * SECOND, listener);
+    assertEquals(60.0, listener.last()[3], DELTA);
+
+    synthesizer.update(500.0, 10.0, 3 * SECOND);
+    synthesizer.synthesize(3 * SECOND, listener);
+    assertEquals(200.0, listener.last()[3], 1e-6);
+    assertEquals(createCourse().get(2).getLatitude(), listener.last()[0], DELTA);
+  }
+
+  @Test
+  public void synthesizesWithoutAllocating() {
+    ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+    Assume.assumeTrue(threadBean instanceof com.sun.management.ThreadMXBean);
+    com.sun.management.ThreadMXBean allocationBean = (com.sun.management.ThreadMXBean) threadBean;
+    Assume.assumeTrue(allocationBean.isThreadAllocatedMemorySupported());
+
+    CoursePositionSynthesizer synthesizer = new CoursePositionSynthesizer(createCourse());
+    CoursePositionSynthesizer.PositionListener listener =
+        new CoursePositionSynthesizer.PositionListener() {
+          @Override
+          public void onPosition(double latitude, double longitude, double altitude,
+              double distance, double speed) {
+            // Nothing to record
+          }
+        };
+    synthesizer.update(0.0, 0.01, SECOND);
+    // Warm up, so that nothing is allocated compiling it
+    for (int i = 0; i < 100000; i++) {
+      synthesizer.synthesize(SECOND + i * 1000L, listener);
+    }
+    long threadId = Thread.currentThread().getId();
+    long before = allocationBean.getThreadAllocatedBytes(threadId);
+    for (int i = 0; i < 100000; i++) {
+      synthesizer.update(i * 0.001, 0.01, SECOND + i * 1000L);
+      synthesizer.synthesize(SECOND + i * 1000L, listener);
+    }
+    long allocated = allocationBean.getThreadAllocatedBytes(threadId) - before;
+    // Allow for the measurement itself
+    assertTrue("allocated " + allocated + " bytes", allocated < 1024);
+  }
+
+  /**
+   * Rides the course with a simulated trainer reporting at two very different rates, and checks
+   * the positions come at the same fixed rate, evenly spaced.
+   */
+  @Test
+  public void rateDoesNotDependOnTheTrainer() throws InterruptedException {
+    int slow = countPositions(1000);
+    int fast = countPositions(10);
+    long expected = RIDE_MS / PERIOD_MS;
+    assertTrue("slow trainer gave " + slow, Math.abs(slow - expected) <= expected / 5);
+    assertTrue("fast trainer gave " + fast, Math.abs(fast - expected) <= expected / 5);
+  }
+
+  /**
+   * Rides the course for {@link #RIDE_MS}, a simulated trainer reporting at a steady speed.
+   * Checks the positions move forward with no more jitter than a period.
+   *
+   * @param reportIntervalMs the time between reports from the trainer
+   * @return the number of positions
+   */
+  private int countPositions(long reportIntervalMs) throws InterruptedException {
+    CoursePositionSynthesizer synthesizer = new CoursePositionSynthesizer(createCourse());
+    RecordingListener listener = new RecordingListener();
+    double speed = 50.0;
+    long start = System.nanoTime();
+    synthesizer.update(0.0, speed);
+    synthesizer.start(PERIOD_MS, listener);
+    long end = start + TimeUnit.MILLISECONDS.toNanos(RIDE_MS);
+    long now;
+    while ((now = System.nanoTime()) < end) {
+      Thread.sleep(Math.min(reportIntervalMs, TimeUnit.NANOSECONDS.toMillis(end - now) + 1));
+      synthesizer.update(Math.min(speed * (System.nanoTime() - start) / 1E9, 200.0), speed);
+    }
+    synthesizer.stop();
+
+    synchronized (listener) {
+      long periodNanos = TimeUnit.MILLISECONDS.toNanos(PERIOD_MS);
+      long maxJitter = 0;
+      for (int i = 1; i < listener.times.size(); i++) {
+        long expected = listener.times.get(0) + i * periodNanos;
+        maxJitter = Math.max(maxJitter, Math.abs(listener.times.get(i) - expected));
+        assertTrue(listener.positions.get(i)[3] >= listener.positions.get(i - 1)[3]);
+      }
+      assertTrue("jitter " + maxJitter + "ns", maxJitter < periodNanos);
+      return listener.positions.size();
+    }
+  }
+}
@@ -0,0 +1,182 @@
+package org.fluxoid.utils;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Calendar;
+import java.util.Locale;
+import java.util.Random;
+import java.util.TimeZone;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+
+public class GpxPullParserTest {
+
+  private static final String GPX = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+      + "<!-- exported -- by hand -->\n"
+      + "<gpx xmlns=\"http://www.topografix.com/GPX/1/1\" version=\"1.1\">\n"
+      + "  <metadata><name>not a track</name></metadata>\n"
+      + "  <wpt lat=\"1\" lon=\"2\"><name>waypoint</name></wpt>\n"
+      + "  <trk>\n"
+      + "    <name><![CDATA[Ride & <back>]]></name>\n"
+      + "    <desc>Fish &amp; chips &#x263A;</desc>\n"
+      + "    <trkseg>\n"
+      + "      <trkpt lat=\"51.5\" lon='-0.125'><ele>12.5</ele>"
+      + "<time>2013-04-21T09:15:02Z</time><name>point</name></trkpt>\n"
+      + "      <trkpt lon=\"-0.126\" lat=\" 51.501 \"><time>2013-04-21T09:15:03.25+01:00</time>"
+      + "<extensions><gpxtpx:hr xmlns:gpxtpx=\"x\">120</gpxtpx:hr></extensions></trkpt>\n"
+      + "    </trkseg>\n"
+      + "    <trkseg/>\n"
+      + "    <gpx:trkseg xmlns:gpx=\"http://www.topografix.com/GPX/1/1\">"
+      + "<gpx:trkpt lat=\"1E-3\" lon=\"2\"/></gpx:trkseg>\n"
+      + "  </trk>\n"
+      + "  <trk/>\n"
+      + "</gpx>\n";
+
+  @Test
+  public void events() throws IOException {
+    GpxPullParser parser = new GpxPullParser(new StringReader(GPX));
+    assertEquals(GpxPullParser.TRACK, parser.next());
+    assertEquals(GpxPullParser.SEGMENT, parser.next());
+
+    assertEquals(GpxPullParser.POINT, parser.next());
+    assertEquals(51.5, parser.getLatitude(), 0.0);
+    assertEquals(-0.125, parser.getLongitude(), 0.0);
+    assertEquals(12.5, parser.getAltitude(), 0.0);
+    assertEquals(getTime(2013, 4, 21, 9, 15, 2), parser.getTime());
+
+    assertEquals(GpxPullParser.POINT, parser.next());
+    assertEquals(51.501, parser.getLatitude(), 0.0);
+    assertEquals(-0.126, parser.getLongitude(), 0.0);
+    assertTrue(Double.isNaN(parser.getAltitude()));
+    assertEquals(getTime(2013, 4, 21, 8, 15, 3) + 250, parser.getTime());
+
+    assertEquals(GpxPullParser.SEGMENT, parser.next());
+    assertEquals(GpxPullParser.SEGMENT, parser.next());
+    assertEquals(GpxPullParser.POINT, parser.next());
+    assertEquals(0.001, parser.getLatitude(), 0.0);
+    assertEquals(-1L, parser.getTime());
+
+    assertEquals(GpxPullParser.END_TRACK, parser.next());
+    assertEquals("Ride & <back>", parser.getName());
+    assertEquals("Fish & chips ☺", parser.getDescription());
+
+    assertEquals(GpxPullParser.TRACK, parser.next());
+    assertEquals(GpxPullParser.END_TRACK, parser.next());
+    assertNull(parser.getName());
+    assertEquals(GpxPullParser.END_DOCUMENT, parser.next());
+  }
+
+  @Test
+  public void encoding() throws IOException {
+    String gpx = "<?xml version='1.0' encoding='ISO-8859-1'?><gpx><trk><name>café</name>"
+        + "</trk></gpx>";
+    GpxPullParser parser = new GpxPullParser(
+        GpxPullParser.newReader(new ByteArrayInputStream(gpx.getBytes("ISO-8859-1"))));
+    parser.next();
+    parser.next();
+    assertEquals("café", parser.getName());
+  }
+
+  @Test
+  public void errors() {
+    assertError("<gpx><trk><trkseg><trkpt lat=\"1\"></trkpt></trkseg></trk></gpx>",
+        "Point with no longitude or latitude.");
+    assertError("<gpx><trk><trkseg><trkpt lat=\"north\" lon=\"1\">",
+        "Unable to parse latitude/longitude: north");
+    assertError("<gpx><trk><trkseg><trkpt lat=\"1\" lon=\"1\"><time>yesterday</time>",
+        "Unable to parse time: yesterday");
+    assertError("<gpx><trk><trkseg><trkpt lat=\"1\" lon=\"1\"><ele>high</ele>",
+        "Unable to parse altitude: high");
+    assertError("<gpx><trk><trk>", "Already inside a track.");
+    assertError("<gpx><trk><trkseg><trkpt lat=\"1\" lon=\"1\">\n<trkpt lat=\"1\" lon=\"1\">",
+        "line: 2 column: 7. Found a track point inside another one.");
+    assertError("<gpx><trk><trkseg><trkpt lat=\"1\" lon=\"1\"/>", "Unexpected end of document");
+  }
+
+  @Test
+  public void parseDouble() {
+    Random random = new Random(7);
+    for (int i = 0; i < 100000; i++) {
+      double value = (random.nextDouble() - 0.5) * Math.pow(10, random.nextInt(8));
+      String text = i % 2 == 0 ? Double.toString(value)
+          : String.format(Locale.US, "%." + random.nextInt(12) + "f", value);
+      assertEquals(text, Double.parseDouble(text), parse(text), 0.0);
+    }
+    for (String text : new String[] {"0", "-0.0", "+3", "12345678901234567890.5", "1e5",
+        "0.30000000000000004", "51.000000000000000000000001", "NaN"}) {
+      assertEquals(text, Double.parseDouble(text), parse(text), 0.0);
+    }
+    for (String text : new String[] {"", "-", ".", "1.2.3", "1,5"}) {
+      try {
+        parse(text);
+        fail(text);
+      } catch (NumberFormatException e) {
+        // expected
+      }
+    }
+  }
+
+  @Test
+  public void parseTime() {
+    assertEquals(0L, parseTime("1970-01-01T00:00:00Z"));
+    assertEquals(0L, parseTime("1970-01-01T00:00:00"));
+    assertEquals(-1000L, parseTime("1969-12-31T23:59:59.000"));
+    assertEquals(getTime(2000, 2, 29, 23, 0, 0) + 120,
+        parseTime("2000-03-01T00:00:00.12+01:00"));
+    assertEquals(getTime(2013, 12, 31, 14, 30, 0) + 999,
+        parseTime("2013-12-31T09:00:00.9999-05:30"));
+    Random random = new Random(5);
+    for (int i = 0; i < 10000; i++) {
+      int year = 1900 + random.nextInt(300);
+      int month = 1 + random.nextInt(12);
+      int day = 1 + random.nextInt(28);
+      String text = String.format(Locale.US, "%04d-%02d-%02dT12:34:56Z", year, month, day);
+      assertEquals(text, getTime(year, month, day, 12, 34, 56), parseTime(text));
+    }
+    for (String text : new String[] {"2013-04-21", "2013-04-21 09:15:02", "2013-13-01T00:00:00",
+        "2013-04-21T09:15:02.", "2013-04-21T09:15:02+1:00", "2013-04-21T09:15:02+15:00",
+        "2013-04-21T09:15:02Zulu"}) {
+      try {
+        parseTime(text);
+        fail(text);
+      } catch (IllegalArgumentException e) {
+        // expected
+      }
+    }
+  }
+
+  private static void assertError(String gpx, String message) {
+    GpxPullParser parser = new GpxPullParser(new StringReader(gpx));
+    try {
+      while (parser.next() != GpxPullParser.END_DOCUMENT) {
+        // skip
+      }
+      fail(gpx);
+    } catch (IOException e) {
+      assertTrue(e.getMessage(), e.getMessage().startsWith("Parsing error at line: "));
+      assertTrue(e.getMessage(), e.getMessage().contains(message));
+    }
+  }
+
+  private static double parse(String text) {
+    return GpxPullParser.parseDouble(text.toCharArray(), 0, text.length());
+  }
+
+  private static long parseTime(String text) {
+    return GpxPullParser.parseTime(text.toCharArray(), 0, text.length());
+  }
+
+  private static long getTime(int year, int month, int day, int hour, int minute, int second) {
+    Calendar calendar = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+    calendar.clear();
+    calendar.set(year, month - 1, day, hour, minute, second);
+    return calendar.getTimeInMillis();
+  }
+}
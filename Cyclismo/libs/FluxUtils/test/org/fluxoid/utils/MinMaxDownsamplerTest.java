@@ -0,0 +1,310 @@
+package org.fluxoid.utils;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+
+public class MinMaxDownsamplerTest {
+
+  private static final int COLUMNS = 6;
+  private static final int MAX_BUCKETS = 512;
+
+  @Test
+  public void fewPointsUnchanged() {
+    MinMaxDownsampler downsampler = new MinMaxDownsampler(1, MAX_BUCKETS);
+    assertTrue(downsampler.isEmpty());
+    double[] ys = {3, 1, 4, 1, 5};
+    for (int i = 0; i < ys.length; i++) {
+      downsampler.add(i, ys, i);
+    }
+    assertEquals(0.0, downsampler.getBucketWidth(), 0.0);
+    double[] xsOut = new double[downsampler.getMaxPoints()];
+    double[] ysOut = new double[downsampler.getMaxPoints()];
+    assertEquals(ys.length, downsampler.getPoints(0, 0, xsOut, ysOut));
+    for (int i = 0; i < ys.length; i++) {
+      assertEquals(i, xsOut[i], 0.0);
+      assertEquals(ys[i], ysOut[i], 0.0);
+    }
+    assertEquals(5.0, downsampler.getLastValue(0), 0.0);
+    assertEquals(4.0, downsampler.getLastX(), 0.0);
+  }
+
+  @Test
+  public void missingValues() {
+    MinMaxDownsampler downsampler = new MinMaxDownsampler(2, MAX_BUCKETS);
+    downsampler.add(0, new double[] {1, Double.NaN}, 0);
+    downsampler.add(1, new double[] {Double.NaN, Double.NaN}, 0);
+    downsampler.add(2, new double[] {2, 7}, 0);
+    double[] xs = new double[downsampler.getMaxPoints()];
+    double[] ys = new double[downsampler.getMaxPoints()];
+    assertEquals(2, downsampler.getPoints(0, 0, xs, ys));
+    assertEquals(1, downsampler.getPoints(1, 0, xs, ys));
+    assertEquals(2.0, xs[0], 0.0);
+    assertEquals(7.0, ys[0], 0.0);
+
+    downsampler.add(3, new double[] {Double.NaN, Double.NaN}, 0);
+    assertTrue(Double.isNaN(downsampler.getLastValue(0)));
+    downsampler.clear();
+    assertTrue(downsampler.isEmpty());
+    assertEquals(0, downsampler.getPoints(0, 0, xs, ys));
+  }
+
+  @Test
+  public void bucketCountBounded() {
+    MinMaxDownsampler downsampler = new MinMaxDownsampler(COLUMNS, MAX_BUCKETS);
+    double[] values = new double[COLUMNS];
+    for (int i = 0; i < 100000; i++) {
+      downsampler.add(i * 0.01, values, 0);
+      assertTrue(downsampler.getBucketCount() <= MAX_BUCKETS);
+    }
+    assertTrue(downsampler.getBucketCount() >= MAX_BUCKETS / 4);
+    assertEquals(100000, downsampler.getPointCount());
+  }
+
+  /**
+   * Every pixel column must have the same minimum and maximum as the raw data,
+   * and the first and last points must be kept. Fixed stride sampling, as
+   * used to feed the charts, is measured for comparison.
+   */
+  @Test
+  public void fidelity() {
+    List<double[]> raw = createTrack(100000, new Random(42));
+    MinMaxDownsampler downsampler = new MinMaxDownsampler(COLUMNS, MAX_BUCKETS);
+    for (double[] point : raw) {
+      downsampler.add(point[0], point, 1);
+    }
+    double resolution = 4 * downsampler.getBucketWidth();
+    double[] xs = new double[downsampler.getMaxPoints()];
+    double[] ys = new double[downsampler.getMaxPoints()];
+    double maxStrideError = 0;
+
+    for (int c = 0; c < COLUMNS; c++) {
+      int n = downsampler.getPoints(c, resolution, xs, ys);
+      assertTrue(n <= 4 * (raw.get(raw.size() - 1)[0] / resolution + 1));
+      double[] first = null;
+      double[] last = null;
+      for (double[] point : raw) {
+        if (!Double.isNaN(point[c + 1])) {
+          first = first == null ? point : first;
+          last = point;
+        }
+      }
+      assertEquals(first[0], xs[0], 0.0);
+      assertEquals(first[c + 1], ys[0], 0.0);
+      assertEquals(last[0], xs[n - 1], 0.0);
+      assertEquals(last[c + 1], ys[n - 1], 0.0);
+      for (int i = 1; i < n; i++) {
+        assertTrue(xs[i] >= xs[i - 1]);
+      }
+
+      List<double[]> drawn = new ArrayList<double[]>();
+      List<double[]> strided = new ArrayList<double[]>();
+      int stride = raw.size() / n + 1;
+      for (int i = 0; i < n; i++) {
+        drawn.add(new double[] {xs[i], ys[i]});
+      }
+      for (int i = 0; i < raw.size(); i += stride) {
+        if (!Double.isNaN(raw.get(i)[c + 1])) {
+          strided.add(new double[] {raw.get(i)[0], raw.get(i)[c + 1]});
+        }
+      }
+      double error = getEnvelopeError(raw, c, drawn, resolution);
+      double strideError = getEnvelopeError(raw, c, strided, resolution);
+      System.out.println(String.format("column %d: %d points, envelope error %.4f, "
+          + "stride sampled %d points, envelope error %.4f", c, n, error, strided.size(),
+          strideError));
+      assertEquals(0.0, error, 1E-9);
+      maxStrideError = Math.max(maxStrideError, strideError);
+    }
+    // The spikes are lost
+    assertTrue(maxStrideError > 0.5);
+  }
+
+  /**
+   * Adding points as they arrive gives the same result as adding them all at
+   * once, whatever the batch size.
+   */
+  @Test
+  public void incremental() {
+    List<double[]> raw = createTrack(20000, new Random(7));
+    MinMaxDownsampler all = new MinMaxDownsampler(COLUMNS, MAX_BUCKETS);
+    MinMaxDownsampler live = new MinMaxDownsampler(COLUMNS, MAX_BUCKETS);
+    double[] xs = new double[4 * MAX_BUCKETS];
+    double[] ys = new double[4 * MAX_BUCKETS];
+    for (double[] point : raw) {
+      all.add(point[0], point, 1);
+    }
+    Random random = new Random(0);
+    int i = 0;
+    while (i < raw.size()) {
+      int end = Math.min(raw.size(), i + 1 + random.nextInt(100));
+      for (; i < end; i++) {
+        live.add(raw.get(i)[0], raw.get(i), 1);
+      }
+      // Drawn between batches
+      live.getPoints(0, 1.0, xs, ys);
+    }
+    double[] xsAll = new double[4 * MAX_BUCKETS];
+    double[] ysAll = new double[4 * MAX_BUCKETS];
+    for (int c = 0; c < COLUMNS; c++) {
+      int n = all.getPoints(c, 0, xsAll, ysAll);
+      assertEquals(n, live.getPoints(c, 0, xs, ys));
+      for (int j = 0; j < n; j++) {
+        assertEquals(xsAll[j], xs[j], 0.0);
+        assertEquals(ysAll[j], ys[j], 0.0);
+      }
+    }
+  }
+
+  @Test
+  public void outOfOrder() {
+    MinMaxDownsampler downsampler = new MinMaxDownsampler(1, MAX_BUCKETS);
+    downsampler.add(2, new double[] {1}, 0);
+    downsampler.add(1, new double[] {5}, 0);
+    downsampler.add(Double.NaN, new double[] {9}, 0);
+    double[] xs = new double[downsampler.getMaxPoints()];
+    double[] ys = new double[downsampler.getMaxPoints()];
+    assertEquals(2, downsampler.getPoints(0, 0, xs, ys));
+    assertEquals(2.0, xs[1], 0.0);
+    assertEquals(5.0, ys[1], 0.0);
+    assertEquals(2, downsampler.getPointCount());
+    assertFalse(downsampler.isEmpty());
+  }
+
+  /**
+   * Compares building a chart from the downsampled points with iterating over
+   * every point.
+   */
+  @Test
+  public void throughput() {
+    int points = 1000000;
+    List<double[]> raw = createTrack(points, new Random(1));
+    MinMaxDownsampler downsampler = new MinMaxDownsampler(COLUMNS, 2048);
+    double[] xs = new double[4 * 2048];
+    double[] ys = new double[4 * 2048];
+
+    long start = System.nanoTime();
+    for (double[] point : raw) {
+      downsampler.add(point[0], point, 1);
+    }
+    double addRate = points * 1E9 / (System.nanoTime() - start);
+
+    double resolution = raw.get(points - 1)[0] / 1080;
+    double checksum = 0;
+    long rawTime = Long.MAX_VALUE;
+    long downsampledTime = Long.MAX_VALUE;
+    for (int run = 0; run < 5; run++) {
+      start = System.nanoTime();
+      for (int c = 0; c < COLUMNS; c++) {
+        for (double[] point : raw) {
+          if (!Double.isNaN(point[c + 1])) {
+            checksum += point[0] + point[c + 1];
+          }
+        }
+      }
+      rawTime = Math.min(rawTime, System.nanoTime() - start);
+
+      start = System.nanoTime();
+      for (int c = 0; c < COLUMNS; c++) {
+        int n = downsampler.getPoints(c, resolution, xs, ys);
+        for (int i = 0; i < n; i++) {
+          checksum += xs[i] + ys[i];
+        }
+      }
+      downsampledTime = Math.min(downsampledTime, System.nanoTime() - start);
+    }
+
+    System.out.println(String.format("Added %.0f points/s; redraw of %d points: every point %.2f ms,"
+        + " downsampled %.3f ms (%d buckets) [%s]", addRate, points, rawTime / 1E6,
+        downsampledTime / 1E6, downsampler.getBucketCount(), checksum));
+    assertTrue(downsampledTime < rawTime);
+  }
+
+  /**
+   * Creates points of a track with a smooth column, a noisy column, columns
+   * with narrow spikes, a square wave and a column with gaps.
+   */
+  private static List<double[]> createTrack(int points, Random random) {
+    List<double[]> track = new ArrayList<double[]>(points);
+    double x = 0;
+    for (int i = 0; i < points; i++) {
+      double[] point = new double[COLUMNS + 1];
+      point[0] = x;
+      point[1] = 100 + 50 * Math.sin(x / 50);
+      point[2] = 30 + random.nextGaussian() * 5;
+      point[3] = random.nextInt(1000) == 0 ? 200 : 80 + random.nextInt(5);
+      point[4] = random.nextInt(2000) == 0 ? 0 : 90;
+      point[5] = (i / 777) % 2 == 0 ? 250 : 150;
+      point[6] = (i / 5000) % 3 == 0 ? Double.NaN : 60 + random.nextInt(10);
+      track.add(point);
+      // Uneven spacing, with some repeated x values
+      x += random.nextInt(4) == 0 ? 0 : random.nextDouble() * 0.02;
+    }
+    return track;
+  }
+
+  /**
+   * Returns the largest difference between the minimum or maximum of a column
+   * in any pixel and that of the line through the drawn points, relative to
+   * the column's range.
+   */
+  private static double getEnvelopeError(List<double[]> raw, int column, List<double[]> drawn,
+      double resolution) {
+    Map<Long, double[]> rawEnvelope = new HashMap<Long, double[]>();
+    Map<Long, double[]> drawnEnvelope = new HashMap<Long, double[]>();
+    double min = Double.POSITIVE_INFINITY;
+    double max = Double.NEGATIVE_INFINITY;
+    int segment = 0;
+    for (double[] point : raw) {
+      double x = point[0];
+      double y = point[column + 1];
+      if (Double.isNaN(y)) {
+        continue;
+      }
+      updateEnvelope(rawEnvelope, x, y, resolution);
+      min = Math.min(min, y);
+      max = Math.max(max, y);
+      // Where the line is drawn at this x
+      while (segment < drawn.size() - 2 && drawn.get(segment + 1)[0] < x) {
+        segment++;
+      }
+      double[] start = drawn.get(segment);
+      double[] end = drawn.get(Math.min(segment + 1, drawn.size() - 1));
+      double fraction = end[0] > start[0] ? (x - start[0]) / (end[0] - start[0]) : 1;
+      fraction = Math.max(0, Math.min(1, fraction));
+      updateEnvelope(drawnEnvelope, x, start[1] + fraction * (end[1] - start[1]), resolution);
+    }
+    for (double[] point : drawn) {
+      updateEnvelope(drawnEnvelope, point[0], point[1], resolution);
+    }
+    double error = 0;
+    for (Map.Entry<Long, double[]> entry : rawEnvelope.entrySet()) {
+      double[] expected = entry.getValue();
+      double[] actual = drawnEnvelope.get(entry.getKey());
+      error = Math.max(error, Math.max(Math.abs(expected[0] - actual[0]),
+          Math.abs(expected[1] - actual[1])));
+    }
+    return error / (max - min);
+  }
+
+  private static void updateEnvelope(Map<Long, double[]> envelope, double x, double y,
+      double resolution) {
+    long pixel = (long) Math.floor(x / resolution);
+    double[] minMax = envelope.get(pixel);
+    if (minMax == null) {
+      envelope.put(pixel, new double[] {y, y});
+    } else {
+      minMax[0] = Math.min(minMax[0], y);
+      minMax[1] = Math.max(minMax[1], y);
+    }
+  }
+}
@@ -0,0 +1,290 @@
+package org.fluxoid.utils;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+
+public class PolyLineLevelsTest {
+
+  private static final double TOLERANCE = 0.5;
+  private static final int TILE_SIZE = 256;
+  private static final int SCREEN_WIDTH = 1080;
+  private static final int SCREEN_HEIGHT = 1920;
+
+  /**
+   * Records the runs of a path, in pixels.
+   */
+  private static class RecordingSink implements PathSink {
+    final List<List<double[]>> runs = new ArrayList<List<double[]>>();
+    int points;
+
+    @Override
+    public void moveTo(double x, double y) {
+      runs.add(new ArrayList<double[]>());
+      lineTo(x, y);
+    }
+
+    @Override
+    public void lineTo(double x, double y) {
+      runs.get(runs.size() - 1).add(new double[] {x, y});
+      points++;
+    }
+  }
+
+  /**
+   * Counts the points of a path, like building an android Path would.
+   */
+  private static class CountingSink implements PathSink {
+    double checksum;
+
+    @Override
+    public void moveTo(double x, double y) {
+      checksum += x - y;
+    }
+
+    @Override
+    public void lineTo(double x, double y) {
+      checksum += x + y;
+    }
+  }
+
+  @Test
+  public void empty() {
+    PolyLineLevels levels = new PolyLineLevels(TOLERANCE);
+    assertEquals(0, levels.getPoints(10, getMapSize(10), 0, 0, 1E9, 1E9, new RecordingSink()));
+    levels.add(51.5, -0.1);
+    RecordingSink sink = new RecordingSink();
+    assertEquals(1, levels.getPoints(10, getMapSize(10), 0, 0, 1E9, 1E9, sink));
+    assertEquals(1, sink.runs.size());
+    levels.clear();
+    assertEquals(0, levels.size());
+  }
+
+  /**
+   * Every point of the line must be within the tolerance of the line drawn at
+   * each zoom level, and fewer points are drawn when zoomed out.
+   */
+  @Test
+  public void fidelity() {
+    List<double[]> track = createTrack(3000, new Random(3));
+    PolyLineLevels levels = new PolyLineLevels(TOLERANCE);
+    for (double[] point : track) {
+      levels.add(point[0], point[1]);
+    }
+    int lastSize = 0;
+    for (int zoom = 6; zoom <= 18; zoom += 2) {
+      long mapSize = getMapSize(zoom);
+      RecordingSink sink = new RecordingSink();
+      levels.getPoints(zoom, mapSize, 0, 0, mapSize, mapSize, sink);
+      assertEquals(1, sink.runs.size());
+      assertEquals(levels.getLevelSize(zoom, mapSize), sink.points);
+      assertTrue(sink.points >= lastSize);
+      lastSize = sink.points;
+
+      List<double[]> drawn = sink.runs.get(0);
+      double[] first = project(track.get(0), mapSize);
+      double[] last = project(track.get(track.size() - 1), mapSize);
+      assertEquals(first[0], drawn.get(0)[0], 1E-6);
+      assertEquals(last[1], drawn.get(drawn.size() - 1)[1], 1E-6);
+      double error = 0;
+      for (double[] point : track) {
+        error = Math.max(error, getDistance(project(point, mapSize), sink.runs));
+      }
+      System.out.println(String.format("zoom %d: %d of %d points, max error %.3f px", zoom,
+          sink.points, track.size(), error));
+      assertTrue(error <= TOLERANCE + 1E-6);
+    }
+    assertTrue(levels.getLevelSize(6, getMapSize(6)) < track.size() / 10);
+  }
+
+  /**
+   * Only the parts of the line near the viewport are drawn, but every point in
+   * it is still within the tolerance.
+   */
+  @Test
+  public void clipped() {
+    List<double[]> track = createTrack(20000, new Random(5));
+    PolyLineLevels levels = new PolyLineLevels(TOLERANCE);
+    for (double[] point : track) {
+      levels.add(point[0], point[1]);
+    }
+    int zoom = 16;
+    long mapSize = getMapSize(zoom);
+    double[] centre = project(track.get(track.size() / 2), mapSize);
+    double left = centre[0] - SCREEN_WIDTH / 2;
+    double top = centre[1] - SCREEN_HEIGHT / 2;
+    double right = left + SCREEN_WIDTH;
+    double bottom = top + SCREEN_HEIGHT;
+    RecordingSink sink = new RecordingSink();
+    levels.getPoints(zoom, mapSize, left, top, right, bottom, sink);
+    assertTrue(sink.points < levels.getLevelSize(zoom, mapSize) / 2);
+
+    int inside = 0;
+    for (double[] point : track) {
+      double[] pixel = project(point, mapSize);
+      if (pixel[0] >= left && pixel[0] <= right && pixel[1] >= top && pixel[1] <= bottom) {
+        inside++;
+        assertTrue(getDistance(pixel, sink.runs) <= TOLERANCE + 1E-6);
+      }
+    }
+    assertTrue(inside > 0);
+    System.out.println(String.format("clipped to %d points in %d runs, %d points inside",
+        sink.points, sink.runs.size(), inside));
+  }
+
+  /**
+   * Drawing while points are added gives the same line as adding them first.
+   */
+  @Test
+  public void incremental() {
+    List<double[]> track = createTrack(5000, new Random(11));
+    PolyLineLevels all = new PolyLineLevels(TOLERANCE);
+    PolyLineLevels live = new PolyLineLevels(TOLERANCE);
+    for (double[] point : track) {
+      all.add(point[0], point[1]);
+    }
+    Random random = new Random(0);
+    int i = 0;
+    while (i < track.size()) {
+      int end = Math.min(track.size(), i + 1 + random.nextInt(300));
+      for (; i < end; i++) {
+        live.add(track.get(i)[0], track.get(i)[1]);
+      }
+      for (int zoom = 12; zoom <= 16; zoom += 2) {
+        live.getPoints(zoom, getMapSize(zoom), 0, 0, 1E12, 1E12, new CountingSink());
+      }
+    }
+    for (int zoom = 10; zoom <= 16; zoom += 2) {
+      long mapSize = getMapSize(zoom);
+      RecordingSink expected = new RecordingSink();
+      RecordingSink actual = new RecordingSink();
+      all.getPoints(zoom, mapSize, 0, 0, mapSize, mapSize, expected);
+      live.getPoints(zoom, mapSize, 0, 0, mapSize, mapSize, actual);
+      assertEquals(expected.points, actual.points);
+      List<double[]> expectedRun = expected.runs.get(0);
+      List<double[]> actualRun = actual.runs.get(0);
+      for (int j = 0; j < expectedRun.size(); j++) {
+        assertEquals(expectedRun.get(j)[0], actualRun.get(j)[0], 0.0);
+        assertEquals(expectedRun.get(j)[1], actualRun.get(j)[1], 0.0);
+      }
+    }
+  }
+
+  /**
+   * Compares preparing a frame from the levels with projecting every point,
+   * as the map's polyline does, at a few zoom levels.
+   */
+  @Test
+  public void framePreparation() {
+    List<double[]> track = createTrack(100000, new Random(1));
+    long start = System.nanoTime();
+    PolyLineLevels levels = new PolyLineLevels(TOLERANCE);
+    for (double[] point : track) {
+      levels.add(point[0], point[1]);
+    }
+    for (int zoom = 10; zoom <= 16; zoom += 3) {
+      levels.getLevelSize(zoom, getMapSize(zoom));
+    }
+    System.out.println(String.format("Built levels of %d points in %.1f ms", track.size(),
+        (System.nanoTime() - start) / 1E6));
+
+    CountingSink sink = new CountingSink();
+    for (int zoom = 10; zoom <= 16; zoom += 3) {
+      long mapSize = getMapSize(zoom);
+      double[] centre = project(track.get(track.size() / 3), mapSize);
+      double left = centre[0] - SCREEN_WIDTH / 2;
+      double top = centre[1] - SCREEN_HEIGHT / 2;
+      long everyPoint = Long.MAX_VALUE;
+      long simplified = Long.MAX_VALUE;
+      int drawn = 0;
+      for (int run = 0; run < 10; run++) {
+        start = System.nanoTime();
+        projectAll(track, mapSize, left, top, sink);
+        everyPoint = Math.min(everyPoint, System.nanoTime() - start);
+
+        start = System.nanoTime();
+        drawn = levels.getPoints(zoom, mapSize, left, top, left + SCREEN_WIDTH,
+            top + SCREEN_HEIGHT, sink);
+        simplified = Math.min(simplified, System.nanoTime() - start);
+      }
+      System.out.println(String.format("zoom %d: every point %.3f ms, simplified %.3f ms"
+          + " (%d points) [%.0f]", zoom, everyPoint / 1E6, simplified / 1E6, drawn,
+          sink.checksum));
+      assertTrue(simplified < everyPoint);
+    }
+  }
+
+  /**
+   * What the map's polyline does for every frame.
+   */
+  private static void projectAll(List<double[]> track, long mapSize, double left, double top,
+      PathSink sink) {
+    boolean first = true;
+    for (double[] point : track) {
+      double[] pixel = project(point, mapSize);
+      if (first) {
+        sink.moveTo(pixel[0] - left, pixel[1] - top);
+        first = false;
+      } else {
+        sink.lineTo(pixel[0] - left, pixel[1] - top);
+      }
+    }
+  }
+
+  private static long getMapSize(int zoom) {
+    return (long) TILE_SIZE << zoom;
+  }
+
+  private static double[] project(double[] latLong, long mapSize) {
+    double sinLatitude = Math.sin(latLong[0] * (Math.PI / 180));
+    double x = (latLong[1] + 180) / 360 * mapSize;
+    double y = (0.5 - Math.log((1 + sinLatitude) / (1 - sinLatitude)) / (4 * Math.PI))
+        * mapSize;
+    return new double[] {x, y};
+  }
+
+  /**
+   * Returns the distance from a point to the nearest segment of the runs.
+   */
+  private static double getDistance(double[] point, List<List<double[]>> runs) {
+    double min = Double.POSITIVE_INFINITY;
+    for (List<double[]> run : runs) {
+      for (int i = 0; i < run.size(); i++) {
+        double[] a = run.get(i);
+        double[] b = run.get(Math.min(i + 1, run.size() - 1));
+        double dx = b[0] - a[0];
+        double dy = b[1] - a[1];
+        double lengthSquared = dx * dx + dy * dy;
+        double t = lengthSquared == 0 ? 0
+            : ((point[0] - a[0]) * dx + (point[1] - a[1]) * dy) / lengthSquared;
+        t = Math.max(0, Math.min(1, t));
+        min = Math.min(min, Math.hypot(point[0] - a[0] - t * dx, point[1] - a[1] - t * dy));
+      }
+    }
+    return min;
+  }
+
+  /**
+   * Creates a meandering ride, a point about every 5 metres.
+   */
+  private static List<double[]> createTrack(int points, Random random) {
+    List<double[]> track = new ArrayList<double[]>(points);
+    double latitude = 51.5;
+    double longitude = -0.1;
+    double heading = 0;
+    for (int i = 0; i < points; i++) {
+      track.add(new double[] {latitude, longitude});
+      heading += random.nextGaussian() * 0.2;
+      double metres = 3 + random.nextDouble() * 4;
+      latitude += Math.cos(heading) * metres / 111320;
+      longitude += Math.sin(heading) * metres / (111320 * Math.cos(Math.toRadians(latitude)));
+    }
+    return track;
+  }
+}
@@ -25,6 +25,7 @@ import org.junit.Test;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Random;
 import java.util.logging.ConsoleHandler;
 import java.util.logging.FileHandler;
 import java.util.logging.Level;
@@ -33,6 +34,8 @@ import static org.fluxoid.utils.PolyLineUtils.decode;
 import static org.fluxoid.utils.PolyLineUtils.encode;
 import static org.fluxoid.utils.PolyLineUtils.logger;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
 public class PolyLineUtilsTest {
 
@@ -81,4 +84,116 @@ public class PolyLineUtilsTest {
     testEncode(0.00008, 0.00008);
   }
 
+  @Test
+  public void streamingMatchesList() throws DecodeException {
+    CharSequence polyLine = "_p~iF~ps|U_ulLnnqC_mqNvxq`@";
+    List<LatLong> expected = decode(polyLine);
+    assertEquals(3, PolyLineUtils.countPoints(polyLine));
+
+    double[] lats = new double[3];
+    double[] lngs = new double[3];
+    assertEquals(3, PolyLineUtils.decode(polyLine, lats, lngs));
+    for (int i = 0; i < expected.size(); i++) {
+      assertEquals(expected.get(i).getLatitude(), lats[i], 1e-9);
+      assertEquals(expected.get(i).getLongitude(), lngs[i], 1e-9);
+    }
+    assertEquals(40.7, lats[1], 1e-9);
+    assertEquals(-126.453, lngs[2], 1e-9);
+
+    char[] chars = ("xx" + polyLine).toCharArray();
+    final List<LatLong> sunk = new ArrayList<LatLong>();
+    PolyLineUtils.decode(chars, 2, polyLine.length(), new PolyLineSink() {
+      @Override
+      public void onPoint(double latitude, double longitude) {
+        sunk.add(new LatLong(latitude, longitude));
+      }
+    });
+    assertEquals(3, sunk.size());
+    assertEquals(43.252, sunk.get(2).getLatitude(), 1e-9);
+
+    StringBuilder encoded = PolyLineUtils.encode(lats, lngs, 3, new StringBuilder());
+    assertEquals(polyLine.toString(), encoded.toString());
+  }
+
+  @Test(expected = DecodeException.class)
+  public void truncatedValue() throws DecodeException {
+    // final char has the continuation bit set
+    PolyLineUtils.decode("_p~iF~ps|", new double[1], new double[1]);
+  }
+
+  @Test(expected = DecodeException.class)
+  public void arraysTooSmall() throws DecodeException {
+    PolyLineUtils.decode("_p~iF~ps|U_ulLnnqC", new double[1], new double[1]);
+  }
+
+  @Test
+  public void simplifyDropsCollinearPoints() {
+    double[] lats = {0, 0.001, 0.002, 0.003, 0.0035, 0.004};
+    double[] lngs = {0, 0.001, 0.002, 0.003, 0.0045, 0.004};
+    boolean[] keep = PolyLineUtils.simplify(lats, lngs, lats.length, 1.0);
+    assertTrue(keep[0]);
+    assertFalse(keep[1]);
+    assertFalse(keep[2]);
+    assertTrue(keep[3]);
+    assertTrue(keep[4]);
+    assertTrue(keep[5]);
+
+    StringBuilder simplified = PolyLineUtils.encode(lats, lngs, lats.length, 1.0,
+        new StringBuilder());
+    assertEquals(4, PolyLineUtils.countPoints(simplified));
+  }
+
+  /**
+   * Round trips a 100k point route, printing throughput of the list and streaming codecs.
+   */
+  @Test
+  public void largeRoute() throws DecodeException {
+    final int points = 100000;
+    Random random = new Random(42);
+    double[] lats = new double[points];
+    double[] lngs = new double[points];
+    List<LatLong> latLongs = new ArrayList<LatLong>(points);
+    double lat = 51.5;
+    double lng = -0.12;
+    for (int i = 0; i < points; i++) {
+      lat += (random.nextDouble() - 0.5) * 0.0002;
+      lng += (random.nextDouble() - 0.5) * 0.0002;
+      lats[i] = lat;
+      lngs[i] = lng;
+      latLongs.add(new LatLong(lat, lng));
+    }
+
+    String polyLine = null;
+    double[] decodedLats = new double[points];
+    double[] decodedLngs = new double[points];
+    final int runs = 5;
+    long listNanos = 0;
+    long streamNanos = 0;
+    for (int run = 0; run < runs; run++) {
+      long start = System.nanoTime();
+      polyLine = encode(latLongs).toString();
+      decode(polyLine);
+      listNanos += System.nanoTime() - start;
+
+      start = System.nanoTime();
+      String streamed = PolyLineUtils.encode(lats, lngs, points, new StringBuilder()).toString();
+      assertEquals(points, PolyLineUtils.decode(streamed, decodedLats, decodedLngs));
+      streamNanos += System.nanoTime() - start;
+      assertEquals(polyLine, streamed);
+    }
+    for (int i = 0; i < points; i++) {
+      assertEquals(lats[i], decodedLats[i], 0.000005);
+      assertEquals(lngs[i], decodedLngs[i], 0.000005);
+    }
+    System.out.println("list encode+decode of " + points + " points: "
+        + listNanos / runs / 1000 + " us");
+    System.out.println("streaming encode+decode of " + points + " points: "
+        + streamNanos / runs / 1000 + " us");
+
+    long start = System.nanoTime();
+    StringBuilder simplified = PolyLineUtils.encode(lats, lngs, points, 5.0, new StringBuilder());
+    System.out.println("simplified encode to " + PolyLineUtils.countPoints(simplified)
+        + " points: " + (System.nanoTime() - start) / 1000 + " us");
+  }
+
 }
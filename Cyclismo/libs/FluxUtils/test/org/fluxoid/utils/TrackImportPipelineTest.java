@@ -0,0 +1,447 @@
+package org.fluxoid.utils;
+
+import org.junit.Test;
+import org.xml.sax.Attributes;
+import org.xml.sax.helpers.DefaultHandler;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.xml.parsers.SAXParserFactory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+
+public class TrackImportPipelineTest {
+
+  private static final int BATCH_SIZE = 4096;
+  private static final int BATCHES = 8;
+
+  /**
+   * Works out distances and speeds like the trip statistics do, and checks
+   * the points of each track arrive in order.
+   */
+  private static class Statistics implements TrackImportPipeline.Stages {
+    int tracks;
+    int points;
+    double distance;
+    double maxSpeed;
+    long lastTime = Long.MIN_VALUE;
+    int segments;
+
+    // convert thread state
+    double lastLatitude = Double.NaN;
+    double lastLongitude;
+    long lastPointTime;
+
+    @Override
+    public void convert(TrackPointBatch batch) {
+      if (!(batch.getAttachment() instanceof double[])) {
+        batch.setAttachment(new double[batch.getCapacity()]);
+      }
+      double[] distances = (double[]) batch.getAttachment();
+      if (batch.isTrackStart()) {
+        lastLatitude = Double.NaN;
+      }
+      for (int i = 0; i < batch.getSize(); i++) {
+        double latitude = batch.getLatitude(i);
+        double longitude = batch.getLongitude(i);
+        long time = batch.getTime(i);
+        if (batch.isSegmentStart(i) || Double.isNaN(lastLatitude)) {
+          distances[i] = 0;
+        } else {
+          distances[i] = getDistance(lastLatitude, lastLongitude, latitude, longitude);
+          if (time > lastPointTime) {
+            maxSpeed = Math.max(maxSpeed, distances[i] * 1000 / (time - lastPointTime));
+          }
+        }
+        lastLatitude = latitude;
+        lastLongitude = longitude;
+        lastPointTime = time;
+      }
+    }
+
+    @Override
+    public void write(TrackPointBatch batch) {
+      double[] distances = (double[]) batch.getAttachment();
+      for (int i = 0; i < batch.getSize(); i++) {
+        assertTrue(batch.getTime(i) > lastTime);
+        lastTime = batch.getTime(i);
+        distance += distances[i];
+        if (batch.isSegmentStart(i)) {
+          segments++;
+        }
+      }
+      points += batch.getSize();
+      if (batch.isTrackEnd()) {
+        tracks++;
+      }
+    }
+  }
+
+  /**
+   * Parses like the SAX importer does, a track point at a time, converting
+   * and writing in buffers of 512 on the same thread.
+   */
+  private static class SaxStatistics extends DefaultHandler {
+    final Statistics statistics = new Statistics();
+    final TrackPointBatch batch = new TrackPointBatch(512);
+    final StringBuilder content = new StringBuilder();
+    boolean isSegmentStart;
+    double latitude;
+    double longitude;
+    double altitude;
+    long time;
+
+    @Override
+    public void startElement(String uri, String localName, String name, Attributes attributes) {
+      content.setLength(0);
+      if (name.equals("trk")) {
+        batch.reset(0, true);
+      } else if (name.equals("trkseg")) {
+        isSegmentStart = true;
+      } else if (name.equals("trkpt")) {
+        latitude = Double.parseDouble(attributes.getValue("lat"));
+        longitude = Double.parseDouble(attributes.getValue("lon"));
+      }
+    }
+
+    @Override
+    public void characters(char[] ch, int start, int length) {
+      content.append(ch, start, length);
+    }
+
+    @Override
+    public void endElement(String uri, String localName, String name) {
+      if (name.equals("ele")) {
+        altitude = Double.parseDouble(content.toString());
+      } else if (name.equals("time")) {
+        char[] chars = content.toString().toCharArray();
+        time = GpxPullParser.parseTime(chars, 0, chars.length);
+      } else if (name.equals("trkpt")) {
+        if (batch.isFull()) {
+          flush();
+        }
+        batch.add(latitude, longitude, altitude, time, isSegmentStart);
+        isSegmentStart = false;
+      } else if (name.equals("trk")) {
+        batch.endTrack(null, null);
+        flush();
+      }
+    }
+
+    private void flush() {
+      statistics.convert(batch);
+      statistics.write(batch);
+      batch.reset(0, false);
+    }
+  }
+
+  /**
+   * Records the peak heap in use while it runs.
+   */
+  private static class HeapSampler extends Thread {
+    volatile boolean running = true;
+    volatile long peak;
+
+    HeapSampler() {
+      System.gc();
+      setDaemon(true);
+      start();
+    }
+
+    @Override
+    public void run() {
+      Runtime runtime = Runtime.getRuntime();
+      while (running) {
+        peak = Math.max(peak, runtime.totalMemory() - runtime.freeMemory());
+        try {
+          Thread.sleep(1);
+        } catch (InterruptedException e) {
+          return;
+        }
+      }
+    }
+
+    long finish() throws InterruptedException {
+      running = false;
+      join();
+      return peak;
+    }
+  }
+
+  @Test
+  public void importsInOrder() throws IOException {
+    String gpx = createGpx(2, 3, 3000);
+    TrackImportPipeline pipeline = new TrackImportPipeline(1000, 3);
+    Statistics statistics = new Statistics();
+    pipeline.importFile(new StringReader(gpx), statistics);
+    assertEquals(2, statistics.tracks);
+    assertEquals(2 * 3 * 3000, statistics.points);
+    assertEquals(2 * 3, statistics.segments);
+    assertEquals(3, pipeline.getIdleBatches());
+
+    // The same again, without the pipeline
+    Statistics expected = new Statistics();
+    GpxPullParser parser = new GpxPullParser(new StringReader(gpx));
+    TrackPointBatch batch = new TrackPointBatch(1);
+    boolean isSegmentStart = false;
+    int event;
+    while ((event = parser.next()) != GpxPullParser.END_DOCUMENT) {
+      if (event == GpxPullParser.SEGMENT) {
+        isSegmentStart = true;
+      } else if (event == GpxPullParser.POINT) {
+        batch.reset(0, false);
+        batch.add(parser.getLatitude(), parser.getLongitude(), parser.getAltitude(),
+            parser.getTime(), isSegmentStart);
+        isSegmentStart = false;
+        expected.convert(batch);
+        expected.write(batch);
+      }
+    }
+    assertEquals(expected.distance, statistics.distance, 1E-6);
+    assertEquals(expected.maxSpeed, statistics.maxSpeed, 0.0);
+    pipeline.shutdown();
+  }
+
+  @Test
+  public void failures() throws IOException {
+    TrackImportPipeline pipeline = new TrackImportPipeline(100, 4);
+    String gpx = createGpx(1, 1, 2000);
+    final int[] written = new int[1];
+    try {
+      pipeline.importFile(new StringReader(gpx), new Statistics() {
+        @Override
+        public void write(TrackPointBatch batch) {
+          if (++written[0] == 3) {
+            throw new IllegalStateException("disk full");
+          }
+        }
+      });
+      fail();
+    } catch (IllegalStateException e) {
+      assertEquals("disk full", e.getMessage());
+    }
+    assertEquals(3, written[0]);
+    assertEquals(4, pipeline.getIdleBatches());
+
+    int end = gpx.indexOf("</trkpt>", gpx.length() / 2) + "</trkpt>".length();
+    try {
+      pipeline.importFile(new StringReader(gpx.substring(0, end) + "<trkpt>"), new Statistics());
+      fail();
+    } catch (IOException e) {
+      assertTrue(e.getMessage().contains("Point with no longitude or latitude."));
+    }
+    assertEquals(4, pipeline.getIdleBatches());
+    pipeline.shutdown();
+  }
+
+  /**
+   * Imports a million points, reporting the throughput and peak heap against
+   * parsing, converting and writing with SAX on one thread.
+   */
+  @Test
+  public void throughput() throws Exception {
+    int points = 1000000;
+    File file = createGpxFile(1, 4, points / 4);
+    try {
+      // warm up
+      importSax(file);
+      importPipelined(file);
+
+      HeapSampler sampler = new HeapSampler();
+      long start = System.nanoTime();
+      Statistics sax = importSax(file);
+      long saxTime = System.nanoTime() - start;
+      long saxHeap = sampler.finish();
+
+      sampler = new HeapSampler();
+      start = System.nanoTime();
+      Statistics pipelined = importPipelined(file);
+      long pipelinedTime = System.nanoTime() - start;
+      long pipelinedHeap = sampler.finish();
+
+      assertEquals(points, sax.points);
+      assertEquals(points, pipelined.points);
+      assertEquals(sax.distance, pipelined.distance, 1E-3);
+      System.out.println(String.format("SAX: %.0f points/s, peak heap %.1f MB",
+          points / (saxTime / 1E9), saxHeap / 1E6));
+      System.out.println(String.format("Pipelined: %.0f points/s, peak heap %.1f MB",
+          points / (pipelinedTime / 1E9), pipelinedHeap / 1E6));
+      assertTrue(pipelinedTime < saxTime);
+    } finally {
+      file.delete();
+    }
+  }
+
+  /**
+   * Imports several files at once through one pipeline, which keeps no more
+   * points in flight than its batches hold.
+   */
+  @Test
+  public void concurrentFiles() throws Exception {
+    int files = 4;
+    int points = 250000;
+    final File file = createGpxFile(1, 2, points / 2);
+    final TrackImportPipeline pipeline = new TrackImportPipeline(BATCH_SIZE, BATCHES);
+    ExecutorService executor = Executors.newFixedThreadPool(files);
+    try {
+      HeapSampler sampler = new HeapSampler();
+      long start = System.nanoTime();
+      List<Future<Statistics>> results = new ArrayList<Future<Statistics>>();
+      for (int i = 0; i < files; i++) {
+        results.add(executor.submit(new Callable<Statistics>() {
+          @Override
+          public Statistics call() throws IOException {
+            Statistics statistics = new Statistics();
+            InputStream in = new FileInputStream(file);
+            try {
+              pipeline.importFile(GpxPullParser.newReader(in), statistics);
+            } finally {
+              in.close();
+            }
+            return statistics;
+          }
+        }));
+      }
+      for (Future<Statistics> result : results) {
+        assertEquals(points, result.get().points);
+        assertEquals(2, result.get().segments);
+      }
+      long time = System.nanoTime() - start;
+      long heap = sampler.finish();
+      System.out.println(String.format("%d files at once: %.0f points/s, peak heap %.1f MB",
+          files, files * points / (time / 1E9), heap / 1E6));
+      assertEquals(BATCHES, pipeline.getIdleBatches());
+    } finally {
+      executor.shutdown();
+      pipeline.shutdown();
+      file.delete();
+    }
+  }
+
+  private static Statistics importSax(File file) throws Exception {
+    SaxStatistics handler = new SaxStatistics();
+    InputStream in = new FileInputStream(file);
+    try {
+      SAXParserFactory.newInstance().newSAXParser().parse(in, handler);
+    } finally {
+      in.close();
+    }
+    return handler.statistics;
+  }
+
+  private static Statistics importPipelined(File file) throws IOException {
+    TrackImportPipeline pipeline = new TrackImportPipeline(BATCH_SIZE, BATCHES);
+    Statistics statistics = new Statistics();
+    InputStream in = new FileInputStream(file);
+    try {
+      pipeline.importFile(GpxPullParser.newReader(in), statistics);
+    } finally {
+      in.close();
+      pipeline.shutdown();
+    }
+    return statistics;
+  }
+
+  private static File createGpxFile(int tracks, int segments, int points) throws IOException {
+    File file = File.createTempFile("track", ".gpx");
+    file.deleteOnExit();
+    Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file),
+        "UTF-8"));
+    try {
+      writeGpx(writer, tracks, segments, points);
+    } finally {
+      writer.close();
+    }
+    return file;
+  }
+
+  private static String createGpx(int tracks, int segments, int points) throws IOException {
+    StringWriter writer = new StringWriter();
+    writeGpx(writer, tracks, segments, points);
+    return writer.toString();
+  }
+
+  /**
+   * Writes a ride with a point a second, as a GPS logger would.
+   */
+  private static void writeGpx(Writer writer, int tracks, int segments, int points)
+      throws IOException {
+    writer.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+        + "<gpx version=\"1.1\" creator=\"test\" xmlns=\"http://www.topografix.com/GPX/1/1\">\n");
+    double latitude = 51.5;
+    double longitude = -0.1;
+    double heading = 0;
+    long time = 1366531200000L;
+    StringBuilder line = new StringBuilder();
+    for (int track = 0; track < tracks; track++) {
+      writer.write("<trk><name>Ride " + track + "</name>\n");
+      for (int segment = 0; segment < segments; segment++) {
+        writer.write("<trkseg>\n");
+        for (int i = 0; i < points; i++) {
+          heading += Math.sin(i * 0.01) * 0.1;
+          latitude += Math.cos(heading) * 5 / 111320;
+          longitude += Math.sin(heading) * 5 / 69000;
+          time += 1000;
+          line.setLength(0);
+          line.append("<trkpt lat=\"").append((float) latitude).append("\" lon=\"")
+              .append((float) longitude).append("\"><ele>").append(50 + i % 100)
+              .append(".5</ele><time>");
+          appendTime(line, time);
+          line.append("</time></trkpt>\n");
+          writer.write(line.toString());
+        }
+        writer.write("</trkseg>\n");
+      }
+      writer.write("</trk>\n");
+    }
+    writer.write("</gpx>\n");
+  }
+
+  private static void appendTime(StringBuilder line, long time) {
+    long days = time / 86400000L;
+    long millis = time % 86400000L;
+    // 2013-04-21 is day 15816 of the epoch; the generated rides stay in 2013
+    int dayOfYear = (int) (days - 15706);
+    int[] monthDays = {31, 28, 31, 30, 31, 30, 31, 31, 30, 31, 30, 31};
+    int month = 0;
+    while (dayOfYear >= monthDays[month]) {
+      dayOfYear -= monthDays[month++];
+    }
+    line.append("2013-");
+    appendTwoDigits(line, month + 1).append('-');
+    appendTwoDigits(line, dayOfYear + 1).append('T');
+    appendTwoDigits(line, (int) (millis / 3600000)).append(':');
+    appendTwoDigits(line, (int) (millis / 60000 % 60)).append(':');
+    appendTwoDigits(line, (int) (millis / 1000 % 60)).append('Z');
+  }
+
+  private static StringBuilder appendTwoDigits(StringBuilder line, int value) {
+    return line.append((char) ('0' + value / 10)).append((char) ('0' + value % 10));
+  }
+
+  private static double getDistance(double lat1, double lon1, double lat2, double lon2) {
+    double dLat = Math.toRadians(lat2 - lat1);
+    double dLon = Math.toRadians(lon2 - lon1);
+    double a = Math.sin(dLat / 2) * Math.sin(dLat / 2) + Math.cos(Math.toRadians(lat1))
+        * Math.cos(Math.toRadians(lat2)) * Math.sin(dLon / 2) * Math.sin(dLon / 2);
+    return LocationUtils.EARTH_RADIUS_M * 2 * Math.atan2(Math.sqrt(a), Math.sqrt(1 - a));
+  }
+}
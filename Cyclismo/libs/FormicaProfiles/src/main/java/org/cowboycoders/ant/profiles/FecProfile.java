@@ -21,6 +21,7 @@ import org.cowboycoders.ant.profiles.fitnessequipment.Defines;
 import org.cowboycoders.ant.profiles.fitnessequipment.pages.*;
 import org.cowboycoders.ant.profiles.pages.AntPacketEncodable;
 import org.cowboycoders.ant.profiles.pages.AntPage;
+import org.cowboycoders.ant.profiles.pages.CommonCommandPage;
 import org.cowboycoders.ant.profiles.pages.Request;
 import org.cowboycoders.ant.profiles.simulators.NetworkKeys;
 
@@ -41,6 +42,7 @@ public abstract class FecProfile {
 
     private static final BigDecimal WHEEL_CIRCUMFERENCE = new BigDecimal(2.098);
     private Channel channel;
+    private Node node;
 
     // for BikeData, CommonPageData
     private Defines.EquipmentType equipType = Defines.EquipmentType.UNRECOGNIZED;
@@ -55,8 +57,12 @@ public abstract class FecProfile {
         requestPageDemandResponse(ConfigPage.PAGE_NUMBER, ConfigPage.class);
     }
 
+    /**
+     * Requests the command status page. The request is queued on the request buffer, so it is
+     * retried until the trainer responds, and is not sent until earlier requests have completed.
+     */
     public void requestStatusCmd() {
-        requestPage(Command.PAGE_NUMBER);
+        requestPageDemandResponse(Command.PAGE_NUMBER, Command.class);
     }
 
     public void requestStatusCalibration() {
@@ -68,7 +74,7 @@ public abstract class FecProfile {
     }
 
     public void requestStatusTrack() {
-        requestPageDemandResponse(TrackResistance.PAGE_NUMBER, TrainerData.class);
+        requestPageDemandResponse(TrackResistance.PAGE_NUMBER, TrackResistance.class);
     }
 
     public void requestStatusWind() {
@@ -227,6 +233,7 @@ public abstract class FecProfile {
     }
 
     public void start(Node transceiver) {
+        node = transceiver;
 
         final PageDispatcher pageDispatcher = new PageDispatcher();
 
@@ -251,6 +258,7 @@ public abstract class FecProfile {
                     case MetabolicData.PAGE_NUMBER:
                     case CapabilitiesPage.PAGE_NUMBER:
                     case ConfigPage.PAGE_NUMBER:
+                    case Command.PAGE_NUMBER:
                         return; // don't print pages we already handle
                 }
                 System.out.print("got page: " + page);
@@ -274,6 +282,13 @@ public abstract class FecProfile {
             }
         });
 
+        pageDispatcher.addListener(Command.class, new BroadcastListener<Command>() {
+            @Override
+            public void receiveMessage(Command command) {
+                onCommandStatusReceived(command.getFitnessStatus());
+            }
+        });
+
         pageDispatcher.addListener(CalibrationProgress.class, new BroadcastListener<CalibrationProgress>() {
             @Override
             public void receiveMessage(CalibrationProgress calibrationProgress) {
@@ -464,6 +479,16 @@ public abstract class FecProfile {
 
     }
 
+    public void stop() {
+        if (channel == null) {
+            return;
+        }
+        channel.close();
+        channel.unassign();
+        node.freeChannel(channel);
+        channel = null;
+    }
+
     /**
      *
      * @param callback will be called once, setting multiple times will overwrite last
@@ -490,6 +515,11 @@ public abstract class FecProfile {
     public abstract void onCalibrationStatusReceieved(CalibrationResponse calibrationResponse);
     public abstract void onConnect();
     public abstract void onDisconnect();
+    /**
+     * @param status last command received by the trainer; for track resistance commands this is a
+     *               {@link Command.TerrainStatus} holding the grade the trainer applied
+     */
+    public abstract void onCommandStatusReceived(CommonCommandPage.CommandStatus status);
     public abstract void onStatusChange(EnumSet<Defines.TrainerStatusFlag> oldStatus, EnumSet<Defines.TrainerStatusFlag> newStatus);
 
 }
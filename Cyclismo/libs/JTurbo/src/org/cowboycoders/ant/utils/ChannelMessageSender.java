@@ -23,8 +23,37 @@ import org.cowboycoders.ant.messages.ChannelMessage;
 
 
 public interface ChannelMessageSender {
+
+  /**
+   * Kinds of message, in priority order. Kinds that coalesce only keep the newest pending
+   * message: an older one that hasn't been sent yet is dropped (its callback is still run).
+   */
+  enum Kind {
+    /**
+     * Resistance, slope and other state the device should converge on.
+     */
+    CONTROL(true),
+    KEEP_ALIVE(true),
+    /**
+     * Everything else; sent in order and never coalesced.
+     */
+    REQUEST(false);
+
+    private final boolean coalesce;
+
+    Kind(boolean coalesce) {
+      this.coalesce = coalesce;
+    }
+
+    public boolean isCoalesced() {
+      return coalesce;
+    }
+  }
+
   public void sendMessage(ChannelMessage msg);
 
   void sendMessage(ChannelMessage msg, Runnable callback);
 
+  void sendMessage(ChannelMessage msg, Kind kind, Runnable callback);
+
 }
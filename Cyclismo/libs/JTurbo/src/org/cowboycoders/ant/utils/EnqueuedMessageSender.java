@@ -4,80 +4,411 @@ import org.cowboycoders.ant.Channel;
 import org.cowboycoders.ant.events.MessageCondition;
 import org.cowboycoders.ant.messages.ChannelMessage;
 
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Logger;
 
+/**
+ * Sends acknowledged messages on a channel, one at a time, from a background thread.
+ * <p>
+ * Messages are queued in a lane per {@link ChannelMessageSender.Kind}. The highest priority lane
+ * with a message ready is always serviced first, so a keep-alive or a resistance change never
+ * waits behind a backlog of requests. Coalesced lanes only keep the newest message, so a stale
+ * resistance command is dropped rather than sent. A send that isn't acknowledged is retried with
+ * exponential backoff; if a newer message of the same coalesced kind arrives in the meantime, the
+ * retry is abandoned in its favour.
+ */
 public class EnqueuedMessageSender implements ChannelMessageSender {
 
-  private boolean send = true;
-  private ExecutorService channelExecutorService = Executors.newSingleThreadExecutor();
   public final static Logger LOGGER = Logger.getLogger(AntUtils.class.getName());
-  private Channel channel;
   private static final MessageCondition DEFAULT_CONDITION = AntUtils.CONDITION_CHANNEL_TX;
   private static final long DEFAULT_TIMEOUT_DURATION = 10L;
   private static final TimeUnit DEFAULT_TIMEOUT_TIMEUNIT = TimeUnit.SECONDS;
+  private static final int DEFAULT_MAX_RETRIES = 2;
+  private static final long DEFAULT_BACKOFF_MS = 100;
+
+  private static class Pending {
+    private final ChannelMessage msg;
+    private final Kind kind;
+    private final Runnable callback;
+    private int attempts;
+    private long notBefore;
+
+    private Pending(ChannelMessage msg, Kind kind, Runnable callback) {
+      this.msg = msg;
+      this.kind = kind;
+      this.callback = callback;
+    }
+  }
+
+  private final Channel channel;
+  private final int maxRetries;
+  private final long backoffNanos;
+
+  private final Lock lock = new ReentrantLock();
+  private final Condition changed = lock.newCondition();
+  // guarded by lock, iterates in priority order
+  private final Map<Kind, ArrayDeque<Pending>> lanes = new EnumMap<>(Kind.class);
+  private Thread worker;
+  private boolean stopped = false;
 
   /**
-   * If locked should not send data packets;
+   * If false should not send data packets
    */
-  private Lock sendLock = new ReentrantLock();
+  private boolean send = true;
+
+  // metrics, guarded by lock
+  private int queueDepth;
+  private int maxQueueDepth;
+  private long sent;
+  private long coalesced;
+  private long retried;
+  private long failed;
+  private long lastAckLatencyNanos = -1;
+  private long maxAckLatencyNanos;
+  private long totalAckLatencyNanos;
 
   public EnqueuedMessageSender(Channel channel) {
-    this.channel = channel;
+    this(channel, DEFAULT_MAX_RETRIES, DEFAULT_BACKOFF_MS, TimeUnit.MILLISECONDS);
   }
 
+  /**
+   * @param channel to send on
+   * @param maxRetries number of times to resend a message that wasn't acknowledged
+   * @param backoff delay before the first retry, doubled for each subsequent retry
+   * @param backoffUnit unit of backoff
+   */
+  public EnqueuedMessageSender(Channel channel, int maxRetries, long backoff, TimeUnit backoffUnit) {
+    this.channel = channel;
+    this.maxRetries = maxRetries;
+    this.backoffNanos = backoffUnit.toNanos(backoff);
+    for (Kind kind : Kind.values()) {
+      lanes.put(kind, new ArrayDeque<Pending>());
+    }
+  }
 
   @Override
   public void sendMessage(final ChannelMessage msg, final Runnable callback) {
-    channelExecutorService.execute(new Runnable() {
+    sendMessage(msg, Kind.REQUEST, callback);
+  }
+
+  @Override
+  public void sendMessage(ChannelMessage msg) {
+    sendMessage(msg, null);
+
+  }
+
+  @Override
+  public void sendMessage(ChannelMessage msg, Kind kind, Runnable callback) {
+    Pending superseded = null;
+    try {
+      lock.lock();
+      if (stopped) {
+        superseded = new Pending(msg, kind, callback);
+      } else {
+        ArrayDeque<Pending> lane = lanes.get(kind);
+        if (kind.isCoalesced() && !lane.isEmpty()) {
+          superseded = lane.poll();
+          coalesced++;
+          queueDepth--;
+        }
+        lane.add(new Pending(msg, kind, callback));
+        queueDepth++;
+        maxQueueDepth = Math.max(maxQueueDepth, queueDepth);
+        startWorker();
+        changed.signal();
+      }
+    } finally {
+      lock.unlock();
+    }
+    if (superseded != null) {
+      runCallback(superseded);
+    }
+  }
+
+  public void pause(boolean pause) {
+    try {
+      lock.lock();
+      send = !pause;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Stops the background thread. Messages still queued are dropped, but their callbacks are run.
+   */
+  public void stop() {
+    List<Pending> dropped = new ArrayList<>();
+    Thread toJoin;
+    try {
+      lock.lock();
+      stopped = true;
+      for (ArrayDeque<Pending> lane : lanes.values()) {
+        dropped.addAll(lane);
+        lane.clear();
+      }
+      queueDepth = 0;
+      toJoin = worker;
+      changed.signal();
+    } finally {
+      lock.unlock();
+    }
+    for (Pending pending : dropped) {
+      runCallback(pending);
+    }
+    if (toJoin != null && toJoin != Thread.currentThread()) {
+      toJoin.interrupt();
+      try {
+        toJoin.join();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    LOGGER.info(getMetrics());
+  }
+
+  /**
+   * Sends a message and waits for it to be acknowledged.
+   */
+  protected void transmit(ChannelMessage msg) throws InterruptedException, TimeoutException {
+    channel.sendAndWaitForMessage(msg, DEFAULT_CONDITION, DEFAULT_TIMEOUT_DURATION,
+        DEFAULT_TIMEOUT_TIMEUNIT, null);
+  }
 
+  // must hold lock
+  private void startWorker() {
+    if (worker != null) {
+      return;
+    }
+    worker = new Thread(new Runnable() {
       @Override
       public void run() {
-
         try {
-          sendLock.lock();
-          if (!send) {
-            if (callback != null) {
-              callback.run();
+          while (true) {
+            Pending next = take();
+            if (next == null) {
+              return;
             }
-            return;
+            process(next);
           }
-        } finally {
-          sendLock.unlock();
+        } catch (InterruptedException e) {
+          // stopped
         }
+      }
+    }, "EnqueuedMessageSender");
+    worker.setDaemon(true);
+    worker.start();
+  }
 
-        try {
-          channel.sendAndWaitForMessage(msg, DEFAULT_CONDITION, DEFAULT_TIMEOUT_DURATION,
-              DEFAULT_TIMEOUT_TIMEUNIT, null);
-        } catch (Exception e) {
-          LOGGER.severe("Message send failed");
+  /**
+   * @return next message to send, or null if stopped
+   */
+  private Pending take() throws InterruptedException {
+    try {
+      lock.lock();
+      while (!stopped) {
+        long now = System.nanoTime();
+        long wait = Long.MAX_VALUE;
+        for (ArrayDeque<Pending> lane : lanes.values()) {
+          Pending head = lane.peek();
+          if (head == null) {
+            continue;
+          }
+          long delay = head.notBefore - now;
+          if (head.attempts == 0 || delay <= 0) {
+            queueDepth--;
+            return lane.poll();
+          }
+          wait = Math.min(wait, delay);
         }
-
-        if (callback != null) {
-          callback.run();
+        if (wait == Long.MAX_VALUE) {
+          changed.await();
+        } else {
+          changed.awaitNanos(wait);
         }
+      }
+      return null;
+    } finally {
+      lock.unlock();
+    }
+  }
 
+  private void process(Pending pending) throws InterruptedException {
+    boolean paused;
+    try {
+      lock.lock();
+      paused = !send;
+    } finally {
+      lock.unlock();
+    }
+    if (paused) {
+      runCallback(pending);
+      return;
+    }
+
+    long start = System.nanoTime();
+    boolean acked = false;
+    try {
+      pending.attempts++;
+      transmit(pending.msg);
+      acked = true;
+    } catch (InterruptedException e) {
+      runCallback(pending);
+      throw e;
+    } catch (Exception e) {
+      LOGGER.warning("Message send failed: " + pending.kind + ", attempt " + pending.attempts);
+    }
+    long latency = System.nanoTime() - start;
+
+    try {
+      lock.lock();
+      if (acked) {
+        sent++;
+        lastAckLatencyNanos = latency;
+        maxAckLatencyNanos = Math.max(maxAckLatencyNanos, latency);
+        totalAckLatencyNanos += latency;
+      } else if (pending.attempts > maxRetries) {
+        LOGGER.severe("Message send failed");
+        failed++;
+      } else if (stopped || (pending.kind.isCoalesced() && !lanes.get(pending.kind).isEmpty())) {
+        // superseded while we were waiting for the ack
+        coalesced++;
+      } else {
+        retried++;
+        pending.notBefore = System.nanoTime() + (backoffNanos << (pending.attempts - 1));
+        lanes.get(pending.kind).addFirst(pending);
+        queueDepth++;
+        return;
       }
-    });
+    } finally {
+      lock.unlock();
+    }
+    runCallback(pending);
+  }
 
+  private static void runCallback(Pending pending) {
+    if (pending.callback != null) {
+      pending.callback.run();
+    }
   }
 
-  @Override
-  public void sendMessage(ChannelMessage msg) {
-    sendMessage(msg, null);
+  /**
+   * @return number of messages waiting to be sent
+   */
+  public int getQueueDepth() {
+    try {
+      lock.lock();
+      return queueDepth;
+    } finally {
+      lock.unlock();
+    }
+  }
 
+  public int getMaxQueueDepth() {
+    try {
+      lock.lock();
+      return maxQueueDepth;
+    } finally {
+      lock.unlock();
+    }
   }
 
-  public void pause(boolean pause) {
+  /**
+   * @return number of messages that were dropped because a newer message of the same kind
+   * replaced them
+   */
+  public long getCoalescedCount() {
     try {
-      sendLock.lock();
-      send = !pause;
+      lock.lock();
+      return coalesced;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  public long getSentCount() {
+    try {
+      lock.lock();
+      return sent;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  public long getRetryCount() {
+    try {
+      lock.lock();
+      return retried;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  public long getFailedCount() {
+    try {
+      lock.lock();
+      return failed;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * @return time from sending the last acknowledged message until it was acknowledged, or -1 if
+   * no message has been acknowledged
+   */
+  public long getLastAckLatencyNanos() {
+    try {
+      lock.lock();
+      return lastAckLatencyNanos;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  public long getMaxAckLatencyNanos() {
+    try {
+      lock.lock();
+      return maxAckLatencyNanos;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * @return mean ack latency, or -1 if no message has been acknowledged
+   */
+  public long getMeanAckLatencyNanos() {
+    try {
+      lock.lock();
+      return sent == 0 ? -1 : totalAckLatencyNanos / sent;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  public String getMetrics() {
+    try {
+      lock.lock();
+      return "sent: " + sent
+          + ", coalesced: " + coalesced
+          + ", retried: " + retried
+          + ", failed: " + failed
+          + ", queue depth: " + queueDepth + " (max " + maxQueueDepth + ")"
+          + ", mean ack latency: "
+          + (sent == 0 ? -1 : TimeUnit.NANOSECONDS.toMillis(totalAckLatencyNanos / sent)) + "ms"
+          + ", max ack latency: " + TimeUnit.NANOSECONDS.toMillis(maxAckLatencyNanos) + "ms";
     } finally {
-      sendLock.unlock();
+      lock.unlock();
     }
   }
 
@@ -89,13 +89,12 @@ public class DummyTrainer extends GenericTurboTrainer {
       //change these at lower frequency
       hr = getModelHR(power, hr);
       cadence = plusOrMinus(cadence, MAX_CADENCE_CHANGE);
-      for (TurboTrainerDataListener listener : getDataChangeListeners()) {
-        listener.onCadenceChange(cadence);
-        listener.onPowerChange(power);
-        listener.onHeartRateChange(hr);
-        listener.onSpeedChange(speed);
-        listener.onDistanceChange(distance);
-      }
+      dispatchCadence(cadence);
+      dispatchPower(power);
+      dispatchHeartRate(hr);
+      dispatchSpeed(speed);
+      dispatchDistance(distance);
+      publishTelemetry();
 
     }
   }
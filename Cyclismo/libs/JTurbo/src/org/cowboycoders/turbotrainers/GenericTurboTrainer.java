@@ -1,9 +1,8 @@
 package org.cowboycoders.turbotrainers;
 
+import java.lang.ref.WeakReference;
 import java.util.Arrays;
-import java.util.Collections;
-import java.util.Set;
-import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicReference;
 
 public abstract class GenericTurboTrainer implements TurboTrainerInterface {
 
@@ -43,31 +42,139 @@ public abstract class GenericTurboTrainer implements TurboTrainerInterface {
   }
 
 
+  private final WeakListenerList<TurboTrainerDataListener> dataChangeListeners =
+      new WeakListenerList<TurboTrainerDataListener>();
+
+  private final WeakListenerList<TurboTrainerTelemetryListener> telemetryListeners =
+      new WeakListenerList<TurboTrainerTelemetryListener>();
+
+  private final AtomicReference<TelemetrySnapshot> telemetry =
+      new AtomicReference<TelemetrySnapshot>(TelemetrySnapshot.EMPTY);
+
+  @Override
+  public void unregisterDataListener(TurboTrainerDataListener listener) {
+    dataChangeListeners.remove(listener);
+  }
+
   /**
-   * Weak set
+   * Stored in weak set, so keep a reference : no anonymous classes
    */
-  protected final Set<TurboTrainerDataListener> dataChangeListeners = Collections
-      .newSetFromMap(new WeakHashMap<TurboTrainerDataListener, Boolean>());
+  public void registerDataListener(TurboTrainerDataListener listener) {
+    dataChangeListeners.add(listener);
+  }
 
-  protected Set<TurboTrainerDataListener> getDataChangeListeners() {
-    return dataChangeListeners;
+  /**
+   * Stored in weak set, so keep a reference : no anonymous classes
+   */
+  @Override
+  public void registerTelemetryListener(TurboTrainerTelemetryListener listener) {
+    telemetryListeners.add(listener);
   }
 
   @Override
-  public void unregisterDataListener(TurboTrainerDataListener listener) {
-    synchronized (dataChangeListeners) {
-      dataChangeListeners.remove(listener);
+  public void unregisterTelemetryListener(TurboTrainerTelemetryListener listener) {
+    telemetryListeners.remove(listener);
+  }
+
+  @Override
+  public TelemetrySnapshot getTelemetry() {
+    return telemetry.get();
+  }
+
+  private void record(TelemetrySnapshot.Field field, double value) {
+    TelemetrySnapshot previous;
+    do {
+      previous = telemetry.get();
+    } while (!telemetry.compareAndSet(previous, previous.with(field, value)));
+  }
+
+  /**
+   * Records speed in the telemetry snapshot and notifies data listeners
+   *
+   * @param speed in km/h
+   */
+  protected void dispatchSpeed(double speed) {
+    record(TelemetrySnapshot.Field.SPEED, speed);
+    for (WeakReference<TurboTrainerDataListener> ref : dataChangeListeners.get()) {
+      TurboTrainerDataListener listener = ref.get();
+      if (listener != null) {
+        listener.onSpeedChange(speed);
+      }
     }
   }
 
   /**
-   * Stored in weak set, so keep a reference : no anonymous classes
+   * Records power in the telemetry snapshot and notifies data listeners
+   *
+   * @param power in watts
    */
-  public void registerDataListener(TurboTrainerDataListener listener) {
-    synchronized (dataChangeListeners) {
-      dataChangeListeners.add(listener);
+  protected void dispatchPower(double power) {
+    record(TelemetrySnapshot.Field.POWER, power);
+    for (WeakReference<TurboTrainerDataListener> ref : dataChangeListeners.get()) {
+      TurboTrainerDataListener listener = ref.get();
+      if (listener != null) {
+        listener.onPowerChange(power);
+      }
+    }
+  }
+
+  /**
+   * Records cadence in the telemetry snapshot and notifies data listeners
+   *
+   * @param cadence in rpm
+   */
+  protected void dispatchCadence(double cadence) {
+    record(TelemetrySnapshot.Field.CADENCE, cadence);
+    for (WeakReference<TurboTrainerDataListener> ref : dataChangeListeners.get()) {
+      TurboTrainerDataListener listener = ref.get();
+      if (listener != null) {
+        listener.onCadenceChange(cadence);
+      }
+    }
+  }
+
+  /**
+   * Records distance in the telemetry snapshot and notifies data listeners
+   *
+   * @param distance in m
+   */
+  protected void dispatchDistance(double distance) {
+    record(TelemetrySnapshot.Field.DISTANCE, distance);
+    for (WeakReference<TurboTrainerDataListener> ref : dataChangeListeners.get()) {
+      TurboTrainerDataListener listener = ref.get();
+      if (listener != null) {
+        listener.onDistanceChange(distance);
+      }
     }
   }
 
+  /**
+   * Records heart rate in the telemetry snapshot and notifies data listeners
+   *
+   * @param heartRate in bpm
+   */
+  protected void dispatchHeartRate(double heartRate) {
+    record(TelemetrySnapshot.Field.HEART_RATE, heartRate);
+    for (WeakReference<TurboTrainerDataListener> ref : dataChangeListeners.get()) {
+      TurboTrainerDataListener listener = ref.get();
+      if (listener != null) {
+        listener.onHeartRateChange(heartRate);
+      }
+    }
+  }
+
+  /**
+   * Sends the latest snapshot to telemetry listeners. Subclasses should call this once all the
+   * fields decoded from an update have been dispatched.
+   */
+  protected void publishTelemetry() {
+    TelemetrySnapshot snapshot = telemetry.get();
+    for (WeakReference<TurboTrainerTelemetryListener> ref : telemetryListeners.get()) {
+      TurboTrainerTelemetryListener listener = ref.get();
+      if (listener != null) {
+        listener.onTelemetry(snapshot);
+      }
+    }
+  }
 
 }
@@ -0,0 +1,148 @@
+/*
+ *    Copyright (c) 2013, Will Szumski
+ *    Copyright (c) 2013, Doug Szumski
+ *
+ *    This file is part of Cyclismo.
+ *
+ *    Cyclismo is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    Cyclismo is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with Cyclismo.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.cowboycoders.turbotrainers;
+
+/**
+ * Immutable view of the latest values reported by a turbo trainer. A new instance is created
+ * for every change so that it can be handed between threads without locking.
+ */
+public final class TelemetrySnapshot {
+
+  public enum Field {
+    SPEED,
+    POWER,
+    CADENCE,
+    DISTANCE,
+    HEART_RATE
+  }
+
+  public static final TelemetrySnapshot EMPTY = new TelemetrySnapshot(0, 0, 0, 0, 0, 0, 0);
+
+  private final double speed;
+  private final double power;
+  private final double cadence;
+  private final double distance;
+  private final double heartRate;
+  private final long timestamp;
+  private final long sequence;
+
+  private TelemetrySnapshot(double speed, double power, double cadence, double distance,
+                            double heartRate, long timestamp, long sequence) {
+    this.speed = speed;
+    this.power = power;
+    this.cadence = cadence;
+    this.distance = distance;
+    this.heartRate = heartRate;
+    this.timestamp = timestamp;
+    this.sequence = sequence;
+  }
+
+  /**
+   * @return copy of this snapshot with one field replaced
+   */
+  public TelemetrySnapshot with(Field field, double value) {
+    double speed = this.speed;
+    double power = this.power;
+    double cadence = this.cadence;
+    double distance = this.distance;
+    double heartRate = this.heartRate;
+    switch (field) {
+      case SPEED:
+        speed = value;
+        break;
+      case POWER:
+        power = value;
+        break;
+      case CADENCE:
+        cadence = value;
+        break;
+      case DISTANCE:
+        distance = value;
+        break;
+      case HEART_RATE:
+        heartRate = value;
+        break;
+    }
+    return new TelemetrySnapshot(speed, power, cadence, distance, heartRate, System.nanoTime(),
+        sequence + 1);
+  }
+
+  /**
+   * @return speed in km/h
+   */
+  public double getSpeed() {
+    return speed;
+  }
+
+  /**
+   * @return power in watts
+   */
+  public double getPower() {
+    return power;
+  }
+
+  /**
+   * @return cadence in rpm
+   */
+  public double getCadence() {
+    return cadence;
+  }
+
+  /**
+   * @return distance in m
+   */
+  public double getDistance() {
+    return distance;
+  }
+
+  /**
+   * @return heart rate in bpm
+   */
+  public double getHeartRate() {
+    return heartRate;
+  }
+
+  /**
+   * @return {@link System#nanoTime()} of the last change
+   */
+  public long getTimestamp() {
+    return timestamp;
+  }
+
+  /**
+   * @return number of changes since the trainer was created, can be used to detect missed
+   * updates
+   */
+  public long getSequence() {
+    return sequence;
+  }
+
+  @Override
+  public String toString() {
+    return "TelemetrySnapshot{" +
+        "speed=" + speed +
+        ", power=" + power +
+        ", cadence=" + cadence +
+        ", distance=" + distance +
+        ", heartRate=" + heartRate +
+        ", sequence=" + sequence +
+        '}';
+  }
+}
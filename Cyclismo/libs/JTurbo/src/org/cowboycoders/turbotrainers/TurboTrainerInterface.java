@@ -29,6 +29,15 @@ public interface TurboTrainerInterface {
 
   public abstract void unregisterDataListener(TurboTrainerDataListener listener);
 
+  public abstract void registerTelemetryListener(TurboTrainerTelemetryListener listener);
+
+  public abstract void unregisterTelemetryListener(TurboTrainerTelemetryListener listener);
+
+  /**
+   * @return latest values received from the trainer, never null
+   */
+  public abstract TelemetrySnapshot getTelemetry();
+
   public abstract boolean supportsSpeed();
 
   public abstract boolean supportsPower();
@@ -0,0 +1,59 @@
+package org.cowboycoders.turbotrainers;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Copy-on-write list of weakly referenced listeners. Registration is synchronized, but
+ * iterating over {@link #get()} takes no locks, so listeners can be notified from the receive
+ * thread without contending with consumers.
+ */
+class WeakListenerList<T> {
+
+  private volatile WeakReference<T>[] listeners = newArray(0);
+
+  @SuppressWarnings("unchecked")
+  private static <T> WeakReference<T>[] newArray(int size) {
+    return (WeakReference<T>[]) new WeakReference<?>[size];
+  }
+
+  /**
+   * @return current listeners; entries may have been cleared by the garbage collector
+   */
+  WeakReference<T>[] get() {
+    return listeners;
+  }
+
+  synchronized void add(T listener) {
+    List<WeakReference<T>> updated = copyLive(null);
+    for (WeakReference<T> ref : updated) {
+      if (listener.equals(ref.get())) {
+        return;
+      }
+    }
+    updated.add(new WeakReference<T>(listener));
+    listeners = updated.toArray(WeakListenerList.<T>newArray(updated.size()));
+  }
+
+  synchronized void remove(T listener) {
+    List<WeakReference<T>> updated = copyLive(listener);
+    listeners = updated.toArray(WeakListenerList.<T>newArray(updated.size()));
+  }
+
+  /**
+   * @param excluded listener to leave out, may be null
+   * @return references that have not been cleared
+   */
+  private List<WeakReference<T>> copyLive(T excluded) {
+    List<WeakReference<T>> live = new ArrayList<WeakReference<T>>(listeners.length + 1);
+    for (WeakReference<T> ref : listeners) {
+      T existing = ref.get();
+      if (existing != null && !existing.equals(excluded)) {
+        live.add(ref);
+      }
+    }
+    return live;
+  }
+
+}
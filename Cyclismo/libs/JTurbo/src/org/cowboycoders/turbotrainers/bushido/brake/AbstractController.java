@@ -60,6 +60,9 @@ public abstract class AbstractController implements TurboTrainerDataHooks {
     if (!started) return;
     started = false;
     onStop();
+    if (logger != null) {
+      logger.close();
+    }
   }
 
   /**
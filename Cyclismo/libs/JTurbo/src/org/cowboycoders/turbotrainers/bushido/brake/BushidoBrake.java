@@ -130,25 +130,22 @@ public class BushidoBrake extends AntTurboTrainer {
       // allow hooks in controller to determine which speed we send
       final double speedToSend = resistanceController.onSpeedChange(speed);
 
+      // We are integrating for distance. As onDistanceChange() doesn't
+      // receive values directly
+      // manually update with new value obtained through integration
+      final double distance;
       synchronized (model) {
         model.setActualSpeed(speed);
         model.setVirtualSpeed(speedToSend);
+        distance = model.getVirtualDistance();
       }
 
-      synchronized (dataChangeListeners) {
-
-        for (TurboTrainerDataListener dcl: dataChangeListeners) {
-          dcl.onSpeedChange(speedToSend);
-        }
-
-      }
+      dispatchSpeed(speedToSend);
+      this.onDistanceChange(distance);
 
-      // We are integrating for distance. As onDistanceChange() doesn't
-      // receive values directly
-      // manually update with new value obtained through integration
-      synchronized (model) {
-        this.onDistanceChange(model.getVirtualDistance());
-      }
+      // speed and distance are updated together, so this is the natural point to
+      // notify batched listeners
+      publishTelemetry();
     }
 
     /**
@@ -159,13 +156,7 @@ public class BushidoBrake extends AntTurboTrainer {
       synchronized (model) {
         model.setPower(power);
       }
-      synchronized (dataChangeListeners) {
-        for (TurboTrainerDataListener dcl: dataChangeListeners) {
-          double powerToSend = resistanceController.onPowerChange(power);
-          dcl.onPowerChange(powerToSend);
-        }
-      }
-
+      dispatchPower(resistanceController.onPowerChange(power));
     }
 
     /**
@@ -176,12 +167,7 @@ public class BushidoBrake extends AntTurboTrainer {
       synchronized (model) {
         model.setCadence(cadence);
       }
-      synchronized (dataChangeListeners) {
-        for (TurboTrainerDataListener dcl : dataChangeListeners) {
-          double cadenceToSend = resistanceController.onCadenceChange(cadence);
-          dcl.onCadenceChange(cadenceToSend);
-        }
-      }
+      dispatchCadence(resistanceController.onCadenceChange(cadence));
     }
 
     /**
@@ -190,15 +176,7 @@ public class BushidoBrake extends AntTurboTrainer {
     @Override
     public void onDistanceChange(final double distance) {
       // called from onSpeedChange
-      synchronized (dataChangeListeners) {
-
-        for (TurboTrainerDataListener dcl: dataChangeListeners) {
-          synchronized (model) {
-            double distanceToSend = resistanceController.onDistanceChange(distance);
-            dcl.onDistanceChange(distanceToSend);
-          }
-        }
-      }
+      dispatchDistance(resistanceController.onDistanceChange(distance));
     }
 
     /**
@@ -290,7 +268,7 @@ public class BushidoBrake extends AntTurboTrainer {
       }
 
       channelSender.sendMessage(AntUtils.buildBroadcastMessage(bytes),
-          requestDataCallback);
+          ChannelMessageSender.Kind.CONTROL, requestDataCallback);
     }
 
     @Override
@@ -1260,6 +1238,10 @@ public class BushidoBrake extends AntTurboTrainer {
       resistanceController.stop();
     }
 
+    if (channelMessageSender != null) {
+      channelMessageSender.stop();
+    }
+
     // disconnect();
     if (channel != null) {
       channel.close();
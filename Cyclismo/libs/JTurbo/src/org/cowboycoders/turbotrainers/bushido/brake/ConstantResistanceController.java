@@ -1,6 +1,7 @@
 package org.cowboycoders.turbotrainers.bushido.brake;
 
 import org.cowboycoders.turbotrainers.Mode;
+import org.fluxoid.utils.AsyncCsvLogger;
 import org.fluxoid.utils.SimpleCsvLogger;
 
 import java.io.File;
@@ -49,7 +50,7 @@ public class ConstantResistanceController extends AbstractController {
 
   @Override
   protected SimpleCsvLogger getCsvLogger(File file) {
-    SimpleCsvLogger logger = new SimpleCsvLogger(file, ACTUAL_SPEED_HEADING, POWER_HEADING,
+    SimpleCsvLogger logger = new AsyncCsvLogger(file, ACTUAL_SPEED_HEADING, POWER_HEADING,
         ABSOLUTE_RESISTANCE_HEADING);
     logger.addTime(false);
     logger.append(true);
@@ -7,6 +7,7 @@ import org.cowboycoders.pid.OutputController;
 import org.cowboycoders.pid.PidController;
 import org.cowboycoders.pid.ProcessVariableProvider;
 import org.cowboycoders.turbotrainers.Mode;
+import org.fluxoid.utils.AsyncCsvLogger;
 import org.fluxoid.utils.SimpleCsvLogger;
 
 import java.io.File;
@@ -116,7 +117,7 @@ public class PowerPidBrakeController extends AbstractController {
 
   @Override
   protected SimpleCsvLogger getCsvLogger(File file) {
-    SimpleCsvLogger logger = new SimpleCsvLogger(file, POWER_HEADING, ABSOLUTE_RESISTANCE_HEADING);
+    SimpleCsvLogger logger = new AsyncCsvLogger(file, POWER_HEADING, ABSOLUTE_RESISTANCE_HEADING);
     logger.addTime(true);
     logger.append(true);
     return logger;
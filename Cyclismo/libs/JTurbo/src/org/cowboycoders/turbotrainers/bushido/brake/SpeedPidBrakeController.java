@@ -10,6 +10,7 @@ import org.cowboycoders.pid.ProcessVariableProvider;
 import org.cowboycoders.turbotrainers.Mode;
 import org.cowboycoders.turbotrainers.PowerModel;
 import org.cowboycoders.turbotrainers.PowerModelManipulator;
+import org.fluxoid.utils.AsyncCsvLogger;
 import org.fluxoid.utils.Conversions;
 import org.fluxoid.utils.FixedPeriodUpdater;
 import org.fluxoid.utils.SimpleCsvLogger;
@@ -234,7 +235,7 @@ public class SpeedPidBrakeController extends AbstractController {
 
   @Override
   protected SimpleCsvLogger getCsvLogger(File file) {
-    SimpleCsvLogger logger = new SimpleCsvLogger(file, ACTUAL_SPEED_HEADING,
+    SimpleCsvLogger logger = new AsyncCsvLogger(file, ACTUAL_SPEED_HEADING,
         VIRTUAL_SPEED_HEADING, POWER_HEADING, ABSOLUTE_RESISTANCE_HEADING);
     logger.addTime(true);
     logger.append(true);
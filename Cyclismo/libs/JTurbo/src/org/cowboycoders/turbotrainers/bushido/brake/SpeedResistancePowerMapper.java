@@ -4,6 +4,7 @@ import org.cowboycoders.turbotrainers.Mode;
 import org.cowboycoders.turbotrainers.PowerModel;
 import org.fluxoid.utils.Conversions;
 import org.fluxoid.utils.FixedPeriodUpdater;
+import org.fluxoid.utils.AsyncCsvLogger;
 import org.fluxoid.utils.SimpleCsvLogger;
 import org.fluxoid.utils.UpdateCallback;
 
@@ -174,7 +175,7 @@ public class SpeedResistancePowerMapper extends AbstractController {
 
   @Override
   protected SimpleCsvLogger getCsvLogger(File file) {
-    SimpleCsvLogger logger = new SimpleCsvLogger(file, ACTUAL_SPEED_HEADING,
+    SimpleCsvLogger logger = new AsyncCsvLogger(file, ACTUAL_SPEED_HEADING,
         VIRTUAL_SPEED_HEADING, ABSOLUTE_RESISTANCE_HEADING);
     logger.addTime(true);
     logger.append(true);
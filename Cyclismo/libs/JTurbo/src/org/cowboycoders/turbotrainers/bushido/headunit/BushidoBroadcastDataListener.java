@@ -73,6 +73,7 @@ public class BushidoBroadcastDataListener implements BroadcastListener<Broadcast
         bushidoListener.onHeartRateChange(heartRate);
         // System.out.println("Heart rate: " + heartRate);
       }
+      bushidoListener.onDataPacketProcessed();
     } else if (arrayStartsWith(PARTIAL_PACKET_REQUEST_STATUS, data)) {
       if (arrayStartsWith(PARTIAL_PACKET_PAUSED, data)) {
         //Send unpause command
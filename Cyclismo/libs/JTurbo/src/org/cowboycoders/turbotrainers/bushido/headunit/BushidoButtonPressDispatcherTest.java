@@ -62,6 +62,11 @@ public class BushidoButtonPressDispatcherTest {
 
     }
 
+    @Override
+    public void onDataPacketProcessed() {
+
+    }
+
     @Override
     public void onSpeedChange(double speed) {
       // TODO Auto-generated method stub
@@ -39,7 +39,6 @@ import org.cowboycoders.turbotrainers.AntTurboTrainer;
 import org.cowboycoders.turbotrainers.Mode;
 import org.cowboycoders.turbotrainers.Parameters.CommonParametersInterface;
 import org.cowboycoders.turbotrainers.TooFewAntChannelsAvailableException;
-import org.cowboycoders.turbotrainers.TurboTrainerDataListener;
 
 import java.util.ArrayList;
 import java.util.Collections;
@@ -190,7 +189,8 @@ public class BushidoHeadunit extends AntTurboTrainer {
         bytes = data.getDataPacket();
       }
 
-      channelSender.sendMessage(AntUtils.buildBroadcastMessage(bytes), requestDataCallback);
+      channelSender.sendMessage(AntUtils.buildBroadcastMessage(bytes),
+          ChannelMessageSender.Kind.CONTROL, requestDataCallback);
     }
 
     @Override
@@ -204,12 +204,7 @@ public class BushidoHeadunit extends AntTurboTrainer {
       synchronized (data) {
         data.setVirtualSpeed(speed);
       }
-      synchronized (dataChangeListeners) {
-        for (TurboTrainerDataListener dcl: dataChangeListeners) {
-          dcl.onSpeedChange(speed);
-        }
-      }
-
+      dispatchSpeed(speed);
     }
 
     @Override
@@ -217,12 +212,7 @@ public class BushidoHeadunit extends AntTurboTrainer {
       synchronized (data) {
         data.setPower(power);
       }
-      synchronized (dataChangeListeners) {
-        for (TurboTrainerDataListener dcl: dataChangeListeners) {
-          dcl.onPowerChange(power);
-        }
-      }
-
+      dispatchPower(power);
     }
 
     @Override
@@ -230,29 +220,21 @@ public class BushidoHeadunit extends AntTurboTrainer {
       synchronized (data) {
         data.setCadence(cadence);
       }
-      synchronized (dataChangeListeners) {
-        for (TurboTrainerDataListener dcl : dataChangeListeners) {
-          dcl.onCadenceChange(cadence);
-        }
-      }
+      dispatchCadence(cadence);
     }
 
     @Override
     public void onDistanceChange(final double distance) {
+      final double virtualDistance;
       synchronized (data) {
         data.setActualDistance(distance);
+        virtualDistance = data.getVirtualDistance();
         distanceUpdated = true;
         synchronized (model) {
           model.notifyAll();
         }
       }
-      synchronized (dataChangeListeners) {
-        for (TurboTrainerDataListener dcl : dataChangeListeners) {
-          synchronized (data) {
-            dcl.onDistanceChange(data.getVirtualDistance());
-          }
-        }
-      }
+      dispatchDistance(virtualDistance);
     }
 
     @Override
@@ -260,11 +242,12 @@ public class BushidoHeadunit extends AntTurboTrainer {
       synchronized (data) {
         data.setHeartRate(heartRate);
       }
-      synchronized (dataChangeListeners) {
-        for (TurboTrainerDataListener dcl : dataChangeListeners) {
-          dcl.onHeartRateChange(heartRate);
-        }
-      }
+      dispatchHeartRate(heartRate);
+    }
+
+    @Override
+    public void onDataPacketProcessed() {
+      publishTelemetry();
     }
 
     @Override
@@ -278,7 +261,7 @@ public class BushidoHeadunit extends AntTurboTrainer {
       }
 
       BroadcastDataMessage msg = AntUtils.buildBroadcastMessage(PACKET_ALIVE);
-      channelSender.sendMessage(msg, requestPauseCallback);
+      channelSender.sendMessage(msg, ChannelMessageSender.Kind.KEEP_ALIVE, requestPauseCallback);
     }
 
 
@@ -318,15 +301,6 @@ public class BushidoHeadunit extends AntTurboTrainer {
     }
   }
 
-  /**
-   * Stored in weak set, so keep a reference : no anonymous classes
-   */
-  public void registerDataListener(TurboTrainerDataListener listener) {
-    synchronized (dataChangeListeners) {
-      dataChangeListeners.add(listener);
-    }
-  }
-
 
   /**
    * As a opposed to that based on artificial speed used to compensate for negative gradients
@@ -512,6 +486,7 @@ public class BushidoHeadunit extends AntTurboTrainer {
       }
     }
     disconnect();
+    getMessageSender().stop();
     channel.close();
     channel.unassign();
     getNode().freeChannel(channel);
@@ -34,5 +34,10 @@ interface BushidoInternalListener extends TurboTrainerDataListener, BushidoButto
 
   void onRequestKeepAlive();
 
+  /**
+   * Called once every value in a data packet has been passed to the other callbacks
+   */
+  void onDataPacketProcessed();
+
 
 }
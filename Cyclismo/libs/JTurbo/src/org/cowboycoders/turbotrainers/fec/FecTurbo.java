@@ -38,9 +38,13 @@ import org.cowboycoders.ant.profiles.fitnessequipment.Config;
 import org.cowboycoders.ant.profiles.fitnessequipment.Defines;
 import org.cowboycoders.ant.profiles.fitnessequipment.pages.CalibrationProgress;
 import org.cowboycoders.ant.profiles.fitnessequipment.pages.CalibrationResponse;
+import org.cowboycoders.ant.profiles.fitnessequipment.pages.Command;
 import org.cowboycoders.ant.profiles.fitnessequipment.pages.GeneralData;
 import org.cowboycoders.ant.profiles.fitnessequipment.pages.TorqueData;
+import org.cowboycoders.ant.profiles.fitnessequipment.pages.TrackResistance;
 import org.cowboycoders.ant.profiles.fitnessequipment.pages.TrainerData;
+import org.cowboycoders.ant.profiles.fitnessequipment.pages.WindResistance;
+import org.cowboycoders.ant.profiles.pages.CommonCommandPage;
 import org.cowboycoders.turbotrainers.AntTurboTrainer;
 import org.cowboycoders.turbotrainers.Mode;
 import org.cowboycoders.turbotrainers.Parameters.TargetPower;
@@ -51,7 +55,9 @@ import org.fluxoid.utils.FixedPeriodUpdater;
 import org.fluxoid.utils.FixedPeriodUpdaterWithReset;
 import org.fluxoid.utils.UpdateCallback;
 
+import java.math.BigDecimal;
 import java.util.EnumSet;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 import java.util.logging.Logger;
 
@@ -65,43 +71,55 @@ public class FecTurbo extends AntTurboTrainer {
   private static final int UPDATE_PERIOD_MS = 1000;
   // Should be > update period from turbo (2s for Bushido)
   private static final int RESET_PERIOD_MS = 5000;
+  // Smallest change in grade (percent) worth sending to the trainer
+  private static final double GRADE_THRESHOLD = 0.1;
+  // The trainer broadcasts at 4Hz, so allow a few pages for the command status to come back
+  private static final long CONFIRM_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(2);
+  private static final int MAX_RETRIES = 5;
+  private static final double KMPH_PER_MPS = 3.6;
   private FecProfile fecProfile;
 
+  private final SlopeController slopeController = new SlopeController(GRADE_THRESHOLD,
+      CONFIRM_TIMEOUT_NANOS, MAX_RETRIES);
+  // guarded by this
+  private boolean statusRequested;
+  private WindResistance.WindResistancePayload pendingWind;
+  private BigDecimal rollingResistance = new TrackResistance.TrackResistancePayload()
+      .getCoefficientRollingResistance();
+  private double lastWindCoeff = Double.NaN;
+  private int lastWindSpeed;
+  private double lastTargetPower = Double.NaN;
+
+  /**
+   * Called once per page received from the trainer, so that we send at most one command per page.
+   */
+  private BroadcastListener<SpeedUpdate> pageClock = new BroadcastListener<SpeedUpdate>() {
+    @Override
+    public void receiveMessage(SpeedUpdate message) {
+      sendPendingCommands();
+    }
+  };
+
   private TurboTrainerDataListener dispatchListener = new TurboTrainerDataListener() {
     @Override
     public void onSpeedChange(double speedKmph) {
-      synchronized (dataChangeListeners) {
-        for (TurboTrainerDataListener dcl : dataChangeListeners) {
-          dcl.onSpeedChange(speedKmph);
-        }
-      }
+      dispatchSpeed(speedKmph);
+      publishTelemetry();
     }
 
     @Override
     public void onPowerChange(final double powerWatts) {
-      synchronized (dataChangeListeners) {
-        for (TurboTrainerDataListener dcl : dataChangeListeners) {
-          dcl.onPowerChange(powerWatts);
-        }
-      }
+      dispatchPower(powerWatts);
     }
 
     @Override
     public void onCadenceChange(final double cadenceRpm) {
-      synchronized (dataChangeListeners) {
-        for (TurboTrainerDataListener dcl : dataChangeListeners) {
-          dcl.onCadenceChange(cadenceRpm);
-        }
-      }
+      dispatchCadence(cadenceRpm);
     }
 
     @Override
     public void onDistanceChange(final double distanceMeters) {
-      synchronized (dataChangeListeners) {
-        for (TurboTrainerDataListener dcl : dataChangeListeners) {
-          dcl.onDistanceChange(distanceMeters);
-        }
-      }
+      dispatchDistance(distanceMeters);
     }
 
     @Override
@@ -196,6 +214,21 @@ public class FecTurbo extends AntTurboTrainer {
         //TODO
       }
 
+      @Override
+      public void onCommandStatusReceived(CommonCommandPage.CommandStatus status) {
+        if (!(status instanceof Command.TerrainStatus)
+            || status.getStatus() != Defines.Status.PASS) {
+          return;
+        }
+        BigDecimal grade = ((Command.TerrainStatus) status).getGrade();
+        // grade is omitted when the trainer is using the default of 0%
+        double applied = grade == null ? 0.0 : grade.doubleValue();
+        if (slopeController.onGradeApplied(applied, System.nanoTime())) {
+          LOGGER.fine("grade " + applied + "% applied after "
+              + TimeUnit.NANOSECONDS.toMillis(slopeController.getLastLatencyNanos()) + "ms");
+        }
+      }
+
       @Override
       public void onStatusChange(EnumSet<Defines.TrainerStatusFlag> oldStatus, EnumSet<Defines
           .TrainerStatusFlag> newStatus) {
@@ -218,6 +251,7 @@ public class FecTurbo extends AntTurboTrainer {
     };
     BufferedEventPrioritiser prioritiser = new BufferedEventPrioritiser(prioritisedBus, priorities);
     fecProfile.getDataHub().addListener(TaggedTelemetryEvent.class, prioritiser);
+    fecProfile.getDataHub().addListener(SpeedUpdate.class, pageClock);
 
     prioritisedBus.addListener(SpeedUpdate.class, new BroadcastListener<SpeedUpdate>() {
       @Override
@@ -265,8 +299,70 @@ public class FecTurbo extends AntTurboTrainer {
   }
 
   public void stop() throws InterruptedException, TimeoutException {
-    // TODO: Implement
-    //fecProfile.stop();
+    speedUpdater.stop();
+    powerUpdater.stop();
+    cadenceUpdater.stop();
+    if (fecProfile != null) {
+      fecProfile.getDataHub().removeListener(pageClock);
+      fecProfile.stop();
+    }
+    LOGGER.info("grade updates: " + slopeController.getTargetUpdates()
+        + ", commands sent: " + slopeController.getCommandsSent()
+        + ", confirmed: " + slopeController.getConfirmations()
+        + ", mean latency: " + TimeUnit.NANOSECONDS.toMillis(getMeanCommandLatencyNanos()) + "ms");
+  }
+
+  /**
+   * @return mean time between first sending a grade and the trainer reporting that it has applied
+   * it, or -1 if no grade has been confirmed yet
+   */
+  public long getMeanCommandLatencyNanos() {
+    return slopeController.getMeanLatencyNanos();
+  }
+
+  /**
+   * @return latency of the most recently confirmed grade, or -1 if none has been confirmed
+   */
+  public long getLastCommandLatencyNanos() {
+    return slopeController.getLastLatencyNanos();
+  }
+
+  private synchronized void sendPendingCommands() {
+    if (pendingWind != null) {
+      fecProfile.setWindResistance(pendingWind);
+      pendingWind = null;
+      return;
+    }
+    double grade = slopeController.poll(System.nanoTime());
+    if (!Double.isNaN(grade)) {
+      fecProfile.setTrackResistance(new TrackResistance.TrackResistancePayload()
+          .setGradient(BigDecimal.valueOf(grade))
+          .setCoefficientRollingResistance(rollingResistance));
+      statusRequested = false;
+      return;
+    }
+    if (slopeController.isAwaitingConfirmation() && !statusRequested) {
+      // queued on the profile's request buffer, which sends it alongside a later page
+      fecProfile.requestStatusCmd();
+      statusRequested = true;
+    }
+  }
+
+  private synchronized void updateWindResistance(CommonParametersInterface parameters) {
+    double coeff = parameters.getDragArea() * parameters.getAirDensity();
+    // headwind component of the wind, in km/h
+    double relative = Math.toRadians(parameters.getWindDirectionDegrees()
+        - parameters.getCurrentBearing());
+    long windSpeed = Math.round(parameters.getWindSpeed() * Math.cos(relative) * KMPH_PER_MPS);
+    int clamped = (int) Math.max(-127, Math.min(127, windSpeed));
+    if (Math.abs(coeff - lastWindCoeff) < 0.005 && clamped == lastWindSpeed) {
+      return;
+    }
+    lastWindCoeff = coeff;
+    lastWindSpeed = clamped;
+    pendingWind = new WindResistance.WindResistancePayload()
+        .setWindResistanceCoeff(BigDecimal.valueOf(coeff))
+        .setWindSpeed(clamped);
   }
 
   @Override
@@ -294,11 +390,22 @@ public class FecTurbo extends AntTurboTrainer {
       throws IllegalArgumentException {
     if (parameters instanceof TargetPower) {
       TargetPower cast = (TargetPower) parameters;
+      synchronized (this) {
+        if (cast.getPower() == lastTargetPower) {
+          return;
+        }
+        lastTargetPower = cast.getPower();
+      }
       fecProfile.setTargetPower(cast.getPower());
     } else if (parameters instanceof TargetSlope) {
       TargetSlope cast = (TargetSlope) parameters;
-      // Set gradient in percent - it seems not all FEC turbos behave this way?
-      fecProfile.setBasicResistance(cast.getSlope());
+      synchronized (this) {
+        rollingResistance = BigDecimal.valueOf(cast.getCoefficentRollingResistance());
+        lastTargetPower = Double.NaN;
+      }
+      updateWindResistance(cast);
+      // Sent at the trainer's page rate, see sendPendingCommands()
+      slopeController.setTarget(cast.getSlope());
     }
     // TODO: Implement target speed. See TurboService.
     // The FEC turbo should automatically switch modes according to the quantity set in the profile.
@@ -0,0 +1,170 @@
+/*
+ *    Copyright (c) 2017, Will Szumski
+ *    Copyright (c) 2017, Doug Szumski
+ *
+ *    This file is part of Cyclismo.
+ *
+ *    Cyclismo is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    Cyclismo is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with Cyclismo.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.cowboycoders.turbotrainers.fec;
+
+/**
+ * Decides when a track resistance command should be sent to an FE-C trainer.
+ * <p>
+ * The target grade may be updated as often as the caller likes, but {@link #poll(long)} is only
+ * called once per page received from the trainer. A command is issued when the target has moved
+ * at least {@code threshold} away from the last grade sent, or when the trainer has not confirmed
+ * the last command within the confirmation timeout. Everything in between is coalesced.
+ */
+class SlopeController {
+
+  /**
+   * Resolution of the grade field in the track resistance page (percent).
+   */
+  static final double GRADE_RESOLUTION = 0.01;
+
+  private final double threshold;
+  private final long confirmTimeoutNanos;
+  private final int maxRetries;
+
+  private double target = Double.NaN;
+  private double sent = Double.NaN;
+  private long firstSentTimeStamp;
+  private long sentTimeStamp;
+  private boolean awaitingConfirmation;
+  private int retries;
+
+  private long targetUpdates;
+  private long commandsSent;
+  private long confirmations;
+  private long lastLatencyNanos = -1;
+  private long maxLatencyNanos;
+  private long totalLatencyNanos;
+
+  /**
+   * @param threshold minimum change in grade (percent) before a new command is sent
+   * @param confirmTimeoutNanos time to wait for the trainer to confirm a command before resending
+   * @param maxRetries number of times an unconfirmed command is resent before giving up
+   */
+  SlopeController(double threshold, long confirmTimeoutNanos, int maxRetries) {
+    if (threshold < GRADE_RESOLUTION) {
+      throw new IllegalArgumentException("threshold must be at least " + GRADE_RESOLUTION);
+    }
+    this.threshold = threshold;
+    this.confirmTimeoutNanos = confirmTimeoutNanos;
+    this.maxRetries = maxRetries;
+  }
+
+  /**
+   * @param grade new target grade in percent
+   */
+  synchronized void setTarget(double grade) {
+    target = round(grade);
+    targetUpdates++;
+  }
+
+  /**
+   * Should be called once per page received from the trainer.
+   *
+   * @param now current value of {@link System#nanoTime()}
+   * @return grade to send, or NaN if no command is required
+   */
+  synchronized double poll(long now) {
+    if (Double.isNaN(target)) {
+      return Double.NaN;
+    }
+    if (Double.isNaN(sent) || Math.abs(target - sent) >= threshold - GRADE_RESOLUTION / 2) {
+      sent = target;
+      firstSentTimeStamp = now;
+      retries = 0;
+      return markSent(now);
+    }
+    if (awaitingConfirmation && now - sentTimeStamp > confirmTimeoutNanos) {
+      if (retries >= maxRetries) {
+        FecTurbo.LOGGER.warning("trainer did not confirm grade: " + sent);
+        awaitingConfirmation = false;
+        return Double.NaN;
+      }
+      retries++;
+      return markSent(now);
+    }
+    return Double.NaN;
+  }
+
+  private double markSent(long now) {
+    sentTimeStamp = now;
+    awaitingConfirmation = true;
+    commandsSent++;
+    return sent;
+  }
+
+  /**
+   * Called when the trainer reports the grade it is currently applying.
+   *
+   * @param applied grade reported by the trainer, in percent
+   * @param now current value of {@link System#nanoTime()}
+   * @return true if this confirmed the outstanding command
+   */
+  synchronized boolean onGradeApplied(double applied, long now) {
+    if (!awaitingConfirmation || Math.abs(applied - sent) >= GRADE_RESOLUTION / 2) {
+      return false;
+    }
+    awaitingConfirmation = false;
+    lastLatencyNanos = now - firstSentTimeStamp;
+    maxLatencyNanos = Math.max(maxLatencyNanos, lastLatencyNanos);
+    totalLatencyNanos += lastLatencyNanos;
+    confirmations++;
+    return true;
+  }
+
+  synchronized boolean isAwaitingConfirmation() {
+    return awaitingConfirmation;
+  }
+
+  synchronized long getTargetUpdates() {
+    return targetUpdates;
+  }
+
+  synchronized long getCommandsSent() {
+    return commandsSent;
+  }
+
+  synchronized long getConfirmations() {
+    return confirmations;
+  }
+
+  /**
+   * @return time from first sending the last confirmed command until the trainer reported
+   * applying it, or -1 if no command has been confirmed
+   */
+  synchronized long getLastLatencyNanos() {
+    return lastLatencyNanos;
+  }
+
+  synchronized long getMaxLatencyNanos() {
+    return maxLatencyNanos;
+  }
+
+  synchronized long getMeanLatencyNanos() {
+    if (confirmations == 0) {
+      return -1;
+    }
+    return totalLatencyNanos / confirmations;
+  }
+
+  private static double round(double grade) {
+    return Math.round(grade / GRADE_RESOLUTION) * GRADE_RESOLUTION;
+  }
+
+}
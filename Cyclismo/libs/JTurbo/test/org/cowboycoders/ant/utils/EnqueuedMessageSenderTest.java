@@ -0,0 +1,142 @@
+package org.cowboycoders.ant.utils;
+
+import org.cowboycoders.ant.messages.ChannelMessage;
+import org.cowboycoders.ant.messages.data.BroadcastDataMessage;
+import org.cowboycoders.ant.utils.ChannelMessageSender.Kind;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class EnqueuedMessageSenderTest {
+
+  /**
+   * Records messages instead of sending them. The first message blocks until released, so that
+   * the tests can build up a queue behind it.
+   */
+  private static class RecordingSender extends EnqueuedMessageSender {
+    private final List<ChannelMessage> transmitted =
+        Collections.synchronizedList(new ArrayList<ChannelMessage>());
+    private final CountDownLatch started = new CountDownLatch(1);
+    private final CountDownLatch release = new CountDownLatch(1);
+    private int failures;
+
+    RecordingSender(int failures) {
+      super(null, 2, 1, TimeUnit.MILLISECONDS);
+      this.failures = failures;
+    }
+
+    @Override
+    protected void transmit(ChannelMessage msg) throws InterruptedException, TimeoutException {
+      started.countDown();
+      release.await();
+      synchronized (this) {
+        if (failures > 0) {
+          failures--;
+          throw new TimeoutException();
+        }
+      }
+      transmitted.add(msg);
+    }
+  }
+
+  private final List<ChannelMessage> messages = new ArrayList<>();
+
+  private ChannelMessage message(int tag) {
+    BroadcastDataMessage msg = new BroadcastDataMessage();
+    msg.setData(AntUtils.padToDataLength(new int[]{tag}));
+    messages.add(msg);
+    return msg;
+  }
+
+  private int tag(ChannelMessage msg) {
+    return messages.indexOf(msg) + 1;
+  }
+
+  private static Runnable countDown(final CountDownLatch latch) {
+    return new Runnable() {
+      @Override
+      public void run() {
+        latch.countDown();
+      }
+    };
+  }
+
+  @Test
+  public void sendsByPriorityAndCoalesces() throws InterruptedException {
+    RecordingSender sender = new RecordingSender(0);
+    CountDownLatch done = new CountDownLatch(7);
+    sender.sendMessage(message(1), Kind.REQUEST, countDown(done));
+    assertTrue(sender.started.await(1, TimeUnit.SECONDS));
+    sender.sendMessage(message(2), Kind.REQUEST, countDown(done));
+    sender.sendMessage(message(3), Kind.KEEP_ALIVE, countDown(done));
+    sender.sendMessage(message(4), Kind.CONTROL, countDown(done));
+    sender.sendMessage(message(5), Kind.CONTROL, countDown(done));
+    sender.sendMessage(message(6), Kind.KEEP_ALIVE, countDown(done));
+    sender.sendMessage(message(7), Kind.CONTROL, countDown(done));
+    assertEquals(3, sender.getMaxQueueDepth());
+    sender.release.countDown();
+
+    // callbacks of superseded messages are run too
+    assertTrue(done.await(1, TimeUnit.SECONDS));
+    List<Integer> order = new ArrayList<>();
+    for (ChannelMessage msg : sender.transmitted) {
+      order.add(tag(msg));
+    }
+    assertEquals(Integer.valueOf(1), order.get(0));
+    assertEquals(Integer.valueOf(7), order.get(1));
+    assertEquals(Integer.valueOf(6), order.get(2));
+    assertEquals(Integer.valueOf(2), order.get(3));
+    assertEquals(4, order.size());
+    assertEquals(3, sender.getCoalescedCount());
+    assertEquals(4, sender.getSentCount());
+    assertEquals(0, sender.getQueueDepth());
+    assertTrue(sender.getMeanAckLatencyNanos() >= 0);
+    sender.stop();
+  }
+
+  @Test
+  public void retriesWithBackoff() throws InterruptedException {
+    RecordingSender sender = new RecordingSender(2);
+    sender.release.countDown();
+    CountDownLatch done = new CountDownLatch(1);
+    sender.sendMessage(message(1), Kind.REQUEST, countDown(done));
+    assertTrue(done.await(1, TimeUnit.SECONDS));
+    assertEquals(1, sender.transmitted.size());
+    assertEquals(2, sender.getRetryCount());
+    assertEquals(0, sender.getFailedCount());
+    sender.stop();
+  }
+
+  @Test
+  public void givesUpAfterMaxRetries() throws InterruptedException {
+    RecordingSender sender = new RecordingSender(3);
+    sender.release.countDown();
+    CountDownLatch done = new CountDownLatch(1);
+    sender.sendMessage(message(1), Kind.CONTROL, countDown(done));
+    assertTrue(done.await(1, TimeUnit.SECONDS));
+    assertEquals(0, sender.transmitted.size());
+    assertEquals(1, sender.getFailedCount());
+    sender.stop();
+  }
+
+  @Test
+  public void pausedMessagesAreDropped() throws InterruptedException {
+    RecordingSender sender = new RecordingSender(0);
+    sender.release.countDown();
+    sender.pause(true);
+    CountDownLatch done = new CountDownLatch(1);
+    sender.sendMessage(message(1), countDown(done));
+    assertTrue(done.await(1, TimeUnit.SECONDS));
+    assertEquals(0, sender.transmitted.size());
+    sender.stop();
+  }
+
+}
@@ -0,0 +1,156 @@
+package org.cowboycoders.turbotrainers;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Tests for the listener and telemetry snapshot handling in {@link GenericTurboTrainer}
+ */
+public class GenericTurboTrainerTest {
+
+  private static class StubTrainer extends GenericTurboTrainer {
+
+    void packet(double speed, double power, double cadence) {
+      dispatchSpeed(speed);
+      dispatchPower(power);
+      dispatchCadence(cadence);
+      publishTelemetry();
+    }
+
+    @Override
+    public boolean supportsSpeed() {
+      return true;
+    }
+
+    @Override
+    public boolean supportsPower() {
+      return true;
+    }
+
+    @Override
+    public boolean supportsCadence() {
+      return true;
+    }
+
+    @Override
+    public boolean supportsHeartRate() {
+      return false;
+    }
+
+    @Override
+    public void setParameters(Parameters.CommonParametersInterface parameters) {
+    }
+
+    @Override
+    public void start() {
+    }
+
+    @Override
+    public void stop() throws InterruptedException, TimeoutException {
+    }
+  }
+
+  private static class RecordingListener implements TurboTrainerDataListener,
+      TurboTrainerTelemetryListener {
+
+    final List<TelemetrySnapshot> snapshots = new ArrayList<TelemetrySnapshot>();
+    int fieldUpdates;
+
+    @Override
+    public void onTelemetry(TelemetrySnapshot snapshot) {
+      snapshots.add(snapshot);
+    }
+
+    @Override
+    public void onSpeedChange(double speed) {
+      fieldUpdates++;
+    }
+
+    @Override
+    public void onPowerChange(double power) {
+      fieldUpdates++;
+    }
+
+    @Override
+    public void onCadenceChange(double cadence) {
+      fieldUpdates++;
+    }
+
+    @Override
+    public void onDistanceChange(double distance) {
+      fieldUpdates++;
+    }
+
+    @Override
+    public void onHeartRateChange(double heartRate) {
+      fieldUpdates++;
+    }
+  }
+
+  @Test
+  public void onePacketOneSnapshot() {
+    StubTrainer trainer = new StubTrainer();
+    RecordingListener listener = new RecordingListener();
+    trainer.registerDataListener(listener);
+    trainer.registerTelemetryListener(listener);
+    // duplicate registrations are ignored
+    trainer.registerTelemetryListener(listener);
+
+    trainer.packet(30, 200, 90);
+    trainer.packet(31, 210, 91);
+
+    assertEquals(6, listener.fieldUpdates);
+    assertEquals(2, listener.snapshots.size());
+    TelemetrySnapshot first = listener.snapshots.get(0);
+    assertEquals(30, first.getSpeed(), 0.0);
+    assertEquals(200, first.getPower(), 0.0);
+    assertEquals(90, first.getCadence(), 0.0);
+    TelemetrySnapshot second = listener.snapshots.get(1);
+    assertEquals(31, second.getSpeed(), 0.0);
+    assertEquals(3, second.getSequence() - first.getSequence());
+    assertSame(second, trainer.getTelemetry());
+  }
+
+  @Test
+  public void unregister() {
+    StubTrainer trainer = new StubTrainer();
+    RecordingListener listener = new RecordingListener();
+    trainer.registerDataListener(listener);
+    trainer.registerTelemetryListener(listener);
+    trainer.unregisterDataListener(listener);
+    trainer.unregisterTelemetryListener(listener);
+    trainer.packet(30, 200, 90);
+    assertEquals(0, listener.fieldUpdates);
+    assertEquals(0, listener.snapshots.size());
+    assertEquals(200, trainer.getTelemetry().getPower(), 0.0);
+  }
+
+  @Test
+  public void concurrentUpdatesAreNotLost() throws InterruptedException {
+    final StubTrainer trainer = new StubTrainer();
+    final int updates = 10000;
+    Thread[] threads = new Thread[4];
+    for (int i = 0; i < threads.length; i++) {
+      threads[i] = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          for (int j = 0; j < updates; j++) {
+            trainer.dispatchPower(j);
+          }
+        }
+      });
+      threads[i].start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    assertEquals(threads.length * updates, trainer.getTelemetry().getSequence());
+  }
+
+}
@@ -0,0 +1,80 @@
+package org.cowboycoders.turbotrainers.fec;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SlopeControllerTest {
+
+  private static final long PAGE = TimeUnit.MILLISECONDS.toNanos(250);
+  private static final long TIMEOUT = TimeUnit.SECONDS.toNanos(1);
+
+  private SlopeController newController() {
+    return new SlopeController(0.1, TIMEOUT, 2);
+  }
+
+  @Test
+  public void nothingSentWithoutTarget() {
+    SlopeController controller = newController();
+    assertTrue(Double.isNaN(controller.poll(0)));
+    assertEquals(0, controller.getCommandsSent());
+  }
+
+  @Test
+  public void coalescesUpdatesBetweenPages() {
+    SlopeController controller = newController();
+    for (int i = 0; i < 10; i++) {
+      controller.setTarget(1 + i * 0.1);
+    }
+    assertEquals(1.9, controller.poll(0), 1e-9);
+    assertTrue(Double.isNaN(controller.poll(PAGE)));
+    assertEquals(10, controller.getTargetUpdates());
+    assertEquals(1, controller.getCommandsSent());
+  }
+
+  @Test
+  public void ignoresChangesBelowThreshold() {
+    SlopeController controller = newController();
+    controller.setTarget(2.0);
+    controller.poll(0);
+    controller.onGradeApplied(2.0, PAGE);
+    controller.setTarget(2.05);
+    assertTrue(Double.isNaN(controller.poll(2 * PAGE)));
+    controller.setTarget(2.1);
+    assertEquals(2.1, controller.poll(3 * PAGE), 1e-9);
+    assertEquals(2, controller.getCommandsSent());
+  }
+
+  @Test
+  public void measuresLatencyFromFirstSend() {
+    SlopeController controller = newController();
+    controller.setTarget(-3.5);
+    controller.poll(0);
+    assertFalse(controller.onGradeApplied(0.0, PAGE));
+    assertTrue(controller.isAwaitingConfirmation());
+    assertTrue(controller.onGradeApplied(-3.5, 3 * PAGE));
+    assertFalse(controller.isAwaitingConfirmation());
+    assertEquals(3 * PAGE, controller.getLastLatencyNanos());
+    assertEquals(3 * PAGE, controller.getMeanLatencyNanos());
+    assertEquals(1, controller.getConfirmations());
+  }
+
+  @Test
+  public void resendsUnconfirmedUntilRetriesExhausted() {
+    SlopeController controller = newController();
+    controller.setTarget(4);
+    long now = 0;
+    assertEquals(4, controller.poll(now), 1e-9);
+    assertTrue(Double.isNaN(controller.poll(now += PAGE)));
+    assertEquals(4, controller.poll(now += TIMEOUT), 1e-9);
+    assertEquals(4, controller.poll(now += TIMEOUT + PAGE), 1e-9);
+    assertTrue(Double.isNaN(controller.poll(now += TIMEOUT + PAGE)));
+    assertFalse(controller.isAwaitingConfirmation());
+    assertEquals(3, controller.getCommandsSent());
+  }
+
+}